@@ -20,13 +20,13 @@ package com.jascotty2.minecraftim;
 
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.OscarTools;
+import net.kano.joscar.Screenname;
 import net.kano.joscar.net.ClientConn;
 import net.kano.joscar.net.ClientConnEvent;
 import net.kano.joscar.flap.ClientFlapConn;
 import net.kano.joscar.flapcmd.SnacCommand;
 import net.kano.joscar.snac.*;
 import net.kano.joscar.snaccmd.*;
-import net.kano.joscar.snaccmd.chat.ChatMsg;
 import net.kano.joscar.snaccmd.conn.ServiceRequest;
 import net.kano.joscar.snaccmd.icbm.SendImIcbm;
 import net.kano.joscar.snaccmd.rooms.JoinRoomCmd;
@@ -35,10 +35,16 @@ import net.kano.joscar.snaccmd.ssi.SsiItem;
 import net.kano.joscar.ssiitem.BuddyItem;
 import com.jascotty2.minecraftim.kano.joscardemo.security.*;
 import com.jascotty2.minecraftim.kano.joscardemo.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 /**
  * @author jacob
@@ -49,7 +55,7 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 	String username, password;
 	public String sendTo;
 	boolean connected = false;
-	protected Map<String, Buddy> buddies = new HashMap<String, Buddy>();
+	protected Map<Screenname, Buddy> buddies = new HashMap<Screenname, Buddy>();
 	//protected Map<Integer, Group> groups = new HashMap<Integer, Group>();
 	protected static final int DEFAULT_SERVICE_PORT = 5190;
 	protected DefaultClientFactoryList factoryList = new DefaultClientFactoryList();
@@ -59,19 +65,119 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 	protected BosFlapConn bosConn = null;
 	private SecureSession secureSession = SecureSession.getInstance();
 	protected Set<ServiceConn> services = new HashSet<ServiceConn>();
-	protected Map<String, ChatConn> chats = new HashMap<String, ChatConn>();
+	/** chat rooms, & the in-game channels mirrored into them */
+	protected ChatRoomBridge chatBridge = new ChatRoomBridge(this);
+	/** open direct IM connections, which bypass the ICBM rate limits */
+	protected Map<Screenname, DirectIMSession> directIms = new ConcurrentHashMap<Screenname, DirectIMSession>();
+	protected SsiCache ssiCache = null;
 	protected SnacManager snacMgr = new SnacManager(new PendingSnacListener() {
 
 		public void dequeueSnacs(SnacRequest[] pending) {
-			System.out.println("dequeuing " + pending.length + " snacs");
+			MinecraftIM.Log(Level.FINE, "Dequeuing " + pending.length + " snacs");
 			for (int i = 0; i < pending.length; i++) {
-				handleRequest(pending[i]);
+				// these go ahead of anything still queued for their family
+				BasicConn conn = snacMgr.getConn(pending[i].getCommand().getFamily());
+				if (conn != null) {
+					conn.sendRequest(pending[i]);
+				} else {
+					// the service went away mid-replay; queueing the request
+					// again would only replay it again
+					dropRequest(pending[i]);
+				}
+			}
+		}
+
+		public void droppedSnacs(SnacRequest[] dropped) {
+			for (int i = 0; i < dropped.length; i++) {
+				dropRequest(dropped[i]);
 			}
 		}
 	});
 
+	protected PresenceDebouncer presence;
+	protected FileTransferEngine transferEngine = null;
+	protected RvConnector rvConnector = null;
+
 	public AIM_Messenger(Messenger callback) {
 		callbackMessenger = callback;
+		presence = new PresenceDebouncer(new PresenceDebouncer.Listener() {
+
+			public void presenceChanged(String user, boolean online) {
+				buddyPresenceChanged(user, online);
+			}
+		}, callback.presenceStableOnline * 1000, callback.presenceOfflineGrace * 1000);
+	}
+
+	public PresenceDebouncer getPresenceDebouncer() {
+		return presence;
+	}
+
+	/**
+	 * the engine running this account's file transfers, started on first use
+	 * (& again if it had to stop)
+	 */
+	public synchronized FileTransferEngine getFileTransferEngine() {
+		if (transferEngine == null || transferEngine.isShutdown()) {
+			try {
+				transferEngine = new FileTransferEngine(2);
+			} catch (IOException ex) {
+				throw new IllegalStateException("cannot start file transfers", ex);
+			}
+		}
+		return transferEngine;
+	}
+
+	/**
+	 * opens file transfer and direct IM connections, through a proxy when
+	 * needed; started on first use
+	 */
+	public synchronized RvConnector getRvConnector() {
+		if (rvConnector == null) {
+			rvConnector = new RvConnector();
+		}
+		return rvConnector;
+	}
+
+	public File getDownloadFolder() {
+		return new File(Messenger.pluginFolder, "downloads");
+	}
+
+	public long getTransferRate() {
+		return callbackMessenger.transferRate;
+	}
+
+	/**
+	 * offers a file to a buddy (eg. so an admin can pull a server log)
+	 * @param to who to send the file to
+	 * @param file the file to send
+	 * @return the transfer, which starts once the buddy accepts
+	 * @throws IOException if a listening socket can't be opened
+	 */
+	public OutgoingFileTransfer sendFile(String to, File file) throws IOException {
+		if (bosConn == null) {
+			throw new IOException("not connected");
+		}
+		return bosConn.sendFile(to, file, getFileTransferEngine(), getTransferRate());
+	}
+
+	public void directImOpened(DirectIMSession session) {
+		DirectIMSession old = directIms.put(Screenname.getInstance(session.getScreenname()), session);
+		if (old != null && old != session) {
+			old.close();
+		}
+	}
+
+	public void directImClosed(DirectIMSession session) {
+		directIms.remove(Screenname.getInstance(session.getScreenname()), session);
+	}
+
+	/**
+	 * @param sn a buddy's screenname
+	 * @return the open direct IM connection with that buddy, or null if none
+	 */
+	public DirectIMSession getDirectImSession(String sn) {
+		DirectIMSession session = directIms.get(Screenname.getInstance(sn));
+		return session != null && session.isOpen() ? session : null;
 	}
 
 	public long maxMessageSize() {
@@ -131,8 +237,37 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 	}
 
 	public void joinChat(int exchange, String roomname) {
-		FullRoomInfo roomInfo = new FullRoomInfo(exchange, roomname, "us-ascii", "en");
-		handleRequest(new SnacRequest(new JoinRoomCmd(roomInfo), null));
+		final FullRoomInfo roomInfo = new FullRoomInfo(exchange, roomname, "us-ascii", "en");
+		handleRequest(new SnacRequest(new JoinRoomCmd(roomInfo), new SnacRequestAdapter() {
+
+			private volatile boolean responded = false;
+
+			@Override
+			public void handleResponse(SnacResponseEvent e) {
+				responded = true;
+			}
+
+			@Override
+			public void handleTimeout(SnacRequestTimeoutEvent event) {
+				// every request times out eventually; only one that was never
+				// answered means the join failed
+				if (!responded) {
+					chatBridge.joinFailed(roomInfo);
+				}
+			}
+		}));
+	}
+
+	/**
+	 * tells a request's listeners that it timed out without being sent, so
+	 * whoever made it isn't left waiting for a response.
+	 */
+	protected void dropRequest(SnacRequest request) {
+		BosFlapConn conn = bosConn;
+		MinecraftIM.Log(Level.FINE, "Dropped snac request " + request.getCommand());
+		if (conn != null) {
+			conn.getSnacProcessor().dropRequest(request);
+		}
 	}
 
 	public void connectToChat(FullRoomInfo roomInfo, String host,
@@ -140,37 +275,53 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 		ChatConn conn = new ChatConn(host, DEFAULT_SERVICE_PORT, this, cookie,
 				roomInfo);
 
-		conn.addChatListener(new MyChatConnListener());
+		chatBridge.roomConnecting(roomInfo, conn);
 
 		conn.connect();
 	}
 
 	public ChatConn getChatConn(String name) {
-		return chats.get(OscarTools.normalize(name));
+		return chatBridge.getChatConn(name);
 	}
 
-	public synchronized void handleRequest(SnacRequest request) {
-		int family = request.getCommand().getFamily();
-		if (snacMgr.isPending(family)) {
-			snacMgr.addRequest(request);
-			return;
-		}
+	public ChatRoomBridge getChatBridge() {
+		return chatBridge;
+	}
+
+	/**
+	 * the main connection is signed on & ready for other services
+	 */
+	public void bosReady() {
+		chatBridge.signedOn();
+	}
 
-		BasicConn conn = snacMgr.getConn(family);
+	/**
+	 * someone said something in a chat room
+	 * @param channel the in-game channel the room is mirrored to
+	 */
+	public void chatRoomMessage(String channel, String from, String message) {
+		callbackMessenger.chatRoomMessage(channel, from, message);
+	}
 
-		if (conn != null) {
-			conn.sendRequest(request);
-		} else {
-			// it's time to request a service
-			if (!(request.getCommand() instanceof ServiceRequest)) {
-//				System.out.println("requesting " + Integer.toHexString(family) + " service.");
-				snacMgr.setPending(family, true);
-				snacMgr.addRequest(request);
-				request(new ServiceRequest(family));
-			} else {
+	public synchronized void handleRequest(SnacRequest request) {
+		int family = request.getCommand().getFamily();
+		if (!snacMgr.isPending(family)) {
+			BasicConn conn = snacMgr.getConn(family);
+			if (conn != null) {
+				conn.sendRequest(request);
+				return;
+			}
+			if (request.getCommand() instanceof ServiceRequest) {
 				System.out.println("eep! can't find a service redirector server for " + family);
+				return;
 			}
 		}
+		// wait for the service; every request for the family shares one
+		// ServiceRequest, unless it has gone unanswered for too long
+		if (snacMgr.addRequest(request)) {
+//			System.out.println("requesting " + Integer.toHexString(family) + " service.");
+			request(new ServiceRequest(family));
+		}
 	}
 
 	public SnacRequest request(SnacCommand cmd) {
@@ -191,6 +342,7 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 		} else { // if(e.getNewState() != ClientConn.STATE_CONNECTED) {
 			if(connected != (connected = false)){
 				MinecraftIM.Log("Connection dropped.. attempting reconnect");
+				resetPresence();
 				bosConn.connect();
 			}
 		}
@@ -207,6 +359,14 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 		username = uname;
 		password = pass;
 
+		ssiCache = new SsiCache(new File(Messenger.pluginFolder,
+				"aim_ssi_" + OscarTools.normalize(uname) + ".dat"));
+		ssiCache.load();
+		// if the list was cached, the buddies are known before the server confirms it
+		for (Screenname sn : ssiCache.getBuddyNames()) {
+			getBuddy(sn);
+		}
+
 		loginConn = new LoginConn("login.oscar.aol.com", DEFAULT_SERVICE_PORT, this);
 		loginConn.connect();
 
@@ -215,6 +375,9 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 
 	public void disconnect() {
 		connected = false;
+		resetPresence();
+		chatBridge.signedOff();
+		snacMgr.clearPending();
 		if (loginConn != null) {
 			loginConn.disconnect();
 			loginConn = null;
@@ -223,6 +386,20 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 			bosConn.disconnect();
 			bosConn = null;
 		}
+		for (DirectIMSession session : directIms.values()) {
+			session.close();
+		}
+		directIms.clear();
+		synchronized (this) {
+			if (transferEngine != null) {
+				transferEngine.shutdown();
+				transferEngine = null;
+			}
+			if (rvConnector != null) {
+				rvConnector.shutdown();
+				rvConnector = null;
+			}
+		}
 	}
 
 	public void sendMessage(String msg) {
@@ -230,17 +407,27 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 	}
 
 	public void sendMessage(String to, String msg) {
-		if (buddies.containsKey(to)) {
-			if (!buddies.get(to).isOnline()) {
-				//System.out.println("offline queued: " + to);
-				callbackMessenger.queueOfflineMessage(to, msg);
-				return;
-			}
+		Buddy b = buddies.get(Screenname.getInstance(to));
+		if (b != null && !b.isOnline()) {
+			//System.out.println("offline queued: " + to);
+			callbackMessenger.queueOfflineMessage(to, msg);
+			return;
 		}
 		sendMessage(to, msg, false);
 	}
 
 	public void sendMessage(String to, String msg, boolean autoresponse) {
+		DirectIMSession dim = getDirectImSession(to);
+		if (dim != null) {
+			// straight to the buddy, so no rate limits
+			try {
+				dim.sendMessage(msg, autoresponse);
+				return;
+			} catch (IOException ex) {
+				MinecraftIM.Log(Level.WARNING, "Direct IM to " + to + " failed, sending normally", ex);
+				dim.close();
+			}
+		}
 		if(bosConn == null || bosConn.getState() != ClientConn.STATE_CONNECTED){
 			callbackMessenger.queueOfflineMessage(to, msg);
 			return;
@@ -265,100 +452,97 @@ public class AIM_Messenger extends Abstract_Messenger /* implements ChatConnList
 		}
 	}
 
-	public void handleBuddySignOn(String buddy) {
-		if (!buddies.containsKey(buddy)) {
-			buddies.put(buddy, new Buddy(buddy));
+	/**
+	 * @param sn a buddy's screenname
+	 * @return the buddy with that screenname, added to the list if not already
+	 * on it
+	 */
+	protected Buddy getBuddy(Screenname sn) {
+		Buddy b = buddies.get(sn);
+		if (b == null) {
+			buddies.put(sn, b = new Buddy(sn.getFormatted()));
 		}
-		buddies.get(buddy).setOnline(true);
+		return b;
+	}
+
+	public void handleBuddySignOn(String buddy) {
+		Buddy b = getBuddy(Screenname.getInstance(buddy));
 		//System.out.println("logon: " + buddy);
-		//forward any saved messages
-		callbackMessenger.signon(buddy);
+		// saved messages are forwarded once they've stayed on for a bit
+		// (the debouncer is keyed by the buddy's first-seen name, so a
+		// reformatted screenname still resolves to the same entry)
+		presence.signOn(b.getUsername());
 	}
 
 	public void handleBuddySignOff(String buddy) {
-		if (!buddies.containsKey(buddy)) {
-			buddies.put(buddy, new Buddy(buddy));
-		}
-		buddies.get(buddy).setOnline(false);
+		Buddy b = getBuddy(Screenname.getInstance(buddy));
 		//System.out.println("logoff: " + buddy);
+		presence.signOff(b.getUsername());
 	}
 
-	public void initSSI(SsiDataCmd sdc) {
-		SsiItem[] items = sdc.getItems();
-		for (int i = 0; i < items.length; ++i) {
-//			SsiItemObj obj = bosConn.getItemFactory().getItemObj(items[i]);
-//			System.out.println("- " + (obj == null ? (Object) items[i]
-//					: (Object) obj));
-			if (items[i].getItemType() == SsiItem.TYPE_BUDDY) {
-				BuddyItem b = (BuddyItem) bosConn.getItemFactory().getItemObj(items[i]);
-				buddies.put(b.getScreenname(), new Buddy(b.getScreenname()));//,
-						/*groups.containsKey(b.getGroupId()) ? groups.get(b.getGroupId()).getUsername() : ""));*/
-			} /*else if (items[i].getItemType() == SsiItem.TYPE_GROUP
-					&& items[i].getParentId() != 0) {
-				GroupItem g = (GroupItem) bosConn.getItemFactory().getItemObj(items[i]);
-				groups.put(g.getId(), new Group(g.getId(), g.getGroupName()));
-			}*/
+	protected void buddyPresenceChanged(String buddy, boolean online) {
+		Buddy b = getBuddy(Screenname.getInstance(buddy));
+		b.setOnline(online);
+		if (online) {
+			//forward any saved messages
+			callbackMessenger.signon(buddy);
 		}
 	}
 
-	private class MyChatConnListener implements ChatConnListener {
-
-		public void connFailed(ChatConn conn, Object reason) {
-		}
-
-		public void connected(ChatConn conn) {
-		}
-
-		public void joined(ChatConn conn, FullUserInfo[] members) {
-			String name = conn.getRoomInfo().getName();
-			chats.put(OscarTools.normalize(name), conn);
-
-			System.out.println("*** Joined "
-					+ conn.getRoomInfo().getRoomName() + ", members:");
-			for (int i = 0; i < members.length; i++) {
-				System.out.println("  " + members[i].getScreenname());
-			}
+	/**
+	 * Our own connection went down, so nobody's online anymore
+	 */
+	protected void resetPresence() {
+		presence.reset();
+		for (Buddy b : buddies.values()) {
+			b.setOnline(false);
 		}
+	}
 
-		public void left(ChatConn conn, Object reason) {
-			String name = conn.getRoomInfo().getName();
-			chats.remove(OscarTools.normalize(name));
+	/**
+	 * @return the on-disk SSI cache for the current account, or null if not
+	 * logged in
+	 */
+	public SsiCache getSsiCache() {
+		return ssiCache;
+	}
 
-			System.out.println("*** Left "
-					+ conn.getRoomInfo().getRoomName());
+	/**
+	 * The server's copy of the buddy list matches the cached one
+	 */
+	public void ssiUnchanged() {
+		// the cached list is now confirmed, so it's the whole buddy list: drop
+		// anyone left over from before a reconnect, & add anyone missing
+		Set<Screenname> cached = ssiCache.getBuddyNames();
+		buddies.keySet().retainAll(cached);
+		for (Screenname sn : cached) {
+			getBuddy(sn);
 		}
+		MinecraftIM.Log("AIM buddy list unchanged (" + cached.size() + " buddies cached)");
+	}
 
-		public void usersJoined(ChatConn conn, FullUserInfo[] members) {
-			for (int i = 0; i < members.length; i++) {
-				System.out.println("*** " + members[i].getScreenname()
-						+ " joined " + conn.getRoomInfo().getRoomName());
-			}
+	public void initSSI(SsiDataCmd sdc) {
+		ssiCache.addDownloaded(sdc.getItems());
+		if (sdc.getLastModDate() == 0) {
+			// more packets to come
+			return;
 		}
-
-		public void usersLeft(ChatConn conn, FullUserInfo[] members) {
-			for (int i = 0; i < members.length; i++) {
-				System.out.println("*** " + members[i].getScreenname()
-						+ " left " + conn.getRoomInfo().getRoomName());
+		List<SsiItem> added = new ArrayList<SsiItem>(), removed = new ArrayList<SsiItem>();
+		ssiCache.finishDownload(sdc.getLastModDate(), added, removed);
+
+		// only touch the buddies that actually changed
+		Set<Screenname> current = ssiCache.getBuddyNames();
+		for (SsiItem item : removed) {
+			Screenname sn;
+			if (item.getItemType() == SsiItem.TYPE_BUDDY
+					&& !current.contains(sn = Screenname.getInstance(item.getName()))) {
+				buddies.remove(sn);
 			}
 		}
-
-		public void gotMsg(ChatConn conn, FullUserInfo sender,
-				ChatMsg msg) {
-			String msgStr = msg.getMessage();
-			String ct = msg.getContentType();
-			if (msgStr == null && ct.equals("application/pkcs7-mime")) {
-				ByteBlock msgData = msg.getMessageData();
-
-				try {
-					msgStr = secureSession.parseChatMessage(conn.getRoomName(),
-							sender.getScreenname(), msgData);
-				} catch (SecureSessionException e) {
-					e.printStackTrace();
-				}
+		for (SsiItem item : added) {
+			if (item.getItemType() == SsiItem.TYPE_BUDDY) {
+				getBuddy(Screenname.getInstance(item.getName()));
 			}
-			System.out.println("<" + sender.getScreenname()
-					+ ":#" + conn.getRoomInfo().getRoomName() + "> "
-					+ OscarTools.stripHtml(msgStr));
 		}
 	}
 } // end class AIM_Messenger
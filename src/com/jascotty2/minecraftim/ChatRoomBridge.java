@@ -0,0 +1,509 @@
+/**
+ * Copyright (C) 2011 Jacob Scott <jascottytechie@gmail.com>
+ * Description: mirrors in-game chat channels into AIM chat rooms
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jascotty2.minecraftim;
+
+import com.jascotty2.minecraftim.kano.joscardemo.ChatConn;
+import com.jascotty2.minecraftim.kano.joscardemo.ChatConnListener;
+import com.jascotty2.minecraftim.kano.joscardemo.security.SecureSessionException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.OscarTools;
+import net.kano.joscar.Screenname;
+import net.kano.joscar.ratelim.RateClassMonitor;
+import net.kano.joscar.snaccmd.FullRoomInfo;
+import net.kano.joscar.snaccmd.FullUserInfo;
+import net.kano.joscar.snaccmd.chat.ChatMsg;
+
+/**
+ * Mirrors in-game chat channels into AIM chat rooms. <br>
+ * Each channel is mapped to a room, which is joined once the account is
+ * signed on (and rejoined if the room connection drops). Lines sent to a
+ * channel are collected for a moment and sent to its room in as few chat
+ * messages as will hold them; a room only sends as many messages at once as
+ * its rate class allows, and while it waits for the rate class to recover,
+ * more lines pile into the next message instead of queueing up behind the
+ * rate limiter. <br>
+ * Messages said in a room are handed to the server's main thread through
+ * {@link Messenger#chatRoomMessage}, and each room's member list is kept up
+ * to date from the joined & left notices rather than being re-listed.
+ */
+public class ChatRoomBridge implements ChatConnListener {
+
+	/** the chat exchange rooms are created on unless another is given */
+	public static final int DEFAULT_EXCHANGE = 4;
+	/** milliseconds lines are collected before a room sends them */
+	public static final long BATCH_DELAY = 250;
+	/** lines a room holds while it can't send; the oldest are dropped past this */
+	public static final int MAX_PENDING_LINES = 200;
+	/** milliseconds to wait before rejoining a room that was lost */
+	public static final long REJOIN_DELAY = 30 * 1000;
+	protected final AIM_Messenger messenger;
+	/** mapped rooms, by lower-cased channel name */
+	protected final Map<String, Room> channels = new ConcurrentHashMap<String, Room>();
+	/** every room joined or being joined, by room name */
+	protected final Map<Screenname, Room> rooms = new ConcurrentHashMap<Screenname, Room>();
+	/**
+	 * guards {@link #timer}. Tasks are scheduled while holding neither the
+	 * bridge's lock nor a room's, so this is never held while taking either.
+	 */
+	protected final Object timerLock = new Object();
+	protected Timer timer = null;
+	protected boolean signedOn = false;
+
+	public ChatRoomBridge(AIM_Messenger messenger) {
+		this.messenger = messenger;
+	}
+
+	/**
+	 * mirrors a channel into a chat room, joining it if already signed on.
+	 * A channel that was already mapped is moved to the new room.
+	 * @param channel the in-game channel
+	 * @param exchange the chat exchange the room is on
+	 * @param roomName the name of the room
+	 */
+	public void mapChannel(String channel, int exchange, String roomName) {
+		unmapChannel(channel);
+		Room room = new Room(channel, new FullRoomInfo(exchange, roomName, "us-ascii", "en"));
+		channels.put(channel.toLowerCase(), room);
+		rooms.put(Screenname.getInstance(roomName), room);
+		synchronized (this) {
+			if (signedOn) {
+				join(room);
+			}
+		}
+	}
+
+	/**
+	 * stops mirroring a channel, and leaves its room
+	 * @param channel the in-game channel
+	 */
+	public void unmapChannel(String channel) {
+		Room room = channels.remove(channel.toLowerCase());
+		if (room == null) {
+			return;
+		}
+		rooms.remove(Screenname.getInstance(room.info.getName()), room);
+		ChatConn conn = room.conn;
+		if (conn != null) {
+			conn.disconnect();
+		}
+	}
+
+	/**
+	 * @return the channels that are mirrored into rooms
+	 */
+	public List<String> getChannels() {
+		List<String> names = new ArrayList<String>();
+		for (Room room : channels.values()) {
+			names.add(room.channel);
+		}
+		return names;
+	}
+
+	/**
+	 * @param channel an in-game channel
+	 * @return the screennames of the people in the channel's room, or null if
+	 * the channel isn't mapped or its room hasn't been joined
+	 */
+	public List<String> getMembers(String channel) {
+		Room room = channels.get(channel.toLowerCase());
+		if (room == null || room.conn == null) {
+			return null;
+		}
+		return new ArrayList<String>(room.members.values());
+	}
+
+	/**
+	 * @param name a room name
+	 * @return the connection to that room, or null if it isn't joined
+	 */
+	public ChatConn getChatConn(String name) {
+		Room room = rooms.get(Screenname.getInstance(name));
+		return room == null ? null : room.conn;
+	}
+
+	/**
+	 * sends a line to a channel's room. Lines are batched, so this returns
+	 * right away; lines sent while the room isn't joined are held until it is.
+	 * @param channel the in-game channel
+	 * @param line the line to send, as plain text
+	 * @return false if the channel isn't mirrored into a room
+	 */
+	public boolean send(String channel, String line) {
+		Room room = channels.get(channel.toLowerCase());
+		if (room == null) {
+			return false;
+		}
+		line = line.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+		boolean flush = false;
+		synchronized (room) {
+			room.pending.add(line);
+			while (room.pending.size() > MAX_PENDING_LINES) {
+				room.pending.removeFirst();
+				++room.dropped;
+			}
+			if (!room.flushScheduled && room.conn != null) {
+				room.flushScheduled = true;
+				flush = true;
+			}
+		}
+		if (flush) {
+			schedule(new Flush(room), BATCH_DELAY);
+		}
+		return true;
+	}
+
+	/**
+	 * the account has signed on: joins every mapped room
+	 */
+	public synchronized void signedOn() {
+		signedOn = true;
+		for (Room room : channels.values()) {
+			if (room.conn == null) {
+				join(room);
+			}
+		}
+	}
+
+	/**
+	 * the account has signed off: drops every room connection, keeping the
+	 * mappings (& any unsent lines) for when it signs on again
+	 */
+	public void signedOff() {
+		synchronized (this) {
+			signedOn = false;
+		}
+		synchronized (timerLock) {
+			if (timer != null) {
+				timer.cancel();
+				timer = null;
+			}
+		}
+		for (Room room : rooms.values()) {
+			if (room.channel == null) {
+				rooms.remove(Screenname.getInstance(room.info.getName()), room);
+			}
+			ChatConn conn = room.conn;
+			room.conn = null;
+			room.members.clear();
+			synchronized (room) {
+				room.joining = false;
+				room.flushScheduled = false;
+			}
+			if (conn != null) {
+				conn.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * called when the server has given us a connection for a room, before it
+	 * is connected
+	 */
+	public void roomConnecting(FullRoomInfo roomInfo, ChatConn conn) {
+		Room room = getRoom(roomInfo);
+		if (room == null) {
+			// joined by hand, rather than for a channel
+			room = new Room(null, roomInfo);
+			rooms.put(Screenname.getInstance(roomInfo.getName()), room);
+		}
+		conn.addChatListener(this);
+	}
+
+	protected Room getRoom(FullRoomInfo roomInfo) {
+		Room room = rooms.get(Screenname.getInstance(roomInfo.getName()));
+		if (room == null && roomInfo.getRoomName() != null) {
+			room = rooms.get(Screenname.getInstance(roomInfo.getRoomName()));
+		}
+		return room;
+	}
+
+	protected void join(Room room) {
+		synchronized (room) {
+			if (room.joining) {
+				return;
+			}
+			room.joining = true;
+		}
+		messenger.joinChat(room.info.getExchange(), room.info.getName());
+	}
+
+	protected void rejoinLater(final Room room) {
+		synchronized (room) {
+			room.joining = false;
+		}
+		if (room.channel == null || channels.get(room.channel.toLowerCase()) != room) {
+			rooms.remove(Screenname.getInstance(room.info.getName()), room);
+			return;
+		}
+		schedule(new TimerTask() {
+
+			@Override
+			public void run() {
+				synchronized (ChatRoomBridge.this) {
+					if (signedOn && room.conn == null
+							&& channels.get(room.channel.toLowerCase()) == room) {
+						join(room);
+					}
+				}
+			}
+		}, REJOIN_DELAY);
+	}
+
+	/**
+	 * runs a task on the bridge's timer. Must not be called while holding a
+	 * room's lock: the rejoin task takes the bridge's lock and then the
+	 * room's, so a room's lock is always the last one taken.
+	 */
+	protected void schedule(TimerTask task, long delay) {
+		synchronized (timerLock) {
+			if (timer == null) {
+				timer = new Timer("AIM chat rooms", true);
+			}
+			timer.schedule(task, delay);
+		}
+	}
+
+	/**
+	 * sends as much of a room's pending lines as its rate class allows right
+	 * now, and schedules the rest
+	 */
+	protected void flush(Room room) {
+		long wait;
+		synchronized (room) {
+			room.flushScheduled = false;
+			ChatConn conn = room.conn;
+			if (conn == null || room.pending.isEmpty()) {
+				return;
+			}
+			if (room.dropped > 0) {
+				MinecraftIM.Log(Level.WARNING, room.dropped + " lines for "
+						+ room.info.getName() + " were dropped while it was busy");
+				room.dropped = 0;
+			}
+
+			RateClassMonitor monitor = conn.getSendRateMonitor();
+			int allowed = monitor == null ? 1 : monitor.getPossibleCmdCount();
+			int maxLen = (int) messenger.maxMessageSize();
+			while (allowed-- > 0 && !room.pending.isEmpty()) {
+				conn.sendMsg(nextBatch(room.pending, maxLen));
+			}
+			if (room.pending.isEmpty()) {
+				return;
+			}
+			// what's left goes out once the rate class has room for it,
+			// picking up anything said in the meantime
+			wait = BATCH_DELAY;
+			if (monitor != null) {
+				wait = Math.max(wait, monitor.getPacedWaitTime(countBatches(room.pending, maxLen)));
+			}
+			room.flushScheduled = true;
+		}
+		schedule(new Flush(room), wait);
+	}
+
+	/**
+	 * takes as many lines as fit in one chat message off the front of the
+	 * list. A line too long for a message on its own is cut short.
+	 */
+	protected static String nextBatch(LinkedList<String> pending, int maxLen) {
+		StringBuilder msg = new StringBuilder(pending.removeFirst());
+		if (msg.length() > maxLen) {
+			msg.setLength(maxLen);
+		}
+		while (!pending.isEmpty()
+				&& msg.length() + 4 + pending.getFirst().length() <= maxLen) {
+			msg.append("<br>").append(pending.removeFirst());
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * @return how many chat messages the lines would take
+	 */
+	protected static int countBatches(List<String> pending, int maxLen) {
+		int count = 0, len = -1;
+		for (String line : pending) {
+			int lineLen = Math.min(line.length(), maxLen);
+			if (len < 0 || len + 4 + lineLen > maxLen) {
+				++count;
+				len = lineLen;
+			} else {
+				len += 4 + lineLen;
+			}
+		}
+		return count;
+	}
+
+	public void connFailed(ChatConn conn, Object reason) {
+		Room room = getRoom(conn.getRoomInfo());
+		if (room == null) {
+			return;
+		}
+		MinecraftIM.Log(Level.WARNING, "Couldn't connect to chat room "
+				+ room.info.getName() + (reason != null ? " (" + reason + ")" : ""));
+		rejoinLater(room);
+	}
+
+	/**
+	 * called when a request to join a room was dropped or never answered
+	 */
+	public void joinFailed(FullRoomInfo roomInfo) {
+		Room room = getRoom(roomInfo);
+		if (room == null) {
+			return;
+		}
+		MinecraftIM.Log(Level.WARNING, "Couldn't join chat room " + room.info.getName());
+		rejoinLater(room);
+	}
+
+	public void connected(ChatConn conn) {
+	}
+
+	public void joined(ChatConn conn, FullUserInfo[] members) {
+		Room room = getRoom(conn.getRoomInfo());
+		if (room == null) {
+			conn.disconnect();
+			return;
+		}
+		room.members.clear();
+		for (FullUserInfo member : members) {
+			room.members.put(Screenname.getInstance(member.getScreenname()),
+					member.getScreenname());
+		}
+		room.conn = conn;
+		MinecraftIM.Log("Joined chat room " + room.info.getName()
+				+ (room.channel != null ? " for " + room.channel : "")
+				+ " (" + members.length + " members)");
+
+		boolean flush = false;
+		synchronized (room) {
+			room.joining = false;
+			// send whatever was said while we weren't in the room
+			if (!room.pending.isEmpty() && !room.flushScheduled) {
+				room.flushScheduled = true;
+				flush = true;
+			}
+		}
+		if (flush) {
+			schedule(new Flush(room), 0);
+		}
+	}
+
+	public void left(ChatConn conn, Object reason) {
+		Room room = getRoom(conn.getRoomInfo());
+		if (room == null || room.conn != conn) {
+			return;
+		}
+		room.conn = null;
+		room.members.clear();
+		MinecraftIM.Log("Left chat room " + room.info.getName());
+		rejoinLater(room);
+	}
+
+	public void usersJoined(ChatConn conn, FullUserInfo[] members) {
+		Room room = getRoom(conn.getRoomInfo());
+		if (room == null) {
+			return;
+		}
+		for (FullUserInfo member : members) {
+			room.members.put(Screenname.getInstance(member.getScreenname()),
+					member.getScreenname());
+		}
+	}
+
+	public void usersLeft(ChatConn conn, FullUserInfo[] members) {
+		Room room = getRoom(conn.getRoomInfo());
+		if (room == null) {
+			return;
+		}
+		for (FullUserInfo member : members) {
+			room.members.remove(Screenname.getInstance(member.getScreenname()));
+		}
+	}
+
+	public void gotMsg(ChatConn conn, FullUserInfo sender, ChatMsg msg) {
+		Room room = getRoom(conn.getRoomInfo());
+		String from = sender.getScreenname();
+		if (room == null || Screenname.getInstance(from).equals(
+				Screenname.getInstance(messenger.getScreenname()))) {
+			// the room echoes back what we send
+			return;
+		}
+
+		String text = msg.getMessage();
+		if (text == null && "application/pkcs7-mime".equals(msg.getContentType())) {
+			ByteBlock data = msg.getMessageData();
+			try {
+				text = messenger.getSecureSession().parseChatMessage(conn.getRoomName(), from, data);
+			} catch (SecureSessionException e) {
+				MinecraftIM.Log(Level.WARNING, "Couldn't decrypt message from " + from
+						+ " in " + conn.getRoomName(), e);
+			}
+		}
+		if (text == null) {
+			return;
+		}
+		text = OscarTools.stripHtml(text.replace("<br>", "\n").replace("<BR>", "\n"));
+		messenger.chatRoomMessage(room.channel != null ? room.channel
+				: room.info.getName().toLowerCase(Locale.ENGLISH), from, text);
+	}
+
+	protected class Flush extends TimerTask {
+
+		protected final Room room;
+
+		public Flush(Room room) {
+			this.room = room;
+		}
+
+		@Override
+		public void run() {
+			flush(room);
+		}
+	}
+
+	protected static class Room {
+
+		/** the channel mirrored into this room, or null if joined by hand */
+		final String channel;
+		final FullRoomInfo info;
+		volatile ChatConn conn = null;
+		/** who's in the room, by normalized screenname */
+		final Map<Screenname, String> members = new ConcurrentHashMap<Screenname, String>();
+		// the rest is guarded by the room's lock
+		final LinkedList<String> pending = new LinkedList<String>();
+		int dropped = 0;
+		boolean flushScheduled = false;
+		boolean joining = false;
+
+		Room(String channel, FullRoomInfo info) {
+			this.channel = channel;
+			this.info = info;
+		}
+	}
+}
@@ -19,6 +19,7 @@
 package com.jascotty2.minecraftim;
 
 import me.jascotty2.io.CheckInput;
+import net.kano.joscar.Screenname;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -26,6 +27,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.Timer;
@@ -51,6 +53,8 @@ public class Messenger {
 	public final static String configname = "config.yml";
 	public final static File pluginFolder = new File("plugins", MinecraftIM.name);
 	public final static File configfile = new File(pluginFolder, configname);
+	// the channel ordinary player chat goes to
+	public final static String GLOBAL_CHANNEL = "global";
 	
 	// plugin this is using
 	MinecraftIM callbackPlugin;
@@ -65,6 +69,13 @@ public class Messenger {
 			publicChat = false,
 			formatColors = true;
 	public long tempChatLen = 180;
+	// how long (seconds) a buddy must stay on before offline messages are sent,
+	// and how long they can drop off before being considered offline
+	public long presenceStableOnline = 15, presenceOfflineGrace = 5;
+	// per-transfer file transfer bandwidth cap, in bytes per second (0 = none)
+	public long transferRate = 0;
+	// in-game channels mirrored into chat rooms: channel -> "[exchange:]room"
+	HashMap<String, String> chatRooms = new HashMap<String, String>();
 	// for chat when recieveChatMsgs == false, or publicChat
 	HashMap<String, Date> lastChat = new HashMap<String, Date>();
 	// for sending a condensed chat block (speed up sending)
@@ -76,7 +87,8 @@ public class Messenger {
 	public boolean pingReply = false;
 	public String pingResp = "";
 	// if message to send, but is offline
-	HashMap<String, ArrayList<OfflineMessage>> offlineMessages = new HashMap<String, ArrayList<OfflineMessage>>();
+	// (keyed by normalized name, so "Some Buddy" and "somebuddy" share a queue)
+	HashMap<Screenname, ArrayList<OfflineMessage>> offlineMessages = new HashMap<Screenname, ArrayList<OfflineMessage>>();
 	SimpleDateFormat timestamp = new SimpleDateFormat("MMM dd HH:mm:ss zzz");
 	// messenger handlers
 	//AIM_Messenger aimMess = null;
@@ -95,6 +107,7 @@ public class Messenger {
 		if (loadConfig()) {
 			if (useProtocol == Protocol.AIM) {
 				messenger = new AIM_Messenger(this);
+				mapChatRooms(((AIM_Messenger) messenger).getChatBridge());
 			} else if (useProtocol == Protocol.GTALK) {
 				messenger = new GTalkMessenger(this);
 			} else if (useProtocol == Protocol.JABBER) {
@@ -112,6 +125,55 @@ public class Messenger {
 		return messenger == null ? false : messenger.connect(username, password);
 	}
 
+	protected void mapChatRooms(ChatRoomBridge bridge) {
+		for (String channel : chatRooms.keySet()) {
+			String room = chatRooms.get(channel);
+			int exchange = ChatRoomBridge.DEFAULT_EXCHANGE;
+			int split = room.indexOf(':');
+			if (split > 0) {
+				try {
+					exchange = Integer.parseInt(room.substring(0, split).trim());
+					room = room.substring(split + 1).trim();
+				} catch (NumberFormatException ex) {
+					// a room name with a colon in it
+				}
+			}
+			bridge.mapChannel(channel, exchange, room);
+		}
+	}
+
+	/**
+	 * sends a line to the chat room a channel is mirrored into
+	 * @return false if the channel isn't mirrored into a room
+	 */
+	public boolean sendToChatRoom(String channel, String message) {
+		if (messenger instanceof AIM_Messenger) {
+			return ((AIM_Messenger) messenger).getChatBridge().send(channel, message.replaceAll("\\\u00A7.", ""));
+		}
+		return false;
+	}
+
+	/**
+	 * someone said something in a chat room: shown in-game (from the main
+	 * thread)
+	 */
+	public void chatRoomMessage(final String channel, String from, final String msg) {
+		// AIM users can't be allowed to set in-game colors & formatting
+		final String text = msg.replaceAll("\u00A7.?", "").trim();
+		final String sender = from.replaceAll("\u00A7.?", "");
+		if (text.length() == 0) {
+			return;
+		}
+		callbackPlugin.runOnMainThread(new Runnable() {
+
+			public void run() {
+				String line = String.format("[%s] <%s%s> %s", channel, sender, publicSuffix, text);
+				callbackPlugin.getServer().broadcastMessage(line);
+				MinecraftIM.Log(line);
+			}
+		});
+	}
+
 	public void disconnect() {
 		if (messenger != null) {
 			messenger.disconnect();
@@ -257,19 +319,20 @@ public class Messenger {
 	}
 
 	public void queueOfflineMessage(String to, String msg) {
-		if (!offlineMessages.containsKey(to)) {
-			offlineMessages.put(to, new ArrayList<OfflineMessage>());
+		Screenname sn = Screenname.getInstance(to);
+		ArrayList<OfflineMessage> msgs = offlineMessages.get(sn);
+		if (msgs == null) {
+			offlineMessages.put(sn, msgs = new ArrayList<OfflineMessage>());
 		}
-		offlineMessages.get(to).add(new OfflineMessage(msg));
+		msgs.add(new OfflineMessage(msg));
 	}
 
 	public void signon(String user) {
-		ArrayList<OfflineMessage> msgs = offlineMessages.get(user);
+		ArrayList<OfflineMessage> msgs = offlineMessages.remove(Screenname.getInstance(user));
 		if (msgs != null) {
 			for (OfflineMessage msg : msgs) {
 				sendNotify(String.format("[%s] %s", timestamp.format(msg.initDate), msg.message), user);
 			}
-			offlineMessages.remove(user);
 		}
 	}
 
@@ -413,6 +476,38 @@ public class Messenger {
 				}
 			}
 
+			if ((p = config.getString("stableOnline")) != null) {
+				try {
+					presenceStableOnline = CheckInput.GetBigInt_TimeSpanInSec(p, 's').longValue();
+				} catch (Exception ex) {
+					MinecraftIM.Log(Level.WARNING, "stableOnline has an illegal value", ex);
+				}
+			}
+			if ((p = config.getString("offlineGrace")) != null) {
+				try {
+					presenceOfflineGrace = CheckInput.GetBigInt_TimeSpanInSec(p, 's').longValue();
+				} catch (Exception ex) {
+					MinecraftIM.Log(Level.WARNING, "offlineGrace has an illegal value", ex);
+				}
+			}
+
+			transferRate = config.getInt("transferRate", 0) * 1024L;
+			if (transferRate < 0) {
+				MinecraftIM.Log(Level.WARNING, "transferRate has an illegal value");
+				transferRate = 0;
+			}
+
+			chatRooms.clear();
+			List<String> channels = config.getKeys("chatRooms");
+			if (channels != null) {
+				for (String channel : channels) {
+					String room = config.getString("chatRooms." + channel);
+					if (room != null && room.trim().length() > 0) {
+						chatRooms.put(channel, room.trim());
+					}
+				}
+			}
+
 			if (sendToUsername.equalsIgnoreCase(username)) {
 				MinecraftIM.Log("Username and SendTo cannot be the same");
 				sendToUsername = "";
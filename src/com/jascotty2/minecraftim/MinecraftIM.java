@@ -26,6 +26,9 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.bukkit.command.Command;
@@ -39,6 +42,24 @@ public class MinecraftIM extends JavaPlugin {
 	public Messenger mess;
 	public PListener playerListener;
 	ArrayList<ChatMessageHandler> messages = new ArrayList<ChatMessageHandler>();
+	// tasks waiting for the main thread, & whether a drain is scheduled
+	private final Queue<Runnable> mainThreadTasks = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicBoolean mainThreadDrainScheduled = new AtomicBoolean(false);
+	private final Runnable mainThreadDrain = new Runnable() {
+
+		public void run() {
+			// cleared first, so a task added while draining schedules another
+			mainThreadDrainScheduled.set(false);
+			Runnable task;
+			while ((task = mainThreadTasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (Exception ex) {
+					Log(Level.SEVERE, "Error running IM task", ex);
+				}
+			}
+		}
+	};
 	final static HashMap<String, String> libs = new HashMap<String, String>();
 	{
 		libs.put("lib/jml-1.0b4-full.jar", "net.sf.jml.MsnMessenger");
@@ -124,6 +145,33 @@ public class MinecraftIM extends JavaPlugin {
 		mess.sendNotify(message);
 	}
 
+	/**
+	 * sends a line to the IM chat room an in-game channel is mirrored into
+	 * @param channel the in-game channel
+	 * @param message the line to send
+	 * @return false if the channel isn't mirrored into a room
+	 */
+	public boolean sendToChatRoom(String channel, String message) {
+		return mess.sendToChatRoom(channel, message);
+	}
+
+	/**
+	 * runs a task on the server's main thread. IM events arrive on the IM
+	 * connection threads, but most of the server can only be touched from the
+	 * main thread; tasks handed off this way are run in order, in one batch
+	 * per server tick
+	 */
+	public void runOnMainThread(Runnable task) {
+		mainThreadTasks.add(task);
+		if (mainThreadDrainScheduled.compareAndSet(false, true)
+				&& getServer().getScheduler().scheduleSyncDelayedTask(this, mainThreadDrain) == -1) {
+			// not scheduled (the plugin is being disabled); let the next
+			// task try again rather than queueing behind a drain that won't run
+			mainThreadDrainScheduled.set(false);
+			Log(Level.WARNING, "Couldn't schedule IM tasks on the main thread");
+		}
+	}
+
 	public void registerMessageHandler(ChatMessageHandler toAdd) {
 		if (!messages.contains(toAdd)) {
 			messages.add(toAdd);
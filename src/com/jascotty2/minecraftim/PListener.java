@@ -76,5 +76,7 @@ public class PListener implements Listener {
             plugin.sendNotify(String.format("[%s] %s", name, event.getMessage()));
         }*/
         plugin.mess.publicChat(String.format("[%s] %s", event.getPlayer().getName(), event.getMessage()));
+        plugin.mess.sendToChatRoom(Messenger.GLOBAL_CHANNEL,
+                String.format("[%s] %s", event.getPlayer().getName(), event.getMessage()));
     }
 }
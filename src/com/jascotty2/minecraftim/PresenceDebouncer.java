@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2011 Jacob Scott <jascottytechie@gmail.com>
+ * Description: filters out buddies flapping online & offline
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jascotty2.minecraftim;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Sits between the raw sign on / sign off events from a protocol and the
+ * buddy state, so that a buddy on a bad connection doesn't trigger an offline
+ * message replay every time they reconnect. <br>
+ * A buddy has to stay online for the stable-online window before they're
+ * reported online, and has to stay offline for the offline grace period
+ * before they're reported offline. A flap shorter than either is dropped.
+ */
+public class PresenceDebouncer {
+
+	public interface Listener {
+
+		/**
+		 * Called (from the debouncer's timer thread) when a buddy's stable
+		 * presence changes
+		 */
+		void presenceChanged(String user, boolean online);
+	}
+
+	public enum State {
+
+		/** offline, and reported offline */
+		OFFLINE,
+		/** signed on, waiting out the stable-online window */
+		PENDING_ONLINE,
+		/** online, and reported online */
+		ONLINE,
+		/** signed off, waiting out the offline grace period */
+		PENDING_OFFLINE
+	}
+	protected final Listener listener;
+	/** milliseconds a buddy has to stay on before being reported online */
+	protected long stableOnlineWindow;
+	/** milliseconds a buddy has to stay off before being reported offline */
+	protected long offlineGrace;
+	protected final Map<String, Entry> entries = new HashMap<String, Entry>();
+	protected Timer timer = null;
+
+	public PresenceDebouncer(Listener listener, long stableOnlineWindow, long offlineGrace) {
+		if (listener == null) {
+			throw new NullPointerException("listener");
+		}
+		this.listener = listener;
+		setStableOnlineWindow(stableOnlineWindow);
+		setOfflineGrace(offlineGrace);
+	}
+
+	public synchronized long getStableOnlineWindow() {
+		return stableOnlineWindow;
+	}
+
+	/**
+	 * @param millis how long a buddy has to stay online before offline
+	 * messages are released to them (0 to report sign ons right away)
+	 */
+	public synchronized void setStableOnlineWindow(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("stable online window must be >= 0");
+		}
+		stableOnlineWindow = millis;
+	}
+
+	public synchronized long getOfflineGrace() {
+		return offlineGrace;
+	}
+
+	/**
+	 * @param millis how long a buddy has to stay offline before being
+	 * reported offline (0 to report sign offs right away)
+	 */
+	public synchronized void setOfflineGrace(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("offline grace must be >= 0");
+		}
+		offlineGrace = millis;
+	}
+
+	public synchronized State getState(String user) {
+		Entry e = entries.get(user);
+		return e == null ? State.OFFLINE : e.state;
+	}
+
+	/**
+	 * @return whether the user is reported online (includes a user who's
+	 * dropped but is still within the offline grace period)
+	 */
+	public synchronized boolean isOnline(String user) {
+		State s = getState(user);
+		return s == State.ONLINE || s == State.PENDING_OFFLINE;
+	}
+
+	/**
+	 * Sets the user's state without waiting or reporting it (eg. for a roster
+	 * that was already known when logging in)
+	 */
+	public synchronized void assume(String user, boolean online) {
+		Entry e = getEntry(user);
+		e.cancel();
+		e.state = online ? State.ONLINE : State.OFFLINE;
+	}
+
+	/**
+	 * The protocol reports the user signed on (or sent a status update)
+	 */
+	public void signOn(String user) {
+		boolean fire = false;
+		synchronized (this) {
+			Entry e = getEntry(user);
+			switch (e.state) {
+				case OFFLINE:
+					if (stableOnlineWindow == 0) {
+						e.state = State.ONLINE;
+						fire = true;
+					} else {
+						e.state = State.PENDING_ONLINE;
+						schedule(e, stableOnlineWindow);
+					}
+					break;
+				case PENDING_OFFLINE:
+					// came back before anyone noticed it was gone
+					e.cancel();
+					e.state = State.ONLINE;
+					break;
+				default:
+					// already online or on the way there
+			}
+		}
+		if (fire) {
+			listener.presenceChanged(user, true);
+		}
+	}
+
+	/**
+	 * The protocol reports the user signed off
+	 */
+	public void signOff(String user) {
+		boolean fire = false;
+		synchronized (this) {
+			Entry e = getEntry(user);
+			switch (e.state) {
+				case ONLINE:
+					if (offlineGrace == 0) {
+						e.state = State.OFFLINE;
+						fire = true;
+					} else {
+						e.state = State.PENDING_OFFLINE;
+						schedule(e, offlineGrace);
+					}
+					break;
+				case PENDING_ONLINE:
+					// never stayed on long enough to count
+					e.cancel();
+					e.state = State.OFFLINE;
+					break;
+				default:
+			}
+		}
+		if (fire) {
+			listener.presenceChanged(user, false);
+		}
+	}
+
+	/**
+	 * Drops all state and pending timers, without reporting anything (eg. when
+	 * our own connection goes down)
+	 */
+	public synchronized void reset() {
+		for (Entry e : entries.values()) {
+			e.cancel();
+		}
+		entries.clear();
+		if (timer != null) {
+			timer.cancel();
+			timer = null;
+		}
+	}
+
+	protected Entry getEntry(String user) {
+		Entry e = entries.get(user);
+		if (e == null) {
+			e = new Entry(user);
+			entries.put(user, e);
+		}
+		return e;
+	}
+
+	protected void schedule(final Entry e, long delay) {
+		e.cancel();
+		if (timer == null) {
+			timer = new Timer("MinecraftIM presence", true);
+		}
+		e.task = new TimerTask() {
+
+			@Override
+			public void run() {
+				settle(e, this);
+			}
+		};
+		timer.schedule(e.task, delay);
+	}
+
+	/**
+	 * The timer ran out for a pending user
+	 */
+	protected void settle(Entry e, TimerTask task) {
+		boolean online;
+		synchronized (this) {
+			if (task == null || e.task != task) {
+				// cancelled or replaced since
+				return;
+			}
+			e.task = null;
+			if (e.state == State.PENDING_ONLINE) {
+				e.state = State.ONLINE;
+				online = true;
+			} else if (e.state == State.PENDING_OFFLINE) {
+				e.state = State.OFFLINE;
+				online = false;
+			} else {
+				return;
+			}
+		}
+		listener.presenceChanged(e.user, online);
+	}
+
+	protected static class Entry {
+
+		final String user;
+		State state = State.OFFLINE;
+		TimerTask task = null;
+
+		Entry(String user) {
+			this.user = user;
+		}
+
+		void cancel() {
+			if (task != null) {
+				task.cancel();
+				task = null;
+			}
+		}
+	}
+} // end class PresenceDebouncer
@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2011 Jacob Scott <jascottytechie@gmail.com>
+ * Description: on-disk copy of the AIM server-stored buddy list
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jascotty2.minecraftim;
+
+import net.kano.joscar.BinaryTools;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.Screenname;
+import net.kano.joscar.snaccmd.ssi.SsiItem;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Keeps a copy of the server-stored (SSI) item list on disk, so that a
+ * reconnect can send an <code>SsiDataCheck</code> instead of downloading and
+ * re-parsing the whole list. <br>
+ * The file holds a small header followed by each item in the same binary
+ * format the OSCAR server uses for SSI data.
+ */
+public class SsiCache {
+
+	protected static final int MAGIC = 0x53534943; // "SSIC"
+	protected static final int FORMAT_VERSION = 1;
+	protected final File file;
+	/** seconds since the unix epoch, as reported by the server */
+	protected long lastMod = 0;
+	protected boolean loaded = false;
+	protected Map<Long, SsiItem> items = new LinkedHashMap<Long, SsiItem>();
+	/** items of a download that hasn't finished yet */
+	protected List<SsiItem> incoming = new ArrayList<SsiItem>();
+
+	public SsiCache(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return whether the cache holds a complete item list from a previous
+	 * session, which can be validated with an SsiDataCheck
+	 */
+	public synchronized boolean isValid() {
+		return loaded && lastMod > 0;
+	}
+
+	public synchronized long getLastModDate() {
+		return lastMod;
+	}
+
+	public synchronized int getItemCount() {
+		return items.size();
+	}
+
+	public synchronized SsiItem[] getItems() {
+		return items.values().toArray(new SsiItem[0]);
+	}
+
+	/**
+	 * Reads the cache file, if there is one.
+	 *
+	 * @return whether a valid cache was read
+	 */
+	public synchronized boolean load() {
+		loaded = false;
+		items.clear();
+		incoming.clear();
+		lastMod = 0;
+		if (!file.isFile()) {
+			return false;
+		}
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			ByteBlock block = ByteBlock.wrap(bytes);
+			if (block.getLength() < 13
+					|| BinaryTools.getUInt(block, 0) != MAGIC
+					|| BinaryTools.getUByte(block, 4) != FORMAT_VERSION) {
+				MinecraftIM.Log(Level.WARNING, "Ignoring unrecognized SSI cache " + file);
+				return false;
+			}
+			long mod = BinaryTools.getUInt(block, 5);
+			long count = BinaryTools.getUInt(block, 9);
+			block = block.subBlock(13);
+			Map<Long, SsiItem> read = new LinkedHashMap<Long, SsiItem>();
+			for (long i = 0; i < count; ++i) {
+				SsiItem item = readItem(block);
+				if (item == null) {
+					MinecraftIM.Log(Level.WARNING, "SSI cache " + file + " is truncated");
+					return false;
+				}
+				read.put(getKey(item), item);
+				block = block.subBlock(getItemSize(item));
+			}
+			items = read;
+			lastMod = mod;
+			loaded = true;
+			return true;
+		} catch (IOException ex) {
+			MinecraftIM.Log(Level.WARNING, "Failed to read SSI cache " + file, ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the cached items to disk. The file is written to a temporary
+	 * file first, so a crash can't leave a half-written cache behind.
+	 */
+	public synchronized void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.isDirectory()) {
+				dir.mkdirs();
+			}
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+			try {
+				BinaryTools.writeUInt(out, MAGIC);
+				out.write(FORMAT_VERSION);
+				BinaryTools.writeUInt(out, lastMod);
+				BinaryTools.writeUInt(out, items.size());
+				for (SsiItem item : items.values()) {
+					item.write(out);
+				}
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				// windows won't rename over an existing file
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("could not rename " + tmp + " to " + file);
+				}
+			}
+		} catch (IOException ex) {
+			tmp.delete();
+			MinecraftIM.Log(Level.WARNING, "Failed to save SSI cache " + file, ex);
+		}
+	}
+
+	/**
+	 * Forgets any items from a download that didn't finish, before asking the
+	 * server for the list again
+	 */
+	public synchronized void startDownload() {
+		incoming.clear();
+	}
+
+	/**
+	 * Adds one packet's worth of items from an SSI download
+	 */
+	public synchronized void addDownloaded(SsiItem[] part) {
+		for (int i = 0; i < part.length; ++i) {
+			incoming.add(part[i]);
+		}
+	}
+
+	/**
+	 * Replaces the cached list with the items downloaded since the last call,
+	 * and saves it. Items that were added or changed since the cached copy are
+	 * put in <code>added</code>, and those that were removed or changed are put
+	 * in <code>removed</code>; items that didn't change are in neither.
+	 *
+	 * @param lastModDate the modification date sent with the last SSI packet
+	 * @param added receives new and changed items (may be null)
+	 * @param removed receives removed and changed items (may be null)
+	 */
+	public synchronized void finishDownload(long lastModDate,
+			List<SsiItem> added, List<SsiItem> removed) {
+		Map<Long, SsiItem> old = items;
+		Map<Long, SsiItem> now = new LinkedHashMap<Long, SsiItem>();
+		for (SsiItem item : incoming) {
+			Long key = getKey(item);
+			now.put(key, item);
+			SsiItem prev = old.remove(key);
+			if (prev == null || !sameItem(prev, item)) {
+				if (added != null) {
+					added.add(item);
+				}
+				if (prev != null && removed != null) {
+					removed.add(prev);
+				}
+			}
+		}
+		if (removed != null) {
+			removed.addAll(old.values());
+		}
+		incoming.clear();
+		items = now;
+		lastMod = lastModDate;
+		loaded = true;
+		save();
+	}
+
+	/**
+	 * @return the screennames of every buddy item in the cache
+	 */
+	public synchronized Set<Screenname> getBuddyNames() {
+		Set<Screenname> names = new LinkedHashSet<Screenname>();
+		for (SsiItem item : items.values()) {
+			if (item.getItemType() == SsiItem.TYPE_BUDDY) {
+				names.add(Screenname.getInstance(item.getName()));
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Items are identified by type, group and item id, the same way the
+	 * server does when items are modified
+	 */
+	protected static Long getKey(SsiItem item) {
+		return Long.valueOf(((long) item.getItemType() << 32)
+				| ((long) item.getParentId() << 16) | item.getId());
+	}
+
+	protected static boolean sameItem(SsiItem a, SsiItem b) {
+		ByteBlock da = a.getData(), db = b.getData();
+		return a.getName().equals(b.getName())
+				&& (da == null ? db == null || db.getLength() == 0 : da.equals(db));
+	}
+
+	protected static int getItemSize(SsiItem item) {
+		ByteBlock data = item.getData();
+		return 10 + BinaryTools.getAsciiBytes(item.getName()).length
+				+ (data == null ? 0 : data.getLength());
+	}
+
+	/**
+	 * Reads an item in the same format the server sends it
+	 * (SsiItem.readSsiItem isn't visible outside of joscar)
+	 */
+	protected static SsiItem readItem(ByteBlock block) {
+		if (block.getLength() < 10) {
+			return null;
+		}
+		int nameLen = BinaryTools.getUShort(block, 0);
+		if (block.getLength() < 10 + nameLen) {
+			return null;
+		}
+		String name = BinaryTools.getAsciiString(block.subBlock(2, nameLen));
+		ByteBlock rest = block.subBlock(2 + nameLen);
+		int groupid = BinaryTools.getUShort(rest, 0);
+		int itemid = BinaryTools.getUShort(rest, 2);
+		int type = BinaryTools.getUShort(rest, 4);
+		int datalen = BinaryTools.getUShort(rest, 6);
+		if (rest.getLength() < 8 + datalen) {
+			return null;
+		}
+		return new SsiItem(name, groupid, itemid, type, rest.subBlock(8, datalen));
+	}
+} // end class SsiCache
@@ -45,9 +45,26 @@ public class XMPP_Messenger extends Abstract_Messenger implements MessageListene
 	protected Map<String, Buddy> buddies = new HashMap<String, Buddy>();
 	protected Map<String, Chat> chats = new HashMap<String, Chat>();
 	protected RosterListener listener = null;
+	protected PresenceDebouncer presence;
 
 	public XMPP_Messenger(Messenger callback) {
 		callbackMessenger = callback;
+		presence = new PresenceDebouncer(new PresenceDebouncer.Listener() {
+
+			public void presenceChanged(String user, boolean online) {
+				Buddy b = buddies.get(user);
+				if (b != null) {
+					b.setOnline(online);
+				}
+				if (online) {
+					callbackMessenger.signon(user);
+				}
+			}
+		}, callback.presenceStableOnline * 1000, callback.presenceOfflineGrace * 1000);
+	}
+
+	public PresenceDebouncer getPresenceDebouncer() {
+		return presence;
 	}
 
 	@Override
@@ -65,6 +82,7 @@ public class XMPP_Messenger extends Abstract_Messenger implements MessageListene
 			for (RosterEntry r : entries) {
 				buddies.put(r.getUser(), new Buddy(r.getUser()));
 				buddies.get(r.getUser()).setOnline(roster.getPresence(r.getUser()) != null);
+				presence.assume(r.getUser(), buddies.get(r.getUser()).isOnline());
 			}
 
 			listener = new RosterListener() {
@@ -90,7 +108,12 @@ public class XMPP_Messenger extends Abstract_Messenger implements MessageListene
 						buddies.put(uname, b);
 					}
 					//System.out.println("presence changed: " + uname + ": " + prsnc + "  -" + (prsnc.isAvailable() || prsnc.isAway()));
-					b.setOnline(prsnc.isAvailable() || prsnc.isAway());
+					// b's online state is updated once the change has held
+					if (prsnc.isAvailable() || prsnc.isAway()) {
+						presence.signOn(uname);
+					} else {
+						presence.signOff(uname);
+					}
 				}
 			};
 			roster.addRosterListener(listener);
@@ -104,6 +127,7 @@ public class XMPP_Messenger extends Abstract_Messenger implements MessageListene
 
 	@Override
 	public void disconnect() {
+		presence.reset();
 		if (connection != null) {
 			connection.disconnect(new Presence(Presence.Type.unavailable));
 			connection.getRoster().removeRosterListener(listener);
@@ -0,0 +1,166 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * A minimal micro-benchmark runner with no dependencies outside the JDK. Each
+ * operation is warmed up, then run for a number of rounds; the fastest round
+ * is reported, along with the bytes allocated per operation where the JVM can
+ * measure them (HotSpot's <code>com.sun.management.ThreadMXBean</code>).
+ */
+public final class Benchmark {
+    /** An operation to be timed. */
+    public interface Op {
+        /**
+         * Runs the operation once.
+         *
+         * @return the result, which is kept so the work isn't optimized away
+         * @throws Exception if the operation fails
+         */
+        Object run() throws Exception;
+    }
+
+    /** Results are stored here so the JIT can't drop the work. */
+    public static volatile Object sink;
+
+    private static final ThreadMXBean threads
+            = ManagementFactory.getThreadMXBean();
+    /** <code>getThreadAllocatedBytes(long)</code>, if this JVM has it. */
+    private static final Method allocatedBytes;
+
+    static {
+        Method method = null;
+        try {
+            Class cl = Class.forName("com.sun.management.ThreadMXBean");
+            if (cl.isInstance(threads)) {
+                method = cl.getMethod("getThreadAllocatedBytes",
+                        new Class[] { long.class });
+                method.setAccessible(true);
+            }
+        } catch (Exception e) { }
+        allocatedBytes = method;
+    }
+
+    private final int iterations;
+    private final int rounds;
+
+    /**
+     * Creates a runner which warms each operation up for the given number of
+     * iterations, then times five rounds of that many iterations.
+     *
+     * @param iterations the number of iterations per round
+     */
+    public Benchmark(int iterations) {
+        this(iterations, 5);
+    }
+
+    public Benchmark(int iterations, int rounds) {
+        this.iterations = iterations;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or
+     * <code>-1</code> if this JVM can't tell.
+     *
+     * @return the bytes allocated by the current thread, or <code>-1</code>
+     */
+    public static long allocated() {
+        if (allocatedBytes == null) return -1;
+        try {
+            Long bytes = (Long) allocatedBytes.invoke(threads,
+                    new Object[] { Long.valueOf(Thread.currentThread().getId()) });
+            return bytes.longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Times the given operation and prints one line of results.
+     *
+     * @param name the name to print
+     * @param op the operation
+     * @return the fastest time per operation, in nanoseconds
+     * @throws Exception if the operation fails
+     */
+    public long run(String name, Op op) throws Exception {
+        for (int i = 0; i < iterations; i++) sink = op.run();
+
+        long best = Long.MAX_VALUE;
+        long bytes = -1;
+        for (int r = 0; r < rounds; r++) {
+            long a0 = allocated();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) sink = op.run();
+            long time = System.nanoTime() - t0;
+            long a1 = allocated();
+
+            best = Math.min(best, time / iterations);
+            if (a0 != -1 && a1 != -1) {
+                long perOp = (a1 - a0) / iterations;
+                bytes = bytes == -1 ? perOp : Math.min(bytes, perOp);
+            }
+        }
+        System.out.println(format(name, best, bytes));
+        return best;
+    }
+
+    /**
+     * Formats one line of results.
+     *
+     * @param name the operation's name
+     * @param nanos the time per operation, in nanoseconds
+     * @param bytes the bytes allocated per operation, or <code>-1</code>
+     * @return a line of results
+     */
+    public static String format(String name, long nanos, long bytes) {
+        StringBuilder line = new StringBuilder(name);
+        while (line.length() < 40) line.append(' ');
+        line.append(pad(Long.toString(nanos), 8)).append(" ns/op");
+        line.append(pad(bytes == -1 ? "?" : Long.toString(bytes), 8));
+        line.append(" B/op");
+        return line.toString();
+    }
+
+    private static String pad(String str, int width) {
+        StringBuilder padded = new StringBuilder();
+        for (int i = str.length(); i < width; i++) padded.append(' ');
+        return padded.append(str).toString();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the word-at-a-time <code>FileTransferChecksum</code> with the
+ * byte-at-a-time loop it replaced, on a 1 MB array and on a file read from
+ * disk. Run with an optional file size in megabytes (the default is 1024) and
+ * an optional file to checksum instead of a temporary one:
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.ChecksumBench [megabytes [file]]
+ * </pre>
+ */
+public class ChecksumBench {
+    /** The checksum of no data, as the old implementation kept it. */
+    private static final long CHECKSUM_INIT = 0xffff0000L;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+
+        final byte[] data = new byte[1 << 20];
+        new Random(3).nextBytes(data);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+
+        if (oldChecksum(data, 0, data.length, CHECKSUM_INIT)
+                != newChecksum(data)) {
+            throw new IllegalStateException("checksums differ");
+        }
+
+        System.out.println("1 MB in memory, 200 iterations per round");
+        Benchmark bench = new Benchmark(200);
+        long old = bench.run("old byte loop", new Benchmark.Op() {
+            public Object run() {
+                return Long.valueOf(oldChecksum(data, 0, data.length,
+                        CHECKSUM_INIT));
+            }
+        });
+        long array = bench.run("update(byte[])", new Benchmark.Op() {
+            public Object run() {
+                return Long.valueOf(newChecksum(data));
+            }
+        });
+        long buffer = bench.run("update(direct ByteBuffer)", new Benchmark.Op() {
+            public Object run() {
+                FileTransferChecksum sum = new FileTransferChecksum();
+                sum.update(direct.duplicate());
+                return Long.valueOf(sum.getValue());
+            }
+        });
+        System.out.println("  old " + mbPerSec(data.length, old)
+                + " MB/s, byte[] " + mbPerSec(data.length, array)
+                + " MB/s, direct " + mbPerSec(data.length, buffer) + " MB/s");
+
+        File file;
+        boolean temporary = args.length < 2;
+        if (temporary) {
+            file = File.createTempFile("checksum", ".bin");
+            file.deleteOnExit();
+            writeRandom(file, (long) megabytes << 20);
+        } else {
+            file = new File(args[1]);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ForkJoinPool pool = new ForkJoinPool(Math.max(2,
+                Runtime.getRuntime().availableProcessors()));
+        try {
+            FileChannel channel = raf.getChannel();
+            long len = channel.size();
+            System.out.println((len >> 20) + " MB file (second of two runs)");
+            for (int run = 0; run < 2; run++) {
+                long t0 = System.nanoTime();
+                long oldValue = oldChecksum(channel, len);
+                long t1 = System.nanoTime();
+                long mapped = FileTransferChecksum.computeChecksum(channel, len);
+                long t2 = System.nanoTime();
+                long parallel = FileTransferChecksum.computeChecksum(channel,
+                        len, pool);
+                long t3 = System.nanoTime();
+
+                if (oldValue != mapped || mapped != parallel) {
+                    throw new IllegalStateException("checksums differ");
+                }
+                if (run == 1) {
+                    System.out.println("  old, 64 KB reads   "
+                            + (t1 - t0) / 1000000 + " ms");
+                    System.out.println("  mapped regions     "
+                            + (t2 - t1) / 1000000 + " ms");
+                    System.out.println("  fork-join ("
+                            + pool.getParallelism() + " threads) "
+                            + (t3 - t2) / 1000000 + " ms");
+                }
+            }
+        } finally {
+            pool.shutdown();
+            raf.close();
+            if (temporary) file.delete();
+        }
+    }
+
+    private static long newChecksum(byte[] data) {
+        FileTransferChecksum sum = new FileTransferChecksum();
+        sum.update(data, 0, data.length);
+        return sum.getValue();
+    }
+
+    /**
+     * Checksums the given file the way it was done before: reading it through
+     * a 64 KB buffer and summing a byte at a time.
+     */
+    private static long oldChecksum(FileChannel channel, long len)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long checksum = CHECKSUM_INIT;
+        for (long pos = 0; pos < len;) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read == -1) break;
+            checksum = oldChecksum(buf.array(), 0, read, checksum);
+            pos += read;
+        }
+        return checksum;
+    }
+
+    /**
+     * The byte-at-a-time loop <code>FileTransferChecksum.update</code> used to
+     * run. Like the original, it restarts the even/odd parity on every call,
+     * so it is only correct for chunks of even length.
+     */
+    private static long oldChecksum(byte[] input, int offset, int len,
+            long checksum) {
+        long check = (checksum >> 16) & 0xffffL;
+
+        for (int i = 0; i < len; i++) {
+            final long oldcheck = check;
+
+            final int byteVal = input[offset + i] & 0xff;
+
+            final int val;
+            if ((i & 1) != 0) val = byteVal;
+            else val = byteVal << 8;
+
+            check -= val;
+
+            if (check > oldcheck) check--;
+        }
+
+        check = ((check & 0x0000ffff) + (check >> 16));
+        check = ((check & 0x0000ffff) + (check >> 16));
+
+        return check << 16 & 0xffffffffL;
+    }
+
+    private static void writeRandom(File file, long len) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            byte[] chunk = new byte[1 << 20];
+            Random random = new Random(7);
+            for (long written = 0; written < len; written += chunk.length) {
+                random.nextBytes(chunk);
+                out.write(chunk, 0, (int) Math.min(chunk.length,
+                        len - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static long mbPerSec(long bytes, long nanos) {
+        return bytes * 1000000000L / nanos / (1 << 20);
+    }
+}
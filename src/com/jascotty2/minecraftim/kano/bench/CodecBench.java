@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.ImEncodedString;
+import net.kano.joscar.flapcmd.SnacCommand;
+import net.kano.joscar.flapcmd.SnacFlapCmd;
+import net.kano.joscar.flapcmd.SnacPacket;
+import net.kano.joscar.rvcmd.SegmentedFilename;
+import net.kano.joscar.rvproto.directim.DirectImHeader;
+import net.kano.joscar.rvproto.ft.FileTransferHeader;
+import net.kano.joscar.snaccmd.CapabilityBlock;
+import net.kano.joscar.snaccmd.FullUserInfo;
+import net.kano.joscar.snaccmd.icbm.ClientIcbmCmdFactory;
+import net.kano.joscar.snaccmd.icbm.InstantMessage;
+import net.kano.joscar.snaccmd.icbm.RecvImIcbm;
+import net.kano.joscar.snaccmd.icbm.SendImIcbm;
+import net.kano.joscar.snaccmd.ssi.ClientSsiCmdFactory;
+import net.kano.joscar.snaccmd.ssi.SsiDataCmd;
+import net.kano.joscar.snaccmd.ssi.SsiItem;
+import net.kano.joscar.ssiitem.BuddyItem;
+import net.kano.joscar.ssiitem.DefaultSsiItemObjFactory;
+import net.kano.joscar.tlv.TlvTools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Times joscar's protocol decoders and encoders in isolation, using fixtures
+ * built by joscar's own encoders. Run with an optional iteration count (the
+ * default is 200,000 per round):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.CodecBench [iterations]
+ * </pre>
+ */
+public class CodecBench {
+    private static final String HTML
+            = "<HTML><BODY>hello there, how are you?</BODY></HTML>";
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Benchmark bench = new Benchmark(iterations);
+
+        CapabilityBlock[] caps = {
+            CapabilityBlock.BLOCK_CHAT,
+            CapabilityBlock.BLOCK_FILE_SEND,
+            CapabilityBlock.BLOCK_DIRECTIM,
+            CapabilityBlock.BLOCK_ICON,
+            CapabilityBlock.BLOCK_FILE_GET,
+        };
+        final FullUserInfo userInfo = new FullUserInfo("Some Buddy", 0,
+                FullUserInfo.MASK_FREE, new Date(1000000000000L),
+                new Date(1000000000000L), 3600, -1, new Date(1100000000000L),
+                5, caps, Boolean.FALSE, null, null, null);
+        final ByteBlock userInfoBlock = ByteBlock.createByteBlock(userInfo);
+        // the TLV chain follows the screenname, warning level & TLV count
+        final ByteBlock chainBlock = userInfoBlock.subBlock(
+                (userInfoBlock.get(0) & 0xff) + 1 + 4);
+        final ByteBlock capBlock = ByteBlock.createByteBlock(caps);
+
+        SsiItem[] items = new SsiItem[10];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new BuddyItem("somebuddy" + i, 1, 40 + i, "Alias " + i,
+                    "a comment", 0, 0, null).toSsiItem();
+        }
+        final SnacPacket ssiPacket = toPacket(new SsiDataCmd(items, 1));
+        final ClientSsiCmdFactory ssiFactory = new ClientSsiCmdFactory();
+        final SsiItem buddyItem = items[0];
+        final DefaultSsiItemObjFactory objFactory
+                = new DefaultSsiItemObjFactory();
+
+        final SnacPacket recvPacket = toPacket(new RecvImIcbm(12345L, userInfo,
+                new InstantMessage(HTML), false, false, null, null, true));
+        final ClientIcbmCmdFactory icbmFactory = new ClientIcbmCmdFactory();
+
+        FileTransferHeader fth = new FileTransferHeader();
+        fth.setDefaults();
+        fth.setHeaderType(FileTransferHeader.HEADERTYPE_SENDHEADER);
+        fth.setIcbmMessageId(1);
+        fth.setFilename(SegmentedFilename.fromFTFilename("some file.txt"));
+        fth.setFileSize(123456);
+        fth.setTotalFileSize(123456);
+        fth.setChecksum(1);
+        fth.setReceivedChecksum(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        fth.write(out);
+        final byte[] fthBytes = out.toByteArray();
+
+        DirectImHeader dih = DirectImHeader.createMessageHeader(
+                ImEncodedString.encodeString("hello there"));
+        dih.setScreenname("Some Buddy");
+        out = new ByteArrayOutputStream();
+        dih.write(out);
+        final byte[] dihBytes = out.toByteArray();
+
+        System.out.println(iterations + " iterations per round, best of 5");
+        bench.run("FullUserInfo.readUserInfo", new Benchmark.Op() {
+            public Object run() {
+                return FullUserInfo.readUserInfo(userInfoBlock);
+            }
+        });
+        bench.run("TlvTools.readChain", new Benchmark.Op() {
+            public Object run() {
+                return TlvTools.readChain(chainBlock);
+            }
+        });
+        bench.run("SsiDataCmd decode (10 items)", new Benchmark.Op() {
+            public Object run() {
+                return ssiFactory.genSnacCommand(ssiPacket);
+            }
+        });
+        bench.run("DefaultSsiItemObjFactory.getItemObj", new Benchmark.Op() {
+            public Object run() {
+                return objFactory.getItemObj(buddyItem);
+            }
+        });
+        bench.run("RecvImIcbm decode", new Benchmark.Op() {
+            public Object run() {
+                return icbmFactory.genSnacCommand(recvPacket);
+            }
+        });
+        bench.run("FileTransferHeader.readHeader", new Benchmark.Op() {
+            public Object run() throws IOException {
+                return FileTransferHeader.readHeader(
+                        new ByteArrayInputStream(fthBytes));
+            }
+        });
+        bench.run("DirectImHeader.readDirectIMHeader", new Benchmark.Op() {
+            public Object run() throws IOException {
+                return DirectImHeader.readDirectIMHeader(
+                        new ByteArrayInputStream(dihBytes));
+            }
+        });
+        bench.run("CapabilityBlock.getCapabilityBlocks", new Benchmark.Op() {
+            public Object run() {
+                return CapabilityBlock.getCapabilityBlocks(capBlock);
+            }
+        });
+        bench.run("createByteBlock(SendImIcbm packet)", new Benchmark.Op() {
+            public Object run() {
+                // built here, since a command caches its encoded IM
+                return ByteBlock.createByteBlock(new SnacFlapCmd(1,
+                        new SendImIcbm("Some Buddy", HTML)).getSnacPacket());
+            }
+        });
+        bench.run("createByteBlock(FullUserInfo)", new Benchmark.Op() {
+            public Object run() {
+                return ByteBlock.createByteBlock(userInfo);
+            }
+        });
+    }
+
+    /**
+     * Encodes the given command as a SNAC packet, as it would arrive from the
+     * server.
+     */
+    private static SnacPacket toPacket(SnacCommand cmd) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cmd.writeData(out);
+        return new SnacPacket(cmd.getFamily(), cmd.getCommand(), 0,
+                (short) 0, (short) 0,
+                ByteBlock.wrap(out.toByteArray()));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.flap.FlapProcessor;
+import net.kano.joscar.snac.ClientSnacProcessor;
+import net.kano.joscar.snac.CmdFactoryMgr;
+import net.kano.joscar.snac.CmdType;
+import net.kano.joscar.snac.SnacCmdFactory;
+import net.kano.joscar.snaccmd.DefaultClientFactoryList;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+
+/**
+ * Times finding the command factory for each incoming SNAC, as a client
+ * connection does for every packet, over a mix of BOS traffic that is mostly
+ * buddy status, IM's and typing notifications. Run with an optional number
+ * of packets in the mix (the default is 65536):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.DispatchBench [packets]
+ * </pre>
+ * The lookup is package-private, so it is called through a method handle.
+ * Where the manager can look up a family and subtype directly, that is timed
+ * too; otherwise, only the lookup by <code>CmdType</code>, which allocates a
+ * key per packet, is timed.
+ */
+public class DispatchBench {
+    /**
+     * The family and subtype of each kind of packet in the mix, followed by
+     * how many of every hundred packets are of that kind.
+     */
+    private static final int[][] MIX = {
+        { 0x0003, 0x000b, 28 }, // buddy arrived or changed status
+        { 0x0003, 0x000c, 12 }, // buddy departed
+        { 0x0004, 0x0007, 20 }, // incoming IM
+        { 0x0004, 0x0014, 20 }, // typing notification
+        { 0x0004, 0x000c, 5 },  // IM acknowledgement
+        { 0x0001, 0x000a, 3 },  // rate change
+        { 0x0001, 0x000f, 2 },  // own user info
+        { 0x0002, 0x0006, 4 },  // user info reply
+        { 0x0013, 0x000e, 3 },  // SSI modification ack
+        { 0x0013, 0x0008, 1 },  // SSI item added
+        { 0x000b, 0x0002, 1 },  // minimum report interval
+        { 0x0017, 0x0003, 1 },  // unknown to the default factories
+    };
+
+    private static final MethodHandle BY_TYPE;
+    private static final MethodHandle BY_FAMILY;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(
+                    CmdFactoryMgr.class, MethodHandles.lookup());
+            BY_TYPE = lookup.findVirtual(CmdFactoryMgr.class, "findFactory",
+                    MethodType.methodType(SnacCmdFactory.class, CmdType.class));
+            MethodHandle byFamily;
+            try {
+                byFamily = lookup.findVirtual(CmdFactoryMgr.class,
+                        "findFactory", MethodType.methodType(
+                        SnacCmdFactory.class, int.class, int.class));
+            } catch (NoSuchMethodException e) {
+                byFamily = null;
+            }
+            BY_FAMILY = byFamily;
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 65536;
+
+        int[] kinds = new int[100];
+        for (int k = 0, i = 0; k < MIX.length; k++) {
+            for (int j = 0; j < MIX[k][2]; j++) kinds[i++] = k;
+        }
+        Random random = new Random(5);
+        final int[] families = new int[count];
+        final int[] commands = new int[count];
+        for (int i = 0; i < count; i++) {
+            int[] kind = MIX[kinds[random.nextInt(kinds.length)]];
+            families[i] = kind[0];
+            commands[i] = kind[1];
+        }
+
+        final CmdFactoryMgr mgr = new ClientSnacProcessor(new FlapProcessor())
+                .getCmdFactoryMgr();
+        mgr.setDefaultFactoryList(new DefaultClientFactoryList());
+
+        System.out.println(count + " packets of BOS traffic");
+        Benchmark bench = new Benchmark(count * 20);
+        bench.run("findFactory(CmdType)", new Benchmark.Op() {
+            private int next = 0;
+
+            public Object run() throws Exception {
+                CmdType type = new CmdType(families[next], commands[next]);
+                next = (next + 1) % families.length;
+                try {
+                    return (SnacCmdFactory) BY_TYPE.invokeExact(mgr, type);
+                } catch (Throwable t) {
+                    throw new Exception(t);
+                }
+            }
+        });
+        if (BY_FAMILY != null) {
+            bench.run("findFactory(family, subtype)", new Benchmark.Op() {
+                private int next = 0;
+
+                public Object run() throws Exception {
+                    int family = families[next];
+                    int command = commands[next];
+                    next = (next + 1) % families.length;
+                    try {
+                        return (SnacCmdFactory) BY_FAMILY.invokeExact(mgr,
+                                family, command);
+                    } catch (Throwable t) {
+                        throw new Exception(t);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.flapcmd.SnacPacket;
+import net.kano.joscar.snaccmd.FullUserInfo;
+import net.kano.joscar.snaccmd.buddy.BuddyStatusCmd;
+import net.kano.joscar.snaccmd.buddy.ClientBuddyCmdFactory;
+import net.kano.joscar.tlv.Tlv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times handling a buddy presence event the way a client does: decoding a
+ * buddy status packet through <code>ClientBuddyCmdFactory</code>, then
+ * reading only the buddy's screenname and away status. Run with an optional
+ * number of distinct packets (the default is 2000):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.PresenceBench [packets]
+ * </pre>
+ * Each packet holds eight TLV's. Times and allocation are per event.
+ */
+public class PresenceBench {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        Random random = new Random(13);
+        final SnacPacket[] packets = new SnacPacket[count];
+        for (int i = 0; i < count; i++) {
+            packets[i] = new SnacPacket(0x0003, 0x000b, 0, (short) 0,
+                    (short) 0, ByteBlock.wrap(userInfo("Buddy" + i, random)));
+        }
+        final ClientBuddyCmdFactory factory = new ClientBuddyCmdFactory();
+
+        int away = 0;
+        for (int i = 0; i < count; i++) {
+            FullUserInfo info = ((BuddyStatusCmd) factory.genSnacCommand(
+                    packets[i])).getUserInfo();
+            if (!info.getScreenname().equals("Buddy" + i)) {
+                throw new IllegalStateException("packet " + i
+                        + " was misread");
+            }
+            if (Boolean.TRUE.equals(info.getAwayStatus())) away++;
+        }
+
+        System.out.println(count + " buddy status packets of 8 TLV's, "
+                + away + " away");
+        Benchmark bench = new Benchmark(count * 50);
+        bench.run("decode + screenname + away", new Benchmark.Op() {
+            private int next = 0;
+
+            public Object run() {
+                BuddyStatusCmd cmd = (BuddyStatusCmd) factory.genSnacCommand(
+                        packets[next]);
+                next = (next + 1) % packets.length;
+                FullUserInfo info = cmd.getUserInfo();
+                return info.getAwayStatus() == null ? info.getScreenname()
+                        : (Object) info.getAwayStatus();
+            }
+        });
+    }
+
+    /**
+     * Returns a user information block for the given screenname, as a buddy
+     * status packet carries it, with eight TLV's: user flags (away for one
+     * buddy in four), online since, idle time, member since, capabilities,
+     * short capabilities, session length and an icon hash.
+     */
+    private static byte[] userInfo(String sn, Random random)
+            throws IOException {
+        byte[] caps = new byte[32];
+        random.nextBytes(caps);
+        byte[] shortCaps = new byte[8];
+        random.nextBytes(shortCaps);
+        byte[] iconInfo = new byte[20];
+        random.nextBytes(iconInfo);
+        // an icon hash: type 1, flags 0, 16 bytes of hash
+        iconInfo[0] = 0;
+        iconInfo[1] = 1;
+        iconInfo[2] = 0;
+        iconInfo[3] = 16;
+        int flags = FullUserInfo.MASK_FREE;
+        if (random.nextInt(4) == 0) flags |= FullUserInfo.MASK_AWAY;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(sn.length());
+        out.write(sn.getBytes());
+        out.write(new byte[] { 0, 0, 0, 8 });
+        Tlv.getUShortInstance(0x0001, flags).write(out);
+        Tlv.getUIntInstance(0x0003, 1100000000L + random.nextInt(1000000))
+                .write(out);
+        Tlv.getUShortInstance(0x0004, random.nextInt(60)).write(out);
+        Tlv.getUIntInstance(0x0005, 1000000000L + random.nextInt(1000000))
+                .write(out);
+        new Tlv(0x000d, ByteBlock.wrap(caps)).write(out);
+        new Tlv(0x0019, ByteBlock.wrap(shortCaps)).write(out);
+        Tlv.getUIntInstance(0x000f, random.nextInt(100000)).write(out);
+        new Tlv(0x001d, ByteBlock.wrap(iconInfo)).write(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.flap.FlapProcessor;
+import net.kano.joscar.flapcmd.SnacCommand;
+import net.kano.joscar.flapcmd.SnacPacket;
+import net.kano.joscar.ratelim.RateLimitingQueueMgr;
+import net.kano.joscar.ratelim.RateMonitor;
+import net.kano.joscar.snac.ClientSnacProcessor;
+import net.kano.joscar.snac.SnacRequest;
+import net.kano.joscar.snac.SnacRequestAdapter;
+import net.kano.joscar.snac.SnacRequestSentEvent;
+import net.kano.joscar.snaccmd.conn.ClientConnCmdFactory;
+import net.kano.joscar.snaccmd.conn.RateClassInfo;
+import net.kano.joscar.snaccmd.conn.RateInfoCmd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drains rate-limited SNAC queues on many connections at once, each with
+ * several rate classes, and reports how long it took, how much CPU time the
+ * process used doing it, and how many threads the rate limiting used. Run
+ * with an optional connection count (the default is 50), rate classes per
+ * connection (the default is 5) and commands queued per rate class (the
+ * default is 20):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.RateLimitBench [connections [classes [commands]]]
+ * </pre>
+ * This is run twice: once with one queue manager shared by every connection,
+ * and once with a manager per connection, as <code>BasicConn</code> does.
+ * Sent packets go to a stream that discards them.
+ */
+public class RateLimitBench {
+    /** The family of the commands queued; each rate class has a subtype. */
+    private static final int FAMILY = 0x7f;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int classes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int commands = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        System.out.println(connections + " connections x " + classes
+                + " rate classes x " + commands + " commands");
+        int baseThreads = Thread.activeCount();
+        run(connections, classes, commands, true, baseThreads);
+        run(connections, classes, commands, false, baseThreads);
+        // the rate limiting threads may not be daemons
+        System.exit(0);
+    }
+
+    private static void run(int connections, int classes, int commands,
+            boolean shared, int baseThreads) throws Exception {
+        RateInfoCmd rateInfo = rateInfo(classes);
+        int total = connections * classes * commands;
+        final CountDownLatch sent = new CountDownLatch(total);
+        SnacRequestAdapter listener = new SnacRequestAdapter() {
+            public void handleSent(SnacRequestSentEvent e) {
+                sent.countDown();
+            }
+        };
+        OutputStream discard = new OutputStream() {
+            public void write(int b) { }
+
+            public void write(byte[] b, int off, int len) { }
+        };
+
+        RateLimitingQueueMgr sharedMgr = shared ? new RateLimitingQueueMgr()
+                : null;
+        ClientSnacProcessor[] processors = new ClientSnacProcessor[connections];
+        for (int c = 0; c < connections; c++) {
+            FlapProcessor flaps = new FlapProcessor();
+            flaps.attachToOutput(discard);
+            ClientSnacProcessor processor = new ClientSnacProcessor(flaps);
+            RateLimitingQueueMgr mgr = shared ? sharedMgr
+                    : new RateLimitingQueueMgr();
+            processor.setSnacQueueManager(mgr);
+            RateMonitor monitor = mgr.getQueueMgr(processor).getRateMonitor();
+            monitor.setErrorMargin(0);
+            monitor.setRateClasses(rateInfo.getRateClassInfos());
+            processors[c] = processor;
+        }
+
+        long cpu0 = processCpuTime();
+        long t0 = System.nanoTime();
+        // interleave the connections and classes, as real traffic would
+        for (int i = 0; i < commands; i++) {
+            for (int c = 0; c < connections; c++) {
+                for (int k = 1; k <= classes; k++) {
+                    processors[c].sendSnac(new SnacRequest(
+                            new BenchCmd(FAMILY, k), listener));
+                }
+            }
+        }
+        sent.await();
+        long wall = System.nanoTime() - t0;
+        long cpu = processCpuTime() - cpu0;
+        int threads = Thread.activeCount() - baseThreads;
+
+        System.out.println((shared ? "one shared manager:    "
+                : "a manager per conn:    ") + total + " SNACs drained in "
+                + wall / 1000000 + " ms, "
+                + (cpu < 0 ? "?" : Long.toString(cpu / 1000000))
+                + " ms CPU, " + threads + " rate limiting threads");
+
+        for (int c = 0; c < connections; c++) {
+            processors[c].detach();
+        }
+    }
+
+    /**
+     * Returns rate information with the given number of classes, each
+     * holding one command, parsed as it would be from the server so the
+     * classes know their commands.
+     */
+    private static RateInfoCmd rateInfo(int classes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(classes >> 8);
+        out.write(classes);
+        for (int k = 1; k <= classes; k++) {
+            // a five-interval window, limited below a 60 ms average; the
+            // maximum is kept low so the queues can't burst past the limit
+            new RateClassInfo(k, 5, 100, 80, 60, 40, 100, 100).write(out);
+            // the server's blocks end with five more bytes, which write()
+            // leaves out
+            out.write(new byte[5]);
+        }
+        for (int k = 1; k <= classes; k++) {
+            out.write(new byte[] { 0, (byte) k, 0, 1, 0, FAMILY, 0, (byte) k });
+        }
+        SnacPacket packet = new SnacPacket(0x0001, 0x0007, 0, (short) 0,
+                (short) 0, ByteBlock.wrap(out.toByteArray()));
+        return (RateInfoCmd) new ClientConnCmdFactory().genSnacCommand(packet);
+    }
+
+    /**
+     * Returns the CPU time used by this process so far, or <code>-1</code>
+     * if this JVM can't tell.
+     */
+    private static long processCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        try {
+            Method method = Class.forName(
+                    "com.sun.management.OperatingSystemMXBean")
+                    .getMethod("getProcessCpuTime", new Class[0]);
+            method.setAccessible(true);
+            return ((Long) method.invoke(os, new Object[0])).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /** A command with no data, of a given type. */
+    private static class BenchCmd extends SnacCommand {
+        BenchCmd(int family, int command) {
+            super(family, command);
+        }
+
+        public void writeData(OutputStream out) { }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.rv.RvProcessor;
+import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rvcmd.sendfile.FileSendAcceptRvCmd;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Stress tests an <code>RvProcessor</code>'s session table with thousands of
+ * simultaneous rendezvous sessions, created and used by several threads at
+ * once, then checks that idle expiry forgets exactly the sessions nobody
+ * touched. Run with an optional session count (the default is 20000) and
+ * thread count (the default is 8):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.RvSessionBench [sessions [threads]]
+ * </pre>
+ * The processor is not attached to a connection, so sent commands go nowhere;
+ * only the bookkeeping is measured.
+ */
+public class RvSessionBench {
+    /** The idle timeout used for the expiry check, in milliseconds. */
+    private static final long TIMEOUT = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int threadCount = args.length > 1 ? Integer.parseInt(args[1])
+                : 8;
+        final int perThread = count / threadCount;
+        count = perThread * threadCount;
+
+        final RvProcessor processor = new RvProcessor();
+        processor.setSessionIdleTimeout(0);
+        final RvSession[] sessions = new RvSession[count];
+        final FileSendAcceptRvCmd accept = new FileSendAcceptRvCmd();
+
+        long nanos = inParallel(threadCount, new Task() {
+            public void run(int thread) {
+                for (int i = thread * perThread; i < (thread + 1) * perThread;
+                     i++) {
+                    sessions[i] = processor.createRvSession("Buddy " + i);
+                }
+            }
+        });
+        report("create", count, nanos, threadCount);
+        check(processor.getSessionCount() == count, "sessions were lost");
+
+        // the threads send commands on sessions interleaved over the table
+        final int rounds = 20;
+        nanos = inParallel(threadCount, new Task() {
+            public void run(int thread) {
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = thread; i < sessions.length;
+                         i += threadCount) {
+                        sessions[i].sendRv(accept);
+                    }
+                }
+            }
+        });
+        report("sendRv", count * rounds, nanos, threadCount);
+
+        nanos = inParallel(threadCount, new Task() {
+            public void run(int thread) {
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = thread * perThread;
+                         i < (thread + 1) * perThread; i++) {
+                        processor.touchSession(sessions[i]);
+                    }
+                }
+            }
+        });
+        report("touchSession", count * rounds, nanos, threadCount);
+
+        // let every session go idle, then keep every other one in use
+        processor.setSessionIdleTimeout(TIMEOUT);
+        Thread.sleep(TIMEOUT * 2 / 3);
+        for (int i = 0; i < sessions.length; i += 2) {
+            processor.touchSession(sessions[i]);
+        }
+        Thread.sleep(TIMEOUT * 2 / 3);
+
+        long start = System.nanoTime();
+        int expired = processor.expireIdleSessions();
+        long expiry = System.nanoTime() - start;
+        System.out.println("expired " + expired + " of " + count
+                + " sessions in " + expiry / 1000 + " us");
+        check(expired == count / 2, "expected " + count / 2
+                + " sessions to expire");
+        check(processor.getSessionCount() == count - count / 2,
+                "touched sessions were expired");
+    }
+
+    /** Work to be split between threads. */
+    private interface Task {
+        /**
+         * Does one thread's share of the work.
+         *
+         * @param thread the index of the thread
+         */
+        void run(int thread);
+    }
+
+    /**
+     * Runs the given task on the given number of threads at once.
+     *
+     * @return how long it took for every thread to finish, in nanoseconds
+     */
+    private static long inParallel(int threads, final Task task)
+            throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread("RV stress " + t) {
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                        task.run(thread);
+                    } catch (InterruptedException e) {
+                        return;
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long ops, long nanos,
+            int threads) {
+        System.out.println(name + ": " + ops + " ops on " + threads
+                + " threads in " + nanos / 1000000 + " ms, "
+                + ops * 1000000000L / nanos + " ops/s");
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) throw new IllegalStateException(message);
+    }
+}
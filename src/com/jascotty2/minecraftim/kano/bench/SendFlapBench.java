@@ -0,0 +1,122 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.flap.FlapCommand;
+import net.kano.joscar.flap.FlapProcessor;
+import net.kano.joscar.flapcmd.SnacFlapCmd;
+import net.kano.joscar.snaccmd.icbm.SendImIcbm;
+import net.kano.joscar.snaccmd.ssi.CreateItemsCmd;
+import net.kano.joscar.snaccmd.ssi.SsiItem;
+import net.kano.joscar.ssiitem.BuddyItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Times sending outgoing SNAC commands through
+ * <code>FlapProcessor.sendFlap</code>, from building the command to writing
+ * the encoded FLAP packet, for a 60-character IM and for an SSI request
+ * creating two buddies. Run with an optional iteration count (the default is
+ * 200,000 per round):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.SendFlapBench [iterations]
+ * </pre>
+ * Each command is built inside the timed operation, so nothing it caches is
+ * reused. Packets go to a stream that discards them; a checksum of one
+ * packet of each kind is printed so the output of two builds can be compared.
+ */
+public class SendFlapBench {
+    /** A 60-character message. */
+    private static final String MESSAGE
+            = "hey, are you coming to the server tonight? we're at spawn :)";
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        final SsiItem[] items = {
+            new BuddyItem("somebuddy", 1, 40, "Some Buddy", null, 0, 0,
+                    null).toSsiItem(),
+            new BuddyItem("otherbuddy", 1, 41, null, "a comment", 0, 0,
+                    null).toSsiItem(),
+        };
+
+        System.out.println("IM packet " + checksum(new SnacFlapCmd(1,
+                new SendImIcbm("Some Buddy", MESSAGE))));
+        System.out.println("SSI packet " + checksum(new SnacFlapCmd(1,
+                new CreateItemsCmd(items))));
+
+        final FlapProcessor flaps = new FlapProcessor();
+        flaps.attachToOutput(new OutputStream() {
+            public void write(int b) { }
+
+            public void write(byte[] b, int off, int len) { }
+        });
+
+        System.out.println(iterations + " iterations per round, best of 5");
+        Benchmark bench = new Benchmark(iterations);
+        bench.run("sendFlap(SendImIcbm, 60 chars)", new Benchmark.Op() {
+            public Object run() {
+                SnacFlapCmd cmd = new SnacFlapCmd(1,
+                        new SendImIcbm("Some Buddy", MESSAGE));
+                flaps.sendFlap(cmd);
+                return cmd;
+            }
+        });
+        bench.run("sendFlap(CreateItemsCmd, 2 items)", new Benchmark.Op() {
+            public Object run() {
+                SnacFlapCmd cmd = new SnacFlapCmd(1,
+                        new CreateItemsCmd(items));
+                flaps.sendFlap(cmd);
+                return cmd;
+            }
+        });
+    }
+
+    /**
+     * Sends the given command on a new FLAP processor and returns the length
+     * and CRC-32 of what was written.
+     */
+    private static String checksum(FlapCommand cmd) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FlapProcessor flaps = new FlapProcessor();
+        flaps.attachToOutput(out);
+        flaps.sendFlap(cmd);
+
+        CRC32 crc = new CRC32();
+        crc.update(out.toByteArray());
+        return out.size() + " bytes, CRC " + Long.toHexString(crc.getValue());
+    }
+}
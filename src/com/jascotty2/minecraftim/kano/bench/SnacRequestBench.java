@@ -0,0 +1,188 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.flap.FlapProcessor;
+import net.kano.joscar.flapcmd.DefaultFlapCmdFactory;
+import net.kano.joscar.snac.ClientSnacProcessor;
+import net.kano.joscar.snac.SnacRequest;
+import net.kano.joscar.snac.SnacRequestAdapter;
+import net.kano.joscar.snac.SnacRequestTimeoutEvent;
+import net.kano.joscar.snac.SnacResponseEvent;
+import net.kano.joscar.snaccmd.conn.ServiceRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Times a <code>ClientSnacProcessor</code>'s request bookkeeping with many
+ * requests in flight at once: sending them, matching the server's responses
+ * to them, and timing out the ones that are never answered. Run with an
+ * optional number of in-flight requests (the default is 10000):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.SnacRequestBench [requests]
+ * </pre>
+ * Sent packets are captured in memory, and the responses are read back from
+ * memory, so no time is spent on a network.
+ */
+public class SnacRequestBench {
+    /** The request TTL used for the timeout check, in seconds. */
+    private static final int TTL = 1;
+    /** The number of times the send and response runs are repeated. */
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        long bestSend = Long.MAX_VALUE;
+        long bestRecv = Long.MAX_VALUE;
+        long sendBytes = -1;
+        long recvBytes = -1;
+        for (int r = 0; r < ROUNDS; r++) {
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            FlapProcessor flaps = new FlapProcessor();
+            flaps.setFlapCmdFactory(new DefaultFlapCmdFactory());
+            flaps.attachToOutput(sent);
+            ClientSnacProcessor snacs = new ClientSnacProcessor(flaps);
+            final int[] responses = new int[1];
+            SnacRequestAdapter listener = new SnacRequestAdapter() {
+                public void handleResponse(SnacResponseEvent e) {
+                    responses[0]++;
+                }
+            };
+
+            long a0 = Benchmark.allocated();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                snacs.sendSnac(new SnacRequest(new ServiceRequest(0x0d),
+                        listener));
+            }
+            long send = System.nanoTime() - t0;
+            long a1 = Benchmark.allocated();
+
+            flaps.attachToInput(new ByteArrayInputStream(
+                    answer(sent.toByteArray())));
+            long a2 = Benchmark.allocated();
+            long t1 = System.nanoTime();
+            while (flaps.readNextFlap()) { }
+            long recv = System.nanoTime() - t1;
+            long a3 = Benchmark.allocated();
+            check(responses[0] == count, "got " + responses[0] + " of "
+                    + count + " responses");
+
+            bestSend = Math.min(bestSend, send / count);
+            bestRecv = Math.min(bestRecv, recv / count);
+            if (a0 != -1 && a3 != -1) {
+                sendBytes = min(sendBytes, (a1 - a0) / count);
+                recvBytes = min(recvBytes, (a3 - a2) / count);
+            }
+        }
+        System.out.println(count + " requests in flight, best of " + ROUNDS);
+        System.out.println(Benchmark.format("sendSnac", bestSend, sendBytes));
+        System.out.println(Benchmark.format("response to an in-flight request",
+                bestRecv, recvBytes));
+
+        // leave every request unanswered past its TTL, then see how many
+        // timed out on their own and what the next send costs
+        FlapProcessor flaps = new FlapProcessor();
+        flaps.attachToOutput(new ByteArrayOutputStream());
+        ClientSnacProcessor snacs = new ClientSnacProcessor(flaps);
+        snacs.setRequestTtl(TTL);
+        final int[] timeouts = new int[1];
+        SnacRequestAdapter listener = new SnacRequestAdapter() {
+            public void handleTimeout(SnacRequestTimeoutEvent event) {
+                synchronized(timeouts) {
+                    timeouts[0]++;
+                }
+            }
+        };
+        for (int i = 0; i < count; i++) {
+            snacs.sendSnac(new SnacRequest(new ServiceRequest(0x0d),
+                    listener));
+        }
+        Thread.sleep(TTL * 2500L);
+        int before;
+        synchronized(timeouts) {
+            before = timeouts[0];
+        }
+        long t0 = System.nanoTime();
+        snacs.sendSnac(new SnacRequest(new ServiceRequest(0x0d), listener));
+        long next = System.nanoTime() - t0;
+        int after;
+        synchronized(timeouts) {
+            after = timeouts[0];
+        }
+        System.out.println(before + " of " + count + " requests timed out "
+                + "on their own; the next sendSnac took " + next / 1000
+                + " us and timed out " + (after - before) + " more");
+        check(after == count, "only " + after + " of " + count
+                + " requests timed out");
+    }
+
+    /**
+     * Returns a response to every SNAC in the given stream of sent FLAP
+     * packets, echoing each one's family, subtype and request ID.
+     */
+    private static byte[] answer(byte[] sent) {
+        ByteBuffer in = ByteBuffer.wrap(sent);
+        ByteBuffer out = ByteBuffer.allocate(sent.length);
+        int seq = 0;
+        while (in.remaining() >= 6) {
+            int start = in.position();
+            int len = in.getShort(start + 4) & 0xffff;
+            int family = in.getShort(start + 6) & 0xffff;
+            int subtype = in.getShort(start + 8) & 0xffff;
+            int reqid = in.getInt(start + 12);
+            in.position(start + 6 + len);
+
+            out.put((byte) 0x2a).put((byte) 2).putShort((short) seq++);
+            out.putShort((short) 10);
+            out.putShort((short) family).putShort((short) subtype);
+            out.putShort((short) 0).putInt(reqid);
+        }
+        byte[] result = new byte[out.position()];
+        out.flip();
+        out.get(result);
+        return result;
+    }
+
+    private static long min(long best, long value) {
+        return best == -1 ? value : Math.min(best, value);
+    }
+
+    private static void check(boolean ok, String message) {
+        if (!ok) throw new IllegalStateException(message);
+    }
+}
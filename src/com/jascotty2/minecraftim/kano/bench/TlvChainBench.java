@@ -0,0 +1,142 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.snaccmd.FullUserInfo;
+import net.kano.joscar.tlv.Tlv;
+import net.kano.joscar.tlv.TlvChain;
+import net.kano.joscar.tlv.TlvTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times parsing the user information blocks that arrive with buddy status
+ * updates: reading a block's TLV chain and two of its values, and reading a
+ * whole <code>FullUserInfo</code>. Run with an optional number of distinct
+ * blocks (the default is 2000):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.TlvChainBench [blocks]
+ * </pre>
+ * Each block holds seven TLV's, as a typical buddy arrival does. Times are
+ * per block.
+ */
+public class TlvChainBench {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        Random random = new Random(11);
+        final ByteBlock[] infos = new ByteBlock[count];
+        final ByteBlock[] chains = new ByteBlock[count];
+        for (int i = 0; i < count; i++) {
+            byte[] tlvs = tlvs(random);
+            chains[i] = ByteBlock.wrap(tlvs);
+            infos[i] = ByteBlock.wrap(userInfo("Buddy" + i, tlvs));
+
+            if (FullUserInfo.readUserInfo(infos[i]) == null) {
+                throw new IllegalStateException("block " + i
+                        + " could not be read");
+            }
+        }
+
+        System.out.println(count + " user info blocks of 7 TLV's");
+        Benchmark bench = new Benchmark(count * 50);
+        bench.run("readChain + getUShort + getUInt", new Benchmark.Op() {
+            private int next = 0;
+
+            public Object run() {
+                TlvChain chain = TlvTools.readChain(chains[next]);
+                next = (next + 1) % chains.length;
+                return Long.valueOf(chain.getUShort(0x0001)
+                        + chain.getUInt(0x0003));
+            }
+        });
+        bench.run("FullUserInfo.readUserInfo", new Benchmark.Op() {
+            private int next = 0;
+
+            public Object run() {
+                FullUserInfo info = FullUserInfo.readUserInfo(infos[next]);
+                next = (next + 1) % infos.length;
+                return info;
+            }
+        });
+    }
+
+    /**
+     * Returns the TLV's of a typical buddy arrival: user flags, online
+     * since, idle time, member since, capabilities, session length and an
+     * icon hash.
+     */
+    private static byte[] tlvs(Random random) throws IOException {
+        byte[] caps = new byte[32];
+        random.nextBytes(caps);
+        byte[] iconInfo = new byte[20];
+        random.nextBytes(iconInfo);
+        // an icon hash: type 1, flags 0, 16 bytes of hash
+        iconInfo[0] = 0;
+        iconInfo[1] = 1;
+        iconInfo[2] = 0;
+        iconInfo[3] = 16;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Tlv.getUShortInstance(0x0001, 0x0010).write(out);
+        Tlv.getUIntInstance(0x0003, 1100000000L + random.nextInt(1000000))
+                .write(out);
+        Tlv.getUShortInstance(0x0004, random.nextInt(60)).write(out);
+        Tlv.getUIntInstance(0x0005, 1000000000L + random.nextInt(1000000))
+                .write(out);
+        new Tlv(0x000d, ByteBlock.wrap(caps)).write(out);
+        Tlv.getUIntInstance(0x000f, random.nextInt(100000)).write(out);
+        new Tlv(0x001d, ByteBlock.wrap(iconInfo)).write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a user information block for the given screenname, with a
+     * warning level of zero and the given seven TLV's.
+     */
+    private static byte[] userInfo(String sn, byte[] tlvs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(sn.length());
+        out.write(sn.getBytes(), 0, sn.length());
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        out.write(7);
+        out.write(tlvs, 0, tlvs.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.bench;
+
+import com.jascotty2.minecraftim.kano.joscardemo.TrillianEncSession;
+import net.kano.joscar.BinaryTools;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rvcmd.trillcrypt.TrillianCryptMsgRvCmd;
+
+import javax.crypto.Cipher;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput of Trillian SecureIM encryption on a 1 MB server
+ * log dump, comparing <code>TrillianEncSession</code> with the per-message
+ * cipher code it replaced. Two sessions are keyed as if they had completed
+ * the Diffie-Hellman exchange with each other; messages one sends are
+ * collected by a stub RV session instead of going over the network. Run with
+ * an optional dump size in kilobytes (the default is 1024):
+ * <pre>
+ * java com.jascotty2.minecraftim.kano.bench.TrillianBench [kilobytes]
+ * </pre>
+ */
+public class TrillianBench {
+    /** The length of the garbage block before each message. */
+    private static final int PREFIX_LEN = 8;
+
+    /** The messages sent through a stub session, while collecting. */
+    private static final List<ByteBlock> sent = new ArrayList<ByteBlock>();
+    /** Whether sent messages are collected, or just dropped. */
+    private static boolean collecting = true;
+
+    public static void main(String[] args) throws Exception {
+        int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+
+        Random random = new Random(1);
+        BigInteger modulus = new BigInteger(128, random);
+        BigInteger five = BigInteger.valueOf(5);
+        BigInteger a = new BigInteger(128, random).mod(modulus);
+        BigInteger b = new BigInteger(128, random).mod(modulus);
+        final TrillianEncSession sender = createSession(modulus, a,
+                five.modPow(b, modulus));
+        final TrillianEncSession receiver = createSession(modulus, b,
+                five.modPow(a, modulus));
+
+        StringBuilder dump = new StringBuilder();
+        for (int i = 0; dump.length() < kilobytes << 10; i++) {
+            dump.append(i).append(" [INFO] Player").append(i % 37)
+                    .append(" issued server command: /home set base")
+                    .append(i).append('\n');
+        }
+        final String text = dump.toString();
+        final String[] lines = text.split("(?<=\n)");
+
+        sender.sendText(text);
+        StringBuilder received = new StringBuilder();
+        for (ByteBlock block : sent) received.append(receiver.decodeMsg(block));
+        if (!received.toString().equals(text)) {
+            throw new IllegalStateException("dump didn't survive the round "
+                    + "trip");
+        }
+        System.out.println(lines.length + " lines, " + text.length()
+                + " bytes, sent as " + sent.size() + " messages");
+        collecting = false;
+
+        // the old code, given the same ciphers
+        final Cipher encoder = (Cipher) getField(sender, "encoder");
+        final Cipher decoder = (Cipher) getField(receiver, "decoder");
+        final ByteBlock[] encrypted = new ByteBlock[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            encrypted[i] = oldSend(encoder, lines[i]);
+        }
+
+        Benchmark bench = new Benchmark(lines.length * 4);
+        double lineLen = (double) text.length() / lines.length;
+        final RvSession stub = sender.getRvSession();
+        report(lineLen, bench.run("encrypt per line, old", new Op(lines.length) {
+            public Object run(int i) throws Exception {
+                stub.sendRv(new TrillianCryptMsgRvCmd(oldSend(encoder,
+                        lines[i])));
+                return null;
+            }
+        }));
+        report(lineLen, bench.run("encrypt per line, new", new Op(lines.length) {
+            public Object run(int i) {
+                sender.sendMsg(lines[i]);
+                return null;
+            }
+        }));
+        report(text.length(), new Benchmark(4).run("encrypt whole dump, new",
+                new Benchmark.Op() {
+            public Object run() {
+                sender.sendText(text);
+                return null;
+            }
+        }));
+        report(lineLen, bench.run("decrypt per line, old", new Op(lines.length) {
+            public Object run(int i) throws Exception {
+                return oldDecode(decoder, encrypted[i]);
+            }
+        }));
+        report(lineLen, bench.run("decrypt per line, new", new Op(lines.length) {
+            public Object run(int i) {
+                return receiver.decodeMsg(encrypted[i]);
+            }
+        }));
+    }
+
+    /**
+     * Encrypts a message the way <code>TrillianEncSession</code> used to: a
+     * fresh array for the text, the output, and the zero prefix every time.
+     */
+    private static ByteBlock oldSend(Cipher encoder, String msg)
+            throws Exception {
+        byte[] data = BinaryTools.getAsciiBytes(msg);
+        byte[] encoded = new byte[encoder.getOutputSize(PREFIX_LEN
+                + data.length)];
+        int offset = encoder.update(new byte[PREFIX_LEN], 0, PREFIX_LEN,
+                encoded, 0);
+        int len = encoder.doFinal(data, 0, data.length, encoded, offset);
+        return ByteBlock.wrap(encoded, 0, offset + len);
+    }
+
+    /**
+     * Decrypts a message the way <code>TrillianEncSession</code> used to.
+     */
+    private static String oldDecode(Cipher decoder, ByteBlock encrypted)
+            throws Exception {
+        byte[] decoded = decoder.doFinal(encrypted.toByteArray());
+        ByteBlock full = ByteBlock.wrap(decoded);
+        return BinaryTools.getAsciiString(full.subBlock(PREFIX_LEN,
+                full.getLength() - PREFIX_LEN - 1));
+    }
+
+    /**
+     * Returns a session keyed with the given Diffie-Hellman values, as though
+     * the exchange had taken place. The key fields are private and only set by
+     * the RV handshake, so they are set by reflection.
+     */
+    private static TrillianEncSession createSession(BigInteger modulus,
+            BigInteger myPrivate, BigInteger otherPublic) throws Exception {
+        TrillianEncSession session = new TrillianEncSession(createStub());
+        setField(session, "modulus", modulus);
+        setField(session, "myPrivate", myPrivate);
+        setField(session, "otherPublic", otherPublic);
+
+        Method initCiphers = TrillianEncSession.class.getDeclaredMethod(
+                "initCiphers");
+        initCiphers.setAccessible(true);
+        initCiphers.invoke(session);
+        return session;
+    }
+
+    /**
+     * Returns an RV session which collects the encrypted messages sent on it
+     * and ignores everything else.
+     */
+    private static RvSession createStub() {
+        return (RvSession) Proxy.newProxyInstance(
+                TrillianBench.class.getClassLoader(),
+                new Class[] { RvSession.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("sendRv") && collecting) {
+                    sent.add(((TrillianCryptMsgRvCmd) args[0])
+                            .getEncryptedMsg());
+                }
+                return null;
+            }
+        });
+    }
+
+    private static Object getField(Object obj, String name) throws Exception {
+        Field field = TrillianEncSession.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(obj);
+    }
+
+    private static void setField(Object obj, String name, Object value)
+            throws Exception {
+        Field field = TrillianEncSession.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(obj, value);
+    }
+
+    private static void report(double bytes, long nanos) {
+        System.out.println("    " + (long) (bytes * 1000 / nanos) + " MB/s");
+    }
+
+    /** An operation run on each line of the dump in turn. */
+    private abstract static class Op implements Benchmark.Op {
+        private final int count;
+        private int next = 0;
+
+        private Op(int count) {
+            this.count = count;
+        }
+
+        public final Object run() throws Exception {
+            Object result = run(next);
+            next = (next + 1) % count;
+            return result;
+        }
+
+        protected abstract Object run(int index) throws Exception;
+    }
+}
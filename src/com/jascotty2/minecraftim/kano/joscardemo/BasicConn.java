@@ -36,12 +36,16 @@
 package com.jascotty2.minecraftim.kano.joscardemo;
 
 import com.jascotty2.minecraftim.AIM_Messenger;
+import com.jascotty2.minecraftim.MinecraftIM;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.OscarTools;
+import net.kano.joscar.Screenname;
 import net.kano.joscar.flap.FlapCommand;
 import net.kano.joscar.flap.FlapPacketEvent;
 import net.kano.joscar.flapcmd.LoginFlapCmd;
 import net.kano.joscar.flapcmd.SnacCommand;
+import net.kano.joscar.ratelim.ConnectionQueueMgr;
+import net.kano.joscar.ratelim.RateClassMonitor;
 import net.kano.joscar.ratelim.RateLimitingQueueMgr;
 import net.kano.joscar.rv.NewRvSessionEvent;
 import net.kano.joscar.rv.RecvRvEvent;
@@ -59,8 +63,13 @@ import net.kano.joscar.rvcmd.directim.DirectIMReqRvCmd;
 import net.kano.joscar.rvcmd.getfile.GetFileReqRvCmd;
 import net.kano.joscar.rvcmd.icon.SendBuddyIconRvCmd;
 import net.kano.joscar.rvcmd.sendbl.SendBuddyListRvCmd;
+import net.kano.joscar.rvcmd.InvitationMessage;
+import net.kano.joscar.rvcmd.sendfile.FileSendAcceptRvCmd;
+import net.kano.joscar.rvcmd.sendfile.FileSendBlock;
+import net.kano.joscar.rvcmd.sendfile.FileSendRejectRvCmd;
 import net.kano.joscar.rvcmd.sendfile.FileSendReqRvCmd;
 import net.kano.joscar.rvcmd.trillcrypt.AbstractTrillianCryptRvCmd;
+import net.kano.joscar.snac.CmdType;
 import net.kano.joscar.snac.SnacPacketEvent;
 import net.kano.joscar.snac.SnacRequest;
 import net.kano.joscar.snac.SnacRequestListener;
@@ -87,12 +96,21 @@ import net.kano.joscar.snaccmd.rooms.RoomInfoReq;
 import com.jascotty2.minecraftim.kano.joscardemo.security.SecureSession;
 import com.jascotty2.minecraftim.kano.joscardemo.security.SecureSessionException;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.DateFormat;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
 
 public abstract class BasicConn extends AbstractFlapConn {
     protected final ByteBlock cookie;
@@ -109,8 +127,12 @@ public abstract class BasicConn extends AbstractFlapConn {
             event.getSession().addListener(rvSessionListener);
         }
     };
-    protected Map<String, TrillianEncSession> trillianEncSessions
-			= new HashMap<String, TrillianEncSession>();
+    protected static final Random cookieGenerator = new Random();
+    /** Files we've offered, by rendezvous cookie, until the buddy connects. */
+    protected Map<Long, OutgoingFileTransfer> outgoingTransfers
+            = new ConcurrentHashMap<Long, OutgoingFileTransfer>();
+    protected Map<Screenname, TrillianEncSession> trillianEncSessions
+			= new HashMap<Screenname, TrillianEncSession>();
 
     protected RvSessionListener rvSessionListener = new RvSessionListener() {
         public void handleRv(RecvRvEvent event) {
@@ -118,6 +140,11 @@ public abstract class BasicConn extends AbstractFlapConn {
 
             RvSession session = event.getRvSession();
             SnacCommand snaccmd = event.getSnacCommand();
+            if (snaccmd instanceof RvResponse) {
+                // the buddy's client turned down something we sent
+                cancelOffers(session, null);
+                return;
+            }
             if (!(snaccmd instanceof RecvRvIcbm)) return;
             RecvRvIcbm icbm = (RecvRvIcbm) snaccmd;
             System.out.println("got rendezvous on session <" + session + ">");
@@ -127,18 +154,36 @@ public abstract class BasicConn extends AbstractFlapConn {
                 FileSendReqRvCmd rv = (FileSendReqRvCmd) cmd;
 
                 RvConnectionInfo connInfo = rv.getConnInfo();
-                InetAddress ip = connInfo.getExternalIP();
-                int port = connInfo.getPort();
-
-                if (ip != null && port != -1) {
-                    System.out.println("starting ft thread..");
-                    long cookie = icbm.getIcbmMessageId();
-                    new RecvFileThread(callback, ip, port, session, cookie,
-                            connInfo.isEncrypted()).start();
+                long cookie = icbm.getIcbmMessageId();
+                if (connInfo == null) return;
+
+                if (rv.getRequestType()
+                        == AbstractRequestRvCmd.REQTYPE_REDIRECT) {
+                    // the buddy couldn't connect to a file we offered
+                    OutgoingFileTransfer transfer
+                            = outgoingTransfers.remove(cookie);
+                    if (transfer != null) {
+                        redirectFile(transfer, connInfo, cookie);
+                    }
+                } else if (connInfo.isEncrypted()) {
+                    // SSL sockets can't be used with transferFrom, so
+                    // encrypted transfers still get their own thread
+                    InetAddress ip = connInfo.getExternalIP();
+                    int port = connInfo.getPort();
+                    if (ip != null && port != -1) {
+                        new RecvFileThread(callback, ip, port, session, cookie,
+                                true).start();
+                    }
+                } else {
+                    receiveFile(session, connInfo, cookie);
                 }
 
+            } else if (cmd instanceof FileSendRejectRvCmd) {
+                // the buddy declined or cancelled a file we offered
+                cancelOffers(session, icbm);
+
             } else if (cmd instanceof AbstractTrillianCryptRvCmd) {
-                String key = OscarTools.normalize(session.getScreenname());
+                Screenname key = Screenname.getInstance(session.getScreenname());
                 TrillianEncSession encSession = trillianEncSessions.get(key);
                 if (encSession == null) {
                     encSession = new TrillianEncSession(session);
@@ -148,7 +193,7 @@ public abstract class BasicConn extends AbstractFlapConn {
             } else if (cmd instanceof DirectIMReqRvCmd) {
                 if (((DirectIMReqRvCmd) cmd).getRequestType()
                         == AbstractRequestRvCmd.REQTYPE_INITIALREQUEST) {
-                    new DirectIMSession(callback.getScreenname(), session, event);
+                    new DirectIMSession(callback, session, event);
                 }
             } else if (cmd instanceof SendBuddyIconRvCmd) {
                 /*
@@ -228,6 +273,137 @@ public abstract class BasicConn extends AbstractFlapConn {
         this.cookie = cookie;
     }
 
+    /**
+     * Offers the given file to the given buddy, sending it on the given engine
+     * once the buddy connects, or once a proxied connection is made if the
+     * buddy redirects the offer through a proxy.
+     *
+     * @param sn the buddy to send the file to
+     * @param file the file to send
+     * @param engine the engine to run the transfer on
+     * @param bytesPerSecond the bandwidth cap, or <code>0</code> for none
+     * @return the transfer
+     * @throws IOException if a listening socket can't be opened
+     */
+    public OutgoingFileTransfer sendFile(String sn, File file,
+            FileTransferEngine engine, long bytesPerSecond) throws IOException {
+        InetAddress local = getSocket().getLocalAddress();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(local, 0));
+        server.configureBlocking(false);
+        int port = server.socket().getLocalPort();
+
+        long cookie = cookieGenerator.nextLong() & Long.MAX_VALUE;
+        OutgoingFileTransfer transfer = engine.send(server, cookie, file,
+                bytesPerSecond);
+        for (Iterator<OutgoingFileTransfer> it
+                = outgoingTransfers.values().iterator(); it.hasNext();) {
+            if (it.next().getState() != FileTransfer.State.CONNECTING) {
+                it.remove();
+            }
+        }
+        outgoingTransfers.put(cookie, transfer);
+
+        RvSession session = rvProcessor.createRvSession(sn);
+        transfer.setRvSession(session);
+        session.sendRv(new FileSendReqRvCmd(
+                new InvitationMessage(file.getName()),
+                RvConnectionInfo.createForOutgoingRequest(local, port),
+                new FileSendBlock(file.getName(), file.length())), cookie);
+
+        return transfer;
+    }
+
+    /**
+     * Connects to a buddy who offered us a file, directly or through a proxy,
+     * and starts receiving it on the messenger's transfer engine. The offer
+     * is accepted once the connection is made.
+     *
+     * @param session the rendezvous session of the offer
+     * @param connInfo the connection info from the offer
+     * @param cookie the ICBM message ID of the offer
+     */
+    protected void receiveFile(final RvSession session,
+            RvConnectionInfo connInfo, final long cookie) {
+        callback.getRvConnector().connect(callback.getScreenname(), cookie,
+                connInfo, new RvConnector.Redirector() {
+            public void redirect(RvConnectionInfo proxied) {
+                session.sendRv(new FileSendReqRvCmd(proxied), cookie);
+            }
+        }, new RvConnector.Callback() {
+            public void connected(SocketChannel channel, boolean proxied) {
+                session.sendRv(new FileSendAcceptRvCmd(false));
+                try {
+                    callback.getFileTransferEngine().receive(channel, cookie,
+                            callback.getDownloadFolder(),
+                            callback.getTransferRate()).setRvSession(session);
+                } catch (Exception e) {
+                    MinecraftIM.Log(Level.WARNING, "Couldn't start receiving "
+                            + "file from " + session.getScreenname(), e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) { }
+                }
+            }
+
+            public void failed(IOException e) {
+                MinecraftIM.Log(Level.WARNING, "Couldn't connect to "
+                        + session.getScreenname() + " to receive a file: "
+                        + e.getMessage());
+                session.sendResponse(RvResponse.CODE_NOT_ACCEPTING);
+            }
+        });
+    }
+
+    /**
+     * Sends a file we offered over the proxied connection the buddy
+     * redirected the offer to.
+     *
+     * @param transfer the transfer of the offered file
+     * @param connInfo the connection info from the buddy's redirect
+     * @param cookie the ICBM message ID of the offer
+     */
+    protected void redirectFile(final OutgoingFileTransfer transfer,
+            RvConnectionInfo connInfo, long cookie) {
+        callback.getRvConnector().connect(callback.getScreenname(), cookie,
+                connInfo, null, new RvConnector.Callback() {
+            public void connected(SocketChannel channel, boolean proxied) {
+                transfer.redirect(channel);
+            }
+
+            public void failed(IOException e) {
+                MinecraftIM.Log(Level.WARNING, "Couldn't connect to send "
+                        + transfer.getFile().getName() + ": " + e.getMessage());
+                // no longer in outgoingTransfers, so nothing else will end it
+                transfer.cancel();
+            }
+        });
+    }
+
+    /**
+     * Cancels the files we offered on the given rendezvous session, or with
+     * the given rendezvous's cookie, after the buddy turned them down.
+     *
+     * @param session the session on which the buddy turned down an offer
+     * @param icbm the buddy's rendezvous, or <code>null</code> if the buddy
+     *        sent an RV response instead
+     */
+    protected void cancelOffers(RvSession session, RecvRvIcbm icbm) {
+        for (Iterator<Map.Entry<Long, OutgoingFileTransfer>> it
+                = outgoingTransfers.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, OutgoingFileTransfer> entry = it.next();
+            OutgoingFileTransfer transfer = entry.getValue();
+            if (transfer.getRvSession() == session || (icbm != null
+                    && entry.getKey().longValue() == icbm.getIcbmMessageId())) {
+                it.remove();
+                MinecraftIM.Log(session.getScreenname() + " turned down "
+                        + transfer.getFile().getName());
+                transfer.cancel();
+            }
+        }
+    }
+
     protected DateFormat dateFormat
             = DateFormat.getDateTimeInstance(DateFormat.SHORT,
                     DateFormat.SHORT);
@@ -458,6 +634,20 @@ public abstract class BasicConn extends AbstractFlapConn {
 
     public int[] getSnacFamilies() { return snacFamilies; }
 
+    /**
+     * Returns the rate class monitor for the given type of command on this
+     * connection.
+     *
+     * @param type a command type
+     * @return the rate class monitor for the given command type, or
+     *         <code>null</code> if the server hasn't sent its rate classes yet
+     */
+    public RateClassMonitor getRateMonitor(CmdType type) {
+        ConnectionQueueMgr queueMgr = rateMgr.getQueueMgr(snacProcessor);
+        if (queueMgr == null) return null;
+        return queueMgr.getRateMonitor().getMonitor(type);
+    }
+
     protected void setSnacFamilies(int[] families) {
         this.snacFamilies = families.clone();
         Arrays.sort(snacFamilies);
@@ -37,6 +37,9 @@ package com.jascotty2.minecraftim.kano.joscardemo;
 
 import com.jascotty2.minecraftim.AIM_Messenger;
 import com.jascotty2.minecraftim.MinecraftIM;
+import com.jascotty2.minecraftim.SsiCache;
+import com.jascotty2.minecraftim.kano.joscardemo.security.SecureSession;
+import com.jascotty2.minecraftim.kano.joscardemo.security.SecureSessionException;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.flap.FlapPacketEvent;
 import net.kano.joscar.flapcmd.SnacCommand;
@@ -63,26 +66,39 @@ import net.kano.joscar.snaccmd.loc.LocRightsRequest;
 import net.kano.joscar.snaccmd.loc.SetInfoCmd;
 import net.kano.joscar.snaccmd.loc.UserInfoCmd;
 import net.kano.joscar.snaccmd.ssi.ActivateSsiCmd;
+import net.kano.joscar.snaccmd.ssi.SsiDataCheck;
 import net.kano.joscar.snaccmd.ssi.SsiDataCmd;
 import net.kano.joscar.snaccmd.ssi.SsiDataRequest;
 import net.kano.joscar.snaccmd.ssi.SsiRightsRequest;
+import net.kano.joscar.snaccmd.ssi.SsiUnchangedCmd;
 import net.kano.joscar.ssiitem.DefaultSsiItemObjFactory;
 import net.kano.joscar.ssiitem.SsiItemObjectFactory;
 
-import java.io.ByteArrayInputStream;
 import java.net.InetAddress;
-import java.security.NoSuchProviderException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import net.kano.joscar.snaccmd.buddy.BuddyOfflineCmd;
-import net.kano.joscar.snaccmd.buddy.BuddyStatusCmd;
+import java.util.logging.Level;
+import net.kano.joscar.snaccmd.buddy.BuddyPresenceDispatcher;
+import net.kano.joscar.snaccmd.buddy.BuddyPresenceListener;
 
 public class BosFlapConn extends BasicConn {
     protected SsiItemObjectFactory itemFactory = new DefaultSsiItemObjFactory();
 
+    { // init
+        // buddy status updates only need the screenname, so don't decode the
+        // rest of each user info block
+        snacProcessor.addPacketListener(new BuddyPresenceDispatcher(
+                new BuddyPresenceListener() {
+            public void buddyOnline(String sn, boolean away) {
+                callback.handleBuddySignOn(sn);
+            }
+
+            public void buddyOffline(String sn) {
+                callback.handleBuddySignOff(sn);
+            }
+        }));
+    }
 
     public BosFlapConn(AIM_Messenger tester, ByteBlock cookie) {
         super(tester, cookie);
@@ -122,17 +138,18 @@ public class BosFlapConn extends BasicConn {
             request(new ParamInfoRequest());
             request(new LocRightsRequest());
             request(new SsiRightsRequest());
-            request(new SsiDataRequest());
-        } else if (cmd instanceof BuddyStatusCmd) {
-            BuddyStatusCmd bsc = (BuddyStatusCmd) cmd;
 
-            FullUserInfo info = bsc.getUserInfo();
-			
-			callback.handleBuddySignOn(info.getScreenname());
-		} else if(cmd instanceof BuddyOfflineCmd){
-			BuddyOfflineCmd boc = (BuddyOfflineCmd) cmd;
-			callback.handleBuddySignOff(boc.getScreenname());
-		}
+            SsiCache cache = callback.getSsiCache();
+            if (cache != null) cache.startDownload();
+            if (cache != null && cache.isValid()) {
+                // the server answers with SsiUnchangedCmd if our copy is
+                // current, or the full list if it isn't
+                request(new SsiDataCheck(cache.getLastModDate(),
+                        cache.getItemCount()));
+            } else {
+                request(new SsiDataRequest());
+            }
+        }
     }
 
 	@Override
@@ -211,27 +228,20 @@ public class BosFlapConn extends BasicConn {
 
             CertificateInfo certInfo = uic.getInfoData().getCertificateInfo();
             if (certInfo != null) {
-                ByteBlock certData = certInfo.getCommonCertData();
-
                 try {
-                    CertificateFactory factory
-                            = CertificateFactory.getInstance("X.509", "BC");
-                    ByteArrayInputStream stream
-                            = new ByteArrayInputStream(certData.toByteArray());
-                    X509Certificate cert = (X509Certificate)
-                            factory.generateCertificate(stream);
-
-                    callback.getSecureSession().setCert(sn, cert);
-
-                    X509Certificate x = cert;
-                    System.out.println("got certificate for " + sn + ": "
-                            + x.getSubjectX500Principal().getName());
-
-
-                } catch (CertificateException e1) {
-                    e1.printStackTrace();
-                } catch (NoSuchProviderException e1) {
-                    e1.printStackTrace();
+                    SecureSession secureSession = callback.getSecureSession();
+                    X509Certificate cert = secureSession.parseCertificate(
+                            certInfo);
+                    if (cert != null && secureSession.certChanged(sn, cert)) {
+                        secureSession.setCert(sn, cert);
+
+                        MinecraftIM.Log("Got certificate for " + sn + ": "
+                                + cert.getSubjectX500Principal().getName());
+                    }
+
+                } catch (SecureSessionException e1) {
+                    MinecraftIM.Log(Level.WARNING, "Couldn't read certificate"
+                            + " for " + sn, e1);
                 }
             }
 
@@ -266,9 +276,20 @@ public class BosFlapConn extends BasicConn {
                 request(new ActivateSsiCmd());
                 clientReady();
             }
+        } else if (cmd instanceof SsiUnchangedCmd) {
+            callback.ssiUnchanged();
+
+            request(new ActivateSsiCmd());
+            clientReady();
         }
     }
 
+	@Override
+    protected void clientReady() {
+        super.clientReady();
+        callback.bosReady();
+    }
+
 	public SsiItemObjectFactory getItemFactory() {
 		return itemFactory;
 	}
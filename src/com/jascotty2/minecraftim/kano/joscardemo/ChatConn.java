@@ -40,9 +40,12 @@ import net.kano.joscar.ByteBlock;
 import net.kano.joscar.flap.ClientFlapConn;
 import net.kano.joscar.flapcmd.SnacCommand;
 import net.kano.joscar.net.ClientConnEvent;
+import net.kano.joscar.ratelim.RateClassMonitor;
+import net.kano.joscar.snac.CmdType;
 import net.kano.joscar.snac.SnacPacketEvent;
 import net.kano.joscar.snaccmd.FullRoomInfo;
 import net.kano.joscar.snaccmd.FullUserInfo;
+import net.kano.joscar.snaccmd.chat.ChatCommand;
 import net.kano.joscar.snaccmd.chat.ChatMsg;
 import net.kano.joscar.snaccmd.chat.RecvChatMsgIcbm;
 import net.kano.joscar.snaccmd.chat.SendChatMsgIcbm;
@@ -60,6 +63,10 @@ import java.util.Locale;
 import java.util.Set;
 
 public class ChatConn extends ServiceConn {
+    /** The SNAC command type of outgoing chat messages. */
+    private static final CmdType SEND_MSG_TYPE = new CmdType(
+            ChatCommand.FAMILY_CHAT, ChatCommand.CMD_SEND_CHAT_MSG);
+
     protected FullRoomInfo roomInfo;
 
     protected List<ChatConnListener> listeners = new ArrayList<ChatConnListener>();
@@ -80,6 +87,18 @@ public class ChatConn extends ServiceConn {
         request(new SendChatMsgIcbm(new ChatMsg(msg)));
     }
 
+    /**
+     * Returns the monitor for the rate class that chat messages sent to this
+     * room fall in, so callers can tell how many messages can be sent before
+     * the room is rate limited.
+     *
+     * @return the rate class monitor for chat messages, or <code>null</code>
+     *         if the server hasn't sent its rate classes yet
+     */
+    public RateClassMonitor getSendRateMonitor() {
+        return getRateMonitor(SEND_MSG_TYPE);
+    }
+
     public FullRoomInfo getRoomInfo() { return roomInfo; }
 
     public String getRoomName() {
@@ -35,191 +35,378 @@
 
 package com.jascotty2.minecraftim.kano.joscardemo;
 
+import com.jascotty2.minecraftim.AIM_Messenger;
+import com.jascotty2.minecraftim.MinecraftIM;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.ImEncodedString;
-import net.kano.joscar.OscarTools;
-import net.kano.joscar.net.ClientConn;
-import net.kano.joscar.net.ClientConnEvent;
-import net.kano.joscar.net.ClientConnListener;
-import net.kano.joscar.net.ClientConnStreamHandler;
 import net.kano.joscar.rv.RecvRvEvent;
 import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rvcmd.AbstractRequestRvCmd;
 import net.kano.joscar.rvcmd.RvConnectionInfo;
+import net.kano.joscar.rvcmd.directim.DirectIMAcceptRvCmd;
 import net.kano.joscar.rvcmd.directim.DirectIMReqRvCmd;
+import net.kano.joscar.rvproto.directim.DirectImAttachment;
+import net.kano.joscar.rvproto.directim.DirectImHandler;
 import net.kano.joscar.rvproto.directim.DirectImHeader;
-import net.kano.joscar.rvproto.rvproxy.RvProxyInitRecvCmd;
+import net.kano.joscar.rvproto.directim.DirectImReader;
+import net.kano.joscar.rvproto.directim.DirectImWriter;
 import net.kano.joscar.snaccmd.icbm.RecvRvIcbm;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.InetAddress;
-import java.net.Socket;
-
-public class DirectIMSession {
-    private final String mysn;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+
+/**
+ * A Direct IM connection with a buddy, opened when the buddy asks for one.
+ * Messages sent over a Direct IM connection go straight to the buddy's client
+ * rather than through the AIM servers, so they are not subject to ICBM rate
+ * limits; while a connection is open, {@link AIM_Messenger#sendMessage} uses
+ * it for everything sent to that buddy.
+ * <br>
+ * <br>
+ * Incoming packets are parsed with a {@link DirectImReader}: message text is
+ * collected (up to {@link #MAX_TEXT_LENGTH} bytes) and passed to the
+ * messenger like any other IM, and attached images and files (up to {@link
+ * #MAX_ATTACHMENT_SIZE} bytes each, and {@link #MAX_SESSION_ATTACHMENT_SIZE}
+ * bytes in all) are streamed straight to the download folder.
+ * <br>
+ * <br>
+ * The connection is made with the messenger's {@link RvConnector}, so a buddy
+ * who can't be reached directly is asked to connect through an AOL proxy.
+ */
+public class DirectIMSession implements DirectImHandler {
+    /**
+     * The most bytes of a single message's text that are kept; anything past
+     * this is dropped.
+     */
+    public static final int MAX_TEXT_LENGTH = 64 * 1024;
+
+    /**
+     * The largest attachment that is saved to disk; larger attachments are
+     * read and discarded.
+     */
+    public static final long MAX_ATTACHMENT_SIZE = 32L << 20;
+
+    /**
+     * The most attachment data saved to disk over a single connection; once
+     * this much has been saved, further attachments are read and discarded,
+     * so a buddy can't fill the disk with many smaller ones.
+     */
+    public static final long MAX_SESSION_ATTACHMENT_SIZE = 128L << 20;
+
+    /**
+     * The flags sent in the header that identifies a new connection with the
+     * rendezvous cookie, as WinAIM does.
+     */
+    private static final long FLAGS_COOKIE = 0x60;
+
+    private final AIM_Messenger callback;
     private final RvSession rvSession;
-    private final RecvRvEvent rvEvent;
-    private final DirectIMReqRvCmd rvCommand;
+    private final long cookie;
     private final RvConnectionInfo connInfo;
-
-    private ClientConn normalConn;
-
-    private ClientConn conn = null;
-
-    public DirectIMSession(String mysn, RvSession session,
+    private final DirectImReader reader = new DirectImReader(this);
+
+    /** the connection to the buddy, once made */
+    private SocketChannel channel = null;
+    private boolean closing = false;
+    private DirectImWriter writer = null;
+    private volatile boolean open = false;
+    /** The buddy's typing state, as a combination of DirectImHeader flags. */
+    private volatile long typingFlags = 0;
+    /** bytes of attachments saved so far, counted by the reading thread */
+    private long attachmentBytes = 0;
+
+    public DirectIMSession(AIM_Messenger callback, RvSession session,
             RecvRvEvent event) {
-        this.mysn = mysn;
+        this.callback = callback;
         this.rvSession = session;
-        this.rvEvent = event;
-        this.rvCommand = (DirectIMReqRvCmd) event.getRvCommand();
-        this.connInfo = rvCommand.getConnInfo();
+        this.cookie = ((RecvRvIcbm) event.getSnacCommand()).getIcbmMessageId();
+        this.connInfo = ((DirectIMReqRvCmd) event.getRvCommand())
+                .getConnInfo();
 
         open();
     }
 
+    /**
+     * @return the screenname of the buddy on the other end
+     */
+    public String getScreenname() {
+        return rvSession.getScreenname();
+    }
+
+    /**
+     * @return whether the connection is open and can be used to send messages
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return the buddy's typing state: {@link DirectImHeader#FLAG_TYPING},
+     * {@link DirectImHeader#FLAG_TYPED}, or 0 if they aren't typing
+     */
+    public long getTypingState() {
+        return typingFlags;
+    }
+
     private void open() {
-        if (connInfo.isProxied()) openProxy();
-        else openNormally();
-    }
-
-    private void openProxy() {
-//        System.out.println("opening proxy...");
-
-//        proxyConn = new ClientRvProxyConn(connInfo.getProxyIP(), 5190);
-//        proxyProcessor = proxyConn.getRvProxyProcessor();
-//
-//        proxyConn.addConnListener(new ClientConnListener() {
-//            public void stateChanged(ClientConnEvent e) {
-//                handleProxyStateChange(e);
-//            }
-//        });
-//        proxyConn.getRvProxyProcessor().addCommandListener(
-//                new RvProxyCmdListener() {
-//            public void handleRvProxyCmd(RvProxyCmdEvent e) {
-//                handleProxyCommand(e);
-//            }
-//        });
-//
-//        proxyConn.connect();
-    }
-
-    private void handleProxyStateChange(ClientConnEvent e) {
-//        System.out.println("proxy connection state changed to "
-//                + e.getNewState());
-
-        if (e.getNewState() == ClientConn.STATE_CONNECTED) {
-            initProxy();
+        Thread thread = new Thread("Direct IM with " + getScreenname()) {
+            public void run() {
+                connectAndRun();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects to the buddy, directly or through a proxy, and runs the
+     * connection until it closes.
+     */
+    private void connectAndRun() {
+        SocketChannel connected = null;
+        try {
+            connected = callback.getRvConnector().connect(
+                    callback.getScreenname(), cookie, connInfo,
+                    new RvConnector.Redirector() {
+                public void redirect(RvConnectionInfo proxied) {
+                    rvSession.sendRv(new DirectIMReqRvCmd(
+                            AbstractRequestRvCmd.REQTYPE_REDIRECT, proxied),
+                            cookie);
+                }
+            });
+            synchronized (this) {
+                if (closing) return;
+                channel = connected;
+            }
+            run(connected);
+        } catch (IOException e) {
+            if (!open && !closing) {
+                MinecraftIM.Log(Level.WARNING, "Couldn't connect for Direct IM"
+                        + " with " + getScreenname() + ": " + e.getMessage());
+            }
+        } finally {
+            // drop any message or attachment the buddy was partway through
+            reader.close();
+            if (connected != null) {
+                try {
+                    connected.close();
+                } catch (IOException ignored) { }
+            }
+            closed();
+        }
+    }
+
+    /**
+     * Runs the connection: identifies ourselves, then reads packets until the
+     * connection closes.
+     */
+    private void run(SocketChannel in) throws IOException {
+        in.socket().setTcpNoDelay(true);
+        DirectImWriter out = new DirectImWriter(in);
+
+        DirectImHeader hello = new DirectImHeader();
+        hello.setDefaults();
+        hello.setMessageId(cookie);
+        hello.setFlags(FLAGS_COOKIE);
+        hello.setScreenname(callback.getScreenname());
+        out.writeHeader(hello);
+
+        rvSession.sendRv(new DirectIMAcceptRvCmd());
+
+        synchronized (this) {
+            writer = out;
         }
+        open = true;
+        callback.directImOpened(this);
+        MinecraftIM.Log("Direct IM with " + getScreenname() + " opened");
+
+        while (reader.readFrom(in)) { }
     }
 
-    private void initProxy() {
-//        System.out.println("initing proxy...");
-        long cookie = ((RecvRvIcbm) rvEvent.getSnacCommand()).getIcbmMessageId();
-        int port = connInfo.getPort();
-        RvProxyInitRecvCmd cmd = new RvProxyInitRecvCmd(mysn, cookie, port);
+    private synchronized void closed() {
+        if (!open) return;
+        open = false;
+        callback.directImClosed(this);
+        MinecraftIM.Log("Direct IM with " + getScreenname() + " closed");
+    }
+
+    public void close() {
+        SocketChannel current;
+        synchronized (this) {
+            closing = true;
+            current = channel;
+        }
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) { }
+        }
+        closed();
+    }
 
-//        proxyProcessor.sendRvProxyCmd(cmd);
+    private synchronized DirectImWriter getWriter() throws IOException {
+        if (writer == null || !open) {
+            throw new IOException("Direct IM with " + getScreenname()
+                    + " is not open");
+        }
+        touch();
+        return writer;
     }
 
-//    private void handleProxyCommand(RvProxyCmdEvent e) {
-//        System.out.println("got proxy command: " + e.getRvProxyCommand());
-//        System.out.println("header: " + e.getRvProxyHeader());
-//
-//        if (e.getRvProxyCommand() instanceof RvProxyReadyCmd) {
-//            proxyProcessor.detach();
-//
-//            startConn(proxyConn);
-//        }
-//    }
+    /**
+     * marks the rendezvous session as in use, so it isn't expired as idle
+     * while we talk over the connection instead of over rendezvous commands
+     */
+    private void touch() {
+        rvSession.getRvProcessor().touchSession(rvSession);
+    }
 
-    private void openNormally() {
-        InetAddress ip = connInfo.getInternalIP();
-        int port = connInfo.getPort();
+    /**
+     * sends a message over this connection
+     */
+    public void sendMessage(String msg, boolean autoresponse)
+            throws IOException {
+        getWriter().writeMessage(ImEncodedString.encodeString(msg),
+                autoresponse);
+    }
 
-//        System.out.println("connecting to " + ip + ":" + port);
+    /**
+     * sends a file as an attachment to a message; the file is streamed from
+     * disk as it is sent
+     * @param msg the message text to send with it
+     * @param file the file to attach
+     */
+    public void sendFile(String msg, File file) throws IOException {
+        FileChannel data = new FileInputStream(file).getChannel();
+        try {
+            long size = data.size();
+            String tag = "<IMG ID=\"1\" SRC=\"" + escape(file.getName())
+                    + "\" DATASIZE=\"" + size + "\">";
+            getWriter().writeMessage(ImEncodedString.encodeString(msg + tag),
+                    false, new DirectImAttachment[] {
+                        new DirectImAttachment("1", data, size)
+                    });
+        } finally {
+            data.close();
+        }
+    }
 
-        normalConn = new ClientConn(ip, port);
+    /**
+     * escapes the given text so it can be put in an HTML attribute value
+     */
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;").replace("\"", "&quot;");
+    }
 
-        normalConn.addConnListener(new ClientConnListener() {
-            public void stateChanged(ClientConnEvent e) {
-                Object state = e.getNewState();
-//                System.out.println("normal connection state changed to "
-//                        + state);
-            }
-        });
+    /**
+     * tells the buddy whether we're typing
+     * @param flags {@link DirectImHeader#FLAG_TYPING},
+     * {@link DirectImHeader#FLAG_TYPED}, or 0 to say we erased what we typed
+     */
+    public void sendTyping(long flags) throws IOException {
+        getWriter().writeTyping(flags);
+    }
 
-        normalConn.setStreamHandler(new ClientConnStreamHandler() {
-            public void handleStream(ClientConn conn, Socket socket)
-                    throws IOException {
-                startConn(normalConn);
-            }
-        });
+    public void handleTyping(DirectImHeader header) {
+        touch();
+        typingFlags = header.getFlags()
+                & (DirectImHeader.FLAG_TYPING | DirectImHeader.FLAG_TYPED);
+    }
 
-        normalConn.connect();
+    public WritableByteChannel getMessageSink(DirectImHeader header) {
+        touch();
+        return new TextSink();
     }
 
-    private void startConn(ClientConn socket) {
-//        System.out.println("starting dim connection..");
-        this.conn = socket;
+    public WritableByteChannel getAttachmentSink(DirectImHeader header,
+            String id, long size) throws IOException {
+        if (size > MAX_ATTACHMENT_SIZE) {
+            MinecraftIM.Log(Level.WARNING, "Discarded a " + size + " byte "
+                    + "Direct IM attachment from " + getScreenname()
+                    + "; the limit is " + MAX_ATTACHMENT_SIZE + " bytes");
+            return null;
+        }
+        if (attachmentBytes + size > MAX_SESSION_ATTACHMENT_SIZE) {
+            MinecraftIM.Log(Level.WARNING, "Discarded a " + size + " byte "
+                    + "Direct IM attachment from " + getScreenname()
+                    + "; already saved " + attachmentBytes + " of at most "
+                    + MAX_SESSION_ATTACHMENT_SIZE + " bytes");
+            return null;
+        }
+        attachmentBytes += size;
 
+        File dir = callback.getDownloadFolder();
+        if (!dir.isDirectory()) dir.mkdirs();
 
-//        System.out.println("direct IM to " + rvSession.getScreenname()
-//                + " opened");
+        // the id comes from the buddy, so don't let it reach outside dir
+        String name = "dim-" + getScreenname().replaceAll("\\W", "") + "-"
+                + header.getMessageId() + "-" + id.replaceAll("\\W", "_");
+        return new FileOutputStream(new File(dir, name)).getChannel();
     }
 
-    private void close() {
-        conn.disconnect();
+    public void handleAttachmentDone(DirectImHeader header, String id,
+            WritableByteChannel sink) throws IOException {
+        if (sink != null) sink.close();
     }
 
-    private boolean handleDirectImData()
-            throws IOException {
-        String sn = rvSession.getScreenname();
-        DirectImHeader header = null;
-        InputStream in = null;
-
-//        long flags = header.getFlags();
-//        if ((flags & DirectImHeader.FLAG_TYPINGPACKET) != 0) {
-//            if ((flags & DirectImHeader.FLAG_TYPING) != 0) {
-//                System.out.println("=== " + sn + " is typing");
-//            } else if ((flags & DirectImHeader.FLAG_TYPED) != 0) {
-//                System.out.println("=== " + sn + " typed text");
-//            } else {
-//                System.out.println("=== " + sn + " erased typed text");
-//            }
-//        }
-
-        // there're data to be read!
-        final ByteBlock packetBlock;
-        if (header.getDataLength() > 0) {
-            byte[] packet = new byte[(int) header.getDataLength()];
-
-            for (int i = 0; i < packet.length;) {
-                int count = in.read(packet, i, packet.length - i);
-
-//                if (count != packet.length) {
-//                    System.out.println("read " + count + " bytes...");
-//                }
-
-                if (count == -1) return false;
-
-                i += count;
-            }
+    public void handleMessageDone(DirectImHeader header,
+            WritableByteChannel sink) {
+        TextSink text = (TextSink) sink;
+        typingFlags = 0;
+        if (text.length == 0) return;
+        if (text.truncated) {
+            MinecraftIM.Log(Level.WARNING, "Direct IM from " + getScreenname()
+                    + " was longer than " + MAX_TEXT_LENGTH
+                    + " bytes and was cut short");
+        }
 
-            packetBlock = ByteBlock.wrap(packet);
-            String str = ImEncodedString.readImEncodedString(
-                    header.getEncoding(), packetBlock);
+        String msg = ImEncodedString.readImEncodedString(header.getEncoding(),
+                ByteBlock.wrap(text.data, 0, text.length));
+        callback.handleMessage(getScreenname(), msg,
+                (header.getFlags() & DirectImHeader.FLAG_AUTORESPONSE) != 0);
+    }
+
+    /**
+     * collects a message's text, up to MAX_TEXT_LENGTH bytes
+     */
+    private static class TextSink implements WritableByteChannel {
+        private byte[] data = new byte[256];
+        private int length = 0;
+        private boolean truncated = false;
+
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            int keep = Math.min(count, MAX_TEXT_LENGTH - length);
+            if (keep < count) truncated = true;
+            if (length + keep > data.length) {
+                byte[] grown = new byte[Math.min(MAX_TEXT_LENGTH,
+                        Math.max(data.length * 2, length + keep))];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            src.get(data, length, keep);
+            length += keep;
+            src.position(src.position() + count - keep);
+            return count;
+        }
 
-//            System.out.println("=" + sn + "= " + OscarTools.stripHtml(str));
+        public boolean isOpen() {
+            return true;
+        }
 
-        } else {
-            packetBlock = null;
+        public void close() {
         }
-//        dimProcessor.sendPacket(header, new DirectImDataWriter() {
-//            public void writeData(DirectImDataSendEvent e) throws IOException {
-//                packetBlock.write(e.getOutputStream());
-//            }
-//        });
+    }
 
-        return true;
+    public String toString() {
+        return "Direct IM with " + getScreenname();
     }
 }
@@ -0,0 +1,485 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.joscardemo;
+
+import com.jascotty2.minecraftim.MinecraftIM;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.rv.RvSession;
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+import net.kano.joscar.rvproto.ft.FileTransferHeader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+
+/**
+ * A single OFT file transfer run by a {@link FileTransferEngine}. A transfer
+ * is a state machine over a non-blocking socket channel; each time it runs,
+ * it {@linkplain #step steps} until it has to wait for its socket, for its
+ * bandwidth allowance, or for another turn on the engine's worker pool.
+ * <br>
+ * <br>
+ * This class provides the pieces common to both directions: non-blocking
+ * reading and writing of {@link FileTransferHeader}s, a per-transfer
+ * bandwidth cap, and progress and state tracking.
+ */
+public abstract class FileTransfer implements Runnable {
+    /** The states a transfer can be in. */
+    public enum State {
+        /** The transfer is connecting or waiting for a connection. */
+        CONNECTING,
+        /** The transfer is exchanging headers. */
+        NEGOTIATING,
+        /** File data is being transferred. */
+        TRANSFERRING,
+        /** The transfer completed successfully. */
+        FINISHED,
+        /** The transfer failed. */
+        FAILED,
+        /** The transfer was cancelled. */
+        CANCELLED
+    }
+
+    /**
+     * The most file data a transfer moves in a single turn on the worker pool,
+     * so that one fast transfer cannot hog a worker thread.
+     */
+    protected static final long MAX_SLICE = 1 << 20;
+
+    /**
+     * How long a transfer may go without its socket becoming ready before it
+     * is cancelled, in milliseconds.
+     */
+    protected static final long IDLE_TIMEOUT = 60 * 1000;
+
+    /** The OFT version and header length that begin every header. */
+    private static final int MINI_HEADER_LEN = 6;
+
+    /** The engine running this transfer. */
+    protected final FileTransferEngine engine;
+    /** The ICBM message ID of the rendezvous that set up this transfer. */
+    protected final long cookie;
+    /** The bandwidth cap, in bytes per second, or <code>0</code> for none. */
+    private final long bytesPerSecond;
+
+    /** The socket connected to the buddy, once there is one. */
+    protected SocketChannel channel = null;
+    /** The rendezvous session that set up this transfer, if known. */
+    private volatile RvSession rvSession = null;
+
+    /** Bytes that may be transferred before the bandwidth cap is reached. */
+    private long allowance;
+    /** When {@link #allowance} was last topped up, in nanoseconds. */
+    private long allowanceTime = System.nanoTime();
+
+    /** A header waiting to be written, if any. */
+    private ByteBuffer outHeader = null;
+    /** The mini-header of the header being read. */
+    private final ByteBuffer inMiniHeader = ByteBuffer.allocate(MINI_HEADER_LEN);
+    /** The rest of the header being read, once its length is known. */
+    private ByteBuffer inHeader = null;
+
+    /** The current state of this transfer. */
+    private volatile State state = State.CONNECTING;
+    /** The number of file bytes transferred so far. */
+    private volatile long transferred = 0;
+    /** When this transfer last ran, in nanoseconds. */
+    private volatile long lastActive = System.nanoTime();
+
+    /**
+     * Creates a new transfer.
+     *
+     * @param engine the engine that will run the transfer
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param bytesPerSecond the bandwidth cap, or <code>0</code> for none
+     */
+    protected FileTransfer(FileTransferEngine engine, long cookie,
+            long bytesPerSecond) {
+        this.engine = engine;
+        this.cookie = cookie;
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.allowance = this.bytesPerSecond;
+    }
+
+    /**
+     * Returns the current state of this transfer.
+     *
+     * @return this transfer's state
+     */
+    public State getState() { return state; }
+
+    /**
+     * Returns the number of bytes of file data transferred so far.
+     *
+     * @return the number of file bytes transferred
+     */
+    public long getBytesTransferred() { return transferred; }
+
+    /**
+     * Returns the bandwidth cap of this transfer.
+     *
+     * @return the maximum transfer rate in bytes per second, or <code>0</code>
+     *         if there is no limit
+     */
+    public long getBytesPerSecond() { return bytesPerSecond; }
+
+    /**
+     * Sets the rendezvous session that set up this transfer. The session is
+     * {@linkplain net.kano.joscar.rv.RvProcessor#touchSession touched} as
+     * file data is transferred, so that it is not expired as idle in the
+     * middle of a long transfer.
+     *
+     * @param session the transfer's rendezvous session
+     */
+    public void setRvSession(RvSession session) {
+        rvSession = session;
+    }
+
+    /**
+     * Returns the rendezvous session that set up this transfer, if it is
+     * known.
+     *
+     * @return the transfer's rendezvous session, or <code>null</code>
+     */
+    public RvSession getRvSession() { return rvSession; }
+
+    /**
+     * Returns whether this transfer has finished, failed, or been cancelled.
+     *
+     * @return whether this transfer is over
+     */
+    public boolean isDone() {
+        State current = state;
+        return current == State.FINISHED || current == State.FAILED
+                || current == State.CANCELLED;
+    }
+
+    /**
+     * Cancels this transfer, closing its connection.
+     */
+    public void cancel() {
+        synchronized(this) {
+            if (isDone()) return;
+            state = State.CANCELLED;
+            closeChannels();
+        }
+        engine.ended(this);
+    }
+
+    public final synchronized void run() {
+        if (isDone()) return;
+        lastActive = System.nanoTime();
+        try {
+            while (step()) {
+                if (isDone()) return;
+            }
+        } catch (Exception e) {
+            fail(e.getMessage() == null ? e.toString() : e.getMessage());
+        } finally {
+            lastActive = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns how long this transfer may wait in its current step before it
+     * is given up on. A transfer runs whenever its socket becomes ready, so
+     * one that hasn't run for this long has stalled.
+     *
+     * @return the longest this transfer may go without running, in
+     *         milliseconds
+     */
+    protected long getIdleTimeout() {
+        return IDLE_TIMEOUT;
+    }
+
+    /**
+     * Returns whether this transfer has gone without running for longer than
+     * its {@linkplain #getIdleTimeout idle timeout}. Called by the engine's
+     * selector thread, so it must not wait for the transfer to finish
+     * running.
+     *
+     * @param now the current time, in nanoseconds
+     * @return whether this transfer has stalled
+     */
+    boolean isIdle(long now) {
+        return !isDone()
+                && now - lastActive > getIdleTimeout() * 1000000L;
+    }
+
+    /**
+     * Cancels this transfer because it has stalled.
+     */
+    void timedOut() {
+        if (isDone()) return;
+
+        MinecraftIM.Log(Level.WARNING, "File transfer " + this
+                + " timed out");
+        cancel();
+    }
+
+    /**
+     * Advances this transfer. Implementations should do as much work as they
+     * can without blocking, then either return <code>true</code> to be
+     * stepped again immediately, or arrange to be run again (with {@link
+     * #awaitReadable}, {@link #awaitWritable} or {@link #reschedule}) and
+     * return <code>false</code>.
+     *
+     * @return whether this method should be called again right away
+     * @throws IOException if an I/O error occurs; the transfer will fail
+     */
+    protected abstract boolean step() throws IOException;
+
+    /**
+     * Closes any channels this transfer has open. Called once the transfer
+     * has ended.
+     */
+    protected void closeChannels() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Moves this transfer into the given state.
+     *
+     * @param state the new state
+     */
+    protected void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * Marks this transfer as successfully completed.
+     */
+    protected void finish() {
+        state = State.FINISHED;
+        closeChannels();
+        engine.ended(this);
+    }
+
+    /**
+     * Marks this transfer as failed.
+     *
+     * @param reason why the transfer failed
+     */
+    protected void fail(String reason) {
+        if (isDone()) return;
+
+        MinecraftIM.Log(Level.WARNING, "File transfer " + this + " failed: "
+                + reason);
+        state = State.FAILED;
+        closeChannels();
+        engine.ended(this);
+    }
+
+    /**
+     * Records that the given number of file bytes were transferred.
+     *
+     * @param count the number of bytes transferred
+     */
+    protected void addTransferred(long count) {
+        transferred += count;
+        allowance -= count;
+
+        RvSession session = rvSession;
+        if (session != null) session.getRvProcessor().touchSession(session);
+    }
+
+    /**
+     * Returns how many bytes may be transferred right now without exceeding
+     * the bandwidth cap, up to <code>wanted</code>. If nothing may be
+     * transferred, this transfer is scheduled to run again once enough
+     * allowance has built up, and <code>0</code> is returned.
+     *
+     * @param wanted the number of bytes the caller would like to transfer
+     * @return the number of bytes that may be transferred
+     */
+    protected long allowed(long wanted) {
+        wanted = Math.min(wanted, MAX_SLICE);
+        if (bytesPerSecond == 0) return wanted;
+
+        long now = System.nanoTime();
+        long earned = (now - allowanceTime) * bytesPerSecond / 1000000000L;
+        if (earned > 0) {
+            // let at most a second's worth build up, so an idle transfer
+            // can't burst far past its cap
+            allowance = Math.min(allowance + earned, bytesPerSecond);
+            allowanceTime = now;
+        }
+
+        if (allowance <= 0) {
+            long millis = (1 - allowance) * 1000 / bytesPerSecond;
+            engine.schedule(this, Math.max(1, millis));
+            return 0;
+        }
+        return Math.min(wanted, allowance);
+    }
+
+    /**
+     * Arranges for this transfer to run again when its socket has data to
+     * read.
+     */
+    protected void awaitReadable() {
+        engine.await(this, channel, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Arranges for this transfer to run again when its socket can be written
+     * to.
+     */
+    protected void awaitWritable() {
+        engine.await(this, channel, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Arranges for this transfer to run again after every other runnable
+     * transfer has had a turn.
+     */
+    protected void reschedule() {
+        engine.execute(this);
+    }
+
+    /**
+     * Queues the given header to be written by {@link #writeHeader}.
+     *
+     * @param header the header to write
+     */
+    protected void queueHeader(FileTransferHeader header) {
+        outHeader = ByteBuffer.wrap(
+                ByteBlock.createByteBlock(header).toByteArray());
+    }
+
+    /**
+     * Writes as much of the queued header as the socket will take.
+     *
+     * @return <code>true</code> if the header has been completely written;
+     *         <code>false</code> if this transfer is now waiting to write the
+     *         rest
+     * @throws IOException if an I/O error occurs
+     */
+    protected boolean writeHeader() throws IOException {
+        if (outHeader == null) return true;
+
+        channel.write(outHeader);
+        if (outHeader.hasRemaining()) {
+            awaitWritable();
+            return false;
+        }
+        outHeader = null;
+        return true;
+    }
+
+    /**
+     * Reads as much of the next header as is available. Exactly the bytes of
+     * the header are read, so any file data following it is left on the
+     * socket.
+     *
+     * @return the header, once it has been completely read, or
+     *         <code>null</code> if this transfer is now waiting for the rest
+     * @throws IOException if an I/O error occurs, the connection is closed, or
+     *         an invalid header is received
+     */
+    protected FileTransferHeader readHeader() throws IOException {
+        if (inHeader == null) {
+            if (channel.read(inMiniHeader) == -1) {
+                throw new IOException("connection closed");
+            }
+            if (inMiniHeader.hasRemaining()) {
+                awaitReadable();
+                return null;
+            }
+
+            int len = inMiniHeader.getShort(4) & 0xffff;
+            if (len < MINI_HEADER_LEN) {
+                throw new IOException("invalid header length " + len);
+            }
+            inHeader = ByteBuffer.allocate(len);
+            inMiniHeader.flip();
+            inHeader.put(inMiniHeader);
+        }
+
+        if (channel.read(inHeader) == -1) {
+            throw new IOException("connection closed");
+        }
+        if (inHeader.hasRemaining()) {
+            awaitReadable();
+            return null;
+        }
+
+        FileTransferHeader header = FileTransferHeader.readHeader(
+                ByteBlock.createInputStream(ByteBlock.wrap(inHeader.array())));
+        inHeader = null;
+        inMiniHeader.clear();
+
+        if (header == null) throw new IOException("invalid header");
+        return header;
+    }
+
+    /**
+     * Makes sure the given header is of the expected type.
+     *
+     * @param header the received header
+     * @param type the expected header type
+     * @throws IOException if the header is of another type
+     */
+    protected static void checkType(FileTransferHeader header, int type)
+            throws IOException {
+        if (header.getHeaderType() != type) {
+            throw new IOException("expected header type 0x"
+                    + Integer.toHexString(type) + ", got 0x"
+                    + Integer.toHexString(header.getHeaderType()));
+        }
+    }
+
+    /**
+     * Computes the OFT checksum of the first <code>len</code> bytes of the
+     * given file, checksumming large files in parallel.
+     *
+     * @param file the file to checksum
+     * @param len the number of bytes to include
+     * @return the checksum of the given range
+     * @throws IOException if an I/O error occurs
+     */
+    protected static long checksum(FileChannel file, long len)
+            throws IOException {
+        return FileTransferChecksum.computeChecksum(file, len,
+                ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.joscardemo;
+
+import com.jascotty2.minecraftim.MinecraftIM;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Runs any number of OFT file transfers on a small, shared pool of threads.
+ * <br>
+ * <br>
+ * Every transfer is a non-blocking state machine (see {@link FileTransfer}).
+ * A single selector thread waits for the transfers' sockets to become ready,
+ * and hands each ready transfer to the worker pool, which runs it until it
+ * would block, has used up its bandwidth allowance, or has moved a slice of
+ * data. File data is moved with <code>FileChannel.transferTo</code> and
+ * <code>transferFrom</code> straight to and from the socket channels, so it
+ * never has to be copied through the Java heap.
+ * <br>
+ * <br>
+ * The selector thread also cancels transfers that stall, such as an offer the
+ * buddy never accepts or a connection that stops responding (see {@link
+ * FileTransfer#getIdleTimeout}).
+ */
+public class FileTransferEngine {
+    /** Consecutive selector failures after which the engine shuts down. */
+    private static final int MAX_SELECT_FAILURES = 10;
+    /** How long to wait after the first selector failure, in milliseconds. */
+    private static final long SELECT_BACKOFF = 10;
+    /** The longest wait after a selector failure, in milliseconds. */
+    private static final long SELECT_BACKOFF_MAX = 1000;
+    /** How often to look for stalled transfers, in milliseconds. */
+    private static final long IDLE_CHECK_INTERVAL = 5000;
+
+    /** The selector on which transfers wait for their sockets. */
+    private final Selector selector;
+    /** The worker pool on which transfers run. */
+    private final ScheduledExecutorService workers;
+    /** The thread running {@link #selectLoop}. */
+    private final Thread selectorThread;
+    /** Registrations waiting to be applied by the selector thread. */
+    private final Queue<Runnable> pendingOps
+            = new ConcurrentLinkedQueue<Runnable>();
+    /** The transfers that have not yet finished. */
+    private final List<FileTransfer> transfers
+            = new CopyOnWriteArrayList<FileTransfer>();
+
+    /** Whether this engine has been shut down. */
+    private volatile boolean shutdown = false;
+
+
+    /**
+     * Creates a new transfer engine running transfers on the given number of
+     * worker threads.
+     *
+     * @param threads the number of worker threads
+     * @throws IOException if the selector cannot be opened
+     */
+    public FileTransferEngine(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: "
+                    + threads);
+        }
+
+        selector = Selector.open();
+        workers = Executors.newScheduledThreadPool(threads,
+                new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "File transfer worker " + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        selectorThread = new Thread("File transfer selector") {
+            public void run() {
+                selectLoop();
+            }
+        };
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * Starts receiving the files offered by the buddy listening at the given
+     * address. Received files are written to the given directory.
+     *
+     * @param address the address to connect to
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param dir the directory to which received files are written
+     * @param bytesPerSecond the maximum transfer rate, or <code>0</code> for
+     *        no limit
+     * @return the new transfer
+     */
+    public IncomingFileTransfer receive(InetSocketAddress address, long cookie,
+            File dir, long bytesPerSecond) {
+        IncomingFileTransfer transfer = new IncomingFileTransfer(this, address,
+                cookie, dir, bytesPerSecond);
+        start(transfer);
+        return transfer;
+    }
+
+    /**
+     * Starts receiving the files offered by the buddy on the other end of the
+     * given connection, which may have been made directly or through a proxy
+     * (see {@link RvConnector}). Received files are written to the given
+     * directory.
+     *
+     * @param channel a channel connected to the buddy's client
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param dir the directory to which received files are written
+     * @param bytesPerSecond the maximum transfer rate, or <code>0</code> for
+     *        no limit
+     * @return the new transfer
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    public IncomingFileTransfer receive(SocketChannel channel, long cookie,
+            File dir, long bytesPerSecond) throws IOException {
+        IncomingFileTransfer transfer = new IncomingFileTransfer(this, channel,
+                cookie, dir, bytesPerSecond);
+        start(transfer);
+        return transfer;
+    }
+
+    /**
+     * Starts sending the given file to the first buddy who connects to the
+     * given server channel. The server channel is closed once a connection is
+     * accepted.
+     *
+     * @param server a bound server channel
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param file the file to send
+     * @param bytesPerSecond the maximum transfer rate, or <code>0</code> for
+     *        no limit
+     * @return the new transfer
+     */
+    public OutgoingFileTransfer send(ServerSocketChannel server, long cookie,
+            File file, long bytesPerSecond) {
+        OutgoingFileTransfer transfer = new OutgoingFileTransfer(this, server,
+                cookie, file, bytesPerSecond);
+        start(transfer);
+        return transfer;
+    }
+
+    /**
+     * Returns the transfers that are still in progress.
+     *
+     * @return a list of the unfinished transfers
+     */
+    public List<FileTransfer> getTransfers() {
+        return new ArrayList<FileTransfer>(transfers);
+    }
+
+    /**
+     * Cancels every transfer in progress and stops this engine's threads.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (FileTransfer transfer : transfers) {
+            transfer.cancel();
+        }
+        workers.shutdown();
+        selector.wakeup();
+    }
+
+    /**
+     * Returns whether this engine has been shut down, either by {@link
+     * #shutdown} or because its selector stopped working.
+     *
+     * @return whether this engine has been shut down
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Registers and starts the given transfer.
+     *
+     * @param transfer the transfer to start
+     */
+    private void start(FileTransfer transfer) {
+        if (shutdown) {
+            throw new IllegalStateException("engine has been shut down");
+        }
+        transfers.add(transfer);
+        execute(transfer);
+    }
+
+    /**
+     * Called by a transfer when it has finished, failed, or been cancelled.
+     *
+     * @param transfer the transfer that ended
+     */
+    void ended(FileTransfer transfer) {
+        transfers.remove(transfer);
+    }
+
+    /**
+     * Runs the given transfer on the worker pool as soon as possible.
+     *
+     * @param transfer the transfer to run
+     */
+    void execute(FileTransfer transfer) {
+        if (shutdown) return;
+        try {
+            workers.execute(transfer);
+        } catch (RejectedExecutionException e) {
+            // shut down since the check above
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * Runs the given transfer on the worker pool after the given delay.
+     *
+     * @param transfer the transfer to run
+     * @param millis the delay, in milliseconds
+     */
+    void schedule(FileTransfer transfer, long millis) {
+        if (shutdown) return;
+        try {
+            workers.schedule(transfer, millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down since the check above
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * Runs the given transfer on the worker pool once the given channel is
+     * ready for any of the given operations.
+     *
+     * @param transfer the transfer to run
+     * @param channel a non-blocking channel
+     * @param ops the operations to wait for, as <code>SelectionKey</code>
+     *        interest bits
+     */
+    void await(final FileTransfer transfer, final SelectableChannel channel,
+            final int ops) {
+        pendingOps.add(new Runnable() {
+            public void run() {
+                try {
+                    channel.register(selector, ops, transfer);
+                } catch (ClosedChannelException e) {
+                    // the transfer was cancelled while it was waiting; it
+                    // will notice when it runs
+                    execute(transfer);
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Cancels the transfers that have stalled. The cancelling is done on the
+     * worker pool, since a transfer can't be cancelled while it is running.
+     */
+    private void cancelIdle() {
+        long now = System.nanoTime();
+        for (final FileTransfer transfer : transfers) {
+            if (!transfer.isIdle(now)) continue;
+
+            try {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        transfer.timedOut();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down, which cancels every transfer anyway
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for channels to become ready and hands their transfers to the
+     * worker pool, until this engine is shut down.
+     */
+    private void selectLoop() {
+        int failures = 0;
+        long lastIdleCheck = System.nanoTime();
+        while (!shutdown) {
+            try {
+                selector.select(IDLE_CHECK_INTERVAL);
+                failures = 0;
+            } catch (IOException e) {
+                failures++;
+                if (failures >= MAX_SELECT_FAILURES) {
+                    MinecraftIM.Log(Level.SEVERE, "File transfer selector keeps"
+                            + " failing; stopping file transfers", e);
+                    shutdown();
+                    break;
+                }
+                MinecraftIM.Log(Level.WARNING, "File transfer selector failed",
+                        e);
+                // don't spin on an error that won't go away
+                try {
+                    Thread.sleep(Math.min(SELECT_BACKOFF_MAX,
+                            SELECT_BACKOFF << (failures - 1)));
+                } catch (InterruptedException ie) {
+                    shutdown();
+                    break;
+                }
+                continue;
+            }
+
+            Runnable op;
+            while ((op = pendingOps.poll()) != null) op.run();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                // a transfer waits for one thing at a time; it re-registers
+                // if it needs to wait again
+                try {
+                    if (key.isValid()) key.interestOps(0);
+                } catch (CancelledKeyException e) {
+                    // the transfer was cancelled since the check; it will
+                    // notice when it runs
+                }
+                execute((FileTransfer) key.attachment());
+            }
+
+            long now = System.nanoTime();
+            if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL * 1000000L) {
+                lastIdleCheck = now;
+                cancelIdle();
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException ignored) { }
+    }
+}
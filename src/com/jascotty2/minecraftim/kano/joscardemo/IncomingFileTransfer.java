@@ -0,0 +1,452 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.joscardemo;
+
+import com.jascotty2.minecraftim.MinecraftIM;
+import net.kano.joscar.rvproto.ft.ChecksummingChannel;
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+import net.kano.joscar.rvproto.ft.FileTransferHeader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+
+/**
+ * Receives the files a buddy offers over OFT. The buddy's client is listening
+ * at an address given in the file transfer rendezvous; for each file it
+ * describes, its data is written straight from the socket to disk with
+ * <code>FileChannel.transferFrom</code>, and checksummed on the way through
+ * so that the file never has to be read back.
+ * <br>
+ * <br>
+ * While a file is being received, a {@link ReceiveCheckpoint} of how much of
+ * it is safely on disk is saved beside it every few megabytes. If the same
+ * file is offered again after an interrupted transfer, the checkpoint is used
+ * to ask the buddy to resume where it left off, without re-reading the
+ * partial file to checksum it.
+ */
+public class IncomingFileTransfer extends FileTransfer {
+    /** The steps of receiving a file. */
+    private enum Phase {
+        CONNECT, AWAIT_HEADER, SEND_RESUME, AWAIT_RESUME_HEADER, SEND_ACK,
+        RECV_DATA, SEND_DONE
+    }
+
+    /** How many bytes are received between checkpoints. */
+    private static final long CHECKPOINT_INTERVAL = 8 << 20;
+
+    /**
+     * The address of the buddy's client, or <code>null</code> if the
+     * connection was made before the transfer was created.
+     */
+    private final InetSocketAddress address;
+    /** The directory to which files are written. */
+    private final File dir;
+
+    /** The current step. */
+    private Phase phase = Phase.CONNECT;
+    /** The header describing the file being received. */
+    private FileTransferHeader header = null;
+    /** The file being received. */
+    private File file = null;
+    /** The file being received, once opened. */
+    private FileChannel fileChannel = null;
+    /** The size of the file being received. */
+    private long size;
+    /** The offset of the next byte to receive. */
+    private long position = 0;
+    /** The offset up to which the file was last checkpointed. */
+    private long checkpointed = 0;
+    /** The checkpoint from which the current file may be resumed, if any. */
+    private ReceiveCheckpoint resumeFrom = null;
+    /**
+     * The socket, wrapped so the file's checksum is computed as its data
+     * arrives.
+     */
+    private ChecksummingChannel dataChannel = null;
+    /**
+     * A small buffer used to read from the socket when
+     * <code>transferFrom</code> can't tell whether the connection was closed.
+     */
+    private ByteBuffer probe = null;
+
+    /**
+     * Creates a new incoming transfer. Use {@link FileTransferEngine#receive}
+     * to create and start one.
+     *
+     * @param engine the engine that will run the transfer
+     * @param address the address of the buddy's client
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param dir the directory to which files are written
+     * @param bytesPerSecond the bandwidth cap, or <code>0</code> for none
+     */
+    IncomingFileTransfer(FileTransferEngine engine, InetSocketAddress address,
+            long cookie, File dir, long bytesPerSecond) {
+        super(engine, cookie, bytesPerSecond);
+
+        this.address = address;
+        this.dir = dir;
+    }
+
+    /**
+     * Creates a new incoming transfer over a connection that has already been
+     * made. Use {@link FileTransferEngine#receive(SocketChannel, long, File,
+     * long)} to create and start one.
+     *
+     * @param engine the engine that will run the transfer
+     * @param channel a channel connected to the buddy's client
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param dir the directory to which files are written
+     * @param bytesPerSecond the bandwidth cap, or <code>0</code> for none
+     * @throws IOException if the channel cannot be made non-blocking
+     */
+    IncomingFileTransfer(FileTransferEngine engine, SocketChannel channel,
+            long cookie, File dir, long bytesPerSecond) throws IOException {
+        super(engine, cookie, bytesPerSecond);
+
+        channel.configureBlocking(false);
+        this.channel = channel;
+        this.address = null;
+        this.dir = dir;
+        this.phase = Phase.AWAIT_HEADER;
+        setState(State.NEGOTIATING);
+    }
+
+    /**
+     * Returns the file currently being received, if any.
+     *
+     * @return the file being received, or <code>null</code> if no file has
+     *         been offered yet
+     */
+    public synchronized File getFile() { return file; }
+
+    protected boolean step() throws IOException {
+        switch (phase) {
+        case CONNECT:
+            if (channel == null) {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (!channel.connect(address)) {
+                    engine.await(this, channel, SelectionKey.OP_CONNECT);
+                    return false;
+                }
+            } else if (!channel.finishConnect()) {
+                engine.await(this, channel, SelectionKey.OP_CONNECT);
+                return false;
+            }
+            setState(State.NEGOTIATING);
+            phase = Phase.AWAIT_HEADER;
+            return true;
+
+        case AWAIT_HEADER:
+            FileTransferHeader offered = readHeader();
+            if (offered == null) return false;
+
+            checkType(offered, FileTransferHeader.HEADERTYPE_SENDHEADER);
+            header = offered;
+            openFile();
+
+            if (resumeFrom != null) {
+                // the checkpoint says how much we have and what its checksum
+                // is, so the partial file doesn't need to be read
+                FileTransferHeader resume = new FileTransferHeader(header);
+                resume.setHeaderType(FileTransferHeader.HEADERTYPE_RESUME);
+                resume.setIcbmMessageId(cookie);
+                resume.setBytesReceived(resumeFrom.getReceived());
+                resume.setReceivedChecksum(
+                        resumeFrom.getReceivedChecksum().getValue());
+                queueHeader(resume);
+                phase = Phase.SEND_RESUME;
+                return true;
+            }
+
+            startAt(0, new FileTransferChecksum());
+            queueAck(FileTransferHeader.HEADERTYPE_ACK);
+            return true;
+
+        case SEND_RESUME:
+            if (!writeHeader()) return false;
+
+            phase = Phase.AWAIT_RESUME_HEADER;
+            return true;
+
+        case AWAIT_RESUME_HEADER:
+            FileTransferHeader resumeHeader = readHeader();
+            if (resumeHeader == null) return false;
+
+            checkType(resumeHeader,
+                    FileTransferHeader.HEADERTYPE_RESUME_SENDHEADER);
+            resume(resumeHeader.getBytesReceived());
+            queueAck(FileTransferHeader.HEADERTYPE_RESUME_ACK);
+            return true;
+
+        case SEND_ACK:
+            if (!writeHeader()) return false;
+
+            setState(State.TRANSFERRING);
+            phase = Phase.RECV_DATA;
+            return true;
+
+        case RECV_DATA:
+            if (position >= size) {
+                queueHeader(createDoneHeader());
+                setState(State.NEGOTIATING);
+                phase = Phase.SEND_DONE;
+                return true;
+            }
+
+            long count = allowed(size - position);
+            if (count == 0) return false;
+
+            long received = fileChannel.transferFrom(dataChannel, position,
+                    count);
+            if (received == 0) {
+                // transferFrom returns 0 both when there's nothing to read yet
+                // and when the connection was closed, so read directly to find
+                // out which
+                received = readDirectly(count);
+                if (received == 0) {
+                    awaitReadable();
+                    return false;
+                }
+            }
+            position += received;
+            addTransferred(received);
+            if (position - checkpointed >= CHECKPOINT_INTERVAL) checkpoint();
+
+            // give the other transfers a turn
+            reschedule();
+            return false;
+
+        case SEND_DONE:
+            if (!writeHeader()) return false;
+
+            MinecraftIM.Log("Received " + file.getName() + " (" + size
+                    + " bytes)");
+            if (header.getFilesLeft() <= 1) {
+                finish();
+                return false;
+            }
+            phase = Phase.AWAIT_HEADER;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Opens the file described by the current header for writing.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    private void openFile() throws IOException {
+        String[] parts = header.getFilename() == null ? new String[0]
+                : header.getFilename().getSegments();
+        String name = parts.length > 0 ? parts[parts.length - 1]
+                : "file-" + cookie;
+        // the name comes from the buddy, so don't let it reach outside dir
+        name = "dl-" + name.replaceAll("[/\\\\:]", "_");
+
+        synchronized(this) {
+            file = new File(dir, name);
+        }
+        if (!dir.isDirectory()) dir.mkdirs();
+
+        resumeFrom = ReceiveCheckpoint.load(file);
+        if (resumeFrom != null && (!resumeFrom.matches(header)
+                || resumeFrom.getReceived() == 0
+                || resumeFrom.getReceived() > file.length())) {
+            resumeFrom = null;
+        }
+        if (resumeFrom == null) ReceiveCheckpoint.delete(file);
+
+        fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        size = header.getFileSize();
+    }
+
+    /**
+     * Continues receiving the current file from the given offset, which the
+     * buddy chose in reply to our request to resume.
+     *
+     * @param offset the offset from which the buddy will send the file
+     * @throws IOException if the partial file cannot be read
+     */
+    private void resume(long offset) throws IOException {
+        if (offset == resumeFrom.getReceived()) {
+            startAt(offset, resumeFrom.getReceivedChecksum());
+        } else if (offset > 0 && offset <= resumeFrom.getReceived()) {
+            // the buddy wants to resume from somewhere else, so the checkpoint
+            // doesn't help and the partial file has to be checksummed
+            FileTransferChecksum summer = new FileTransferChecksum();
+            summer.update(fileChannel, 0, offset);
+            startAt(offset, summer);
+        } else {
+            if (offset != 0) {
+                throw new IOException("buddy offered to resume at " + offset
+                        + " but only " + resumeFrom.getReceived()
+                        + " bytes were received");
+            }
+            startAt(0, new FileTransferChecksum());
+        }
+        MinecraftIM.Log("Resuming " + file.getName() + " at " + offset
+                + " of " + size + " bytes");
+        resumeFrom = null;
+    }
+
+    /**
+     * Prepares to receive the current file from the given offset, discarding
+     * anything in the file past that point.
+     *
+     * @param offset the offset of the first byte that will be received
+     * @param summer the checksum of the file up to <code>offset</code>
+     * @throws IOException if the file cannot be truncated
+     */
+    private void startAt(long offset, FileTransferChecksum summer)
+            throws IOException {
+        fileChannel.truncate(offset);
+        dataChannel = new ChecksummingChannel(channel, summer);
+        position = offset;
+        checkpointed = offset;
+    }
+
+    /**
+     * Queues a header of the given type accepting the current file from the
+     * current position.
+     *
+     * @param type the header type, either <code>HEADERTYPE_ACK</code> or
+     *        <code>HEADERTYPE_RESUME_ACK</code>
+     */
+    private void queueAck(int type) {
+        FileTransferHeader ack = new FileTransferHeader(header);
+        ack.setHeaderType(type);
+        ack.setIcbmMessageId(cookie);
+        ack.setBytesReceived(position);
+        ack.setReceivedChecksum(position == 0 ? 0
+                : dataChannel.getChecksum().getValue());
+        queueHeader(ack);
+        phase = Phase.SEND_ACK;
+    }
+
+    /**
+     * Flushes the data received so far to disk and records it in the file's
+     * checkpoint, so that the transfer can be resumed from here.
+     *
+     * @throws IOException if the file cannot be flushed or the checkpoint
+     *         cannot be saved
+     */
+    private void checkpoint() throws IOException {
+        fileChannel.force(false);
+        new ReceiveCheckpoint(header, dataChannel.getChecksum()).save(file);
+        checkpointed = position;
+    }
+
+    /**
+     * Reads up to <code>max</code> bytes from the socket directly and writes
+     * them to the file.
+     *
+     * @param max the most bytes to read
+     * @return the number of bytes read
+     * @throws IOException if an I/O error occurs or the connection was closed
+     */
+    private int readDirectly(long max) throws IOException {
+        if (probe == null) probe = ByteBuffer.allocate(8192);
+        probe.clear();
+        if (max < probe.capacity()) probe.limit((int) max);
+
+        int count = dataChannel.read(probe);
+        if (count == -1) throw new IOException("connection closed");
+
+        probe.flip();
+        while (probe.hasRemaining()) {
+            fileChannel.write(probe, position + probe.position());
+        }
+        return count;
+    }
+
+    /**
+     * Closes the received file and builds the header confirming its receipt.
+     *
+     * @return the header to send
+     * @throws IOException if the file cannot be closed
+     */
+    private FileTransferHeader createDoneHeader() throws IOException {
+        long sum = dataChannel.getChecksum().getValue();
+        fileChannel.close();
+        fileChannel = null;
+        ReceiveCheckpoint.delete(file);
+
+        if (sum != header.getChecksum()) {
+            MinecraftIM.Log(Level.WARNING, "Checksum of received file "
+                    + file.getName() + " does not match the sender's");
+        }
+
+        FileTransferHeader done = new FileTransferHeader(header);
+        done.setHeaderType(FileTransferHeader.HEADERTYPE_RECEIVED);
+        done.setFlags(done.getFlags() | FileTransferHeader.FLAG_DONE);
+        done.setIcbmMessageId(cookie);
+        done.setBytesReceived(size);
+        done.setReceivedChecksum(sum);
+        done.setFilesLeft(Math.max(0, done.getFilesLeft() - 1));
+        return done;
+    }
+
+    protected void closeChannels() {
+        super.closeChannels();
+        if (fileChannel != null) {
+            if (phase == Phase.RECV_DATA && position > checkpointed) {
+                // save what we have so the transfer can be resumed later
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    MinecraftIM.Log(Level.WARNING, "Could not save progress of "
+                            + file.getName(), e);
+                }
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    public String toString() {
+        File current = getFile();
+        return "receive of " + (current == null ? "file" : current.getName())
+                + " from " + address;
+    }
+}
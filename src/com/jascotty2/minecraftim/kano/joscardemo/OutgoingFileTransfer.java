@@ -0,0 +1,320 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.joscardemo;
+
+import com.jascotty2.minecraftim.MinecraftIM;
+import net.kano.joscar.rvcmd.SegmentedFilename;
+import net.kano.joscar.rvproto.ft.FileTransferHeader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends a single file to a buddy over OFT. The buddy connects to a server
+ * channel that was advertised in the file transfer rendezvous, or redirects
+ * the transfer through a proxy (see {@link #redirect}); once the buddy
+ * acknowledges the file's header (possibly asking to resume a partial
+ * download), the file is sent with <code>FileChannel.transferTo</code>.
+ */
+public class OutgoingFileTransfer extends FileTransfer {
+    /** The steps of sending a file. */
+    private enum Phase {
+        ACCEPT, SEND_HEADER, AWAIT_ACK, SEND_RESUME_HEADER, AWAIT_RESUME_ACK,
+        SEND_DATA, AWAIT_DONE
+    }
+
+    /**
+     * How long to wait for the buddy to connect or redirect the transfer, in
+     * milliseconds.
+     */
+    private static final long ACCEPT_TIMEOUT = 5 * 60 * 1000;
+
+    /** The largest file OFT can describe, since its sizes are 32-bit. */
+    private static final long MAX_FILE_SIZE = 0xffffffffL;
+
+    /** The channel on which the buddy will connect. */
+    private final ServerSocketChannel server;
+    /** The file being sent. */
+    private final File file;
+
+    /** The current step. */
+    private Phase phase = Phase.ACCEPT;
+    /** The file being sent, once opened. */
+    private FileChannel fileChannel = null;
+    /** The header describing the file. */
+    private FileTransferHeader header = null;
+    /** The size of the file. */
+    private long size;
+    /** The offset of the next byte to send. */
+    private long position = 0;
+
+    /**
+     * Creates a new outgoing transfer. Use {@link FileTransferEngine#send} to
+     * create and start one.
+     *
+     * @param engine the engine that will run the transfer
+     * @param server a bound, non-blocking server channel
+     * @param cookie the ICBM message ID of the file transfer rendezvous
+     * @param file the file to send
+     * @param bytesPerSecond the bandwidth cap, or <code>0</code> for none
+     */
+    OutgoingFileTransfer(FileTransferEngine engine, ServerSocketChannel server,
+            long cookie, File file, long bytesPerSecond) {
+        super(engine, cookie, bytesPerSecond);
+
+        this.server = server;
+        this.file = file;
+    }
+
+    /**
+     * Returns the file being sent.
+     *
+     * @return the file being sent
+     */
+    public File getFile() { return file; }
+
+    /**
+     * Sends the file over the given connection instead of waiting for the
+     * buddy to connect to us. This is used when the buddy can't reach our
+     * server channel and redirects the transfer through a proxy.
+     *
+     * @param connection a channel connected to the buddy's client
+     * @return whether the connection was taken; <code>false</code> if the
+     *         buddy has already connected or the transfer is over, in which
+     *         case the given channel is closed
+     */
+    public synchronized boolean redirect(SocketChannel connection) {
+        if (isDone() || phase != Phase.ACCEPT) {
+            try {
+                connection.close();
+            } catch (IOException ignored) { }
+            return false;
+        }
+
+        try {
+            server.close();
+            connection.configureBlocking(false);
+            channel = connection;
+            connected();
+        } catch (IOException e) {
+            channel = connection;
+            fail(e.getMessage());
+            return false;
+        }
+        engine.execute(this);
+        return true;
+    }
+
+    protected long getIdleTimeout() {
+        // the buddy has to notice and accept the offer first
+        return phase == Phase.ACCEPT ? ACCEPT_TIMEOUT : IDLE_TIMEOUT;
+    }
+
+    protected boolean step() throws IOException {
+        switch (phase) {
+        case ACCEPT:
+            SocketChannel accepted = server.accept();
+            if (accepted == null) {
+                engine.await(this, server, SelectionKey.OP_ACCEPT);
+                return false;
+            }
+            server.close();
+            accepted.configureBlocking(false);
+            channel = accepted;
+            connected();
+            return true;
+
+        case SEND_HEADER:
+            if (!writeHeader()) return false;
+            phase = Phase.AWAIT_ACK;
+            return true;
+
+        case AWAIT_ACK:
+            FileTransferHeader ack = readHeader();
+            if (ack == null) return false;
+
+            if (ack.getHeaderType() == FileTransferHeader.HEADERTYPE_RESUME) {
+                queueHeader(createResumeHeader(ack));
+                phase = Phase.SEND_RESUME_HEADER;
+            } else {
+                checkType(ack, FileTransferHeader.HEADERTYPE_ACK);
+                startData();
+            }
+            return true;
+
+        case SEND_RESUME_HEADER:
+            if (!writeHeader()) return false;
+            phase = Phase.AWAIT_RESUME_ACK;
+            return true;
+
+        case AWAIT_RESUME_ACK:
+            FileTransferHeader resumeAck = readHeader();
+            if (resumeAck == null) return false;
+
+            checkType(resumeAck, FileTransferHeader.HEADERTYPE_RESUME_ACK);
+            startData();
+            return true;
+
+        case SEND_DATA:
+            if (position >= size) {
+                setState(State.NEGOTIATING);
+                phase = Phase.AWAIT_DONE;
+                return true;
+            }
+
+            long count = allowed(size - position);
+            if (count == 0) return false;
+
+            long sent = fileChannel.transferTo(position, count, channel);
+            if (sent == 0) {
+                awaitWritable();
+                return false;
+            }
+            position += sent;
+            addTransferred(sent);
+
+            // give the other transfers a turn
+            reschedule();
+            return false;
+
+        case AWAIT_DONE:
+            FileTransferHeader done = readHeader();
+            if (done == null) return false;
+
+            checkType(done, FileTransferHeader.HEADERTYPE_RECEIVED);
+            MinecraftIM.Log("Sent " + file.getName() + " (" + size
+                    + " bytes)");
+            finish();
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Prepares to send the file's header over the newly connected channel.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void connected() throws IOException {
+        setState(State.NEGOTIATING);
+        openFile();
+        queueHeader(header);
+        phase = Phase.SEND_HEADER;
+    }
+
+    /**
+     * Opens the file and builds the header describing it.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private void openFile() throws IOException {
+        fileChannel = new FileInputStream(file).getChannel();
+        size = fileChannel.size();
+        if (size > MAX_FILE_SIZE) {
+            throw new IOException(file + " is too large to send ("
+                    + size + " bytes)");
+        }
+
+        header = new FileTransferHeader();
+        header.setDefaults();
+        header.setHeaderType(FileTransferHeader.HEADERTYPE_SENDHEADER);
+        header.setIcbmMessageId(cookie);
+        header.setFileCount(1);
+        header.setFilesLeft(1);
+        header.setPartCount(1);
+        header.setPartsLeft(1);
+        header.setFileSize(size);
+        header.setTotalFileSize(size);
+        header.setLastmod(file.lastModified() / 1000);
+        header.setChecksum(checksum(fileChannel, size));
+        header.setFilename(
+                SegmentedFilename.fromNativeFilename(file.getName()));
+    }
+
+    /**
+     * Builds the reply to a request to resume a partial download. The buddy
+     * says how much of the file it has and the checksum of that much; if that
+     * matches our file, sending resumes from there, and otherwise starts over.
+     *
+     * @param resume the buddy's resume request
+     * @return the header to send in reply
+     * @throws IOException if the file cannot be read
+     */
+    private FileTransferHeader createResumeHeader(FileTransferHeader resume)
+            throws IOException {
+        long offered = resume.getBytesReceived();
+        long sum = -1;
+        if (offered > 0 && offered <= size) sum = checksum(fileChannel, offered);
+        if (sum != resume.getReceivedChecksum()) {
+            offered = 0;
+            sum = checksum(fileChannel, 0);
+        }
+        position = offered;
+
+        FileTransferHeader reply = new FileTransferHeader(header);
+        reply.setHeaderType(FileTransferHeader.HEADERTYPE_RESUME_SENDHEADER);
+        reply.setBytesReceived(offered);
+        reply.setReceivedChecksum(sum);
+        return reply;
+    }
+
+    /**
+     * Starts sending file data.
+     */
+    private void startData() {
+        setState(State.TRANSFERRING);
+        phase = Phase.SEND_DATA;
+    }
+
+    protected void closeChannels() {
+        super.closeChannels();
+        try {
+            server.close();
+        } catch (IOException ignored) { }
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    public String toString() {
+        return "send of " + file.getName();
+    }
+}
@@ -38,5 +38,21 @@ package com.jascotty2.minecraftim.kano.joscardemo;
 import net.kano.joscar.snac.SnacRequest;
 
 public interface PendingSnacListener {
+    /**
+     * Called with a batch of requests whose service is ready, oldest first.
+     * The requests should be sent right away, ahead of anything still queued
+     * for their family.
+     *
+     * @param pending the requests to send
+     */
     void dequeueSnacs(SnacRequest[] pending);
+
+    /**
+     * Called with requests that were dropped instead of being sent, because
+     * they waited too long or their family's queue was full. Nothing else
+     * will happen to these requests, so whoever made them should be told.
+     *
+     * @param dropped the requests that were dropped
+     */
+    void droppedSnacs(SnacRequest[] dropped);
 }
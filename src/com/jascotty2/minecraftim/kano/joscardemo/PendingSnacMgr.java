@@ -35,42 +35,268 @@
 
 package com.jascotty2.minecraftim.kano.joscardemo;
 
+import com.jascotty2.minecraftim.MinecraftIM;
 import net.kano.joscar.snac.SnacRequest;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 
+/**
+ * Holds SNAC requests for families whose service connection hasn't been set up
+ * yet. Each family has its own queue, which is bounded in both size and age:
+ * requests older than the {@linkplain #getTtl TTL} are dropped, and once a
+ * queue is at {@linkplain #getCapacity capacity} either the oldest request or
+ * the new one is dropped, depending on the {@linkplain #getShedPolicy shed
+ * policy}. Each queue also remembers when its service was last requested, so
+ * that every request for a family waits on the same service request.
+ * Requests that are dropped are kept aside until {@linkplain #takeDropped
+ * taken}, so that whoever made them can be told.
+ */
 public class PendingSnacMgr {
+    /** The default number of requests held for each family. */
+    public static final int CAPACITY_DEFAULT = 64;
+    /** The default time, in milliseconds, a request is held. */
+    public static final long TTL_DEFAULT = 60000;
+
+    /** A shed policy under which a full queue drops its oldest request. */
+    public static final int SHED_OLDEST = 0;
+    /** A shed policy under which a full queue refuses new requests. */
+    public static final int SHED_NEWEST = 1;
+
     protected Map snacs = new HashMap();
+    /** The requests dropped since {@link #takeDropped} was last called. */
+    private List dropped = new ArrayList();
+
+    private int capacity = CAPACITY_DEFAULT;
+    private long ttl = TTL_DEFAULT;
+    private int shedPolicy = SHED_OLDEST;
+
+    public synchronized int getCapacity() { return capacity; }
+
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: "
+                    + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns how long requests are held, in milliseconds. This is also how
+     * long a service request may go unanswered before the next request for
+     * that family asks for the service again.
+     *
+     * @return how long requests are held
+     */
+    public synchronized long getTtl() { return ttl; }
+
+    public synchronized void setTtl(long ttl) {
+        if (ttl < 1) {
+            throw new IllegalArgumentException("ttl must be positive: " + ttl);
+        }
+        this.ttl = ttl;
+    }
 
-    public boolean isPending(int familyCode) {
+    public synchronized int getShedPolicy() { return shedPolicy; }
+
+    public synchronized void setShedPolicy(int shedPolicy) {
+        if (shedPolicy != SHED_OLDEST && shedPolicy != SHED_NEWEST) {
+            throw new IllegalArgumentException("invalid shed policy: "
+                    + shedPolicy);
+        }
+        this.shedPolicy = shedPolicy;
+    }
+
+    public synchronized boolean isPending(int familyCode) {
         Integer family = new Integer(familyCode);
 
         return snacs.containsKey(family);
     }
 
-    public void add(SnacRequest request) {
-        Integer family = new Integer(request.getCommand().getFamily());
+    /**
+     * Queues the given request, dropping expired requests and, if the queue
+     * is still full, shedding one request.
+     *
+     * @param request the request to queue
+     * @return whether the caller should request the service for this
+     *         request's family, because no service request has been sent
+     *         within the TTL
+     */
+    public synchronized boolean add(SnacRequest request) {
+        int familyCode = request.getCommand().getFamily();
+        Integer family = new Integer(familyCode);
+        long now = System.currentTimeMillis();
+
+        boolean requestService = false;
+        FamilyQueue queue = (FamilyQueue) snacs.get(family);
+        if (queue == null) {
+            queue = new FamilyQueue(now);
+            snacs.put(family, queue);
+            requestService = true;
 
-        List pending = (List) snacs.get(family);
+        } else if (now - queue.requestedAt > ttl) {
+            MinecraftIM.Log("Service for family 0x"
+                    + Integer.toHexString(familyCode) + " hasn't arrived; "
+                    + "requesting it again");
+            queue.requestedAt = now;
+            requestService = true;
+        }
 
-        pending.add(request);
+        expire(familyCode, queue, now);
+        if (queue.requests.size() >= capacity) {
+            if (shedPolicy == SHED_NEWEST) {
+                MinecraftIM.Log(Level.WARNING, "Dropping request for family 0x"
+                        + Integer.toHexString(familyCode) + ": "
+                        + queue.requests.size() + " requests already waiting");
+                dropped.add(request);
+                return requestService;
+            }
+            dropped.add(queue.requests.removeFirst());
+            queue.times.removeFirst();
+            MinecraftIM.Log(Level.WARNING, "Dropping oldest request for "
+                    + "family 0x" + Integer.toHexString(familyCode) + ": "
+                    + capacity + " requests already waiting");
+        }
+        queue.requests.add(request);
+        queue.times.add(new Long(now));
+
+        return requestService;
     }
 
-    public SnacRequest[] getPending(int familyCode) {
-        Integer family = new Integer(familyCode);
+    /**
+     * Returns the next request waiting for the given family, without removing
+     * it. Expired requests are dropped first.
+     *
+     * @param familyCode a SNAC family
+     * @return the next request for the given family, or <code>null</code> if
+     *         none are waiting
+     */
+    public synchronized SnacRequest peek(int familyCode) {
+        FamilyQueue queue = (FamilyQueue) snacs.get(new Integer(familyCode));
+        if (queue == null) return null;
+
+        expire(familyCode, queue, System.currentTimeMillis());
+        if (queue.requests.isEmpty()) return null;
+        return (SnacRequest) queue.requests.getFirst();
+    }
 
-        List pending = (List) snacs.get(family);
+    /**
+     * Removes the next request waiting for the given family.
+     *
+     * @param familyCode a SNAC family
+     * @return the request removed, or <code>null</code> if none were waiting
+     */
+    public synchronized SnacRequest poll(int familyCode) {
+        FamilyQueue queue = (FamilyQueue) snacs.get(new Integer(familyCode));
+        if (queue == null || queue.requests.isEmpty()) return null;
 
-        return (SnacRequest[]) pending.toArray(new SnacRequest[0]);
+        // the service is here, so there's no need to ask for it again
+        queue.requestedAt = System.currentTimeMillis();
+        queue.times.removeFirst();
+        return (SnacRequest) queue.requests.removeFirst();
     }
 
-    public void setPending(int familyCode, boolean pending) {
+    /**
+     * Returns the number of requests waiting for the given family, including
+     * any that have expired but not yet been dropped.
+     *
+     * @param familyCode a SNAC family
+     * @return the number of requests waiting for the given family
+     */
+    public synchronized int size(int familyCode) {
+        FamilyQueue queue = (FamilyQueue) snacs.get(new Integer(familyCode));
+        return queue == null ? 0 : queue.requests.size();
+    }
+
+    public synchronized SnacRequest[] getPending(int familyCode) {
+        FamilyQueue queue = (FamilyQueue) snacs.get(new Integer(familyCode));
+        if (queue == null) return new SnacRequest[0];
+
+        expire(familyCode, queue, System.currentTimeMillis());
+        return (SnacRequest[]) queue.requests.toArray(new SnacRequest[0]);
+    }
+
+    public synchronized void setPending(int familyCode, boolean pending) {
         Integer family = new Integer(familyCode);
 
-        if (pending) snacs.put(family, new ArrayList());
-        else snacs.remove(family);
+        if (!pending) snacs.remove(family);
+        else if (!snacs.containsKey(family)) {
+            snacs.put(family, new FamilyQueue(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Stops holding requests for the given family if none are waiting.
+     *
+     * @param familyCode a SNAC family
+     * @return whether the family is no longer pending
+     */
+    public synchronized boolean removeIfEmpty(int familyCode) {
+        Integer family = new Integer(familyCode);
+        FamilyQueue queue = (FamilyQueue) snacs.get(family);
+        if (queue != null && !queue.requests.isEmpty()) return false;
+
+        snacs.remove(family);
+        return true;
+    }
+
+    /**
+     * Drops every waiting request, for every family.
+     */
+    public synchronized void clear() {
+        for (Iterator it = snacs.values().iterator(); it.hasNext();) {
+            dropped.addAll(((FamilyQueue) it.next()).requests);
+        }
+        snacs.clear();
+    }
+
+    /**
+     * Returns the requests that were dropped, because they expired, were shed
+     * from a full queue, or were {@linkplain #clear cleared}, since this
+     * method was last called.
+     *
+     * @return the requests dropped since the last call, oldest first
+     */
+    public synchronized SnacRequest[] takeDropped() {
+        if (dropped.isEmpty()) return new SnacRequest[0];
+
+        SnacRequest[] result = (SnacRequest[])
+                dropped.toArray(new SnacRequest[0]);
+        dropped = new ArrayList();
+        return result;
+    }
+
+    private void expire(int familyCode, FamilyQueue queue, long now) {
+        int expired = 0;
+        while (!queue.times.isEmpty()
+                && now - ((Long) queue.times.getFirst()).longValue() > ttl) {
+            queue.times.removeFirst();
+            dropped.add(queue.requests.removeFirst());
+            expired++;
+        }
+        if (expired > 0) {
+            MinecraftIM.Log(Level.WARNING, "Dropped " + expired + " expired "
+                    + "requests for family 0x" + Integer.toHexString(familyCode));
+        }
+    }
+
+    /**
+     * The requests waiting for a single family, oldest first.
+     */
+    private static class FamilyQueue {
+        private final LinkedList requests = new LinkedList();
+        /** The time each request was queued, as a <code>Long</code>. */
+        private final LinkedList times = new LinkedList();
+        /** When the service for this family was last requested. */
+        private long requestedAt;
+
+        public FamilyQueue(long requestedAt) {
+            this.requestedAt = requestedAt;
+        }
     }
 }
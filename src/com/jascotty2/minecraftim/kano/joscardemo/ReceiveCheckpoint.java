@@ -0,0 +1,230 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.joscardemo;
+
+import net.kano.joscar.rvproto.ft.FileTransferChecksum;
+import net.kano.joscar.rvproto.ft.FileTransferHeader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The durable state of a partially received file, kept in a small sidecar
+ * file beside it. A checkpoint records which file is being received, how many
+ * bytes of it have been written to disk, and the checksum of those bytes, so
+ * that an interrupted transfer can be resumed without reading the partial
+ * file back.
+ */
+final class ReceiveCheckpoint {
+    /** The first four bytes of every checkpoint file: "OFTR". */
+    private static final int MAGIC = 0x4f465452;
+    /** The version of the checkpoint file format. */
+    private static final short VERSION = 1;
+    /**
+     * The prefix added to a received file's name to name its sidecar. Received
+     * files are always named <code>dl-<i>name</i></code>, so a hidden name
+     * cannot collide with a file a buddy sends.
+     */
+    private static final String PREFIX = ".";
+    /** The extension added to a received file's name to name its sidecar. */
+    private static final String EXTENSION = ".resume";
+
+    /**
+     * Returns the hidden sidecar file holding the checkpoint for the given
+     * file.
+     *
+     * @param file a file being received
+     * @return the file's sidecar
+     */
+    public static File getSidecar(File file) {
+        return new File(file.getParentFile(),
+                PREFIX + file.getName() + EXTENSION);
+    }
+
+    /**
+     * Reads the checkpoint for the given file, if it has one.
+     *
+     * @param file a file being received
+     * @return the file's checkpoint, or <code>null</code> if it has none or its
+     *         sidecar cannot be read
+     */
+    public static ReceiveCheckpoint load(File file) {
+        File sidecar = getSidecar(file);
+        if (!sidecar.isFile()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(sidecar));
+            if (in.readInt() != MAGIC || in.readShort() != VERSION) return null;
+
+            long size = in.readLong();
+            long lastmod = in.readLong();
+            long checksum = in.readLong();
+            long received = in.readLong();
+            long evenSum = in.readLong();
+            long oddSum = in.readLong();
+
+            if (received < 0 || received > size || evenSum < 0 || oddSum < 0) {
+                return null;
+            }
+
+            return new ReceiveCheckpoint(size, lastmod, checksum, received,
+                    evenSum, oddSum);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Deletes the checkpoint for the given file, if it has one.
+     *
+     * @param file a file being received
+     */
+    public static void delete(File file) {
+        getSidecar(file).delete();
+    }
+
+    /** The size of the file. */
+    private final long size;
+    /** The file's last modification date, as given by the sender. */
+    private final long lastmod;
+    /** The checksum of the whole file, as given by the sender. */
+    private final long checksum;
+    /** The number of bytes at the start of the file that were received. */
+    private final long received;
+    /** The sum of the received bytes at even offsets. */
+    private final long evenSum;
+    /** The sum of the received bytes at odd offsets. */
+    private final long oddSum;
+
+    /**
+     * Creates a checkpoint of the given file transfer.
+     *
+     * @param header the header describing the file being received
+     * @param receivedChecksum the checksum of the bytes received so far
+     */
+    public ReceiveCheckpoint(FileTransferHeader header,
+            FileTransferChecksum receivedChecksum) {
+        this(header.getFileSize(), header.getLastmod(), header.getChecksum(),
+                receivedChecksum.getLength(), receivedChecksum.getEvenSum(),
+                receivedChecksum.getOddSum());
+    }
+
+    private ReceiveCheckpoint(long size, long lastmod, long checksum,
+            long received, long evenSum, long oddSum) {
+        this.size = size;
+        this.lastmod = lastmod;
+        this.checksum = checksum;
+        this.received = received;
+        this.evenSum = evenSum;
+        this.oddSum = oddSum;
+    }
+
+    /**
+     * Returns whether this checkpoint was taken while receiving the file
+     * described by the given header.
+     *
+     * @param header a header offering a file
+     * @return whether the offered file is the one this checkpoint describes
+     */
+    public boolean matches(FileTransferHeader header) {
+        return header.getFileSize() == size
+                && header.getLastmod() == lastmod
+                && header.getChecksum() == checksum;
+    }
+
+    /**
+     * Returns the number of bytes at the start of the file that were received.
+     *
+     * @return the number of bytes received
+     */
+    public long getReceived() { return received; }
+
+    /**
+     * Returns the checksum of the received bytes. The returned object can be
+     * updated to continue the checksum where the checkpoint left off.
+     *
+     * @return the checksum of the received bytes
+     */
+    public FileTransferChecksum getReceivedChecksum() {
+        return new FileTransferChecksum(evenSum, oddSum, received);
+    }
+
+    /**
+     * Writes this checkpoint to the given file's sidecar. The sidecar is
+     * replaced atomically, so a crash while saving leaves the previous
+     * checkpoint intact.
+     *
+     * @param file the file being received
+     * @throws IOException if the sidecar cannot be written
+     */
+    public void save(File file) throws IOException {
+        File sidecar = getSidecar(file);
+        File temp = new File(sidecar.getParentFile(),
+                sidecar.getName() + ".tmp");
+
+        FileOutputStream fout = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(fout);
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(size);
+            out.writeLong(lastmod);
+            out.writeLong(checksum);
+            out.writeLong(received);
+            out.writeLong(evenSum);
+            out.writeLong(oddSum);
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+
+        Files.move(temp.toPath(), sidecar.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,700 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package com.jascotty2.minecraftim.kano.joscardemo;
+
+import net.kano.joscar.rvcmd.RvConnectionInfo;
+import net.kano.joscar.rvproto.rvproxy.RvProxyAckCmd;
+import net.kano.joscar.rvproto.rvproxy.RvProxyClient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens the connections that file transfer and Direct IM rendezvous ask for,
+ * going through an AOL Proxy Server when the buddy can't be reached directly.
+ * <br>
+ * <br>
+ * When a buddy asks for a direct connection, their client's external and
+ * internal addresses are both tried at once, and shortly afterwards the proxy
+ * is asked for a connection as well. If a direct attempt connects before the
+ * proxy answers, it is used and the proxy connection is dropped. Otherwise
+ * the direct attempts still in progress are abandoned and the buddy is sent a
+ * redirect rendezvous, so the buddy is never told to join the proxy while a
+ * direct connection is being used. Buddies behind NAT are thus reached
+ * through the proxy without first waiting out a connect timeout. When the
+ * buddy's request is itself proxied, only the proxy is tried.
+ * <br>
+ * <br>
+ * Whether each host (the buddies' and the proxy) could be connected to is
+ * remembered for {@link #REACHABILITY_TTL} milliseconds. Buddies are keyed by
+ * IP address alone, since their clients listen on a new port for every
+ * rendezvous. A direct attempt abandoned in favor of the proxy counts as
+ * unreachable. Hosts that recently failed are not tried again while there is
+ * an alternative, and if none of a buddy's addresses are reachable the proxy
+ * is asked for right away.
+ */
+public class RvConnector {
+    /**
+     * Called during a connection attempt to ask the buddy to connect through
+     * the proxy instead. Implementations should send the given connection
+     * info in a redirect rendezvous (like a <code>FileSendReqRvCmd</code> or
+     * <code>DirectIMReqRvCmd</code> of type <code>REQTYPE_REDIRECT</code>)
+     * with the original rendezvous cookie.
+     */
+    public interface Redirector {
+        /**
+         * Asks the buddy to join the proxied connection described by the
+         * given connection info.
+         *
+         * @param connInfo the proxy's address and the connection's "port"
+         */
+        void redirect(RvConnectionInfo connInfo);
+    }
+
+    /**
+     * Told the outcome of an asynchronous connection attempt. Exactly one of
+     * the two methods is called, on one of the connector's threads.
+     */
+    public interface Callback {
+        /**
+         * Called when a connection to the buddy has been made.
+         *
+         * @param channel a connected channel, in blocking mode
+         * @param proxied whether the connection goes through a proxy
+         */
+        void connected(SocketChannel channel, boolean proxied);
+
+        /**
+         * Called when every way of connecting to the buddy has failed.
+         *
+         * @param e the last error encountered
+         */
+        void failed(IOException e);
+    }
+
+    /** How long to wait for a TCP connection, in milliseconds. */
+    public static final int CONNECT_TIMEOUT = 10 * 1000;
+    /**
+     * How long the proxy has to answer, and the buddy has to join a proxied
+     * connection, in milliseconds.
+     */
+    public static final int NEGOTIATE_TIMEOUT = 60 * 1000;
+    /**
+     * How long to give direct attempts a head start before also asking for a
+     * proxied connection, in milliseconds. Going through the proxy costs the
+     * buddy (and the proxy) more than connecting directly, so it is only
+     * asked for if a direct connection isn't made almost immediately.
+     */
+    public static final long PROXY_DELAY = 250;
+    /** How long a host's reachability is remembered, in milliseconds. */
+    public static final long REACHABILITY_TTL = 10 * 60 * 1000;
+
+    /** The size past which expired reachability entries are pruned. */
+    private static final int REACHABILITY_PRUNE_SIZE = 256;
+
+    /** Runs connection attempts, which block. */
+    private final ExecutorService attempts;
+    /** Starts delayed proxy attempts. */
+    private final ScheduledExecutorService timer;
+    /** Whether each recently tried buddy address could be connected to. */
+    private final Map<InetAddress, Reachability> reachability
+            = new ConcurrentHashMap<InetAddress, Reachability>();
+    /**
+     * Whether the proxy server could be connected to, or <code>null</code> if
+     * it hasn't been tried.
+     */
+    private volatile Reachability proxyReachability = null;
+
+    /** The proxy server used for connections we ask to be proxied. */
+    private final String proxyHost;
+    /** The port of {@link #proxyHost}. */
+    private final int proxyPort;
+
+    /**
+     * Creates a new connector that uses AOL's default proxy server.
+     */
+    public RvConnector() {
+        this(RvProxyClient.DEFAULT_PROXY_HOST,
+                RvProxyClient.DEFAULT_PROXY_PORT);
+    }
+
+    /**
+     * Creates a new connector that asks the given proxy server for proxied
+     * connections. Proxied connections the buddy asks for are joined on the
+     * same port at the address the buddy gives.
+     *
+     * @param proxyHost the proxy server's hostname
+     * @param proxyPort the proxy server's port
+     */
+    public RvConnector(String proxyHost, int proxyPort) {
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+
+        ThreadFactory factory = new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r,
+                        "Rendezvous connector " + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        attempts = Executors.newCachedThreadPool(factory);
+        timer = Executors.newSingleThreadScheduledExecutor(factory);
+    }
+
+    /**
+     * Connects to the buddy who sent a rendezvous request, blocking until a
+     * connection is made or every attempt has failed.
+     *
+     * @param mysn the local user's screenname
+     * @param cookie the ICBM message ID of the rendezvous
+     * @param connInfo the connection info from the buddy's request
+     * @param redirector used to ask the buddy to connect through a proxy, or
+     *        <code>null</code> to only try connecting the way the buddy asked
+     * @return a connected channel, in blocking mode
+     * @throws IOException if no connection could be made
+     */
+    public SocketChannel connect(String mysn, long cookie,
+            RvConnectionInfo connInfo, Redirector redirector)
+            throws IOException {
+        Waiter waiter = new Waiter();
+        connect(mysn, cookie, connInfo, redirector, waiter);
+        return waiter.await();
+    }
+
+    /**
+     * Starts connecting to the buddy who sent a rendezvous request, and
+     * returns immediately.
+     *
+     * @param mysn the local user's screenname
+     * @param cookie the ICBM message ID of the rendezvous
+     * @param connInfo the connection info from the buddy's request
+     * @param redirector used to ask the buddy to connect through a proxy, or
+     *        <code>null</code> to only try connecting the way the buddy asked
+     * @param callback told the outcome
+     */
+    public void connect(String mysn, long cookie, RvConnectionInfo connInfo,
+            Redirector redirector, Callback callback) {
+        if (connInfo.isProxied()) {
+            InetSocketAddress proxy = new InetSocketAddress(
+                    connInfo.getProxyIP(), proxyPort);
+            Race race = new Race(callback, 1);
+            attempts.execute(new JoinProxyAttempt(race, proxy, mysn, cookie,
+                    connInfo.getPort()));
+            return;
+        }
+
+        List<InetSocketAddress> direct = getDirectAddresses(connInfo);
+        if (redirector != null) {
+            // with the proxy to fall back on, don't wait on addresses that
+            // just failed
+            for (Iterator<InetSocketAddress> it = direct.iterator();
+                    it.hasNext();) {
+                if (isUnreachable(it.next().getAddress())) it.remove();
+            }
+        }
+        boolean useProxy = redirector != null
+                && !(Boolean.FALSE.equals(getProxyReachability())
+                        && !direct.isEmpty());
+        if (direct.isEmpty() && !useProxy) {
+            // everything failed recently, but that may have changed
+            direct = getDirectAddresses(connInfo);
+        }
+        if (direct.isEmpty() && !useProxy) {
+            callback.failed(new IOException("no address to connect to"));
+            return;
+        }
+
+        Race race = new Race(callback, direct.size() + (useProxy ? 1 : 0));
+        for (InetSocketAddress address : direct) {
+            attempts.execute(new Attempt(race, address));
+        }
+        if (useProxy) {
+            Attempt proxied = new RedirectAttempt(race, mysn, cookie,
+                    redirector);
+            if (direct.isEmpty()) {
+                attempts.execute(proxied);
+            } else {
+                timer.schedule(new Delayed(proxied), PROXY_DELAY,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given buddy address was recently found to be
+     * reachable.
+     *
+     * @param address an IP address
+     * @return <code>Boolean.TRUE</code> or <code>FALSE</code> if the address
+     *         was tried within the last {@link #REACHABILITY_TTL}
+     *         milliseconds, or <code>null</code> if it hasn't been
+     */
+    public Boolean getReachability(InetAddress address) {
+        Reachability entry = reachability.get(address);
+        if (entry == null) return null;
+        if (entry.isExpired(System.currentTimeMillis())) {
+            reachability.remove(address);
+            return null;
+        }
+        return Boolean.valueOf(entry.reachable);
+    }
+
+    /**
+     * Returns whether the proxy server was recently found to be reachable.
+     *
+     * @return <code>Boolean.TRUE</code> or <code>FALSE</code> if the proxy
+     *         was tried within the last {@link #REACHABILITY_TTL}
+     *         milliseconds, or <code>null</code> if it hasn't been
+     */
+    public Boolean getProxyReachability() {
+        Reachability entry = proxyReachability;
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return Boolean.valueOf(entry.reachable);
+    }
+
+    /**
+     * Abandons connection attempts in progress and stops this connector's
+     * threads.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        attempts.shutdownNow();
+    }
+
+    /**
+     * Returns the distinct direct addresses in the given connection info.
+     *
+     * @param connInfo a buddy's connection info
+     * @return the buddy's external and internal addresses, in that order
+     */
+    private static List<InetSocketAddress> getDirectAddresses(
+            RvConnectionInfo connInfo) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(2);
+        int port = connInfo.getPort();
+        if (port == -1) return addresses;
+
+        InetAddress external = connInfo.getExternalIP();
+        InetAddress internal = connInfo.getInternalIP();
+        if (external != null) {
+            addresses.add(new InetSocketAddress(external, port));
+        }
+        if (internal != null && !internal.equals(external)) {
+            addresses.add(new InetSocketAddress(internal, port));
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns whether the given address recently could not be connected to.
+     *
+     * @param address an IP address
+     * @return whether the address is known to be unreachable
+     */
+    private boolean isUnreachable(InetAddress address) {
+        return Boolean.FALSE.equals(getReachability(address));
+    }
+
+    /**
+     * Records whether the given address could be connected to.
+     *
+     * @param address an IP address
+     * @param reachable whether a connection was made
+     */
+    private void record(InetAddress address, boolean reachable) {
+        long now = System.currentTimeMillis();
+        if (reachability.size() >= REACHABILITY_PRUNE_SIZE) {
+            Iterator<Reachability> it = reachability.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isExpired(now)) it.remove();
+            }
+        }
+        reachability.put(address, new Reachability(reachable, now));
+    }
+
+    /**
+     * Closes the given channel, ignoring any error.
+     *
+     * @param channel a channel, or <code>null</code>
+     */
+    private static void close(SocketChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Whether an address could be connected to, and when that was found out.
+     */
+    private static final class Reachability {
+        private final boolean reachable;
+        private final long time;
+
+        private Reachability(boolean reachable, long time) {
+            this.reachable = reachable;
+            this.time = time;
+        }
+
+        private boolean isExpired(long now) {
+            return now - time > REACHABILITY_TTL;
+        }
+    }
+
+    /**
+     * The set of attempts made to connect for one rendezvous. The first to
+     * succeed wins; the others' channels are closed, which aborts them. Once
+     * the buddy has been {@linkplain #redirect redirected} to the proxy, only
+     * the proxied attempt can win.
+     */
+    private static final class Race {
+        private final Callback callback;
+        /** The channels of the attempts in progress. */
+        private final List<SocketChannel> channels
+                = new ArrayList<SocketChannel>();
+        /** The number of attempts that have not yet ended. */
+        private int pending;
+        private boolean done = false;
+        /** Whether the buddy has been asked to connect through the proxy. */
+        private boolean redirected = false;
+        private IOException error = null;
+
+        private Race(Callback callback, int attempts) {
+            this.callback = callback;
+            this.pending = attempts;
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        private synchronized boolean isRedirected() {
+            return redirected;
+        }
+
+        /**
+         * Registers the channel of an attempt that is starting.
+         *
+         * @return <code>false</code> if the race is already over
+         */
+        private synchronized boolean begin(SocketChannel channel) {
+            if (done || redirected) return false;
+            channels.add(channel);
+            return true;
+        }
+
+        /**
+         * Abandons every attempt but the given proxied one, which is about to
+         * redirect the buddy to the proxy.
+         *
+         * @return <code>false</code> if the race is already over
+         */
+        private boolean redirect(SocketChannel proxied) {
+            List<SocketChannel> losers;
+            synchronized(this) {
+                if (done) return false;
+                redirected = true;
+                losers = new ArrayList<SocketChannel>(channels);
+                losers.remove(proxied);
+                channels.retainAll(Collections.singleton(proxied));
+            }
+            for (SocketChannel loser : losers) close(loser);
+            return true;
+        }
+
+        private void won(SocketChannel channel, boolean proxied) {
+            List<SocketChannel> losers;
+            synchronized(this) {
+                if (done || (redirected && !proxied)) {
+                    losers = null;
+                } else {
+                    pending--;
+                    channels.remove(channel);
+                    done = true;
+                    losers = new ArrayList<SocketChannel>(channels);
+                    channels.clear();
+                }
+            }
+            if (losers == null) {
+                // too late, or the buddy was already sent to the proxy
+                lost(channel, null);
+                return;
+            }
+            for (SocketChannel loser : losers) close(loser);
+            callback.connected(channel, proxied);
+        }
+
+        private void lost(SocketChannel channel, IOException e) {
+            close(channel);
+            IOException last;
+            synchronized(this) {
+                pending--;
+                channels.remove(channel);
+                // errors from attempts we aborted aren't interesting
+                if (e != null && !done) error = e;
+                if (done || pending > 0) return;
+                done = true;
+                last = error;
+            }
+            callback.failed(last != null ? last
+                    : new IOException("connection abandoned"));
+        }
+    }
+
+    /**
+     * An attempt to connect directly to one of the buddy's addresses. The
+     * proxy attempts build on this by negotiating once connected.
+     */
+    private class Attempt implements Runnable {
+        protected final Race race;
+        private final InetSocketAddress address;
+
+        private Attempt(Race race, InetSocketAddress address) {
+            this.race = race;
+            this.address = address;
+        }
+
+        /**
+         * Returns the address to connect to.
+         */
+        protected InetSocketAddress getAddress() throws IOException {
+            return address;
+        }
+
+        /**
+         * Records whether the given target could be connected to.
+         */
+        protected void recordReachability(InetSocketAddress target,
+                boolean reachable) {
+            record(target.getAddress(), reachable);
+        }
+
+        /**
+         * Sets up the connection once connected.
+         */
+        protected void negotiate(Socket socket) throws IOException { }
+
+        protected boolean isProxied() {
+            return false;
+        }
+
+        public void run() {
+            SocketChannel channel = null;
+            try {
+                if (race.isDone()) {
+                    race.lost(null, null);
+                    return;
+                }
+                InetSocketAddress target = getAddress();
+                channel = SocketChannel.open();
+                if (!race.begin(channel)) {
+                    race.lost(channel, null);
+                    return;
+                }
+
+                Socket socket = channel.socket();
+                try {
+                    socket.connect(target, CONNECT_TIMEOUT);
+                } catch (IOException e) {
+                    // an attempt we aborted says nothing about the address,
+                    // unless the proxy had to be used while it was still
+                    // trying
+                    if (!race.isDone() || race.isRedirected()) {
+                        recordReachability(target, false);
+                    }
+                    throw e;
+                }
+                recordReachability(target, true);
+
+                socket.setSoTimeout(NEGOTIATE_TIMEOUT);
+                negotiate(socket);
+                socket.setSoTimeout(0);
+                race.won(channel, isProxied());
+            } catch (IOException e) {
+                race.lost(channel, e);
+            } catch (RuntimeException e) {
+                race.lost(channel, new IOException(e.toString()));
+            }
+        }
+    }
+
+    /**
+     * An attempt to join a proxied connection the buddy asked for.
+     */
+    private class JoinProxyAttempt extends Attempt {
+        private final String mysn;
+        private final long cookie;
+        private final int port;
+
+        private JoinProxyAttempt(Race race, InetSocketAddress proxy,
+                String mysn, long cookie, int port) {
+            super(race, proxy);
+            this.mysn = mysn;
+            this.cookie = cookie;
+            this.port = port;
+        }
+
+        protected void negotiate(Socket socket) throws IOException {
+            new RvProxyClient(socket).initRecv(mysn, cookie, port);
+        }
+
+        protected boolean isProxied() {
+            return true;
+        }
+    }
+
+    /**
+     * An attempt to ask the proxy for a connection and redirect the buddy to
+     * it.
+     */
+    private class RedirectAttempt extends Attempt {
+        private final String mysn;
+        private final long cookie;
+        private final Redirector redirector;
+
+        private RedirectAttempt(Race race, String mysn, long cookie,
+                Redirector redirector) {
+            super(race, null);
+            this.mysn = mysn;
+            this.cookie = cookie;
+            this.redirector = redirector;
+        }
+
+        protected InetSocketAddress getAddress() throws IOException {
+            InetSocketAddress address = new InetSocketAddress(proxyHost,
+                    proxyPort);
+            if (address.isUnresolved()) {
+                recordReachability(null, false);
+                throw new UnknownHostException(proxyHost);
+            }
+            return address;
+        }
+
+        protected void recordReachability(InetSocketAddress target,
+                boolean reachable) {
+            proxyReachability = new Reachability(reachable,
+                    System.currentTimeMillis());
+        }
+
+        protected void negotiate(Socket socket) throws IOException {
+            RvProxyClient client = new RvProxyClient(socket);
+            RvProxyAckCmd ack = client.initSend(mysn, cookie);
+            // a direct connection may have been made in the meantime, in
+            // which case the buddy shouldn't be sent elsewhere; otherwise the
+            // direct attempts are abandoned first, so one can't win after the
+            // buddy has been sent to the proxy
+            if (!race.redirect(socket.getChannel())) {
+                throw new IOException("connection abandoned");
+            }
+
+            redirector.redirect(
+                    RvConnectionInfo.createForOutgoingProxiedRequest(
+                            ack.getProxyIpAddress(), ack.getProxyPort()));
+            client.awaitReady();
+        }
+
+        protected boolean isProxied() {
+            return true;
+        }
+    }
+
+    /**
+     * Starts a delayed attempt, unless the race is already over.
+     */
+    private class Delayed implements Runnable {
+        private final Attempt attempt;
+
+        private Delayed(Attempt attempt) {
+            this.attempt = attempt;
+        }
+
+        public void run() {
+            if (attempt.race.isDone()) {
+                attempt.race.lost(null, null);
+            } else {
+                attempts.execute(attempt);
+            }
+        }
+    }
+
+    /**
+     * Waits for the outcome of an asynchronous connection attempt.
+     */
+    private static final class Waiter implements Callback {
+        private SocketChannel channel = null;
+        private IOException error = null;
+
+        public synchronized void connected(SocketChannel channel,
+                boolean proxied) {
+            this.channel = channel;
+            notifyAll();
+        }
+
+        public synchronized void failed(IOException e) {
+            this.error = e;
+            notifyAll();
+        }
+
+        private synchronized SocketChannel await() throws IOException {
+            try {
+                while (channel == null && error == null) wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while "
+                        + "connecting");
+            }
+            if (error != null) throw error;
+            return channel;
+        }
+    }
+}
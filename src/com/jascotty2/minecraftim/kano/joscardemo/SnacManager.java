@@ -35,21 +35,37 @@
 
 package com.jascotty2.minecraftim.kano.joscardemo;
 
+import net.kano.joscar.ratelim.RateClassMonitor;
+import net.kano.joscar.snac.CmdType;
 import net.kano.joscar.snac.SnacRequest;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 
 public class SnacManager {
+    /**
+     * The shortest time, in milliseconds, between two rounds of replaying the
+     * requests that were waiting for a service.
+     */
+    public static final long REPLAY_DELAY = 100;
+
     protected Map conns = new HashMap();
     protected PendingSnacMgr pendingSnacs = new PendingSnacMgr();
     protected List listeners = new ArrayList();
     protected Map supportedFamilies = new IdentityHashMap();
+    /** Schedules paced replays, created when first needed. */
+    protected Timer timer = null;
+    /** The families which have a replay round scheduled. */
+    protected Set scheduledReplays = new HashSet();
 
     public SnacManager() { }
 
@@ -57,7 +73,7 @@ public class SnacManager {
         addListener(listener);
     }
 
-    public void register(BasicConn conn) {
+    public synchronized void register(BasicConn conn) {
         int[] families = conn.getSnacFamilies();
         supportedFamilies.put(conn, families);
 
@@ -77,7 +93,10 @@ public class SnacManager {
     }
 
     public void dequeueSnacs(BasicConn conn) {
-        int[] infos = (int[]) supportedFamilies.get(conn);
+        int[] infos;
+        synchronized(this) {
+            infos = (int[]) supportedFamilies.get(conn);
+        }
 
         if (infos != null) {
             for (int i = 0; i < infos.length; i++) {
@@ -89,19 +108,121 @@ public class SnacManager {
         }
     }
 
+    /**
+     * Replays as many of the requests waiting for the given family as its
+     * rate classes allow right now, oldest first, and schedules the rest to
+     * follow at the pace the rate classes can take. New requests for the
+     * family keep queueing behind the ones being replayed until the queue is
+     * empty; the family stops being pending only once the last batch has been
+     * handed to the listeners, so a new request can't overtake it.
+     *
+     * @param familyCode a SNAC family
+     */
     protected void dequeueSnacs(int familyCode) {
-        SnacRequest[] pending = pendingSnacs.getPending(familyCode);
-        
-        pendingSnacs.setPending(familyCode, false);
+        synchronized(this) {
+            // the scheduled round will pick up where this one would start
+            if (scheduledReplays.contains(new Integer(familyCode))) return;
+        }
+
+        BasicConn conn = null;
+        while (true) {
+            // if the service went away, requests stay queued until they expire
+            // or the service is requested again; if it was replaced, the new
+            // connection replays them once it's ready
+            BasicConn current = getConn(familyCode);
+            if (current == null || (conn != null && current != conn)) return;
+            conn = current;
+
+            List replay = new ArrayList();
+            long wait = -1;
+            synchronized(pendingSnacs) {
+                // how many more commands each rate class can take this round
+                Map allowed = new IdentityHashMap();
+                SnacRequest request;
+                while ((request = pendingSnacs.peek(familyCode)) != null) {
+                    RateClassMonitor monitor = conn.getRateMonitor(
+                            CmdType.ofCmd(request.getCommand()));
+                    if (monitor != null) {
+                        int[] left = (int[]) allowed.get(monitor);
+                        if (left == null) {
+                            left = new int[] { monitor.getPossibleCmdCount() };
+                            allowed.put(monitor, left);
+                        }
+                        if (left[0] == 0) {
+                            wait = Math.max(REPLAY_DELAY,
+                                    monitor.getPacedWaitTime(
+                                    pendingSnacs.size(familyCode)));
+                            break;
+                        }
+                        left[0]--;
+                    }
+                    replay.add(pendingSnacs.poll(familyCode));
+                }
+            }
+            fireDropped();
+
+            if (!replay.isEmpty()) {
+                SnacRequest[] pending = (SnacRequest[])
+                        replay.toArray(new SnacRequest[0]);
+                List copy;
+                synchronized(this) {
+                    copy = new ArrayList(listeners);
+                }
+                for (Iterator it = copy.iterator(); it.hasNext();) {
+                    PendingSnacListener listener
+                            = (PendingSnacListener) it.next();
+
+                    listener.dequeueSnacs(pending);
+                }
+            }
+
+            if (wait != -1) {
+                scheduleReplay(familyCode, wait);
+                return;
+            }
+            // requests queued while the batch was being sent go out in
+            // another round; otherwise new requests can go straight out
+            if (pendingSnacs.removeIfEmpty(familyCode)) return;
+        }
+    }
+
+    /**
+     * Tells the listeners about any requests the pending request manager has
+     * dropped.
+     */
+    protected void fireDropped() {
+        SnacRequest[] dropped = pendingSnacs.takeDropped();
+        if (dropped.length == 0) return;
 
-        for (Iterator it = listeners.iterator(); it.hasNext();) {
+        List copy;
+        synchronized(this) {
+            copy = new ArrayList(listeners);
+        }
+        for (Iterator it = copy.iterator(); it.hasNext();) {
             PendingSnacListener listener = (PendingSnacListener) it.next();
 
-            listener.dequeueSnacs(pending);
+            listener.droppedSnacs(dropped);
         }
     }
 
-    public void unregister(BasicConn conn) {
+    private synchronized void scheduleReplay(final int familyCode, long wait) {
+        final Integer family = new Integer(familyCode);
+        if (!scheduledReplays.add(family)) return;
+
+        if (timer == null) timer = new Timer("pending SNAC replay", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                synchronized(SnacManager.this) {
+                    scheduledReplays.remove(family);
+                }
+                if (pendingSnacs.isPending(familyCode)) {
+                    dequeueSnacs(familyCode);
+                }
+            }
+        }, wait);
+    }
+
+    public synchronized void unregister(BasicConn conn) {
         for (Iterator it = conns.values().iterator(); it.hasNext();) {
             List handlers = (List) it.next();
 
@@ -109,7 +230,7 @@ public class SnacManager {
         }
     }
 
-    public BasicConn getConn(int familyCode) {
+    public synchronized BasicConn getConn(int familyCode) {
         Integer family = new Integer(familyCode);
 
         List handlers = (List) conns.get(family);
@@ -124,15 +245,37 @@ public class SnacManager {
         return pendingSnacs.isPending(familyCode);
     }
 
-    public void addRequest(SnacRequest request) {
-        pendingSnacs.add(request);
+    /**
+     * Queues the given request until its family's service is ready.
+     *
+     * @param request the request to queue
+     * @return whether the caller should request the service for this
+     *         request's family; this is <code>false</code> while an earlier
+     *         service request is still outstanding
+     */
+    public boolean addRequest(SnacRequest request) {
+        boolean requestService = pendingSnacs.add(request);
+        fireDropped();
+        return requestService;
+    }
+
+    public PendingSnacMgr getPendingSnacMgr() {
+        return pendingSnacs;
+    }
+
+    /**
+     * Drops every waiting request, for every family.
+     */
+    public void clearPending() {
+        pendingSnacs.clear();
+        fireDropped();
     }
 
-    public void addListener(PendingSnacListener l) {
+    public synchronized void addListener(PendingSnacListener l) {
         if (!listeners.contains(l)) listeners.add(l);
     }
 
-    public void removeListener(PendingSnacListener l) {
+    public synchronized void removeListener(PendingSnacListener l) {
         listeners.remove(l);
     }
 
@@ -35,6 +35,7 @@
 
 package com.jascotty2.minecraftim.kano.joscardemo;
 
+import com.jascotty2.minecraftim.MinecraftIM;
 import net.kano.joscar.BinaryTools;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.rv.RecvRvEvent;
@@ -48,26 +49,52 @@ import net.kano.joscar.rvcmd.trillcrypt.TrillianCryptMsgRvCmd;
 import net.kano.joscar.rvcmd.trillcrypt.TrillianCryptReqRvCmd;
 import net.kano.joscar.snaccmd.icbm.RvCommand;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.logging.Level;
 
 public class TrillianEncSession implements RvSessionListener {
     private static final BigInteger FIVE = new BigInteger("5");
 
+    /**
+     * The most text sent in a single encrypted message. Longer text passed to
+     * {@link #sendText} is split over several messages, at line breaks where
+     * possible.
+     */
+    public static final int MAX_MSG_LEN = 2048;
+
+    /**
+     * The length of the block of garbage sent before each message. The
+     * receiver decrypts it with its own IV and throws it away.
+     */
+    private static final int PREFIX_LEN = 8;
+
     private Cipher encoder;
     private Cipher decoder;
 
+    /** The plaintext of the message being sent; guarded by the encoder. */
+    private final ByteBuffer plainOut
+            = ByteBuffer.allocate(PREFIX_LEN + MAX_MSG_LEN + 1);
+    /**
+     * The prefix of the next message sent. It changes with every message so
+     * that no two messages are encrypted with the same key stream.
+     */
+    private long prefix;
+    /** The ciphertext of the message being read; guarded by the decoder. */
+    private ByteBuffer cipherIn = ByteBuffer.allocate(PREFIX_LEN + 512);
+    /** The plaintext of the message being read; guarded by the decoder. */
+    private ByteBuffer plainIn = ByteBuffer.allocate(PREFIX_LEN + 512);
+
     private BigInteger modulus;
     private BigInteger myPrivate;
     private BigInteger myPublic;
@@ -137,23 +164,10 @@ public class TrillianEncSession implements RvSessionListener {
         } else if (rvc instanceof TrillianCryptMsgRvCmd) {
             TrillianCryptMsgRvCmd cmd = (TrillianCryptMsgRvCmd) rvc;
 
-            byte[] encrypted = cmd.getEncryptedMsg().toByteArray();
+            ByteBlock encrypted = cmd.getEncryptedMsg();
+            if (encrypted == null) return;
 
-            byte[] decoded;
-            try {
-                decoded = decoder.doFinal(encrypted);
-            } catch (IllegalBlockSizeException e) {
-                e.printStackTrace();
-                return;
-            } catch (BadPaddingException e) {
-                e.printStackTrace();
-                return;
-            }
-            ByteBlock fullDecoded = ByteBlock.wrap(decoded);
-            // the first eight bytes are garbage and the last byte is null
-            ByteBlock textBlock = fullDecoded.subBlock(8,
-                    fullDecoded.getLength() - 8 - 1);
-            String msg = BinaryTools.getAsciiString(textBlock);
+            String msg = decodeMsg(encrypted);
 //            System.out.println("message: " + msg);
 
         } else if (rvc instanceof TrillianCryptCloseRvCmd) {
@@ -178,6 +192,7 @@ public class TrillianEncSession implements RvSessionListener {
         random.nextBytes(ivb);
 
         IvParameterSpec ips = new IvParameterSpec(ivb);
+        prefix = random.nextLong();
 
         try {
             encoder = Cipher.getInstance("Blowfish/CFB64/NoPadding");
@@ -214,27 +229,96 @@ public class TrillianEncSession implements RvSessionListener {
 //        System.out.println("got response: " + event.getSnacCommand());
     }
 
-    public void sendMsg(String msg) {
-        byte[] data = BinaryTools.getAsciiBytes(msg);
-        byte[] encoded = new byte[encoder.getOutputSize(8 + data.length)];
-        int totalLen;
-        try {
-            int offset = encoder.update(new byte[8], 0, 8, encoded, 0);
-            int len = encoder.doFinal(data, 0, data.length, encoded, offset);
-            totalLen = offset + len;
-        } catch (IllegalBlockSizeException e) {
-            e.printStackTrace();
-            return;
-        } catch (BadPaddingException e) {
-            e.printStackTrace();
-            return;
-        } catch (ShortBufferException e) {
-            e.printStackTrace();
-            return;
+    /**
+     * Decrypts the given message. The ciphertext is copied into and decrypted
+     * out of buffers kept by this session, so the only thing allocated is the
+     * returned string.
+     *
+     * @param encrypted the encrypted message block
+     * @return the message text, or <code>null</code> if it couldn't be
+     *         decrypted
+     */
+    public String decodeMsg(ByteBlock encrypted) {
+        if (decoder == null) return null;
+
+        synchronized(decoder) {
+            int len = encrypted.getLength();
+            if (cipherIn.capacity() < len) {
+                cipherIn = ByteBuffer.allocate(len);
+                plainIn = ByteBuffer.allocate(len);
+            }
+            encrypted.copyTo(cipherIn.array(), 0);
+            cipherIn.clear().limit(len);
+            plainIn.clear();
+            try {
+                decoder.doFinal(cipherIn, plainIn);
+            } catch (GeneralSecurityException e) {
+                MinecraftIM.Log(Level.WARNING, "Couldn't decrypt message from "
+                        + getRvSession().getScreenname(), e);
+                return null;
+            }
+
+            // the first eight bytes are garbage and the text should be
+            // null-terminated
+            int end = plainIn.position();
+            if (end > PREFIX_LEN && plainIn.get(end - 1) == 0) end--;
+            if (end < PREFIX_LEN) end = PREFIX_LEN;
+            return BinaryTools.getAsciiString(ByteBlock.wrap(plainIn.array(),
+                    PREFIX_LEN, end - PREFIX_LEN));
         }
+    }
 
-        ByteBlock encodedBlock = ByteBlock.wrap(encoded, 0, totalLen);
+    public void sendMsg(String msg) {
+        sendText(msg);
+    }
 
-        getRvSession().sendRv(new TrillianCryptMsgRvCmd(encodedBlock));
+    /**
+     * Sends the given text over this encrypted session. Text longer than
+     * {@link #MAX_MSG_LEN} is split over several messages, breaking after the
+     * last newline that fits when there is one. Each message is encoded and
+     * encrypted directly out of a buffer kept by this session; the encrypted
+     * block handed to the RV session is the only thing allocated per message.
+     *
+     * @param text the text to send, which should be US-ASCII
+     */
+    public void sendText(CharSequence text) {
+        if (encoder == null) return;
+
+        synchronized(encoder) {
+            int pos = 0;
+            int len = text.length();
+            do {
+                plainOut.clear();
+                plainOut.putLong(prefix++);
+
+                int lineEnd = -1;
+                int end = Math.min(len, pos + MAX_MSG_LEN);
+                for (int i = pos; i < end; i++) {
+                    char ch = text.charAt(i);
+                    if (ch == '\n') lineEnd = i + 1;
+                    plainOut.put(ch < 0x80 ? (byte) ch : (byte) '?');
+                }
+                if (end < len && lineEnd != -1) {
+                    plainOut.position(PREFIX_LEN + lineEnd - pos);
+                    end = lineEnd;
+                }
+                pos = end;
+                plainOut.put((byte) 0);
+                plainOut.flip();
+
+                byte[] encoded = new byte[encoder.getOutputSize(
+                        plainOut.remaining())];
+                try {
+                    encoder.doFinal(plainOut, ByteBuffer.wrap(encoded));
+                } catch (GeneralSecurityException e) {
+                    MinecraftIM.Log(Level.WARNING, "Couldn't encrypt message "
+                            + "to " + getRvSession().getScreenname(), e);
+                    return;
+                }
+
+                getRvSession().sendRv(new TrillianCryptMsgRvCmd(
+                        ByteBlock.wrap(encoded)));
+            } while (pos < len);
+        }
     }
 }
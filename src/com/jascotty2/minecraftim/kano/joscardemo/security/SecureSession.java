@@ -36,15 +36,50 @@
 package com.jascotty2.minecraftim.kano.joscardemo.security;
 
 import net.kano.joscar.ByteBlock;
+import net.kano.joscar.Screenname;
+import net.kano.joscar.snaccmd.CertificateInfo;
 import net.kano.joscar.snaccmd.FullRoomInfo;
 
 import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.security.NoSuchProviderException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetAddress;
-
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encryption for IMs, chat rooms, and direct connections. Parsed
+ * certificates are cached here, whatever the implementation.
+ * <br>
+ * <br>
+ * Chat room keys are kept by each implementation, through {@link
+ * #setChatKey} and {@link #getChatKey}. Per-room cipher contexts are not
+ * cached yet. Nothing in this tree calls {@link #parseChatMessage} or {@link
+ * #encryptChatMsg}, so there is no per-message path for a cache to speed up.
+ */
 public abstract class SecureSession {
+    /** The number of parsed certificates kept around. */
+    public static final int CERT_CACHE_SIZE = 128;
+
+    /**
+     * Parsed certificates, keyed by their encoded form, least recently used
+     * first.
+     */
+    private final Map<ByteBlock, X509Certificate> certCache
+            = new LruMap<ByteBlock, X509Certificate>(CERT_CACHE_SIZE);
+    /**
+     * The certificate last seen for each user, least recently seen first.
+     */
+    private final Map<Screenname, X509Certificate> seenCerts
+            = new LruMap<Screenname, X509Certificate>(CERT_CACHE_SIZE);
+    /** The factory used to parse certificates, created when first needed. */
+    private CertificateFactory certFactory = null;
+
     public static SecureSession getInstance() {
         try {
             Class cl = Class.forName(
@@ -69,6 +104,63 @@ public abstract class SecureSession {
 
     public abstract SecretKey getChatKey(String chat);
 
+    /**
+     * Returns the certificate described by the given certificate information
+     * block. Certificates are parsed once and kept in a bounded cache, so
+     * seeing the same certificate again only costs a lookup by its data.
+     *
+     * @param certInfo a user's certificate information block
+     * @return the certificate, or <code>null</code> if the block holds no
+     *         certificate data
+     * @throws SecureSessionException if the certificate could not be parsed
+     */
+    public X509Certificate parseCertificate(CertificateInfo certInfo)
+            throws SecureSessionException {
+        ByteBlock certData = certInfo.isCommon() ? certInfo.getCommonCertData()
+                : certInfo.getEncCertData();
+        if (certData == null) return null;
+
+        synchronized(certCache) {
+            X509Certificate cert = certCache.get(certData);
+            if (cert != null) return cert;
+
+            try {
+                if (certFactory == null) {
+                    try {
+                        certFactory = CertificateFactory.getInstance("X.509",
+                                "BC");
+                    } catch (NoSuchProviderException e) {
+                        certFactory = CertificateFactory.getInstance("X.509");
+                    }
+                }
+                cert = (X509Certificate) certFactory.generateCertificate(
+                        new ByteArrayInputStream(certData.toByteArray()));
+            } catch (CertificateException e) {
+                throw new SecureSessionException(e);
+            }
+            certCache.put(certData, cert);
+            return cert;
+        }
+    }
+
+    /**
+     * Records the given certificate as the one last seen for the given user.
+     * This is used to avoid storing and announcing a user's certificate
+     * again every time their info is fetched. Only the last {@link
+     * #CERT_CACHE_SIZE} users seen are remembered.
+     *
+     * @param sn the user's screenname
+     * @param cert the user's certificate
+     * @return whether the certificate differs from the one last seen for
+     *         the user
+     */
+    public boolean certChanged(String sn, X509Certificate cert) {
+        synchronized(seenCerts) {
+            return !cert.equals(seenCerts.put(Screenname.getInstance(sn),
+                    cert));
+        }
+    }
+
     public abstract ByteBlock genChatSecurityInfo(FullRoomInfo chatInfo, String sn)
             throws SecureSessionException;
 
@@ -94,4 +186,23 @@ public abstract class SecureSession {
             throws SecureSessionException;
 
     public abstract void generateKey(String chat) throws SecureSessionException;
+
+    /**
+     * A map holding at most a given number of entries, which drops the least
+     * recently used entry to make room for a new one.
+     */
+    private static class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        public LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
 }
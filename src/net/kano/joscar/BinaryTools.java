@@ -40,6 +40,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Inet4Address;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /**
  * Provides a set of methods for converting binary data sent over an OSCAR
@@ -166,10 +167,7 @@ public final class BinaryTools {
     public static long getUInt(final ByteBlock data, final int pos) {
         if (data.getLength() - pos < 4) return -1;
 
-        return (((long) data.get(pos) & 0xffL) << 24)
-                | (((long) data.get(pos+1) & 0xffL) << 16)
-                | (((long) data.get(pos+2) & 0xffL) << 8)
-                | ((long) data.get(pos+3) & 0xffL);
+        return data.getUInt(pos);
     }
 
     /**
@@ -195,7 +193,7 @@ public final class BinaryTools {
     public static int getUShort(final ByteBlock data, final int pos) {
         if (data.getLength() - pos < 2) return -1;
 
-        return ((data.get(pos) & 0xff) << 8) | (data.get(pos+1) & 0xff);
+        return data.getUShort(pos);
     }
 
     /**
@@ -353,6 +351,54 @@ public final class BinaryTools {
         out.write(getUByte(number));
     }
 
+    /**
+     * Writes the given object to the given buffer. If the given object is a
+     * {@link BufferWritable}, it writes itself directly into the buffer;
+     * otherwise, it is written through a stream which writes into the buffer.
+     *
+     * @param buf the buffer to which to write, which must be in big-endian
+     *        byte order
+     * @param writable the object to write
+     * @throws java.nio.BufferOverflowException if the given object writes more
+     *         data than the given buffer has room for
+     */
+    public static void write(ByteBuffer buf, LiveWritable writable) {
+        if (writable instanceof BufferWritable) {
+            ((BufferWritable) writable).write(buf);
+            return;
+        }
+
+        try {
+            writable.write(new BufferOutputStream(buf));
+        } catch (IOException impossible) { }
+    }
+
+    /**
+     * An output stream that writes to a <code>ByteBuffer</code>, for writing
+     * objects that are not {@link BufferWritable}s into a buffer.
+     */
+    private static final class BufferOutputStream extends OutputStream {
+        /** The buffer to which to write. */
+        private final ByteBuffer buf;
+
+        /**
+         * Creates a new stream which writes to the given buffer.
+         *
+         * @param buf the buffer to which to write
+         */
+        public BufferOutputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        public void write(int b) {
+            buf.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            buf.put(b, off, len);
+        }
+    }
+
     /**
      * Returns a block of eight bytes representing the given <i>signed</i>
      * <code>long</code> in binary format.
@@ -0,0 +1,63 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extends the interface for a <code>Writable</code> to provide an interface
+ * for objects which can write themselves directly into a
+ * <code>ByteBuffer</code>. This allows a whole packet to be written into a
+ * single buffer of exactly the right size without any intermediate streams or
+ * arrays.
+ * <br>
+ * <br>
+ * Buffers passed to <code>write(ByteBuffer)</code> must be in big-endian
+ * (network) byte order, which is the default for new buffers.
+ *
+ * @see BinaryTools#write(ByteBuffer, LiveWritable)
+ */
+public interface BufferWritable extends Writable {
+    /**
+     * Writes a representation of this object to the given buffer, starting at
+     * its current position. Exactly as many bytes as returned by {@link
+     * #getWritableLength} are written, and the buffer's position is advanced
+     * past them.
+     *
+     * @param buf the buffer to which to write
+     * @throws java.nio.BufferOverflowException if the given buffer does not
+     *         have enough space remaining
+     */
+    void write(ByteBuffer buf);
+}
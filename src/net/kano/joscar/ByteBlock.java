@@ -43,6 +43,12 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
 import java.util.Arrays;
 
 /**
@@ -72,8 +78,15 @@ import java.util.Arrays;
  * created, providing the convenience of a single object to represent data
  * with the efficiency of accessing a single underlying <code>byte[]</code>,
  * <i>and</i> with the added security of being immutable (that is, read-only).
+ * <br>
+ * <br>
+ * A <code>ByteBlock</code> may also be backed by a NIO <code>ByteBuffer</code>,
+ * including a direct buffer, using {@link #wrap(ByteBuffer)}. Such a block
+ * behaves exactly like an array-backed block: {@link #subBlock(int, int)
+ * subBlock} still copies nothing, and the block can be written straight to a
+ * channel with {@link #write(WritableByteChannel)}.
  */
-public final class ByteBlock implements Writable, Serializable {
+public final class ByteBlock implements BufferWritable, Serializable {
     /**
      * A <code>ByteBlock</code> with a length of 0.
      */
@@ -176,6 +189,44 @@ public final class ByteBlock implements Writable, Serializable {
         return new ByteBlock(bytes, offset, len);
     }
 
+    /**
+     * Creates a <code>ByteBlock</code> that is a wrapper around the remaining
+     * data in the given buffer; that is, the data between the buffer's
+     * position and its limit. No data is copied, and the given buffer's
+     * position, limit, and mark are not modified, either now or by any later
+     * operation on the returned block. Thus, <code>ByteBlock.wrap(buf).get(0)
+     * == buf.get(buf.position())</code>, and
+     * <code>ByteBlock.wrap(buf).getLength() == buf.remaining()</code>.
+     * <br>
+     * <br>
+     * The given buffer may be a heap buffer or a direct buffer. As with the
+     * array-based <code>wrap</code> methods, anyone with a reference to the
+     * given buffer (or its backing array) can still modify the data that the
+     * returned block represents.
+     *
+     * @param buffer the buffer whose remaining data the returned block will
+     *        contain
+     * @return a <code>ByteBlock</code> backed by the given buffer's remaining
+     *         data
+     * @throws IllegalArgumentException if the given buffer is
+     *         <code>null</code>
+     */
+    public static ByteBlock wrap(ByteBuffer buffer)
+            throws IllegalArgumentException {
+        DefensiveTools.checkNull(buffer, "buffer");
+
+        if (buffer.hasArray()) {
+            return new ByteBlock(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.order(ByteOrder.BIG_ENDIAN);
+
+        return new ByteBlock(view, buffer.position(), buffer.remaining());
+    }
+
     /**
      * Creates a <code>ByteBlock</code> by writing the given
      * <code>LiveWritable</code> to a byte array, then {@linkplain
@@ -203,6 +254,10 @@ public final class ByteBlock implements Writable, Serializable {
         if (writable instanceof ByteBlock) {
             ByteBlock block = (ByteBlock) writable;
 
+            // buffer-backed blocks are immutable too, so we can simply
+            // return the same block
+            if (block.bytes == null) return block;
+
             bytes = block.bytes;
             offset = block.offset;
             len = block.len;
@@ -301,7 +356,19 @@ public final class ByteBlock implements Writable, Serializable {
      */
     public static String createString(ByteBlock block, String charset)
         throws UnsupportedEncodingException {
-        return new String(block.bytes, block.offset, block.len, charset);
+        if (block.bytes != null) {
+            return new String(block.bytes, block.offset, block.len, charset);
+        }
+
+        Charset cs;
+        try {
+            cs = Charset.forName(charset);
+        } catch (IllegalCharsetNameException e) {
+            throw new UnsupportedEncodingException(charset);
+        } catch (UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(charset);
+        }
+        return cs.decode(block.toByteBuffer()).toString();
     }
 
     /**
@@ -313,14 +380,27 @@ public final class ByteBlock implements Writable, Serializable {
      * @return an input stream using the given byte block as a backing buffer
      */
     public static InputStream createInputStream(ByteBlock data) {
+        if (data.bytes == null) {
+            return new ByteBufferInputStream(data.toByteBuffer());
+        }
         return new ByteArrayInputStream(data.bytes, data.offset, data.len);
     }
 
     /**
-     * The array backing this <code>ByteBlock</code>.
+     * The array backing this <code>ByteBlock</code>, or <code>null</code> if
+     * this block is backed by a direct <code>ByteBuffer</code>.
      */
     private final byte[] bytes;
 
+    /**
+     * The read-only, big-endian buffer backing this <code>ByteBlock</code>, or
+     * <code>null</code> if this block is backed by an array. Only absolute
+     * <code>get</code> methods are used on this buffer, so it may be safely
+     * shared between blocks and threads. This is never serialized; a
+     * deserialized block is always array-backed.
+     */
+    private final transient ByteBuffer buffer;
+
     /**
      * The index in the backing array that represents the first index of this
      * block.
@@ -343,6 +423,7 @@ public final class ByteBlock implements Writable, Serializable {
      */
     private ByteBlock() {
         bytes = new byte[0];
+        buffer = null;
         offset = 0;
         len = 0;
     }
@@ -379,10 +460,38 @@ public final class ByteBlock implements Writable, Serializable {
         }
 
         this.bytes = bytes;
+        this.buffer = null;
+        this.offset = offset;
+        this.len = len;
+    }
+
+    /**
+     * Creates a new <code>ByteBlock</code> with the given backing buffer,
+     * absolute index into that buffer, and data length.
+     *
+     * @param buffer the read-only, big-endian backing buffer for this block
+     * @param offset the index into the buffer that represents the first index
+     *        of this block
+     * @param len the length of the data represented by this block
+     */
+    private ByteBlock(ByteBuffer buffer, int offset, int len) {
+        this.bytes = null;
+        this.buffer = buffer;
         this.offset = offset;
         this.len = len;
     }
 
+    /**
+     * Returns the byte at the given index of the backing array or buffer.
+     * No bounds checking is done against this block's range.
+     *
+     * @param index an index into the backing array or buffer
+     * @return the byte at the given index of the backing storage
+     */
+    private byte byteAt(int index) {
+        return bytes != null ? bytes[index] : buffer.get(index);
+    }
+
     /**
      * Returns the byte in this block at the given index.
      * @param index the index of the byte to return
@@ -399,7 +508,98 @@ public final class ByteBlock implements Writable, Serializable {
             throw new IndexOutOfBoundsException("index (" + index
                     + ") must be less than length (" + len + ")");
         }
-        return bytes[offset + index];
+        return byteAt(offset + index);
+    }
+
+    /**
+     * Returns the unsigned two-byte integer stored in this block at the given
+     * index, in network (big-endian) byte order. This is equivalent to, but
+     * faster than, assembling the value from two calls to {@link #get(int)}.
+     *
+     * @param index the index of the first byte of the value
+     * @return the unsigned two-byte integer stored at the given index
+     * @throws IndexOutOfBoundsException if the given index is less than zero
+     *         or fewer than two bytes exist at that index
+     *
+     * @see BinaryTools#getUShort(ByteBlock, int)
+     */
+    public final int getUShort(int index) throws IndexOutOfBoundsException {
+        checkRange(index, 2);
+
+        int pos = offset + index;
+        if (bytes == null) return buffer.getShort(pos) & 0xffff;
+
+        return ((bytes[pos] & 0xff) << 8) | (bytes[pos+1] & 0xff);
+    }
+
+    /**
+     * Returns the unsigned four-byte integer stored in this block at the given
+     * index, in network (big-endian) byte order. This is equivalent to, but
+     * faster than, assembling the value from four calls to {@link #get(int)}.
+     *
+     * @param index the index of the first byte of the value
+     * @return the unsigned four-byte integer stored at the given index
+     * @throws IndexOutOfBoundsException if the given index is less than zero
+     *         or fewer than four bytes exist at that index
+     *
+     * @see BinaryTools#getUInt(ByteBlock, int)
+     */
+    public final long getUInt(int index) throws IndexOutOfBoundsException {
+        checkRange(index, 4);
+
+        int pos = offset + index;
+        if (bytes == null) return buffer.getInt(pos) & 0xffffffffL;
+
+        return (((long) bytes[pos] & 0xffL) << 24)
+                | (((long) bytes[pos+1] & 0xffL) << 16)
+                | (((long) bytes[pos+2] & 0xffL) << 8)
+                | ((long) bytes[pos+3] & 0xffL);
+    }
+
+    /**
+     * Returns the signed eight-byte integer stored in this block at the given
+     * index, in network (big-endian) byte order. This is equivalent to, but
+     * faster than, assembling the value from eight calls to {@link #get(int)}.
+     *
+     * @param index the index of the first byte of the value
+     * @return the eight-byte integer stored at the given index
+     * @throws IndexOutOfBoundsException if the given index is less than zero
+     *         or fewer than eight bytes exist at that index
+     *
+     * @see BinaryTools#getLong(ByteBlock, int)
+     */
+    public final long getLong(int index) throws IndexOutOfBoundsException {
+        checkRange(index, 8);
+
+        int pos = offset + index;
+        if (bytes == null) return buffer.getLong(pos);
+
+        return ((long) (((bytes[pos] & 0xff) << 24)
+                | ((bytes[pos+1] & 0xff) << 16)
+                | ((bytes[pos+2] & 0xff) << 8)
+                | (bytes[pos+3] & 0xff)) << 32)
+                | ((long) (((bytes[pos+4] & 0xff) << 24)
+                | ((bytes[pos+5] & 0xff) << 16)
+                | ((bytes[pos+6] & 0xff) << 8)
+                | (bytes[pos+7] & 0xff)) & 0xffffffffL);
+    }
+
+    /**
+     * Ensures that the given number of bytes exist in this block at the given
+     * index.
+     *
+     * @param index an index into this block
+     * @param count the number of bytes that must exist at that index
+     * @throws IndexOutOfBoundsException if the given index is negative or
+     *         fewer than <code>count</code> bytes exist at that index
+     */
+    private void checkRange(int index, int count)
+            throws IndexOutOfBoundsException {
+        if (index < 0 || index > len - count) {
+            throw new IndexOutOfBoundsException("index (" + index + ") must "
+                    + "be >= 0 and leave " + count + " bytes within length ("
+                    + len + ")");
+        }
     }
 
     /**
@@ -428,7 +628,70 @@ public final class ByteBlock implements Writable, Serializable {
     public void write(OutputStream stream) throws IOException {
         DefensiveTools.checkNull(stream, "stream");
 
-        stream.write(bytes, offset, len);
+        if (bytes != null) {
+            stream.write(bytes, offset, len);
+            return;
+        }
+
+        // a direct buffer has to be copied out a piece at a time
+        ByteBuffer view = toByteBuffer();
+        byte[] chunk = new byte[Math.min(len, 8192)];
+        while (view.hasRemaining()) {
+            int count = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, count);
+            stream.write(chunk, 0, count);
+        }
+    }
+
+    /**
+     * Writes the contents of this <code>ByteBlock</code> to the given buffer,
+     * starting at the buffer's position.
+     *
+     * @param buf the buffer to which to write this block
+     * @throws java.nio.BufferOverflowException if the given buffer has fewer
+     *         than {@link #getLength()} bytes remaining
+     */
+    public void write(ByteBuffer buf) {
+        DefensiveTools.checkNull(buf, "buf");
+
+        if (bytes != null) buf.put(bytes, offset, len);
+        else buf.put(toByteBuffer());
+    }
+
+    /**
+     * Writes the contents of this <code>ByteBlock</code> to the given channel.
+     * This method does not return until the entire block has been written.
+     * No copy of the data is made; for a block backed by a direct buffer, the
+     * channel can transfer the data straight from that buffer.
+     *
+     * @param channel the channel to which to write this block
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        DefensiveTools.checkNull(channel, "channel");
+
+        ByteBuffer view = toByteBuffer();
+        while (view.hasRemaining()) channel.write(view);
+    }
+
+    /**
+     * Returns a read-only <code>ByteBuffer</code> view of the data in this
+     * block. No data is copied. The returned buffer's position is zero, its
+     * limit and capacity are the {@linkplain #getLength length} of this block,
+     * and its byte order is big-endian.
+     *
+     * @return a read-only buffer containing the data in this block
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer view;
+        if (bytes != null) {
+            view = ByteBuffer.wrap(bytes, offset, len).slice();
+        } else {
+            view = buffer.duplicate();
+            view.limit(offset + len).position(offset);
+            view = view.slice();
+        }
+        return view.asReadOnlyBuffer();
     }
 
     /**
@@ -437,7 +700,11 @@ public final class ByteBlock implements Writable, Serializable {
      * @return a newly allocated byte array containing a copy of this byte block
      */
     public byte[] toByteArray() {
-        if (offset == 0 && len == bytes.length) {
+        if (bytes == null) {
+            byte[] array = new byte[len];
+            copyTo(array, 0);
+            return array;
+        } else if (offset == 0 && len == bytes.length) {
             // this is slightly faster
             return (byte[]) bytes.clone();
         } else {
@@ -510,13 +777,16 @@ public final class ByteBlock implements Writable, Serializable {
                     + (len + offset) + ") > length (" + this.len + ")");
         }
 
+        if (bytes == null) {
+            return new ByteBlock(buffer, this.offset + offset, len);
+        }
         return wrap(bytes, this.offset + offset, len);
     }
 
     /**
-     * Returns the offset into the backing array that represents the first index
-     * of this block. Useful only for comparing two blocks that use the
-     * <i>same</i> backing array. For example, if <code>b = a.subBlock(50,
+     * Returns the offset into the backing array (or buffer) that represents the
+     * first index of this block. Useful only for comparing two blocks that use
+     * the <i>same</i> backing array. For example, if <code>b = a.subBlock(50,
      * 2).subBlock(20)</code>, then <code>b.getOffset() - a.getOffset() ==
      * 70</code>.
      *
@@ -547,7 +817,7 @@ public final class ByteBlock implements Writable, Serializable {
         // only write the bytes that this block represents -- not the entire
         // backing array, *unless* this block represents the entire backing
         // array.
-        byte[] array = (offset == 0 && len == bytes.length)
+        byte[] array = (bytes != null && offset == 0 && len == bytes.length)
                     ? bytes
                     : toByteArray();
         fields.put("bytes", array);
@@ -579,7 +849,13 @@ public final class ByteBlock implements Writable, Serializable {
      *        copying this block
      */
     public void copyTo(byte[] dest, int destOffset) {
-        System.arraycopy(bytes, offset, dest, destOffset, len);
+        if (bytes != null) {
+            System.arraycopy(bytes, offset, dest, destOffset, len);
+        } else {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(dest, destOffset, len);
+        }
     }
 
 
@@ -608,7 +884,8 @@ public final class ByteBlock implements Writable, Serializable {
 
         // if we know the two blocks represent all the data in their backing
         // arrays, we can try to use this, which is probably faster.
-        if (offset == 0 && other.offset == 0 && len == bytes.length) {
+        if (bytes != null && other.bytes != null && offset == 0
+                && other.offset == 0 && len == bytes.length) {
             return Arrays.equals(bytes, other.bytes);
         }
 
@@ -627,7 +904,7 @@ public final class ByteBlock implements Writable, Serializable {
         int delta = Math.max(1, len/128);
         int lim = offset + len;
         for (int i = offset; i < lim; i += delta) {
-            code = code * 29 + bytes[i];
+            code = code * 29 + byteAt(i);
         }
 
         // make sure it's not 0, which is a special code meaning that the
@@ -642,4 +919,48 @@ public final class ByteBlock implements Writable, Serializable {
     public String toString() {
         return BinaryTools.describeData(this);
     }
+
+    /**
+     * An input stream which reads from a <code>ByteBuffer</code>, for blocks
+     * backed by direct buffers.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        /** The buffer from which to read. */
+        private final ByteBuffer buffer;
+
+        /**
+         * Creates a new input stream reading the remaining data in the given
+         * buffer.
+         *
+         * @param buffer the buffer to read
+         */
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public synchronized int read() {
+            if (!buffer.hasRemaining()) return -1;
+
+            return buffer.get() & 0xff;
+        }
+
+        public synchronized int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        public synchronized long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        public synchronized int available() {
+            return buffer.remaining();
+        }
+    }
 }
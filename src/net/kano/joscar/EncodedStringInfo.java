@@ -66,6 +66,25 @@ public final class EncodedStringInfo {
         this.data = (byte[]) data.clone();
     }
 
+    /**
+     * Creates a new <code>EncodedStringInfo</code> with the given charset and
+     * the first <code>len</code> bytes of the given array.
+     *
+     * @param charset the character set used to encode the given data
+     * @param data an array whose first <code>len</code> bytes were encoded by
+     *        the given character set
+     * @param len the number of bytes of encoded data in the given array
+     */
+    EncodedStringInfo(String charset, byte[] data, int len) {
+        DefensiveTools.checkNull(charset, "charset");
+        DefensiveTools.checkNull(data, "data");
+        DefensiveTools.checkRange(len, "len", 0, data.length);
+
+        this.charset = charset;
+        this.data = new byte[len];
+        System.arraycopy(data, 0, this.data, 0, len);
+    }
+
     /**
      * Returns the name of the charset that encoded the associated data from
      * a <code>String</code>.
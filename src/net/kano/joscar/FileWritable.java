@@ -37,6 +37,7 @@ package net.kano.joscar;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
@@ -87,9 +88,22 @@ public class FileWritable implements LiveWritable {
 
         try {
             FileChannel inch = in.getChannel();
-            WritableByteChannel outch = Channels.newChannel(out);
 
-            inch.transferTo(0, len, outch);
+            // a file stream's own channel lets transferTo copy without going
+            // through the heap; any other stream has to be wrapped
+            WritableByteChannel outch;
+            if (out instanceof FileOutputStream) {
+                outch = ((FileOutputStream) out).getChannel();
+            } else {
+                outch = Channels.newChannel(out);
+            }
+
+            // transferTo may move fewer bytes than asked for
+            for (long pos = 0; pos < len;) {
+                long count = inch.transferTo(pos, len - pos, outch);
+                if (count <= 0) break;
+                pos += count;
+            }
         } finally {
             in.close();
         }
@@ -36,14 +36,6 @@
 package net.kano.joscar;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.UnsupportedCharsetException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 
 /**
  * Provides a means of encoding a set of strings in the "smallest" encoding
@@ -61,117 +53,159 @@ public final class MinimalEncoder {
     public static final String ENCODING_UTF8  = "utf-8";
 
     /**
-     * One of a set of charset objects cached used to increase performance of
-     * <code>MinimalEncoder</code>.
+     * The charsets a string can be encoded with, in order of increasing
+     * complexity. A string's "level" is an index into this array.
      */
-    private static final Charset ASCII7;
+    private static final String[] CHARSETS = new String[] {
+        ENCODING_ASCII, ENCODING_ISO, ENCODING_UTF16, ENCODING_UTF8
+    };
+
+    /** The level of strings that can be encoded in US-ASCII. */
+    private static final int LEVEL_ASCII = 0;
+    /** The level of strings that can be encoded in ISO-8859-1. */
+    private static final int LEVEL_ISO = 1;
+    /** The level of strings that must be encoded in UTF-16BE. */
+    private static final int LEVEL_UTF16 = 2;
     /**
-     * One of a set of charset objects cached used to increase performance of
-     * <code>MinimalEncoder</code>.
+     * The level of strings that can only be encoded in UTF-8; that is, strings
+     * containing unpaired surrogate characters.
      */
-    private static final Charset ISO88591;
+    private static final int LEVEL_UTF8 = 3;
+
     /**
-     * One of a set of charset objects cached used to increase performance of
-     * <code>MinimalEncoder</code>.
+     * The largest buffer that will be kept by a thread for encoding strings.
+     * Strings that need a larger buffer are encoded into a buffer which is
+     * thrown away afterwards.
      */
-    private static final Charset UTF16;
+    private static final int MAX_POOLED_BUFFER = 8192;
 
     /**
-     * A list of valid charsets to use to encode strings within
-     * <code>MinimalEncoder</code>, in order of increasing complexity (and thus
-     * the order in which they will be tried).
+     * A per-thread buffer into which strings are encoded before being copied
+     * into an <code>EncodedStringInfo</code>.
      */
-    private static final List validCharsets
-            = Collections.unmodifiableList(Arrays.asList(new Object[] {
-                ENCODING_ASCII, ENCODING_ISO, ENCODING_UTF16, ENCODING_UTF8
-            }));
-
-    static {
-        Charset ascii = null;
-        try {
-            ascii = Charset.forName("US-ASCII");
-        } catch (UnsupportedCharsetException ohwell) { }
-        ASCII7 = ascii;
-
-        Charset iso = null;
-        try {
-            iso = Charset.forName("ISO-8859-1");
-        } catch (UnsupportedCharsetException ohwell) { }
-        ISO88591 = iso;
-
-        Charset utf = null;
-        try {
-            utf = Charset.forName("UTF-16BE");
-        } catch (UnsupportedCharsetException ohwell) { }
-        UTF16 = utf;
-    }
+    private static final ThreadLocal buffers = new ThreadLocal() {
+        protected Object initialValue() {
+            return new byte[256];
+        }
+    };
 
     /**
-     * Encodes a string minimally. Simply a shortcut for <code>new
-     * MinimalEncoder().{@linkplain #encode encode}(str)</code>.
+     * Encodes a string minimally. This is equivalent to, but faster than,
+     * <code>new MinimalEncoder().{@linkplain #encode encode}(str)</code>.
      *
      * @param str the string to minimally encode
      * @return an object describing the encoded string and the charset used to
      *         encode it
      */
     public static EncodedStringInfo encodeMinimally(String str) {
-        return new MinimalEncoder().encode(str);
+        return encode(str, classify(str));
     }
 
     /**
-     * The currently minimal charset that can be used to encode. Starts at
-     * the "lowest" charset, the first index of <code>validCharsets</code>.
+     * Returns the "level" of the minimum charset that can encode the given
+     * string. The string is scanned only once, and the scan stops at the first
+     * character that requires UTF-16 (unless it is a surrogate, in which case
+     * the rest of the string is checked for unpaired surrogates).
+     *
+     * @param str the string to classify
+     * @return one of {@link #LEVEL_ASCII}, {@link #LEVEL_ISO}, {@link
+     *         #LEVEL_UTF16}, or {@link #LEVEL_UTF8}
      */
-    private String charset = (String) validCharsets.get(0);
+    private static int classify(String str) {
+        int level = LEVEL_ASCII;
+        final int len = str.length();
+        for (int i = 0; i < len; i++) {
+            final char c = str.charAt(i);
 
-    /**
-     * Stores the last charset used, since most of the time the same charset
-     * will be necessary for subsequent strings.
-     */
-    private String lastCharset = null;
+            if (c < 0x80) continue;
+            if (c < 0x100) {
+                level = LEVEL_ISO;
+                continue;
+            }
+            if (c < 0xd800 || c > 0xdfff) return LEVEL_UTF16;
 
-    /**
-     * Stores the last encoder used, since most of the time the same encoder
-     * will be necessary for subsequent strings.
-     */
-    private CharsetEncoder lastEncoder = null;
+            return hasUnpairedSurrogate(str, i) ? LEVEL_UTF8 : LEVEL_UTF16;
+        }
+
+        return level;
+    }
 
     /**
-     * Returns the given charset name if the given charset can encode the given
-     * string, and <code>null</code> otherwise.
+     * Returns whether the given string contains a surrogate character that is
+     * not part of a valid surrogate pair, at or after the given index. Such
+     * strings cannot be encoded in UTF-16.
      *
-     * @param str the string to test for encodability
-     * @param charset the charset to use to test encodability of the given
-     *        string
-     * @param name the charset name to return if the given charset can encode
-     *        the given string
-     * @return the given charset name if the given charset can encode the given
-     *         string; <code>null</code> otherwise
+     * @param str the string to check
+     * @param start the index at which to start checking
+     * @return whether the given string contains an unpaired surrogate at or
+     *         after the given index
      */
-    private static String getCharset(String str, Charset charset,
-            String name) {
-        if (charset != null && charset.newEncoder().canEncode(str)) return name;
-        else return null;
+    private static boolean hasUnpairedSurrogate(String str, int start) {
+        final int len = str.length();
+        for (int i = start; i < len; i++) {
+            final char c = str.charAt(i);
+
+            if (c < 0xd800 || c > 0xdfff) continue;
+            if (c > 0xdbff) return true;
+
+            // a high surrogate must be followed by a low surrogate
+            if (i + 1 == len) return true;
+            final char next = str.charAt(i + 1);
+            if (next < 0xdc00 || next > 0xdfff) return true;
+            i++;
+        }
+
+        return false;
     }
 
     /**
-     * Returns the name of the minimum charset that can encode the given string.
+     * Encodes the given string using the charset with the given level, writing
+     * into this thread's pooled buffer and copying the result into the
+     * returned <code>EncodedStringInfo</code>.
      *
      * @param str the string to encode
-     * @return the name of the minimum charset that can encode the given string
+     * @param level the "level" of the charset to use, which must be able to
+     *        encode the given string
+     * @return an object describing the encoded string and the charset with
+     *         which it was encoded
      */
-    private static String getMinimalCharset(String str) {
-        String encoder = getCharset(str, ASCII7, ENCODING_ASCII);
-        if (encoder != null) return encoder;
+    private static EncodedStringInfo encode(String str, int level) {
+        if (level == LEVEL_UTF8) {
+            try {
+                return new EncodedStringInfo(ENCODING_UTF8,
+                        str.getBytes(ENCODING_UTF8));
+            } catch (UnsupportedEncodingException impossibler) { return null; }
+        }
 
-        encoder = getCharset(str, ISO88591, ENCODING_ISO);
-        if (encoder != null) return encoder;
+        final int len = str.length();
+        final int size = level == LEVEL_UTF16 ? len * 2 : len;
 
-        encoder = ENCODING_UTF16;
+        byte[] buffer = (byte[]) buffers.get();
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length * 2)];
+            if (buffer.length <= MAX_POOLED_BUFFER) buffers.set(buffer);
+        }
+
+        if (level == LEVEL_UTF16) {
+            for (int i = 0, pos = 0; i < len; i++) {
+                final char c = str.charAt(i);
+                buffer[pos++] = (byte) (c >> 8);
+                buffer[pos++] = (byte) c;
+            }
+        } else {
+            // US-ASCII and ISO-8859-1 both map chars to bytes directly
+            for (int i = 0; i < len; i++) buffer[i] = (byte) str.charAt(i);
+        }
 
-        return encoder;
+        return new EncodedStringInfo(CHARSETS[level], buffer, size);
     }
 
+    /**
+     * The "level" of the currently minimal charset that can be used to encode.
+     * Starts at the "lowest" charset, US-ASCII.
+     */
+    private int level = LEVEL_ASCII;
+
     /**
      * Updates the current minimum charset to accommodate the given string. For
      * example, if the current minimum charset were {@link #ENCODING_ASCII},
@@ -181,12 +215,12 @@ public final class MinimalEncoder {
      * @param str the string to accommodate
      */
     public synchronized final void update(String str) {
-        String encoderType = getMinimalCharset(str);
+        // no string can need more than UTF-8, so don't bother scanning
+        if (level == LEVEL_UTF8) return;
 
-        if (validCharsets.indexOf(encoderType)
-                > validCharsets.indexOf(charset)) {
-            charset = encoderType;
-        }
+        int strLevel = classify(str);
+
+        if (strLevel > level) level = strLevel;
     }
 
     /**
@@ -205,13 +239,13 @@ public final class MinimalEncoder {
      * Returns the current minimal charset that can be used to encode all
      * strings that have been passed to <code>update</code> thus far. Will
      * <i>always</i> be one of {@link #ENCODING_ASCII}, {@link #ENCODING_ISO},
-     * {@link #ENCODING_UTF16}, or in very rare cases (namely, a VM without
-     * UTF-16BE encoding) {@link #ENCODING_UTF8}.
+     * {@link #ENCODING_UTF16}, or in very rare cases (namely, strings
+     * containing invalid UTF-16 surrogate characters) {@link #ENCODING_UTF8}.
      *
      * @return the current minimal charset
      */
     public synchronized final String getCharset() {
-        return charset;
+        return CHARSETS[level];
     }
 
     /**
@@ -227,26 +261,6 @@ public final class MinimalEncoder {
     public synchronized final EncodedStringInfo encode(String str) {
         update(str);
 
-        CharsetEncoder encoder;
-        if (lastCharset == charset && lastEncoder != null) {
-            encoder = lastEncoder;
-        } else {
-            if (charset == ENCODING_ASCII) encoder = ASCII7.newEncoder();
-            else if (charset == ENCODING_ISO) encoder = ISO88591.newEncoder();
-            else encoder = UTF16.newEncoder();
-
-            lastCharset = charset;
-            lastEncoder = encoder;
-        }
-
-        try {
-            return new EncodedStringInfo(charset,
-                    encoder.encode(CharBuffer.wrap(str)).array());
-        } catch (CharacterCodingException uhoh) {
-            try {
-                return new EncodedStringInfo(ENCODING_UTF8,
-                        str.getBytes(ENCODING_UTF8));
-            } catch (UnsupportedEncodingException impossibler) { return null; }
-        }
+        return encode(str, level);
     }
 }
@@ -331,11 +331,25 @@ public final class OscarTools {
      *
      * @param str the string to normalize
      * @return a normalized version of the given string
+     *
+     * @see Screenname
      */
     public static String normalize(final String str) {
-        final StringBuffer buffer = new StringBuffer(str.length());
+        // most screennames we see are already normalized, so don't copy them
+        // unless something needs to change
+        int i = 0;
+        final int len = str.length();
+        for (; i < len; i++) {
+            final char c = str.charAt(i);
+
+            if (c == ' ' || Character.toLowerCase(c) != c) break;
+        }
+        if (i == len) return str;
+
+        final StringBuffer buffer = new StringBuffer(len);
+        buffer.append(str.substring(0, i));
 
-        for (int i = 0; i < str.length(); i++) {
+        for (; i < len; i++) {
             final char c = str.charAt(i);
 
             if (c != ' ') buffer.append(Character.toLowerCase(c));
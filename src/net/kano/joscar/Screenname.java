@@ -0,0 +1,192 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An immutable screenname, holding both the screenname as it was given (its
+ * "format") and its {@linkplain OscarTools#normalize normalized} form. Two
+ * <code>Screenname</code>s are equal if their normalized forms are equal, so
+ * "Joust Acular" and "joustacular" can be used interchangeably as map keys.
+ * The normalized form and its hash code are computed once, when the
+ * screenname is created.
+ * <br>
+ * <br>
+ * {@link #getInstance} keeps a bounded cache of recently used screennames,
+ * keyed by the exact string given, so repeatedly looking up the same
+ * screenname (as happens for every incoming message from a buddy) does not
+ * normalize it again or allocate a new object.
+ */
+public final class Screenname implements Comparable {
+    /** The maximum number of screennames kept by {@link #getInstance}. */
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * The recently used screennames, keyed by the strings from which they were
+     * created, in least-recently-used order.
+     */
+    private static final Map cache = new LinkedHashMap(CACHE_SIZE * 4 / 3 + 1,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Returns a <code>Screenname</code> for the given string. The returned
+     * object may have been created by a previous call with an equal string.
+     *
+     * @param sn the screenname, in any format
+     * @return a <code>Screenname</code> object for the given screenname
+     */
+    public static Screenname getInstance(String sn) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        synchronized(cache) {
+            Screenname screenname = (Screenname) cache.get(sn);
+            if (screenname == null) {
+                screenname = new Screenname(sn);
+                cache.put(sn, screenname);
+            }
+            return screenname;
+        }
+    }
+
+    /** The screenname, as it was given. */
+    private final String format;
+    /** The normalized screenname. */
+    private final String normal;
+    /** The normalized screenname's hash code. */
+    private final int hashCode;
+
+    /**
+     * Creates a new screenname object for the given screenname. Note that
+     * {@link #getInstance} should normally be used instead.
+     *
+     * @param sn the screenname, in any format
+     */
+    public Screenname(String sn) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        this.format = sn;
+        this.normal = OscarTools.normalize(sn);
+        this.hashCode = normal.hashCode();
+    }
+
+    /**
+     * Returns this screenname as it was given, like "Joust Acular".
+     *
+     * @return this screenname's original format
+     */
+    public final String getFormatted() { return format; }
+
+    /**
+     * Returns this screenname in normalized form, like "joustacular".
+     *
+     * @return this screenname's normalized form
+     *
+     * @see OscarTools#normalize
+     */
+    public final String getNormal() { return normal; }
+
+    /**
+     * Returns whether this screenname is equal to the given screenname string
+     * once both are normalized. This method does not allocate any objects.
+     *
+     * @param sn a screenname, in any format
+     * @return whether the given screenname refers to the same user as this
+     *         screenname
+     */
+    public boolean matches(String sn) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        int pos = 0;
+        for (int i = 0; i < sn.length(); i++) {
+            char c = sn.charAt(i);
+            if (c == ' ') continue;
+
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            else if (c >= 0x80) c = Character.toLowerCase(c);
+            if (pos == normal.length()) return false;
+            if (normal.charAt(pos++) != c) return false;
+        }
+
+        return pos == normal.length();
+    }
+
+    /**
+     * Returns the hash code of the given screenname's normalized form. This is
+     * the value returned by the {@link #hashCode} method of a
+     * <code>Screenname</code> created from the given string, but computing it
+     * does not allocate any objects.
+     *
+     * @param sn a screenname, in any format
+     * @return the hash code of the given screenname
+     */
+    public static int hashOf(String sn) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        int hash = 0;
+        for (int i = 0; i < sn.length(); i++) {
+            char c = sn.charAt(i);
+            if (c == ' ') continue;
+
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            else if (c >= 0x80) c = Character.toLowerCase(c);
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof Screenname)) return false;
+
+        Screenname sn = (Screenname) obj;
+
+        return hashCode == sn.hashCode && normal.equals(sn.normal);
+    }
+
+    public int hashCode() { return hashCode; }
+
+    public int compareTo(Object o) {
+        return normal.compareTo(((Screenname) o).normal);
+    }
+
+    public String toString() { return format; }
+}
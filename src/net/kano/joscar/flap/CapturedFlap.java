@@ -0,0 +1,134 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.flap;
+
+import net.kano.joscar.ByteBlock;
+
+/**
+ * Represents a single FLAP packet read from a capture file written by a
+ * {@link FlapCapture}.
+ *
+ * @see FlapCaptureReader
+ */
+public final class CapturedFlap {
+    /**
+     * The direction in which this packet was sent; one of {@link
+     * FlapCapture#DIRECTION_INCOMING} and {@link
+     * FlapCapture#DIRECTION_OUTGOING}.
+     */
+    private final int direction;
+    /** When this packet was recorded, in microseconds since capture start. */
+    private final long timestamp;
+    /** The raw packet, including its FLAP header. */
+    private final ByteBlock frame;
+
+    /**
+     * Creates a new captured packet with the given properties.
+     *
+     * @param direction the direction in which the packet was sent
+     * @param timestamp when the packet was recorded, in microseconds since the
+     *        capture was started
+     * @param frame the raw packet, including its six-byte FLAP header
+     */
+    CapturedFlap(int direction, long timestamp, ByteBlock frame) {
+        this.direction = direction;
+        this.timestamp = timestamp;
+        this.frame = frame;
+    }
+
+    /**
+     * Returns the direction in which this packet was sent. This will be either
+     * {@link FlapCapture#DIRECTION_INCOMING} or {@link
+     * FlapCapture#DIRECTION_OUTGOING}.
+     *
+     * @return the direction in which this packet was sent
+     */
+    public final int getDirection() { return direction; }
+
+    /**
+     * Returns whether this packet was received from the server.
+     *
+     * @return whether this is an incoming packet
+     */
+    public final boolean isIncoming() {
+        return direction == FlapCapture.DIRECTION_INCOMING;
+    }
+
+    /**
+     * Returns when this packet was recorded, in microseconds since the capture
+     * was started.
+     *
+     * @return this packet's capture timestamp, in microseconds
+     */
+    public final long getTimestamp() { return timestamp; }
+
+    /**
+     * Returns this packet's FLAP channel.
+     *
+     * @return this packet's FLAP channel
+     */
+    public final int getChannel() { return frame.get(1) & 0xff; }
+
+    /**
+     * Returns this packet's FLAP sequence number.
+     *
+     * @return this packet's FLAP sequence number
+     */
+    public final int getSeqnum() {
+        return ((frame.get(2) & 0xff) << 8) | (frame.get(3) & 0xff);
+    }
+
+    /**
+     * Returns this packet's data, not including its FLAP header.
+     *
+     * @return this packet's data
+     */
+    public final ByteBlock getData() { return frame.subBlock(6); }
+
+    /**
+     * Returns this packet as it appeared on the wire, including its six-byte
+     * FLAP header.
+     *
+     * @return the raw FLAP packet
+     */
+    public final ByteBlock getFrame() { return frame; }
+
+    public String toString() {
+        return "CapturedFlap: "
+                + (isIncoming() ? "incoming" : "outgoing")
+                + " at " + timestamp + "us, channel=" + getChannel()
+                + ", seqnum=" + getSeqnum()
+                + ", length=" + (frame.getLength() - 6);
+    }
+}
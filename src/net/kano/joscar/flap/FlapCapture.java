@@ -0,0 +1,287 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.flap;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Records the raw FLAP traffic passing through one or more
+ * <code>FlapProcessor</code>s to a compact binary capture file, for later
+ * inspection with a {@link FlapCaptureReader} or deterministic replay with a
+ * {@link FlapReplayer}.
+ * <br>
+ * <br>
+ * Incoming packets are recorded by a {@linkplain VetoableFlapPacketListener
+ * vetoable packet listener} placed ahead of every other listener (so that SNAC
+ * processors, which veto the packets they handle, do not hide them), and
+ * outgoing packets by a {@link FlapSendListener}. Each packet is stored as it
+ * appeared on the wire, along with its direction and the number of
+ * microseconds since the capture was started.
+ * <br>
+ * <br>
+ * A capture file has the following format; all values are big-endian:
+ * <pre>
+ * header:   int magic ("FLCP"), short version, long start time (ms since
+ *           the epoch)
+ * record:   byte direction, long timestamp (&micro;s since start), raw FLAP
+ *           packet (six-byte header, then data)
+ * index:    long offset of each record, in order
+ * trailer:  long offset of index, int record count, int magic ("FLIX")
+ * </pre>
+ * The index and trailer are only written when the capture is {@linkplain
+ * #close closed}; a capture that was not closed cleanly can still be read
+ * sequentially.
+ * <br>
+ * <br>
+ * A capture never interferes with the processors it is attached to: if
+ * writing to the capture file fails, the error is logged and capturing stops.
+ */
+public class FlapCapture
+        implements VetoableFlapPacketListener, FlapSendListener {
+    /** A direction value indicating a packet received from the server. */
+    public static final int DIRECTION_INCOMING = 0x00;
+    /** A direction value indicating a packet sent to the server. */
+    public static final int DIRECTION_OUTGOING = 0x01;
+
+    /** The first four bytes of a capture file, <code>"FLCP"</code>. */
+    static final int MAGIC = 0x464c4350;
+    /** The last four bytes of a closed capture file, <code>"FLIX"</code>. */
+    static final int TRAILER_MAGIC = 0x464c4958;
+    /** The capture file format version written by this class. */
+    static final int VERSION = 1;
+    /** The length of the capture file header. */
+    static final int HEADER_LEN = 4 + 2 + 8;
+    /** The length of the per-record prefix preceding each raw packet. */
+    static final int RECORD_PREFIX_LEN = 1 + 8;
+    /** The length of the capture file trailer. */
+    static final int TRAILER_LEN = 8 + 4 + 4;
+
+    /** A logger for reporting capture errors. */
+    private static final Logger logger
+            = Logger.getLogger("net.kano.joscar.flap");
+
+    /** The stream to which records are written. */
+    private final DataOutputStream out;
+    /** The value of <code>System.nanoTime</code> when capturing started. */
+    private final long startNanos;
+
+    /** The offset of the next record in the capture file. */
+    private long position = HEADER_LEN;
+    /** The offsets of the records written so far. */
+    private long[] offsets = new long[256];
+    /** The number of records written so far. */
+    private int count = 0;
+    /** Whether this capture has been closed or has failed. */
+    private boolean closed = false;
+
+    /**
+     * Creates a new capture writing to the given file, replacing any existing
+     * file.
+     *
+     * @param file the file to which packets should be recorded
+     * @throws IOException if an I/O error occurs while creating the file
+     */
+    public FlapCapture(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a new capture writing to the given stream. The stream is closed
+     * when this capture is {@linkplain #close closed}.
+     *
+     * @param out the stream to which packets should be recorded
+     * @throws IOException if an I/O error occurs while writing the capture
+     *         header
+     */
+    public FlapCapture(OutputStream out) throws IOException {
+        DefensiveTools.checkNull(out, "out");
+
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 8192));
+        this.startNanos = System.nanoTime();
+
+        this.out.writeInt(MAGIC);
+        this.out.writeShort(VERSION);
+        this.out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Starts recording the incoming and outgoing packets of the given FLAP
+     * processor.
+     *
+     * @param processor the FLAP processor whose traffic should be recorded
+     */
+    public final void attach(FlapProcessor processor) {
+        DefensiveTools.checkNull(processor, "processor");
+
+        processor.addFirstVetoablePacketListener(this);
+        processor.addSendListener(this);
+    }
+
+    /**
+     * Stops recording the traffic of the given FLAP processor.
+     *
+     * @param processor the FLAP processor whose traffic should no longer be
+     *        recorded
+     */
+    public final void detach(FlapProcessor processor) {
+        DefensiveTools.checkNull(processor, "processor");
+
+        processor.removeVetoablePacketListener(this);
+        processor.removeSendListener(this);
+    }
+
+    public Object handlePacket(FlapPacketEvent event) {
+        FlapPacket packet = event.getFlapPacket();
+        ByteBlock data = packet.getData();
+
+        synchronized(this) {
+            if (closed) return CONTINUE_PROCESSING;
+
+            try {
+                startRecord(DIRECTION_INCOMING, 6 + data.getLength());
+
+                out.writeByte(0x2a);
+                out.writeByte(packet.getChannel());
+                out.writeShort(packet.getSeqnum());
+                out.writeShort(data.getLength());
+                data.write(out);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        return CONTINUE_PROCESSING;
+    }
+
+    public synchronized void handleSentFlap(FlapProcessor processor,
+            ByteBlock frame) {
+        if (closed) return;
+
+        try {
+            startRecord(DIRECTION_OUTGOING, frame.getLength());
+
+            frame.write(out);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the prefix of a new record and adds it to the index. <b>This
+     * method must be called while holding a lock on this object.</b>
+     *
+     * @param direction the direction of the packet being recorded
+     * @param frameLen the length of the raw packet that will follow
+     * @throws IOException if an I/O error occurs
+     */
+    private void startRecord(int direction, int frameLen) throws IOException {
+        long micros = (System.nanoTime() - startNanos) / 1000;
+
+        out.writeByte(direction);
+        out.writeLong(micros);
+
+        if (count == offsets.length) {
+            long[] newOffsets = new long[offsets.length * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            offsets = newOffsets;
+        }
+        offsets[count++] = position;
+        position += RECORD_PREFIX_LEN + frameLen;
+    }
+
+    /**
+     * Stops capturing after a write error. <b>This method must be called while
+     * holding a lock on this object.</b>
+     *
+     * @param e the exception that was thrown
+     */
+    private void fail(IOException e) {
+        logger.warning("FLAP capture failed, no longer recording: "
+                + e.getMessage());
+
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Returns the number of packets recorded so far.
+     *
+     * @return the number of packets recorded by this capture
+     */
+    public synchronized final int getRecordCount() { return count; }
+
+    /**
+     * Returns whether this capture is still recording packets. A capture stops
+     * recording when it is {@linkplain #close closed} or when writing to the
+     * capture file fails.
+     *
+     * @return whether this capture is still recording
+     */
+    public synchronized final boolean isRecording() { return !closed; }
+
+    /**
+     * Stops recording, writes the capture file's index, and closes the
+     * underlying stream. Calling this method on a closed capture has no
+     * effect. Note that this does not detach the capture from any FLAP
+     * processors; packets they process afterwards are simply ignored.
+     *
+     * @throws IOException if an I/O error occurs while writing the index
+     */
+    public synchronized final void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            long indexOffset = position;
+            for (int i = 0; i < count; i++) out.writeLong(offsets[i]);
+
+            out.writeLong(indexOffset);
+            out.writeInt(count);
+            out.writeInt(TRAILER_MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+}
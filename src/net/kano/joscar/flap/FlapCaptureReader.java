@@ -0,0 +1,244 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.flap;
+
+import net.kano.joscar.BinaryTools;
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads a FLAP capture file written by a {@link FlapCapture}. The entire
+ * capture is read into memory when the reader is created; individual packets
+ * are then decoded on demand.
+ * <br>
+ * <br>
+ * If the capture file was closed cleanly, its index is used to locate each
+ * packet. Otherwise the file is scanned sequentially, stopping at the first
+ * partially written or malformed packet.
+ */
+public final class FlapCaptureReader {
+    /** The contents of the capture file. */
+    private final ByteBlock data;
+    /** When the capture was started, in milliseconds since the epoch. */
+    private final long startTime;
+    /** The offset of each record in the capture file. */
+    private final long[] offsets;
+    /** Whether the capture file was closed cleanly. */
+    private final boolean complete;
+
+    /**
+     * Reads the given capture file.
+     *
+     * @param file the capture file to read
+     * @throws IOException if an I/O error occurs or if the file is not a valid
+     *         FLAP capture
+     */
+    public FlapCaptureReader(File file) throws IOException {
+        this(readFile(file));
+    }
+
+    /**
+     * Reads a capture from the given block of data.
+     *
+     * @param data the contents of a capture file
+     * @throws IOException if the given block is not a valid FLAP capture
+     */
+    public FlapCaptureReader(ByteBlock data) throws IOException {
+        DefensiveTools.checkNull(data, "data");
+
+        int len = data.getLength();
+        if (len < FlapCapture.HEADER_LEN
+                || (int) BinaryTools.getUInt(data, 0) != FlapCapture.MAGIC) {
+            throw new IOException("not a FLAP capture file");
+        }
+        int version = BinaryTools.getUShort(data, 4);
+        if (version != FlapCapture.VERSION) {
+            throw new IOException("unsupported FLAP capture version "
+                    + version);
+        }
+
+        this.data = data;
+        this.startTime = data.getLong(6);
+
+        long[] index = readIndex(data);
+        this.complete = index != null;
+        this.offsets = complete ? index : scan(data);
+    }
+
+    /**
+     * Reads the entire contents of the given file.
+     *
+     * @param file the file to read
+     * @return a block containing the file's contents
+     * @throws IOException if an I/O error occurs
+     */
+    private static ByteBlock readFile(File file) throws IOException {
+        DefensiveTools.checkNull(file, "file");
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long len = raf.length();
+            if (len > Integer.MAX_VALUE) {
+                throw new IOException("FLAP capture file too large: " + len);
+            }
+            byte[] bytes = new byte[(int) len];
+            raf.readFully(bytes);
+            return ByteBlock.wrap(bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the record index from the end of the given capture, if the
+     * capture was closed cleanly.
+     *
+     * @param data the capture file's contents
+     * @return the offsets of each record, or <code>null</code> if the capture
+     *         has no valid index
+     */
+    private static long[] readIndex(ByteBlock data) {
+        int len = data.getLength();
+        if (len < FlapCapture.HEADER_LEN + FlapCapture.TRAILER_LEN) {
+            return null;
+        }
+
+        int trailer = len - FlapCapture.TRAILER_LEN;
+        if ((int) BinaryTools.getUInt(data, trailer + 12)
+                != FlapCapture.TRAILER_MAGIC) {
+            return null;
+        }
+
+        long indexOffset = data.getLong(trailer);
+        long count = BinaryTools.getUInt(data, trailer + 8);
+        if (indexOffset < FlapCapture.HEADER_LEN
+                || indexOffset + count * 8 != trailer) {
+            return null;
+        }
+
+        long[] offsets = new long[(int) count];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = data.getLong((int) indexOffset + i * 8);
+        }
+        return offsets;
+    }
+
+    /**
+     * Locates every complete record in the given capture by reading it
+     * sequentially.
+     *
+     * @param data the capture file's contents
+     * @return the offsets of each complete record
+     */
+    private static long[] scan(ByteBlock data) {
+        int len = data.getLength();
+        long[] offsets = new long[256];
+        int count = 0;
+
+        int pos = FlapCapture.HEADER_LEN;
+        while (pos + FlapCapture.RECORD_PREFIX_LEN + 6 <= len) {
+            int direction = data.get(pos) & 0xff;
+            if ((direction != FlapCapture.DIRECTION_INCOMING
+                    && direction != FlapCapture.DIRECTION_OUTGOING)
+                    || data.get(pos + FlapCapture.RECORD_PREFIX_LEN) != 0x2a) {
+                // this isn't a record; the rest of the file is garbage
+                break;
+            }
+
+            int frameLen = 6 + BinaryTools.getUShort(data,
+                    pos + FlapCapture.RECORD_PREFIX_LEN + 4);
+            int next = pos + FlapCapture.RECORD_PREFIX_LEN + frameLen;
+            if (next > len) break;
+
+            if (count == offsets.length) {
+                long[] newOffsets = new long[offsets.length * 2];
+                System.arraycopy(offsets, 0, newOffsets, 0, count);
+                offsets = newOffsets;
+            }
+            offsets[count++] = pos;
+            pos = next;
+        }
+
+        long[] result = new long[count];
+        System.arraycopy(offsets, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns when the capture was started, in milliseconds since the epoch.
+     *
+     * @return the capture's start time
+     */
+    public final long getStartTime() { return startTime; }
+
+    /**
+     * Returns whether the capture file was closed cleanly. An incomplete
+     * capture may be missing packets recorded just before it was cut off.
+     *
+     * @return whether the capture file contained a valid index
+     */
+    public final boolean isComplete() { return complete; }
+
+    /**
+     * Returns the number of packets in the capture.
+     *
+     * @return the number of captured packets
+     */
+    public final int getRecordCount() { return offsets.length; }
+
+    /**
+     * Returns the captured packet at the given index.
+     *
+     * @param index the index of the packet to return, starting at zero
+     * @return the captured packet at the given index
+     * @throws IndexOutOfBoundsException if <code>index</code> is negative or
+     *         not less than {@link #getRecordCount}
+     */
+    public final CapturedFlap getRecord(int index)
+            throws IndexOutOfBoundsException {
+        int pos = (int) offsets[index];
+
+        int direction = data.get(pos) & 0xff;
+        long timestamp = data.getLong(pos + 1);
+        int framePos = pos + FlapCapture.RECORD_PREFIX_LEN;
+        int frameLen = 6 + BinaryTools.getUShort(data, framePos + 4);
+
+        return new CapturedFlap(direction, timestamp,
+                data.subBlock(framePos, frameLen));
+    }
+}
@@ -35,10 +35,13 @@
 
 package net.kano.joscar.flap;
 
+import net.kano.joscar.BinaryTools;
 import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.LiveWritable;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Provides an interface to a FLAP command that contains FLAP data on a specific
@@ -75,4 +78,34 @@ public abstract class FlapCommand {
      * @throws IOException if an I/O error occurs
      */
     public abstract void writeData(OutputStream out) throws IOException;
+
+    /**
+     * Returns the length of this command's FLAP data, or <code>-1</code> if
+     * the length is not known without writing the data. Commands which return
+     * a length here should also override {@link #writeData(ByteBuffer)}.
+     * <br>
+     * <br>
+     * This method returns <code>-1</code> by default.
+     *
+     * @return the length of this command's FLAP data, or <code>-1</code> if it
+     *         is not known
+     */
+    public long getDataLength() {
+        return -1;
+    }
+
+    /**
+     * Writes this command's FLAP data to the given buffer. The default
+     * implementation writes the data through {@link #writeData(OutputStream)}.
+     *
+     * @param buf the buffer to which the FLAP data should be written, in
+     *        big-endian byte order
+     */
+    public void writeData(ByteBuffer buf) {
+        BinaryTools.write(buf, new LiveWritable() {
+            public void write(OutputStream out) throws IOException {
+                writeData(out);
+            }
+        });
+    }
 }
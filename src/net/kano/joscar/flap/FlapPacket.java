@@ -36,20 +36,21 @@
 package net.kano.joscar.flap;
 
 import net.kano.joscar.BinaryTools;
+import net.kano.joscar.BufferWritable;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
-import net.kano.joscar.LiveWritable;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a FLAP packet, containing a sequence number, channel, and FLAP
  * data.
  */
-public final class FlapPacket implements LiveWritable {
+public final class FlapPacket implements BufferWritable {
     /**
      * The "login" FLAP channel, channel {@value}.
      */
@@ -98,6 +99,12 @@ public final class FlapPacket implements LiveWritable {
      */
     private final FlapCommand command;
 
+    /**
+     * The length of this packet's FLAP data, or <code>-1</code> if it has not
+     * been computed yet.
+     */
+    private int dataLength = -1;
+
     /**
      * Generates a FLAP packet based on the given header and reading the FLAP
      * data from the given stream.
@@ -212,23 +219,9 @@ public final class FlapPacket implements LiveWritable {
      */
     public synchronized void write(OutputStream out)
             throws FlapDataLengthException, IOException {
-        if (block == null) {
-            ByteArrayOutputStream tmp = new ByteArrayOutputStream();
-
-            try {
-                command.writeData(tmp);
-            } catch (IOException impossible) { }
+        if (block == null) generateBlock();
 
-            block = ByteBlock.wrap(tmp.toByteArray());
-        }
-
-        int len = (int) block.getWritableLength();
-
-        if (len > MAX_DATA_LEN) {
-            // uh oh.
-            throw new FlapDataLengthException("data length (" + len + ") must "
-                    + "be <= " + MAX_DATA_LEN);
-        }
+        int len = (int) getWritableLength() - 6;
 
         BinaryTools.writeUByte(out, 0x2a);
         BinaryTools.writeUByte(out, channel);
@@ -238,6 +231,72 @@ public final class FlapPacket implements LiveWritable {
         block.write(out);
     }
 
+    /**
+     * Returns the length of this FLAP packet when written, including its
+     * six-byte header. The length is computed once. If this packet's FLAP
+     * command cannot report its {@linkplain FlapCommand#getDataLength data
+     * length}, the FLAP data are generated and stored locally.
+     *
+     * @return the length of this FLAP packet
+     * @throws FlapDataLengthException if the FLAP data length is too large to
+     *         hold in a FLAP packet
+     */
+    public synchronized long getWritableLength()
+            throws FlapDataLengthException {
+        if (dataLength == -1) {
+            long len = -1;
+            if (block == null) len = command.getDataLength();
+            if (len < 0) {
+                if (block == null) generateBlock();
+                len = block.getLength();
+            }
+
+            if (len > MAX_DATA_LEN) {
+                // uh oh.
+                throw new FlapDataLengthException("data length (" + len
+                        + ") must be <= " + MAX_DATA_LEN);
+            }
+            dataLength = (int) len;
+        }
+        return 6 + dataLength;
+    }
+
+    /**
+     * Writes this FLAP packet to the given buffer. Unless this packet's FLAP
+     * command cannot report its data length, the FLAP data are written
+     * straight into the buffer and are not stored locally.
+     *
+     * @param buf the buffer to which to write, in big-endian byte order
+     * @throws FlapDataLengthException if the FLAP data length is too large to
+     *         hold in a FLAP packet
+     */
+    public synchronized void write(ByteBuffer buf)
+            throws FlapDataLengthException {
+        int len = (int) getWritableLength() - 6;
+
+        buf.put((byte) 0x2a);
+        buf.put((byte) channel);
+        buf.putShort((short) seqnum);
+        buf.putShort((short) len);
+
+        if (block != null) block.write(buf);
+        else command.writeData(buf);
+    }
+
+    /**
+     * Generates this packet's FLAP data from its FLAP command and stores it
+     * locally.
+     */
+    private void generateBlock() {
+        ByteArrayOutputStream tmp = new ByteArrayOutputStream();
+
+        try {
+            command.writeData(tmp);
+        } catch (IOException impossible) { }
+
+        block = ByteBlock.wrap(tmp.toByteArray());
+    }
+
     public String toString() {
         return "FlapPacket (channel=" + channel + ", seq=" + seqnum + ")";
     }
@@ -45,6 +45,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.logging.Level;
@@ -114,9 +115,21 @@ public class FlapProcessor extends ConnProcessor {
     private final CopyOnWriteArrayList vetoablePacketListeners
             = new CopyOnWriteArrayList();
 
+    /**
+     * A list of listeners for outgoing FLAP packets.
+     */
+    private final CopyOnWriteArrayList sendListeners
+            = new CopyOnWriteArrayList();
+
     /** A lock for writing to the stream. */
     private final Object writeLock = new Object();
 
+    /**
+     * A buffer into which outgoing FLAP packets are written before being sent,
+     * reused for every packet. Only accessed while holding {@link #writeLock}.
+     */
+    private byte[] sendBuffer = new byte[1024];
+
     /** A lock for reading from the stream. */
     private final Object readLock = new Object();
 
@@ -170,6 +183,26 @@ public class FlapProcessor extends ConnProcessor {
         vetoablePacketListeners.addIfAbsent(listener);
     }
 
+    /**
+     * Adds a "vetoable packet listener" ahead of all vetoable packet listeners
+     * already registered, so that it sees every incoming FLAP packet before any
+     * other listener has a chance to halt its processing. If the given listener
+     * is already registered, it is moved to the front of the list.
+     *
+     * @param listener the listener to add
+     *
+     * @see #addVetoablePacketListener
+     */
+    public final void addFirstVetoablePacketListener(
+            VetoableFlapPacketListener listener) {
+        DefensiveTools.checkNull(listener, "listener");
+
+        synchronized(vetoablePacketListeners) {
+            vetoablePacketListeners.remove(listener);
+            vetoablePacketListeners.add(0, listener);
+        }
+    }
+
     /**
      * Removes the given vetoable packet listener from this FLAP processor's
      * list of vetoable packet listeners.
@@ -205,6 +238,28 @@ public class FlapProcessor extends ConnProcessor {
         packetListeners.remove(listener);
     }
 
+    /**
+     * Adds a listener for outgoing FLAP packets to this FLAP processor.
+     *
+     * @param listener the listener to add
+     */
+    public final void addSendListener(FlapSendListener listener) {
+        DefensiveTools.checkNull(listener, "listener");
+
+        sendListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener for outgoing FLAP packets from this FLAP processor.
+     *
+     * @param listener the listener to remove
+     */
+    public final void removeSendListener(FlapSendListener listener) {
+        DefensiveTools.checkNull(listener, "listener");
+
+        sendListeners.remove(listener);
+    }
+
     /**
      * Adds an exception handler for FLAP-related exceptions.
      *
@@ -417,9 +472,25 @@ public class FlapProcessor extends ConnProcessor {
 
             FlapPacket packet = new FlapPacket(seq, command);
 
-            ByteBlock block;
+            // the packet is written straight into our buffer, so sending a
+            // packet normally allocates nothing but the packet object itself
+            int len;
             try {
-                block = ByteBlock.createByteBlock(packet);
+                len = (int) packet.getWritableLength();
+                if (sendBuffer.length < len) {
+                    sendBuffer = new byte[Math.max(len,
+                            Math.min(sendBuffer.length * 2,
+                            6 + FlapPacket.MAX_DATA_LEN))];
+                }
+
+                ByteBuffer buf = ByteBuffer.wrap(sendBuffer, 0, len);
+                packet.write(buf);
+
+                if (buf.hasRemaining()) {
+                    throw new IllegalStateException("FLAP command wrote "
+                            + (len - buf.remaining()) + " bytes but reported "
+                            + "a length of " + len);
+                }
             } catch (Throwable t) {
                 handleException(FlapExceptionEvent.ERRTYPE_CMD_WRITE, t,
                         command);
@@ -428,17 +499,31 @@ public class FlapProcessor extends ConnProcessor {
 
             if (logFine) {
                 logger.fine("Sending Flap packet " + packet + ": "
-                        + block.getLength() + " total bytes");
+                        + len + " total bytes");
             }
 
-            // we trust ByteBlock.write so much that we don't even check for
-            // Throwable!
             try {
-                block.write(out);
+                out.write(sendBuffer, 0, len);
             } catch (IOException e) {
                 handleException(FlapExceptionEvent.ERRTYPE_CONNECTION_ERROR, e);
                 return;
             }
+
+            if (!sendListeners.isEmpty()) {
+                ByteBlock frame = ByteBlock.wrap(sendBuffer, 0, len);
+
+                for (Iterator it = sendListeners.iterator(); it.hasNext();) {
+                    FlapSendListener listener = (FlapSendListener) it.next();
+
+                    try {
+                        listener.handleSentFlap(this, frame);
+                    } catch (Throwable t) {
+                        handleException(
+                                FlapExceptionEvent.ERRTYPE_PACKET_LISTENER, t,
+                                listener);
+                    }
+                }
+            }
         }
 
         if (logFiner) logger.finer("Finished sending Flap command");
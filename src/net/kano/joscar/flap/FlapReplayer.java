@@ -0,0 +1,237 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.flap;
+
+import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Replays the incoming packets of a FLAP capture through a
+ * <code>FlapProcessor</code>, exercising the processor and everything built on
+ * top of it (such as a <code>ClientSnacProcessor</code> and its listeners)
+ * exactly as if the packets had been received from the server.
+ * <br>
+ * <br>
+ * Packets can be replayed at the speed at which they were recorded, at a
+ * multiple of that speed, or as fast as the processor can handle them. Only
+ * incoming packets are replayed; outgoing packets in the capture are skipped.
+ * Anything the processor sends in response goes to its attached output stream
+ * as usual, and is silently dropped if it has none.
+ * <br>
+ * <br>
+ * A replay is deterministic in that the same packets are always delivered in
+ * the same order with the same relative timing; whether the processor's
+ * listeners behave deterministically is up to them.
+ */
+public class FlapReplayer {
+    /** The capture being replayed. */
+    private final FlapCaptureReader capture;
+
+    /**
+     * The replay speed, as a multiple of the recorded speed; zero means as fast
+     * as possible.
+     */
+    private double speed = 1.0;
+
+    /**
+     * Creates a new replayer for the given capture, initially replaying at the
+     * recorded speed.
+     *
+     * @param capture the capture to replay
+     */
+    public FlapReplayer(FlapCaptureReader capture) {
+        DefensiveTools.checkNull(capture, "capture");
+
+        this.capture = capture;
+    }
+
+    /**
+     * Returns the capture replayed by this replayer.
+     *
+     * @return this replayer's capture
+     */
+    public final FlapCaptureReader getCapture() { return capture; }
+
+    /**
+     * Sets the speed at which packets are replayed, as a multiple of the speed
+     * at which they were recorded. A speed of <code>1.0</code> replays packets
+     * at the recorded speed, <code>2.0</code> twice as fast, and so on; a speed
+     * of <code>0</code> replays them as fast as possible, without any delay.
+     *
+     * @param speed the replay speed
+     * @throws IllegalArgumentException if <code>speed</code> is negative
+     */
+    public synchronized final void setSpeed(double speed)
+            throws IllegalArgumentException {
+        if (!(speed >= 0)) {
+            throw new IllegalArgumentException("speed must be non-negative: "
+                    + speed);
+        }
+
+        this.speed = speed;
+    }
+
+    /**
+     * Returns the speed at which packets are replayed, as a multiple of the
+     * recorded speed. A speed of <code>0</code> means packets are replayed as
+     * fast as possible.
+     *
+     * @return the replay speed
+     *
+     * @see #setSpeed
+     */
+    public synchronized final double getSpeed() { return speed; }
+
+    /**
+     * Replays every incoming packet in the capture through the given FLAP
+     * processor, blocking until all of them have been processed. The processor
+     * is attached to a stream of the captured packets for the duration of the
+     * replay, replacing any input stream it was attached to before.
+     *
+     * @param processor the FLAP processor through which to replay the capture
+     * @return the number of packets that were replayed
+     * @throws IOException if the processor throws an I/O exception while
+     *         reading a packet, or if the replay is interrupted
+     */
+    public final int replay(FlapProcessor processor) throws IOException {
+        DefensiveTools.checkNull(processor, "processor");
+
+        ReplayStream stream = new ReplayStream(getSpeed());
+        processor.attachToInput(stream);
+
+        int count = 0;
+        while (processor.readNextFlap()) count++;
+
+        return count;
+    }
+
+    /**
+     * An input stream of the incoming packets in the capture, optionally
+     * delaying each packet until its recorded time.
+     */
+    private class ReplayStream extends InputStream {
+        /** The replay speed, as passed to the replayer. */
+        private final double speed;
+        /** The value of <code>System.nanoTime</code> when replay started. */
+        private final long startNanos = System.nanoTime();
+        /** The timestamp of the first incoming packet. */
+        private long firstTimestamp = -1;
+
+        /** The index of the next record to examine. */
+        private int next = 0;
+        /** The packet currently being read. */
+        private ByteBlock frame = null;
+        /** The position within the current packet. */
+        private int pos = 0;
+
+        /**
+         * Creates a new replay stream at the given speed.
+         *
+         * @param speed the replay speed
+         */
+        public ReplayStream(double speed) {
+            this.speed = speed;
+        }
+
+        /**
+         * Ensures that a packet with unread bytes is current, advancing to the
+         * next incoming packet and waiting for its recorded time if necessary.
+         *
+         * @return whether any packets remain
+         * @throws IOException if the thread is interrupted while waiting
+         */
+        private boolean fill() throws IOException {
+            if (frame != null && pos < frame.getLength()) return true;
+
+            int count = capture.getRecordCount();
+            CapturedFlap record = null;
+            while (next < count) {
+                CapturedFlap candidate = capture.getRecord(next++);
+                if (candidate.isIncoming()) {
+                    record = candidate;
+                    break;
+                }
+            }
+            if (record == null) return false;
+
+            if (speed > 0) pace(record.getTimestamp());
+
+            frame = record.getFrame();
+            pos = 0;
+            return true;
+        }
+
+        /**
+         * Waits until the given packet timestamp is due.
+         *
+         * @param timestamp the timestamp of the next packet, in microseconds
+         * @throws IOException if the thread is interrupted while waiting
+         */
+        private void pace(long timestamp) throws IOException {
+            if (firstTimestamp == -1) firstTimestamp = timestamp;
+
+            long due = startNanos
+                    + (long) ((timestamp - firstTimestamp) * 1000 / speed);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("FLAP replay interrupted");
+                }
+            }
+        }
+
+        public int read() throws IOException {
+            if (!fill()) return -1;
+
+            return frame.get(pos++) & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+
+            int n = Math.min(len, frame.getLength() - pos);
+            frame.subBlock(pos, n).copyTo(b, off);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.flap;
+
+import net.kano.joscar.ByteBlock;
+
+/**
+ * Provides an interface for listening for outgoing FLAP packets written by a
+ * <code>FlapProcessor</code>.
+ *
+ * @see FlapProcessor#addSendListener
+ */
+public interface FlapSendListener {
+    /**
+     * Called after a FLAP packet has been written to a
+     * <code>FlapProcessor</code>'s output stream. The given block contains the
+     * entire packet as it was written, including its six-byte FLAP header.
+     * <br>
+     * <br>
+     * Note that <code>frame</code> is backed by the processor's send buffer,
+     * which is reused for the next packet; the block is only valid for the
+     * duration of this call and must be copied if it is to be kept. This
+     * method is called while the processor's write lock is held, so it should
+     * return quickly.
+     *
+     * @param processor the FLAP processor on which the packet was sent
+     * @param frame the raw FLAP packet that was sent
+     */
+    void handleSentFlap(FlapProcessor processor, ByteBlock frame);
+}
@@ -35,10 +35,13 @@
 
 package net.kano.joscar.flapcmd;
 
+import net.kano.joscar.BinaryTools;
 import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.LiveWritable;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a single SNAC command that can write a single SNAC packet
@@ -150,4 +153,36 @@ public abstract class SnacCommand {
      * @throws IOException if an I/O error occurs
      */
     public abstract void writeData(OutputStream out) throws IOException;
+
+    /**
+     * Returns the length of this command's SNAC data block, or <code>-1</code>
+     * if the length is not known without writing the data block. Commands
+     * which return a length here should also override {@link
+     * #writeData(ByteBuffer)}, so that a whole SNAC packet can be written
+     * straight into a buffer of the right size.
+     * <br>
+     * <br>
+     * This method returns <code>-1</code> by default.
+     *
+     * @return the length of this command's SNAC data block, or <code>-1</code>
+     *         if it is not known
+     */
+    public long getDataLength() {
+        return -1;
+    }
+
+    /**
+     * Writes this command's SNAC data block to the given buffer. The default
+     * implementation writes the data through {@link #writeData(OutputStream)}.
+     *
+     * @param buf the buffer to which to write the SNAC data, in big-endian
+     *        byte order
+     */
+    public void writeData(ByteBuffer buf) {
+        BinaryTools.write(buf, new LiveWritable() {
+            public void write(OutputStream out) throws IOException {
+                writeData(out);
+            }
+        });
+    }
 }
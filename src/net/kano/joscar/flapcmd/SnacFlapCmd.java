@@ -42,6 +42,7 @@ import net.kano.joscar.flap.FlapPacket;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A FLAP command that contains a SNAC packet as its FLAP data. This is how
@@ -109,6 +110,14 @@ public class SnacFlapCmd extends FlapCommand {
         packet.write(out);
     }
 
+    public long getDataLength() {
+        return packet == null ? -1 : packet.getWritableLength();
+    }
+
+    public void writeData(ByteBuffer buf) {
+        packet.write(buf);
+    }
+
     public String toString() {
         return "SnacFlapCmd: packet=" + packet;
     }
@@ -36,17 +36,19 @@
 package net.kano.joscar.flapcmd;
 
 import net.kano.joscar.BinaryTools;
+import net.kano.joscar.BufferWritable;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
 import net.kano.joscar.LiveWritable;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Represents a single "packet" or SNAC command sent over a FLAP connection.
  */
-public final class SnacPacket implements LiveWritable {
+public final class SnacPacket implements BufferWritable {
     /**
      * A <code>SnacCommand</code> to use in writing the SNAC data to a stream.
      */
@@ -64,6 +66,16 @@ public final class SnacPacket implements LiveWritable {
     private final short flag2;
     /** The SNAC data block, if read from an input stream. */
     private final ByteBlock block;
+    /**
+     * The SNAC data block generated by the SNAC command, if the command could
+     * not report its data length without generating it.
+     */
+    private ByteBlock generated = null;
+    /**
+     * The total length of this packet when written, or <code>-1</code> if it
+     * has not been computed yet.
+     */
+    private long writableLength = -1;
 
     /**
      * Returns <code>true</code> if the given block of data represents a valid
@@ -206,14 +218,69 @@ public final class SnacPacket implements LiveWritable {
         return block;
     }
 
+    /**
+     * Returns the length of this packet when written, including its ten-byte
+     * header. The length is computed once; if this packet's SNAC command
+     * cannot report its {@linkplain SnacCommand#getDataLength data length},
+     * the command's data block is generated and kept for writing.
+     *
+     * @return the length of this SNAC packet
+     */
+    public synchronized long getWritableLength() {
+        if (writableLength == -1) {
+            long dataLen;
+            if (snacCommand == null) {
+                dataLen = block.getLength();
+            } else {
+                dataLen = snacCommand.getDataLength();
+                if (dataLen < 0) {
+                    generated = ByteBlock.createByteBlock(new LiveWritable() {
+                        public void write(OutputStream out)
+                                throws IOException {
+                            snacCommand.writeData(out);
+                        }
+                    });
+                    dataLen = generated.getLength();
+                }
+            }
+            writableLength = 10 + dataLen;
+        }
+        return writableLength;
+    }
+
     public void write(OutputStream out) throws IOException {
         BinaryTools.writeUShort(out, family);
         BinaryTools.writeUShort(out, command);
         BinaryTools.writeUByte(out, flag1);
         BinaryTools.writeUByte(out, flag2);
         BinaryTools.writeUInt(out, reqid);
-        if (snacCommand != null) snacCommand.writeData(out);
-        else if (block != null) block.write(out);
+
+        ByteBlock data = getDataBlock();
+        if (data != null) data.write(out);
+        else snacCommand.writeData(out);
+    }
+
+    public void write(ByteBuffer buf) {
+        buf.putShort((short) family);
+        buf.putShort((short) command);
+        buf.put((byte) flag1);
+        buf.put((byte) flag2);
+        buf.putInt((int) reqid);
+
+        ByteBlock data = getDataBlock();
+        if (data != null) data.write(buf);
+        else snacCommand.writeData(buf);
+    }
+
+    /**
+     * Returns the block of SNAC data that should be written for this packet,
+     * or <code>null</code> if the data should be written by this packet's SNAC
+     * command.
+     *
+     * @return the SNAC data block to write, or <code>null</code>
+     */
+    private synchronized ByteBlock getDataBlock() {
+        return snacCommand == null ? block : generated;
     }
 
     public String toString() {
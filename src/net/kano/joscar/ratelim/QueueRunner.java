@@ -42,103 +42,151 @@ import net.kano.joscar.snac.ClientSnacProcessor;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * "Runs" a set of <code>RateQueue</code>s, dequeuing SNACs at appropriate
- * times. Note that this class does not create its own thread; intended usage
- * is as follows:
- * <pre>
-QueueRunner runner = new QueueRunner();
-new Thread(runner).start();
- * </pre>
+ * times. Rather than polling every queue, each queue which has requests
+ * waiting is scheduled on a <code>ScheduledExecutorService</code> for the
+ * exact time at which its next request may be sent; when that time comes,
+ * only that queue is examined. A queue with no waiting requests (or whose
+ * connection is paused) is not scheduled at all until it is {@linkplain
+ * #update(RateQueue) updated}. Updating a queue simply schedules it to be
+ * examined immediately; all examination of queues takes place on the
+ * scheduler thread.
+ * <br>
+ * <br>
+ * By default every queue runner shares a single daemon scheduler thread, so
+ * the number of threads does not grow with the number of connections.
  */
-class QueueRunner implements Runnable {
-    /** A lock used in synchronizing updates with the running thread. */
-    private final Object lock = new Object();
+class QueueRunner {
+    /** A logger to log rate-related events. */
+    private static final Logger logger
+            = Logger.getLogger("net.kano.joscar.ratelim");
 
-    /** Whether or not this queue has been updated. */
-    private boolean updated = true;
+    /** The scheduler shared by default among all queue runners. */
+    private static ScheduledExecutorService sharedExecutor = null;
+
+    /**
+     * Returns the scheduler shared by default among all queue runners,
+     * creating it if necessary.
+     *
+     * @return the shared queue scheduler
+     */
+    private static synchronized ScheduledExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "joscar rate queue runner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+
+    /** The scheduler on which queues are run. */
+    private final ScheduledExecutorService executor;
 
     /** The list of queues to "run." */
     private final Set queues = new CopyOnWriteArraySet();
 
-    public void run() {
-        long minWait = 0;
-        for (;;) {
-            synchronized(lock) {
-                if (!updated) {
-                    // if we haven't been updated, we need to wait until a
-                    // call to update() or until we need to send the next
-                    // command (this time is specified in minWait, if non-
-                    // zero)
-                    try {
-                        if (minWait == 0) lock.wait();
-                        else lock.wait(minWait);
-                    } catch (InterruptedException ignored) { }
-                }
-
-                // and set this flag back to off while we're in the lock
-                updated = false;
-            }
+    /**
+     * Creates a new queue runner which uses the shared scheduler thread.
+     */
+    public QueueRunner() {
+        this(getSharedExecutor());
+    }
 
-            // now we go through the queues to send any "ready" commands and
-            // figure out when the next command should be sent (so we can
-            // wait that long in the next iteration of the outer loop)
-            minWait = 0;
-            for (Iterator it = queues.iterator(); it.hasNext();) {
-                RateQueue queue = (RateQueue) it.next();
-
-                boolean finished;
-                long wait = 0;
-                synchronized(queue) {
-                    // if the queue is paused or there aren't any requests,
-                    // we can skip it
-                    if (queue.getParentMgr().isPaused()
-                            || !queue.hasRequests()) {
-                        continue;
-                    }
-
-                    // if there are one or more commands that can be sent
-                    // right now, dequeue them
-                    if (isReady(queue)) dequeueReady(queue);
-
-                    // see whether the queue needs to be waited upon (if it
-                    // doesn't have any queued commands, there's nothing to
-                    // wait for -- we'll be notified with a call to
-                    // update() if any are added)
-                    finished = !queue.hasRequests();
-
-                    // and, if necessary, compute how long we need to wait
-                    // for this queue (the time until the next command can
-                    // be sent)
-                    if (!finished) wait = getWaitTime(queue);
-                }
+    /**
+     * Creates a new queue runner which runs queues on the given scheduler.
+     *
+     * @param executor the scheduler on which to run queues
+     */
+    QueueRunner(ScheduledExecutorService executor) {
+        DefensiveTools.checkNull(executor, "executor");
 
-                // and if there's nothing more to wait for, move on to the
-                // next queue
-                if (finished) continue;
+        this.executor = executor;
+    }
 
-                // we make sure wait isn't zero, because that would cause us
-                // to wait forever, which we don't want to do unless we
-                // explicitly decide to do so.
-                if (wait < 1) wait = 1;
+    /**
+     * Schedules the given queue to be run after the given delay. If the queue
+     * is already scheduled to run no later than that, no change takes place.
+     *
+     * @param queue the queue to schedule
+     * @param wait the number of milliseconds to wait before running the queue
+     */
+    private void schedule(final RateQueue queue, long wait) {
+        queue.scheduleRun(executor, new Runnable() {
+            public void run() {
+                runQueue(queue);
+            }
+        }, wait);
+    }
 
-                // now change the minimum waiting time if necessary
-                if (minWait == 0 || wait < minWait)  minWait = wait;
+    /**
+     * Sends any "ready" requests in the given queue and, if requests remain,
+     * schedules the queue's next run for the time at which the next request
+     * can be sent. This is called on the scheduler thread.
+     *
+     * @param queue the queue whose scheduled time has come
+     */
+    private void runQueue(RateQueue queue) {
+        // this must come first, so that an update while we're running
+        // schedules another run rather than being ignored
+        queue.scheduledRunStarted();
+
+        // if the queue is paused, there's nothing to do until we're told
+        // to wake up in a call to update()
+        if (!queue.isRunnerActive() || queue.getParentMgr().isPaused()) return;
+
+        long wait;
+        try {
+            synchronized(queue) {
+                // if there are one or more commands that can be sent right
+                // now, dequeue them
+                if (isReady(queue)) dequeueReady(queue);
+
+                // if there aren't any more queued commands, there's nothing
+                // to wait for -- we'll be notified with a call to update() if
+                // any are added
+                if (!queue.hasRequests()) return;
+
+                // compute how long we need to wait for this queue (the time
+                // until the next command can be sent)
+                wait = getWaitTime(queue);
             }
+        } catch (Throwable t) {
+            logger.log(Level.WARNING, "Exception while running rate queue", t);
+            return;
         }
+
+        // we make sure wait isn't zero, so we don't spin on a queue whose
+        // wait time is being rounded down
+        schedule(queue, Math.max(wait, 1));
     }
 
     /**
-     * Returns the "optimal wait time" for the given queue.
+     * Returns the "optimal wait time" for the given queue. This is the time
+     * until the next request can be sent such that all of the queue's waiting
+     * requests are paced evenly, rather than sent in a burst followed by a
+     * wait for each remaining request.
      *
      * @param queue a rate queue
      * @return the optimal wait time for the given queue
      *
-     * @see RateClassMonitor#getOptimalWaitTime()
+     * @see RateClassMonitor#getPacedWaitTime(int)
      */
     private long getWaitTime(RateQueue queue) {
-        return queue.getRateClassMonitor().getOptimalWaitTime();
+        return queue.getRateClassMonitor().getPacedWaitTime(
+                queue.getQueueSize());
     }
 
     /**
@@ -173,7 +221,7 @@ class QueueRunner implements Runnable {
     }
 
     /**
-     * Tells the queue runner thread that the given connection queue manager has
+     * Tells the queue runner that the given connection queue manager has
      * been updated. (This indicates to the queue runner that it should
      * recalculate when to next send SNAC requests in queues under the given
      * queue manager.)
@@ -181,7 +229,11 @@ class QueueRunner implements Runnable {
      * @param updated the connection queue manager that has been updated
      */
     public void update(ConnectionQueueMgr updated) {
-        forceUpdate();
+        for (Iterator it = queues.iterator(); it.hasNext();) {
+            RateQueue queue = (RateQueue) it.next();
+
+            if (queue.getParentMgr() == updated) schedule(queue, 0);
+        }
     }
 
     /**
@@ -192,25 +244,17 @@ class QueueRunner implements Runnable {
      * @param updated the rate queue that has been updated
      */
     public void update(RateQueue updated) {
-        forceUpdate();
+        schedule(updated, 0);
     }
 
     /**
-     * Tells the queue runner thread that a major change has taken place. This
+     * Tells the queue runner that a major change has taken place. This
      * indicates to the queue runner that it should recalculate when to next
      * send SNAC requests in all registered queues.
      */
     public void update() {
-        forceUpdate();
-    }
-
-    /**
-     * Tells the queue runner to recalculate SNAC queue wait times.
-     */
-    private void forceUpdate() {
-        synchronized(lock) {
-            updated = true;
-            lock.notifyAll();
+        for (Iterator it = queues.iterator(); it.hasNext();) {
+            schedule((RateQueue) it.next(), 0);
         }
     }
 
@@ -223,6 +267,7 @@ class QueueRunner implements Runnable {
         DefensiveTools.checkNull(queue, "queue");
 
         queues.add(queue);
+        queue.setRunnerActive(true);
 
         update(queue);
     }
@@ -236,6 +281,9 @@ class QueueRunner implements Runnable {
         DefensiveTools.checkNull(rateQueues, "rateQueues");
 
         queues.addAll(Arrays.asList(rateQueues));
+        for (int i = 0; i < rateQueues.length; i++) {
+            rateQueues[i].setRunnerActive(true);
+        }
     }
 
     /**
@@ -247,6 +295,7 @@ class QueueRunner implements Runnable {
         DefensiveTools.checkNull(queue, "queue");
 
         queues.remove(queue);
+        queue.setRunnerActive(false);
     }
 
     /**
@@ -259,5 +308,8 @@ class QueueRunner implements Runnable {
         DefensiveTools.checkNull(rateQueues, "rateQueues");
 
         queues.removeAll(Arrays.asList(rateQueues));
+        for (int i = 0; i < rateQueues.length; i++) {
+            rateQueues[i].setRunnerActive(false);
+        }
     }
 }
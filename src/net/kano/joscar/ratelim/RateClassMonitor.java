@@ -361,9 +361,156 @@ public class RateClassMonitor {
         return Math.max(toWait, 0);
     }
 
+    /**
+     * Returns what the rate average would be after sending the given number of
+     * commands in this monitor's associated rate class all at once, at the
+     * current time.
+     *
+     * @param count the number of hypothetical commands
+     * @return the projected rate average after sending the given number of
+     *         commands
+     */
+    public final long getProjectedAvg(int count) {
+        return getProjectedAvg(count, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns what the rate average would be after sending the given number of
+     * commands in this monitor's associated rate class all at once, at the
+     * given time. If <code>count</code> is zero, this is simply the current
+     * running average.
+     *
+     * @param count the number of hypothetical commands
+     * @param time the time at which the hypothetical commands would be sent,
+     *        in milliseconds since the unix epoch
+     * @return the projected rate average after sending the given number of
+     *         commands
+     */
+    public synchronized final long getProjectedAvg(int count, long time) {
+        DefensiveTools.checkRange(count, "count", 0);
+
+        long winSize = rateInfo.getWindowSize();
+        long max = rateInfo.getMax();
+        long avg = runningAvg;
+        long prev = last;
+
+        for (int i = 0; i < count; i++) {
+            if (prev != -1) {
+                avg = Math.min(max, (avg * (winSize - 1) + (time - prev))
+                        / winSize);
+            }
+            prev = time;
+        }
+
+        return avg;
+    }
+
+    /**
+     * Returns how long one must wait before the given number of commands could
+     * be sent in this monitor's associated rate class all at once, without the
+     * rate average falling below the rate limit (or the clear limit, if
+     * {@linkplain #isLimited currently rate limited}) plus the {@linkplain
+     * #getErrorMargin error margin}. Callers can use this value to decide
+     * ahead of time whether to delay, merge, or drop low-priority traffic.
+     * <br>
+     * <br>
+     * If the given number of commands could never be sent at once (that is,
+     * if <code>count</code> is greater than the {@linkplain #getMaxCmdCount
+     * maximum command count}), <code>-1</code> is returned.
+     *
+     * @param count the number of commands that would be sent
+     * @return how long one must wait before sending the given number of
+     *         commands at once, or <code>-1</code> if that will never be
+     *         possible
+     */
+    public synchronized final long getTimeUntilEligible(int count) {
+        DefensiveTools.checkRange(count, "count", 0);
+
+        if (count == 0) return 0;
+
+        long winSize = rateInfo.getWindowSize();
+        long max = rateInfo.getMax();
+        long minAvg = getMinSafeAvg() + getErrorMargin();
+
+        // with a window of one, every command after the first would leave an
+        // average of zero
+        if (winSize <= 1 && count > 1) return -1;
+
+        // work backwards from the last command to find the smallest average
+        // that the first command may leave behind
+        long firstAvg = minAvg;
+        for (int i = 1; i < count && firstAvg <= max; i++) {
+            firstAvg = (firstAvg * winSize + winSize - 2) / (winSize - 1);
+        }
+        if (firstAvg > max) return -1;
+
+        // nothing has been sent yet, so the first command leaves the average
+        // untouched
+        if (last == -1) return runningAvg >= firstAvg ? 0 : -1;
+
+        long minLastDiff = (winSize * firstAvg) - (runningAvg * (winSize - 1));
+        long sinceLast = System.currentTimeMillis() - last;
+
+        return Math.max(minLastDiff - sinceLast + 1, 0);
+    }
+
+    /**
+     * Returns the shortest interval at which the given number of commands
+     * could be sent in this monitor's associated rate class, evenly spaced
+     * starting from the last command sent, without the rate average ever
+     * falling below the rate limit (or the clear limit, if {@linkplain
+     * #isLimited currently rate limited}) plus the {@linkplain #getErrorMargin
+     * error margin}. A return value of zero means the commands can be sent
+     * all at once.
+     * <br>
+     * <br>
+     * Spacing a backlog of commands this way keeps the average steadily above
+     * the limit, instead of sending as many commands as possible at once and
+     * then waiting at the edge of the limit for each subsequent command.
+     *
+     * @param count the number of commands that would be sent
+     * @return the interval at which the given number of commands could be
+     *         sent, in milliseconds
+     */
+    public synchronized final long getPacedInterval(int count) {
+        DefensiveTools.checkRange(count, "count", 0);
+
+        if (count == 0) return 0;
+
+        long winSize = rateInfo.getWindowSize();
+        long minAvg = getMinSafeAvg() + getErrorMargin();
+
+        // with sends spaced d apart, the average after k sends is
+        // d + (avg - d) * r^k, where r = (winSize - 1) / winSize; we solve for
+        // the smallest d which keeps the average after the last send at or
+        // above the minimum
+        double decay = Math.pow((winSize - 1) / (double) winSize, count);
+        double interval = (minAvg - runningAvg * decay) / (1 - decay);
+
+        return Math.max(0, (long) Math.ceil(interval));
+    }
+
+    /**
+     * Returns how long one should wait before sending the next of the given
+     * number of commands, if those commands are to be {@linkplain
+     * #getPacedInterval paced evenly}. This is never less than the {@linkplain
+     * #getOptimalWaitTime optimal wait time}.
+     *
+     * @param count the number of commands waiting to be sent
+     * @return how long one should wait before sending the next command
+     */
+    public synchronized final long getPacedWaitTime(int count) {
+        long wait = getOptimalWaitTime();
+        if (last == -1) return wait;
+
+        long sinceLast = System.currentTimeMillis() - last;
+        return Math.max(wait, getPacedInterval(count) - sinceLast);
+    }
+
     /**
      * Returns the number of commands in this rate class that <i>could</i> be
-     * sent immediately, without being rate limited.
+     * sent immediately, without being rate limited. This is the burst capacity
+     * currently remaining in this rate class.
      *
      * @return the number of commands in this rate class that could be sent
      *         immediately without being rate limited
@@ -398,7 +545,9 @@ public class RateClassMonitor {
      *         associated rate class without being rate-limited
      */
     private synchronized int getPossibleCmdCount(long currentAvg) {
-        long diff = System.currentTimeMillis() - last;
+        // if nothing has been sent yet, the first command leaves the average
+        // untouched
+        long diff = last == -1 ? currentAvg : System.currentTimeMillis() - last;
         long winSize = rateInfo.getWindowSize();
         long limited = getMinSafeAvg() + getErrorMargin();
         long avg = currentAvg;
@@ -69,16 +69,13 @@ import java.util.Map;
  * ConnectionQueueMgr#getRateMonitor getRateMonitor}() </code></li>
  * </ul>
  *
- * One may also wish to note that each instance of
- * <code>RateLimitingQueueMgr</code> starts its own thread to manage the queue.
- * It may be desirable to add a single rate limiting queue manager to every SNAC
- * processor, or to split them up by giving each logical OSCAR connection (that
- * is, each screenname) its own instance, or to give each SNAC processor its
- * own. At the time of this writing, the threading / queue management code is
- * not optimal, and it may consume a rather large amount of CPU when added to
- * too many SNAC processors. In buzzword terms, it may not scale well. Thus, for
- * now, it may be recommended to give each SNAC processor its own individual
- * <code>RateLimitingQueueMgr</code>.
+ * One may also wish to note that <code>RateLimitingQueueMgr</code>s do not
+ * poll their queues. Each rate queue with requests waiting is scheduled for
+ * the exact time at which its next request may be sent, and all
+ * <code>RateLimitingQueueMgr</code>s share a single daemon scheduler thread.
+ * Thus it is reasonable to give each SNAC processor its own
+ * <code>RateLimitingQueueMgr</code> as well as to share a single instance among
+ * many SNAC processors.
  * <br>
  * <br>
  * A <code>RateLimitingQueueMgr</code> delegates most actual functionality to
@@ -93,16 +90,13 @@ public class RateLimitingQueueMgr implements SnacQueueManager {
     /** A map from SNAC processors to connection managers. */
     private final Map connMgrs = new IdentityHashMap();
 
-    /** A thread to "run" the SNAC queues controlled by this queue manager. */
+    /** An object to "run" the SNAC queues controlled by this queue manager. */
     private final QueueRunner runner = new QueueRunner();
-    {
-        new Thread(runner).start();
-    }
 
     /**
      * Returns this rate manager's "queue runner."
      *
-     * @return this rate manager's queue runner thread object
+     * @return this rate manager's queue runner
      */
     final QueueRunner getRunner() { return runner; }
 
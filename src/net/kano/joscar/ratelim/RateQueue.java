@@ -40,6 +40,9 @@ import net.kano.joscar.snac.SnacRequest;
 
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +66,21 @@ public class RateQueue {
     /** The rate class monitor for this rate queue. */
     private final RateClassMonitor rateMonitor;
 
+    /** A lock for the queue runner's scheduling state. */
+    private final Object runLock = new Object();
+
+    /** Whether this queue is currently registered with a queue runner. */
+    private boolean runnerActive = false;
+
+    /**
+     * The queue runner's pending run of this queue, or <code>null</code> if
+     * none is scheduled.
+     */
+    private ScheduledFuture scheduledRun = null;
+
+    /** The time at which {@link #scheduledRun} will run. */
+    private long scheduledRunTime = -1;
+
     /**
      * Creates a new rate queue with the given "parent" connection queue manager
      * using the given rate monitor.
@@ -159,4 +177,72 @@ public class RateQueue {
     synchronized void clear() {
         queue.clear();
     }
+
+    /**
+     * Sets whether this queue is currently registered with a queue runner.
+     * Unregistering a queue cancels any scheduled run.
+     *
+     * @param active whether this queue is registered with a queue runner
+     */
+    void setRunnerActive(boolean active) {
+        synchronized(runLock) {
+            runnerActive = active;
+
+            if (!active && scheduledRun != null) {
+                scheduledRun.cancel(false);
+                scheduledRun = null;
+                scheduledRunTime = -1;
+            }
+        }
+    }
+
+    /**
+     * Returns whether this queue is currently registered with a queue runner.
+     *
+     * @return whether this queue is registered with a queue runner
+     */
+    boolean isRunnerActive() {
+        synchronized(runLock) {
+            return runnerActive;
+        }
+    }
+
+    /**
+     * Schedules the given run of this queue on the given scheduler after the
+     * given delay, unless a run is already scheduled no later than that or
+     * this queue is not registered with a queue runner. A run scheduled for a
+     * later time is replaced.
+     *
+     * @param executor the scheduler on which to schedule the run
+     * @param run the task which will run this queue
+     * @param wait the number of milliseconds to wait before running
+     */
+    void scheduleRun(ScheduledExecutorService executor, Runnable run,
+            long wait) {
+        long runTime = System.currentTimeMillis() + wait;
+
+        synchronized(runLock) {
+            if (!runnerActive) return;
+
+            if (scheduledRun != null) {
+                if (scheduledRunTime <= runTime) return;
+
+                scheduledRun.cancel(false);
+            }
+
+            scheduledRun = executor.schedule(run, wait, TimeUnit.MILLISECONDS);
+            scheduledRunTime = runTime;
+        }
+    }
+
+    /**
+     * Forgets the queue runner's pending run of this queue, because that run
+     * has started.
+     */
+    void scheduledRunStarted() {
+        synchronized(runLock) {
+            scheduledRun = null;
+            scheduledRunTime = -1;
+        }
+    }
 }
@@ -37,7 +37,6 @@ package net.kano.joscar.rv;
 
 import net.kano.joscar.CopyOnWriteArrayList;
 import net.kano.joscar.DefensiveTools;
-import net.kano.joscar.OscarTools;
 import net.kano.joscar.SeqNum;
 import net.kano.joscar.flap.FlapProcessor;
 import net.kano.joscar.flapcmd.SnacCommand;
@@ -56,8 +55,9 @@ import net.kano.joscar.snaccmd.icbm.RvResponse;
 import net.kano.joscar.snaccmd.icbm.SendRvIcbm;
 
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.logging.Level;
@@ -121,6 +121,16 @@ import java.util.logging.Logger;
  * ignored</i>.
  * <br>
  * <br>
+ * Sessions which have neither sent nor received a rendezvous command for
+ * longer than the {@linkplain #setSessionIdleTimeout session idle timeout} are
+ * forgotten, so that abandoned file transfer, Direct IM, and voice sessions do
+ * not accumulate. If a command for a forgotten session arrives later, a new
+ * session is created for it as usual. Since a file transfer or Direct IM
+ * connection carries its data outside of rendezvous commands, applications
+ * should {@linkplain #touchSession touch} a session as data flows over its
+ * connection so that it is not forgotten while in use.
+ * <br>
+ * <br>
  * <code>RvProcessor</code> uses the Java Logging API namespace
  * <code>"net.kano.joscar.rv"</code>, logging various events at the levels
  * <code>Level.FINE</code> and <code>Level.FINER</code>, in order to, hopefully,
@@ -153,27 +163,44 @@ public class RvProcessor {
     public static final Object ERRTYPE_RV_SESSION_LISTENER
             = "ERRTYPE_RV_SESSION_LISTENER";
 
+    /**
+     * The default {@linkplain #setSessionIdleTimeout session idle timeout}, in
+     * milliseconds: thirty minutes.
+     */
+    public static final long SESSION_IDLE_TIMEOUT_DEFAULT = 30 * 60 * 1000;
+
     /** A logger used to log RV-related events. */
     private static final Logger logger = Logger.getLogger("net.kano.joscar.rv");
 
     /** The SNAC processor to which this RV processor is attached. */
     private ClientSnacProcessor snacProcessor = null;
 
-    /** A lock for using or modifying session-related fields. */
-    private final Object sessionLock = new Object();
-
     /** An object used to generate sequential RV session ID's. */
     private SeqNum sessionId = new SeqNum(Long.MIN_VALUE, Long.MAX_VALUE,
             new Random().nextLong());
 
     /** The sessions being managed by this RV processor. */
-    private Map sessions = new HashMap();
+    private final RvSessionTable sessions = new RvSessionTable();
+
+    /**
+     * The number of milliseconds a session may be idle before it is forgotten,
+     * or <code>0</code> if sessions never expire.
+     */
+    private volatile long sessionIdleTimeout = SESSION_IDLE_TIMEOUT_DEFAULT;
+
+    /** The time, in milliseconds, at which to next expire idle sessions. */
+    private volatile long nextExpiry = 0;
 
     /** The "new session listeners" attached to this processor. */
     private CopyOnWriteArrayList rvListeners = new CopyOnWriteArrayList();
 
-    /** The <code>RvCommand</code> factories attached to this processor. */
-    private Map rvFactories = new HashMap();
+    /**
+     * The <code>RvCommand</code> factories attached to this processor, keyed
+     * by {@linkplain CapabilityBlock#intern canonical} capability blocks so
+     * that looking up an incoming rendezvous's factory is an identity
+     * comparison.
+     */
+    private Map rvFactories = new IdentityHashMap();
 
     /**
      * The packet listener that is attached to whichever SNAC processor this RV
@@ -334,7 +361,8 @@ public class RvProcessor {
             RvCommandFactory factory) {
         DefensiveTools.checkNull(factory, "factory");
 
-        rvFactories.put(cap, factory);
+        rvFactories.put(cap == null ? null : CapabilityBlock.intern(cap),
+                factory);
     }
 
     /**
@@ -359,7 +387,8 @@ public class RvProcessor {
      */
     public synchronized final RvCommandFactory getRegisteredRvCmdFactory(
             CapabilityBlock cap) {
-        return (RvCommandFactory) rvFactories.get(cap);
+        return (RvCommandFactory) rvFactories.get(
+                cap == null ? null : CapabilityBlock.canonicalize(cap));
     }
 
     /**
@@ -392,6 +421,8 @@ public class RvProcessor {
             RvCommandFactory factory) {
         DefensiveTools.checkNull(factory, "factory");
 
+        if (cap != null) cap = CapabilityBlock.canonicalize(cap);
+
         if (rvFactories.get(cap) == factory) rvFactories.remove(cap);
     }
 
@@ -414,7 +445,9 @@ public class RvProcessor {
         RvCommandFactory factory;
         synchronized(this) {
             // find a factory for this capability type
-            factory = (RvCommandFactory) rvFactories.get(icbm.getCapability());
+            CapabilityBlock cap = icbm.getCapability();
+            if (cap != null) cap = CapabilityBlock.canonicalize(cap);
+            factory = (RvCommandFactory) rvFactories.get(cap);
 
             if (factory == null) {
                 // if there's no factory for that type, try the generic factory
@@ -438,11 +471,11 @@ public class RvProcessor {
      * @return the RV session object associated with the given session ID and
      *         screenname
      */
-    private synchronized RvSessionImpl getSession(long sessionId, String sn) {
+    private RvSessionImpl getSession(long sessionId, String sn) {
         DefensiveTools.checkNull(sn, "sn");
 
-        RvSessionMapKey key = new RvSessionMapKey(sessionId, sn);
-        return (RvSessionImpl) sessions.get(key);
+        return (RvSessionImpl) sessions.get(sessionId, sn,
+                System.currentTimeMillis());
     }
 
     /**
@@ -460,19 +493,21 @@ public class RvProcessor {
         DefensiveTools.checkNull(sn, "sn");
 
         RvSessionImpl session = getSession(sessionId, sn);
+        if (session != null) return session;
 
-        if (session == null) {
-            if (logger.isLoggable(Level.FINE)) {
-                logger.fine("Creating new incoming RV session for " + sn
-                        + ", id=0x" + Long.toHexString(sessionId));
-            }
-            synchronized(sessionLock) {
-                session = createNewSession(sessionId, sn);
+        session = new RvSessionImpl(sessionId, sn);
+        long now = System.currentTimeMillis();
+        RvSessionImpl existing = (RvSessionImpl) sessions.putIfAbsent(sessionId,
+                sn, session, now);
+        // another thread may have created the session since we looked for it
+        if (existing != null) return existing;
 
-                fireNewSessionEvent(session,
-                        NewRvSessionEvent.TYPE_INCOMING);
-            }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Created new incoming RV session for " + sn
+                    + ", id=0x" + Long.toHexString(sessionId));
         }
+        expireIdleSessions(now);
+        fireNewSessionEvent(session, NewRvSessionEvent.TYPE_INCOMING);
 
         return session;
     }
@@ -542,24 +577,94 @@ public class RvProcessor {
     }
 
     /**
-     * Creates a new session and places it in the RV session map. This method
-     * does <i>not</i> fire a new session event.
+     * Sets how long a session may go without sending or receiving a
+     * rendezvous command, or being {@linkplain #touchSession touched}, before
+     * this processor forgets it. Idle sessions are expired whenever a new
+     * session is created, at most once per quarter of the timeout. The
+     * default is {@link #SESSION_IDLE_TIMEOUT_DEFAULT}.
      *
-     * @param sessionId the RV session ID of the session to be created
-     * @param sn the screenname of the user with whom the session exists
-     * @return a new <code>RvSessionImpl</code> corresponding to the given RV
-     *         session ID and the given screenname
+     * @param timeout the session idle timeout, in milliseconds, or
+     *        <code>0</code> to never expire sessions
      */
-    private RvSessionImpl createNewSession(long sessionId, String sn) {
-        RvSessionImpl session = new RvSessionImpl(sessionId, sn);
+    public final void setSessionIdleTimeout(long timeout) {
+        DefensiveTools.checkRange(timeout, "timeout", 0);
+
+        sessionIdleTimeout = timeout;
+        nextExpiry = 0;
+    }
 
-        RvSessionMapKey key = new RvSessionMapKey(sessionId, sn);
+    /**
+     * Returns how long a session may be idle before this processor forgets
+     * it. See {@link #setSessionIdleTimeout} for details.
+     *
+     * @return the session idle timeout, in milliseconds, or <code>0</code> if
+     *         sessions never expire
+     */
+    public final long getSessionIdleTimeout() { return sessionIdleTimeout; }
 
-        synchronized(sessionLock) {
-            sessions.put(key, session);
+    /**
+     * Marks the given session as active, so that it is not expired as idle.
+     * This processor only sees a session's rendezvous commands; applications
+     * which carry on a session over a connection of their own, such as a file
+     * transfer or a Direct IM conversation, should call this method as data
+     * flows over that connection. If the session had already been expired, it
+     * is tracked again.
+     *
+     * @param session a session created by this processor
+     */
+    public final void touchSession(RvSession session) {
+        DefensiveTools.checkNull(session, "session");
+
+        if (session.getRvProcessor() != this) {
+            throw new IllegalArgumentException("session " + session
+                    + " does not belong to this RV processor");
         }
 
-        return session;
+        long id = session.getRvSessionId();
+        String sn = session.getScreenname();
+        long now = System.currentTimeMillis();
+        if (!sessions.touchIfSame(id, sn, session, now)) {
+            sessions.touch(id, sn, session, now);
+        }
+    }
+
+    /**
+     * Returns the number of rendezvous sessions this processor is currently
+     * tracking.
+     *
+     * @return the number of sessions
+     */
+    public final int getSessionCount() { return sessions.size(); }
+
+    /**
+     * Forgets every session that has been idle for longer than the {@linkplain
+     * #setSessionIdleTimeout session idle timeout}. This is done automatically
+     * as new sessions are created, but may be called at any time.
+     *
+     * @return the number of sessions that were forgotten
+     */
+    public final int expireIdleSessions() {
+        long timeout = sessionIdleTimeout;
+        if (timeout == 0) return 0;
+
+        long now = System.currentTimeMillis();
+        nextExpiry = now + timeout / 4;
+
+        List expired = sessions.expireIdle(now - timeout);
+        if (!expired.isEmpty() && logger.isLoggable(Level.FINE)) {
+            logger.fine("Expired " + expired.size() + " idle RV sessions: "
+                    + expired);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Expires idle sessions if it is time to do so.
+     *
+     * @param now the current time, in milliseconds
+     */
+    private void expireIdleSessions(long now) {
+        if (sessionIdleTimeout != 0 && now >= nextExpiry) expireIdleSessions();
     }
 
     /**
@@ -658,12 +763,12 @@ public class RvProcessor {
             logger.finer("Creating new outgoing RV session for " + sn);
         }
 
-        RvSessionImpl session;
-        synchronized(sessionLock) {
-            session = createNewSession(sessionID, sn);
+        RvSessionImpl session = new RvSessionImpl(sessionID, sn);
+        long now = System.currentTimeMillis();
+        sessions.put(sessionID, sn, session, now);
 
-            fireNewSessionEvent(session, NewRvSessionEvent.TYPE_OUTGOING);
-        }
+        expireIdleSessions(now);
+        fireNewSessionEvent(session, NewRvSessionEvent.TYPE_OUTGOING);
 
         return session;
     }
@@ -685,41 +790,6 @@ public class RvProcessor {
         processor.sendSnac(req);
     }
 
-    /**
-     * A simple class holding a session ID and screenname, for use as a map key
-     * in {@link RvProcessor#sessions RvProcessor.sessions}.
-     */
-    private static class RvSessionMapKey {
-        /** A rendezvous session ID. */
-        private final long sessionId;
-        /** A screenname. */
-        private final String sn;
-
-        /**
-         * Creates a new RV session map key with the given properties.
-         *
-         * @param sessionId a rendezvous session ID
-         * @param sn a screenname
-         */
-        public RvSessionMapKey(long sessionId, String sn) {
-            this.sessionId = sessionId;
-            this.sn = OscarTools.normalize(sn);
-        }
-
-        public int hashCode() {
-            return (int) (sessionId >> 32 ^ sessionId ^ sn.hashCode());
-        }
-
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (!(obj instanceof RvSessionMapKey)) return false;
-
-            RvSessionMapKey key = (RvSessionMapKey) obj;
-
-            return sessionId == key.sessionId && sn.equals(key.sn);
-        }
-    }
-
     /**
      * An implementation of <code>RvSession</code> for use in
      * <code>RvProcessor</code>.
@@ -827,6 +897,8 @@ public class RvProcessor {
             SnacCommand cmd = new SendRvIcbm(sn, icbmMessageId, rvSessionId,
                     command);
 
+            sessions.touch(rvSessionId, sn, this,
+                    System.currentTimeMillis());
             sendSnac(new SnacRequest(cmd, reqListener));
         }
 
@@ -838,6 +910,8 @@ public class RvProcessor {
                 logger.fine("Sending RV response to " + sn + ": " + code);
             }
 
+            sessions.touch(rvSessionId, sn, this,
+                    System.currentTimeMillis());
             sendSnac(new SnacRequest(cmd, reqListener));
         }
 
@@ -0,0 +1,444 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rv;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.Screenname;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table of rendezvous sessions keyed by session ID and screenname. The table
+ * is split into a fixed number of independently locked segments, so updates
+ * to different sessions rarely contend. Lookups take no lock at all, and
+ * allocate no objects: the screenname given is hashed and compared in
+ * normalized form without creating a <code>Screenname</code> or a map key.
+ * <br>
+ * <br>
+ * Each entry remembers when it was last {@linkplain #get looked up} or
+ * {@linkplain #touch touched}, so that sessions which have been idle for too
+ * long can be {@linkplain #expireIdle expired}.
+ */
+final class RvSessionTable {
+    /** The number of segments; a power of two. */
+    private static final int SEGMENT_COUNT = 16;
+    /** The number of buckets each segment starts with; a power of two. */
+    private static final int INITIAL_BUCKETS = 16;
+
+    /** The segments of this table. */
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    /**
+     * Creates a new empty session table.
+     */
+    public RvSessionTable() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Returns the hash code of the given session ID and screenname hash.
+     *
+     * @param sessionId a rendezvous session ID
+     * @param snHash the {@linkplain Screenname#hashOf hash} of a screenname
+     * @return a well-mixed hash of the two values
+     */
+    private static int hash(long sessionId, int snHash) {
+        int h = (int) (sessionId ^ (sessionId >>> 32)) * 31 + snHash;
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the segment holding entries with the given hash.
+     *
+     * @param hash an entry's hash code
+     * @return the segment for that hash
+     */
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 28) & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Returns the session with the given ID and screenname, marking it as
+     * active.
+     *
+     * @param sessionId a rendezvous session ID
+     * @param sn the screenname with whom the session exists, in any format
+     * @param now the current time, in milliseconds
+     * @return the session, or <code>null</code> if there is none
+     */
+    public Object get(long sessionId, String sn, long now) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        int hash = hash(sessionId, Screenname.hashOf(sn));
+        Entry entry = segmentFor(hash).find(hash, sessionId, sn);
+        if (entry == null) return null;
+
+        entry.lastActive = now;
+        return entry.session;
+    }
+
+    /**
+     * Marks the given session as active if it is the one this table holds for
+     * its ID and screenname. Like {@link #get}, this takes no lock; a session
+     * with the same key that is not the given one is left alone.
+     *
+     * @param sessionId the session's rendezvous session ID
+     * @param sn the screenname with whom the session exists, in any format
+     * @param session the session
+     * @param now the current time, in milliseconds
+     * @return whether the given session was found and marked as active
+     */
+    public boolean touchIfSame(long sessionId, String sn, Object session,
+            long now) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        int hash = hash(sessionId, Screenname.hashOf(sn));
+        Entry entry = segmentFor(hash).find(hash, sessionId, sn);
+        if (entry == null || entry.session != session) return false;
+
+        entry.lastActive = now;
+        return true;
+    }
+
+    /**
+     * Marks the given session as active. If the session had been expired or
+     * removed, it is put back, since it is evidently still in use.
+     *
+     * @param sessionId the session's rendezvous session ID
+     * @param sn the screenname with whom the session exists
+     * @param session the session
+     * @param now the current time, in milliseconds
+     */
+    public void touch(long sessionId, String sn, Object session, long now) {
+        add(sessionId, sn, session, now, false);
+    }
+
+    /**
+     * Adds the given session to this table, replacing any session with the
+     * same ID and screenname.
+     *
+     * @param sessionId the session's rendezvous session ID
+     * @param sn the screenname with whom the session exists
+     * @param session the session
+     * @param now the current time, in milliseconds
+     */
+    public void put(long sessionId, String sn, Object session, long now) {
+        add(sessionId, sn, session, now, true);
+    }
+
+    /**
+     * Adds the given session to this table unless a session with the same ID
+     * and screenname is already present.
+     *
+     * @param sessionId the session's rendezvous session ID
+     * @param sn the screenname with whom the session exists
+     * @param session the session
+     * @param now the current time, in milliseconds
+     * @return the session that was already present, or <code>null</code> if
+     *         the given session was added
+     */
+    public Object putIfAbsent(long sessionId, String sn, Object session,
+            long now) {
+        return add(sessionId, sn, session, now, false);
+    }
+
+    /**
+     * Adds the given session to this table.
+     *
+     * @param sessionId the session's rendezvous session ID
+     * @param sn the screenname with whom the session exists
+     * @param session the session
+     * @param now the current time, in milliseconds
+     * @param replace whether to replace a session already present
+     * @return the session that was already present, or <code>null</code> if
+     *         there was none
+     */
+    private Object add(long sessionId, String sn, Object session, long now,
+            boolean replace) {
+        DefensiveTools.checkNull(sn, "sn");
+        DefensiveTools.checkNull(session, "session");
+
+        int hash = hash(sessionId, Screenname.hashOf(sn));
+        Segment segment = segmentFor(hash);
+        synchronized(segment) {
+            Entry entry = segment.find(hash, sessionId, sn);
+            if (entry != null) {
+                Object old = entry.session;
+                if (replace) entry.session = session;
+                if (replace || old == session) entry.lastActive = now;
+                return old;
+            }
+
+            segment.insert(new Entry(hash, sessionId,
+                    Screenname.getInstance(sn), session, now));
+            return null;
+        }
+    }
+
+    /**
+     * Removes the session with the given ID and screenname, if present.
+     *
+     * @param sessionId a rendezvous session ID
+     * @param sn the screenname with whom the session exists, in any format
+     * @return the removed session, or <code>null</code> if there was none
+     */
+    public Object remove(long sessionId, String sn) {
+        DefensiveTools.checkNull(sn, "sn");
+
+        int hash = hash(sessionId, Screenname.hashOf(sn));
+        Segment segment = segmentFor(hash);
+        synchronized(segment) {
+            return segment.remove(hash, sessionId, sn);
+        }
+    }
+
+    /**
+     * Removes every session that has not been active since the given time.
+     *
+     * @param cutoff the time, in milliseconds, before which a session's last
+     *        activity must have been for it to be removed
+     * @return the removed sessions
+     */
+    public List expireIdle(long cutoff) {
+        List expired = new ArrayList();
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            synchronized(segment) {
+                segment.expire(cutoff, expired);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of sessions in this table.
+     *
+     * @return the number of sessions
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) {
+            Segment segment = segments[i];
+            synchronized(segment) {
+                size += segment.count;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * One independently locked part of a session table: a chained hash table
+     * which doubles in size as it fills. Changes are made while holding the
+     * segment's lock, in such a way that {@link #find} can safely be called
+     * without it: entries are unlinked but never relinked, and growing the
+     * table copies the entries into a new bucket array rather than moving
+     * them.
+     */
+    private static final class Segment {
+        /** The head of each bucket's chain. */
+        private volatile Entry[] buckets = new Entry[INITIAL_BUCKETS];
+        /** The number of entries in this segment. */
+        private int count = 0;
+
+        /**
+         * Returns the entry with the given key, if any.
+         *
+         * @param hash the key's hash code
+         * @param sessionId the key's session ID
+         * @param sn the key's screenname, in any format
+         * @return the matching entry, or <code>null</code> if there is none
+         */
+        private Entry find(int hash, long sessionId, String sn) {
+            Entry[] buckets = this.buckets;
+            for (Entry entry = buckets[hash & (buckets.length - 1)];
+                 entry != null; entry = entry.next) {
+                if (entry.matches(hash, sessionId, sn)) return entry;
+            }
+            return null;
+        }
+
+        /**
+         * Adds the given entry, which must not already be present.
+         *
+         * @param entry the entry to add
+         */
+        private void insert(Entry entry) {
+            if (count >= buckets.length * 3 / 4) grow();
+
+            Entry[] buckets = this.buckets;
+            int index = entry.hash & (buckets.length - 1);
+            entry.next = buckets[index];
+            buckets[index] = entry;
+            // write the volatile field so unlocked readers see the new entry
+            this.buckets = buckets;
+            count++;
+        }
+
+        /**
+         * Removes the entry with the given key, if any.
+         *
+         * @param hash the key's hash code
+         * @param sessionId the key's session ID
+         * @param sn the key's screenname, in any format
+         * @return the removed entry's session, or <code>null</code> if there
+         *         was none
+         */
+        private Object remove(int hash, long sessionId, String sn) {
+            Entry[] buckets = this.buckets;
+            int index = hash & (buckets.length - 1);
+            Entry prev = null;
+            for (Entry entry = buckets[index]; entry != null;
+                 prev = entry, entry = entry.next) {
+                if (entry.matches(hash, sessionId, sn)) {
+                    if (prev == null) buckets[index] = entry.next;
+                    else prev.next = entry.next;
+                    this.buckets = buckets;
+                    count--;
+                    return entry.session;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Removes every entry last active before the given time, adding their
+         * sessions to the given list.
+         *
+         * @param cutoff the cutoff time, in milliseconds
+         * @param expired the list to which to add the removed sessions
+         */
+        private void expire(long cutoff, List expired) {
+            Entry[] buckets = this.buckets;
+            for (int i = 0; i < buckets.length; i++) {
+                Entry prev = null;
+                for (Entry entry = buckets[i]; entry != null;
+                     entry = entry.next) {
+                    if (entry.lastActive < cutoff) {
+                        if (prev == null) buckets[i] = entry.next;
+                        else prev.next = entry.next;
+                        count--;
+                        expired.add(entry.session);
+                    } else {
+                        prev = entry;
+                    }
+                }
+            }
+            this.buckets = buckets;
+        }
+
+        /**
+         * Doubles the number of buckets in this segment.
+         */
+        private void grow() {
+            Entry[] old = buckets;
+            Entry[] grown = new Entry[old.length * 2];
+            for (int i = 0; i < old.length; i++) {
+                for (Entry entry = old[i]; entry != null; entry = entry.next) {
+                    int index = entry.hash & (grown.length - 1);
+                    grown[index] = new Entry(entry, grown[index]);
+                }
+            }
+            buckets = grown;
+        }
+    }
+
+    /**
+     * A session in a session table.
+     */
+    private static final class Entry {
+        /** The hash code of this entry's key. */
+        private final int hash;
+        /** The session's rendezvous session ID. */
+        private final long sessionId;
+        /** The screenname with whom the session exists. */
+        private final Screenname sn;
+        /** The session. */
+        private volatile Object session;
+        /**
+         * The time, in milliseconds, at which the session was last used. This
+         * is updated by unlocked lookups, so it is only approximate; that's
+         * good enough for expiring sessions which have been idle for minutes.
+         */
+        private long lastActive;
+        /** The next entry in this entry's bucket. */
+        private volatile Entry next = null;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param hash the hash code of the entry's key
+         * @param sessionId the session's rendezvous session ID
+         * @param sn the screenname with whom the session exists
+         * @param session the session
+         * @param lastActive the time at which the session was last used
+         */
+        private Entry(int hash, long sessionId, Screenname sn, Object session,
+                long lastActive) {
+            this.hash = hash;
+            this.sessionId = sessionId;
+            this.sn = sn;
+            this.session = session;
+            this.lastActive = lastActive;
+        }
+
+        /**
+         * Creates a copy of the given entry with the given successor.
+         *
+         * @param entry the entry to copy
+         * @param next the next entry in the copy's bucket
+         */
+        private Entry(Entry entry, Entry next) {
+            this(entry.hash, entry.sessionId, entry.sn, entry.session,
+                    entry.lastActive);
+            this.next = next;
+        }
+
+        /**
+         * Returns whether this entry has the given key.
+         *
+         * @param hash the key's hash code
+         * @param sessionId the key's session ID
+         * @param sn the key's screenname, in any format
+         * @return whether this entry's key is the given key
+         */
+        private boolean matches(int hash, long sessionId, String sn) {
+            return this.hash == hash && this.sessionId == sessionId
+                    && this.sn.matches(sn);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.directim;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * An image or file to be attached to a Direct IM message sent with a {@link
+ * DirectImWriter}. An attachment's data are read from a channel as the message
+ * is sent, so they never need to be held in memory. The message's text
+ * normally refers to each attachment by its ID, as in <code>&lt;IMG
+ * ID="1" SRC="picture.jpg" DATASIZE="1234"&gt;</code>.
+ */
+public final class DirectImAttachment {
+    /** The attachment's ID. */
+    private final String id;
+    /** The channel from which the attachment's data are read. */
+    private final ReadableByteChannel data;
+    /** The attachment's size, in bytes. */
+    private final long size;
+
+    /**
+     * Creates a new attachment whose data are the next <code>size</code>
+     * bytes of the given channel. If the channel is a
+     * <code>FileChannel</code>, the data are sent with
+     * <code>transferTo</code>, starting at the channel's current position.
+     *
+     * @param id the attachment's ID
+     * @param data the channel from which to read the attachment's data
+     * @param size the attachment's size, in bytes
+     */
+    public DirectImAttachment(String id, ReadableByteChannel data, long size) {
+        DefensiveTools.checkNull(id, "id");
+        DefensiveTools.checkNull(data, "data");
+        DefensiveTools.checkRange(size, "size", 0);
+
+        this.id = id;
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * Returns this attachment's ID.
+     *
+     * @return this attachment's ID
+     */
+    public String getId() { return id; }
+
+    /**
+     * Returns the channel from which this attachment's data are read.
+     *
+     * @return this attachment's data channel
+     */
+    public ReadableByteChannel getData() { return data; }
+
+    /**
+     * Returns the size of this attachment, in bytes.
+     *
+     * @return this attachment's size
+     */
+    public long getSize() { return size; }
+
+    public String toString() {
+        return "DirectImAttachment: id=" + id + ", size=" + size;
+    }
+}
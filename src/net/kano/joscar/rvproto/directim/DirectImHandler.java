@@ -0,0 +1,115 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.directim;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An interface for handling the packets read by a {@link DirectImReader}.
+ * Message bodies and attachments are not passed to the handler whole; instead,
+ * the handler provides a "sink" channel for each, to which the reader writes
+ * the data as it arrives. A sink may be a file, a buffer, or anything else.
+ * A sink is passed back to the handler once its data are complete; if the
+ * reader fails or is {@linkplain DirectImReader#close closed} first, the
+ * reader closes the sink itself.
+ */
+public interface DirectImHandler {
+    /**
+     * Called when a typing notification is received. The notification's
+     * meaning is given by the header's {@linkplain DirectImHeader#getFlags
+     * flags}, as described in {@link DirectImHeader#FLAG_TYPINGPACKET}.
+     *
+     * @param header the typing notification's header
+     */
+    void handleTyping(DirectImHeader header);
+
+    /**
+     * Called when the header of a message is received, to obtain the channel
+     * to which the message's text should be written. The text is written in
+     * the encoding given by the header, and does not include the message's
+     * <code>&lt;BINARY&gt;</code> attachment section.
+     *
+     * @param header the message's header
+     * @return the channel to which to write the message's text, or
+     *         <code>null</code> to discard it
+     *
+     * @throws IOException if the sink cannot be opened
+     */
+    WritableByteChannel getMessageSink(DirectImHeader header)
+            throws IOException;
+
+    /**
+     * Called when an attachment to a message begins, to obtain the channel to
+     * which the attachment's data should be written.
+     *
+     * @param header the header of the message to which the data is attached
+     * @param id the attachment's ID, which is referred to by the
+     *        <code>ID</code> attribute of an <code>&lt;IMG&gt;</code> tag in
+     *        the message's text
+     * @param size the attachment's size, in bytes
+     * @return the channel to which to write the attachment's data, or
+     *         <code>null</code> to discard it
+     *
+     * @throws IOException if the sink cannot be opened
+     */
+    WritableByteChannel getAttachmentSink(DirectImHeader header, String id,
+            long size) throws IOException;
+
+    /**
+     * Called once all of an attachment's data has been written to its sink.
+     *
+     * @param header the header of the message to which the data is attached
+     * @param id the attachment's ID
+     * @param sink the attachment's sink, or <code>null</code> if its data
+     *        were discarded
+     *
+     * @throws IOException if the attachment cannot be completed
+     */
+    void handleAttachmentDone(DirectImHeader header, String id,
+            WritableByteChannel sink) throws IOException;
+
+    /**
+     * Called once all of a message's text and attachments have been written to
+     * their sinks.
+     *
+     * @param header the message's header
+     * @param sink the message's text sink, or <code>null</code> if its text
+     *        was discarded
+     *
+     * @throws IOException if the message cannot be completed
+     */
+    void handleMessageDone(DirectImHeader header, WritableByteChannel sink)
+            throws IOException;
+}
@@ -42,10 +42,10 @@ import net.kano.joscar.ImEncodedString;
 import net.kano.joscar.ImEncodingParams;
 import net.kano.joscar.LiveWritable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A data structure containing information about a Direct IM message or typing
@@ -56,6 +56,22 @@ public final class DirectImHeader implements LiveWritable {
     /** The Direct IM protocol version string used by WinAIM. */
     public static final String DCVERSION_DEFAULT = "ODC2";
 
+    /** The length of a Direct IM header as written by {@link #write}. */
+    public static final int HEADER_LENGTH = 76;
+
+    /**
+     * The length of the "mini-header" at the start of every Direct IM header,
+     * which holds the protocol version string and the length of the whole
+     * header.
+     */
+    private static final int MINI_HEADER_LENGTH = 6;
+
+    /**
+     * The shortest valid Direct IM header length: the fields read by this
+     * class run through the end of the screenname.
+     */
+    private static final int MIN_HEADER_LENGTH = 60;
+
     /**
      * A flag indicating that a packet is a typing-notification packet. Note
      * that this flag is always sent in typing notification headers, whether
@@ -242,53 +258,98 @@ public final class DirectImHeader implements LiveWritable {
 
         // read the six-byte meta-header containing the ODC version and the
         // length of the real header
-        byte[] miniHeader = new byte[6];
-        for (int i = 0; i < miniHeader.length;) {
-            int count = in.read(miniHeader, i, miniHeader.length - i);
-
-            if (count == -1) return null;
+        byte[] miniHeader = new byte[MINI_HEADER_LENGTH];
+        if (!readFully(in, miniHeader, 0)) return null;
 
-            i += count;
-        }
+        // headerLen includes the length of the mini-header
+        int headerLen = BinaryTools.getUShort(ByteBlock.wrap(miniHeader), 4);
+        if (headerLen < MIN_HEADER_LENGTH) return null;
 
-        // create a header object
-        DirectImHeader hdr = new DirectImHeader();
+        byte[] headerData = new byte[headerLen];
+        System.arraycopy(miniHeader, 0, headerData, 0, miniHeader.length);
+        if (!readFully(in, headerData, miniHeader.length)) return null;
 
-        // extract those two values (the version and the header length)
-        ByteBlock miniHeaderBlock = ByteBlock.wrap(miniHeader);
-        ByteBlock verBlock = miniHeaderBlock.subBlock(0, 4);
+        return readDirectIMHeader(ByteBuffer.wrap(headerData));
+    }
 
-        hdr.setDcVersion(BinaryTools.getAsciiString(verBlock));
+    /**
+     * Reads bytes from the given stream until the given array is full.
+     *
+     * @param in the stream from which to read
+     * @param data the array to fill
+     * @param off the index of the first byte of the array to fill
+     * @return whether the array was filled; <code>false</code> if the end of
+     *         the stream was reached first
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private static boolean readFully(InputStream in, byte[] data, int off)
+            throws IOException {
+        for (int i = off; i < data.length;) {
+            int count = in.read(data, i, data.length - i);
 
-        int headerLen = BinaryTools.getUShort(miniHeaderBlock, 4);
-        if (headerLen < 6) return null;
+            if (count == -1) return false;
 
-        hdr.setHeaderSize(headerLen);
+            i += count;
+        }
+        return true;
+    }
 
-        // now read the real header. note that headerLen includes the length of
-        // the mini-header.
-        byte[] headerData = new byte[headerLen - 6];
-        for (int i = 0; i < headerData.length;) {
-            int count = in.read(headerData, i, headerData.length - i);
+    /**
+     * Creates a new Direct IM header from the data in the given buffer, if it
+     * contains a whole header. If it does, the buffer's position is advanced
+     * past the header; if not, the buffer is left unchanged and
+     * <code>null</code> is returned, so that this method can be called again
+     * once more data has been read into the buffer. No intermediate arrays
+     * are allocated.
+     *
+     * @param buf a big-endian buffer whose remaining bytes begin with a Direct
+     *        IM header
+     * @return a direct IM header read from the given buffer, or
+     *         <code>null</code> if the buffer does not yet hold a whole header
+     *
+     * @throws IllegalArgumentException if the data at the buffer's position
+     *         are not a valid Direct IM header
+     */
+    public static DirectImHeader readDirectIMHeader(ByteBuffer buf)
+            throws IllegalArgumentException {
+        DefensiveTools.checkNull(buf, "buf");
 
-            if (count == -1) return null;
+        if (buf.remaining() < MINI_HEADER_LENGTH) return null;
 
-            i += count;
+        int start = buf.position();
+        int headerLen = buf.getShort(start + 4) & 0xffff;
+        if (headerLen < MIN_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Direct IM header length "
+                    + headerLen + " is too short");
         }
+        if (buf.remaining() < headerLen) return null;
 
-        // okay.
-        ByteBlock header = ByteBlock.wrap(headerData);
-
-        hdr.setMessageId(BinaryTools.getLong(header, 6));
-        hdr.setDataLength(BinaryTools.getUInt(header, 22));
-        int charsetCode = BinaryTools.getUShort(header, 26);
-        int charsetSubcode = BinaryTools.getUShort(header, 28);
-        hdr.setEncoding(new ImEncodingParams(charsetCode, charsetSubcode));
-        hdr.setFlags(BinaryTools.getUInt(header, 30));
+        DirectImHeader hdr = new DirectImHeader();
 
-        ByteBlock snBlock = header.subBlock(38, 16);
-        hdr.setScreenname(BinaryTools.getNullPadded(snBlock).getString());
+        char[] chars = new char[16];
+        for (int i = 0; i < 4; i++) {
+            chars[i] = (char) (buf.get(start + i) & 0xff);
+        }
+        hdr.dcVersion = new String(chars, 0, 4);
+        hdr.headerSize = headerLen;
+
+        hdr.messageId = buf.getLong(start + 12);
+        hdr.dataLength = buf.getInt(start + 28) & 0xffffffffL;
+        int charsetCode = buf.getShort(start + 32) & 0xffff;
+        int charsetSubcode = buf.getShort(start + 34) & 0xffff;
+        hdr.encoding = new ImEncodingParams(charsetCode, charsetSubcode);
+        hdr.flags = buf.getInt(start + 36) & 0xffffffffL;
+
+        int snLen = 0;
+        while (snLen < 16) {
+            byte b = buf.get(start + 44 + snLen);
+            if (b == 0) break;
+            chars[snLen++] = (char) (b & 0xff);
+        }
+        hdr.sn = new String(chars, 0, snLen);
 
+        buf.position(start + headerLen);
         return hdr;
     }
 
@@ -462,7 +523,6 @@ header.setScreenname("");
     private synchronized void checkValidity() throws IllegalArgumentException {
         DefensiveTools.checkNull(dcVersion, "dcVersion");
         DefensiveTools.checkRange(dataLength, "dataLength", 0);
-        DefensiveTools.checkNull(encoding, "encoding");
         DefensiveTools.checkRange(flags, "flags", 0);
         DefensiveTools.checkNull(sn, "sn");
     }
@@ -476,7 +536,6 @@ header.setScreenname("");
      * <tr><td><code>dcVersion</code></td><td>non-<code>null</code></td></tr>
      * <tr><td><code>dataLength</code></td><td>nonnegative (<code>0</code> or
      * greater)</td></tr>
-     * <tr><td><code>encoding</code></td><td>non-<code>null</code></td></tr>
      * <tr><td><code>flags</code></td><td>nonnegative (<code>0</code> or
      * greater)</td></tr>
      * <tr><td><code>screenname</code></td><td>non-<code>null</code></td></tr>
@@ -491,39 +550,57 @@ header.setScreenname("");
             throws IOException, IllegalArgumentException {
         DefensiveTools.checkNull(out, "out");
 
-        checkValidity();
+        byte[] data = new byte[HEADER_LENGTH];
+        write(ByteBuffer.wrap(data));
+        out.write(data);
+    }
 
-        ByteArrayOutputStream hout = new ByteArrayOutputStream(76);
+    /**
+     * Writes this header to the given buffer. The buffer must have at least
+     * {@link #HEADER_LENGTH} bytes remaining. As with {@link
+     * #write(OutputStream)}, nothing is written if any field of this header is
+     * invalid.
+     *
+     * @param buf the buffer to which to write, in big-endian byte order
+     *
+     * @throws IllegalArgumentException if a field is invalid
+     */
+    public synchronized void write(ByteBuffer buf)
+            throws IllegalArgumentException {
+        DefensiveTools.checkNull(buf, "buf");
 
-        byte[] hdrBytes = BinaryTools.getAsciiBytes(dcVersion);
-        hout.write(hdrBytes);
-        BinaryTools.writeUShort(hout, 76);
+        checkValidity();
+
+        for (int i = 0; i < 4; i++) {
+            buf.put(i < dcVersion.length() ? (byte) dcVersion.charAt(i) : 0);
+        }
+        buf.putShort((short) HEADER_LENGTH);
 
-        BinaryTools.writeUShort(hout, 1);
-        BinaryTools.writeUShort(hout, 6);
-        BinaryTools.writeUShort(hout, 0);
+        buf.putShort((short) 1);
+        buf.putShort((short) 6);
+        buf.putShort((short) 0);
 
-        BinaryTools.writeLong(hout, messageId);
-        hout.write(new byte[8]);
-        BinaryTools.writeUInt(hout, dataLength);
+        buf.putLong(messageId);
+        buf.putLong(0);
+        buf.putInt((int) dataLength);
 
         if (encoding != null) {
-            BinaryTools.writeUShort(hout, encoding.getCharsetCode());
-            BinaryTools.writeUShort(hout, encoding.getCharsetSubcode());
+            buf.putShort((short) encoding.getCharsetCode());
+            buf.putShort((short) encoding.getCharsetSubcode());
         } else {
-            BinaryTools.writeUShort(hout, 0);
-            BinaryTools.writeUShort(hout, 0);
+            buf.putInt(0);
         }
 
-        BinaryTools.writeUInt(hout, flags);
-        BinaryTools.writeUInt(hout, 0);
+        buf.putInt((int) flags);
+        buf.putInt(0);
 
-        ByteBlock snBlock = ByteBlock.wrap(BinaryTools.getAsciiBytes(sn));
-        BinaryTools.writeNullPadded(hout, snBlock, 16);
-
-        hout.write(new byte[16]);
+        // the screenname is null-padded to 16 bytes
+        int snLen = Math.min(sn.length(), 16);
+        for (int i = 0; i < 16; i++) {
+            buf.put(i < snLen ? (byte) sn.charAt(i) : 0);
+        }
 
-        hout.writeTo(out);
+        for (int i = 0; i < 16; i++) buf.put((byte) 0);
     }
 
     public synchronized String toString() {
@@ -0,0 +1,630 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.directim;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads a stream of Direct IM packets, passing typing notifications, message
+ * text, and attached images and files to a {@link DirectImHandler} as they
+ * arrive. Nothing is buffered whole: headers are parsed in place from a
+ * single reusable buffer, and message bodies are written to the handler's
+ * sinks a buffer at a time, so a multi-megabyte attachment can be streamed
+ * straight to a file.
+ * <br>
+ * <br>
+ * A Direct IM message body consists of the message's text, optionally
+ * followed by a <code>&lt;BINARY&gt;</code> section containing attachments,
+ * each of the form <code>&lt;DATA ID="<i>id</i>" SIZE="<i>size</i>"&gt;</code>,
+ * then <code><i>size</i></code> bytes of raw data, then
+ * <code>&lt;/DATA&gt;</code>. The text is written to the handler's {@linkplain
+ * DirectImHandler#getMessageSink message sink} and each attachment to its own
+ * {@linkplain DirectImHandler#getAttachmentSink attachment sink}.
+ * <br>
+ * <br>
+ * Data may be supplied with {@link #read(ByteBuffer)}, which consumes as much
+ * of a buffer as it can, or with {@link #readFrom}, which reads from a
+ * channel into this reader's own buffer. If either fails, or the stream ends
+ * in the middle of a packet, any sink still open is {@linkplain #close
+ * closed}. This class is not thread-safe.
+ */
+public final class DirectImReader {
+    /** The size of the buffer used by {@link #readFrom}. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * The longest tag that can appear in a message's
+     * <code>&lt;BINARY&gt;</code> section.
+     */
+    private static final int MAX_TAG_LENGTH = 256;
+    /** The tag that begins the attachments of a message, in upper case. */
+    private static final byte[] BINARY_TAG = { '<', 'B', 'I', 'N', 'A', 'R',
+        'Y', '>' };
+
+    /** The reader is waiting for a packet header. */
+    private static final int STATE_HEADER = 0;
+    /** The reader is reading a message's text. */
+    private static final int STATE_TEXT = 1;
+    /** The reader is reading a tag in a message's binary section. */
+    private static final int STATE_TAG = 2;
+    /** The reader is reading an attachment's data. */
+    private static final int STATE_DATA = 3;
+
+    /** The handler to which packets are passed. */
+    private final DirectImHandler handler;
+
+    /** The buffer used by {@link #readFrom}, created when first needed. */
+    private ByteBuffer buffer = null;
+
+    /** What the reader is currently reading. */
+    private int state = STATE_HEADER;
+    /** The header of the message being read. */
+    private DirectImHeader header = null;
+    /** The number of bytes of the current message left to read. */
+    private long messageRemaining = 0;
+    /** The current message's text sink. */
+    private WritableByteChannel messageSink = null;
+
+    /**
+     * The bytes at the end of the text read so far which might be the start
+     * of a <code>&lt;BINARY&gt;</code> tag, and so have not been written to
+     * the message sink yet.
+     */
+    private final byte[] pending = new byte[BINARY_TAG.length];
+    /** The number of bytes in {@link #pending}. */
+    private int pendingLength = 0;
+
+    /** The binary section tag read so far. */
+    private final byte[] tag = new byte[MAX_TAG_LENGTH];
+    /** The number of bytes in {@link #tag}. */
+    private int tagLength = 0;
+
+    /** The ID of the attachment being read. */
+    private String attachmentId = null;
+    /** The number of bytes of the current attachment left to read. */
+    private long attachmentRemaining = 0;
+    /** The current attachment's sink. */
+    private WritableByteChannel attachmentSink = null;
+
+    /**
+     * Creates a new Direct IM reader which passes what it reads to the given
+     * handler.
+     *
+     * @param handler the handler for the packets read
+     */
+    public DirectImReader(DirectImHandler handler) {
+        DefensiveTools.checkNull(handler, "handler");
+
+        this.handler = handler;
+    }
+
+    /**
+     * Returns whether this reader is between packets; that is, whether every
+     * packet it has begun reading has been completely read.
+     *
+     * @return whether this reader is waiting for a new packet
+     */
+    public boolean isBetweenPackets() { return state == STATE_HEADER; }
+
+    /**
+     * Reads whatever data are available from the given channel and processes
+     * them. If the channel is in non-blocking mode and no data are available,
+     * this method returns immediately.
+     *
+     * @param channel the channel from which to read
+     * @return <code>false</code> if the end of the stream was reached between
+     *         packets, <code>true</code> otherwise
+     *
+     * @throws EOFException if the end of the stream was reached in the middle
+     *         of a packet
+     * @throws IOException if an I/O error occurs, or if the data read are not
+     *         valid Direct IM packets
+     */
+    public boolean readFrom(ReadableByteChannel channel) throws IOException {
+        DefensiveTools.checkNull(channel, "channel");
+
+        if (buffer == null) buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        boolean ok = false;
+        try {
+            int count = channel.read(buffer);
+            if (count == -1) {
+                if (state != STATE_HEADER || buffer.position() > 0) {
+                    throw new EOFException("connection closed in the middle "
+                            + "of a Direct IM packet");
+                }
+                ok = true;
+                return false;
+            }
+
+            buffer.flip();
+            try {
+                read(buffer);
+            } finally {
+                buffer.compact();
+            }
+            ok = true;
+            return true;
+        } finally {
+            if (!ok) close();
+        }
+    }
+
+    /**
+     * Processes as many of the bytes remaining in the given buffer as
+     * possible. On return, the buffer's position has been advanced past the
+     * bytes that were processed; any bytes left over are the start of a
+     * packet header, and should be passed to this method again, followed by
+     * the rest of the stream.
+     *
+     * @param buf a big-endian buffer holding the next bytes of the stream
+     *
+     * @throws IOException if writing to a sink fails, or if the data read are
+     *         not valid Direct IM packets
+     */
+    public void read(ByteBuffer buf) throws IOException {
+        DefensiveTools.checkNull(buf, "buf");
+
+        boolean ok = false;
+        try {
+            boolean progress = true;
+            while (progress) {
+                switch (state) {
+                case STATE_HEADER:
+                    progress = readHeader(buf);
+                    break;
+                case STATE_TEXT:
+                    progress = readText(buf);
+                    break;
+                case STATE_TAG:
+                    progress = readTag(buf);
+                    break;
+                case STATE_DATA:
+                    progress = readData(buf);
+                    break;
+                default:
+                    throw new IllegalStateException("state " + state);
+                }
+            }
+            ok = true;
+        } finally {
+            if (!ok) close();
+        }
+    }
+
+    /**
+     * Abandons the packet being read, if any, closing the sinks of its text
+     * and of the attachment being read. The handler is not told that the
+     * message or attachment is done. This is called when reading fails, and
+     * should be called by anyone who stops using this reader in the middle of
+     * a packet.
+     */
+    public void close() {
+        WritableByteChannel text = messageSink;
+        WritableByteChannel attachment = attachmentSink;
+        header = null;
+        messageSink = null;
+        attachmentSink = null;
+        attachmentId = null;
+        messageRemaining = 0;
+        attachmentRemaining = 0;
+        pendingLength = 0;
+        tagLength = 0;
+        state = STATE_HEADER;
+        if (buffer != null) buffer.clear();
+
+        closeQuietly(attachment);
+        closeQuietly(text);
+    }
+
+    /**
+     * Closes the given sink, if there is one, ignoring any error.
+     *
+     * @param sink the sink to close, or <code>null</code>
+     */
+    private static void closeQuietly(WritableByteChannel sink) {
+        if (sink == null) return;
+        try {
+            sink.close();
+        } catch (IOException ignored) { }
+    }
+
+    /**
+     * Reads a packet header from the given buffer, if it contains a whole
+     * one.
+     *
+     * @param buf the buffer from which to read
+     * @return whether a header was read
+     *
+     * @throws IOException if the header is invalid or the handler fails
+     */
+    private boolean readHeader(ByteBuffer buf) throws IOException {
+        DirectImHeader hdr;
+        try {
+            hdr = DirectImHeader.readDirectIMHeader(buf);
+        } catch (IllegalArgumentException e) {
+            IOException ioe = new IOException("invalid Direct IM header");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        if (hdr == null) return false;
+
+        long flags = hdr.getFlags();
+        if ((flags & DirectImHeader.FLAG_TYPINGPACKET) != 0
+                && hdr.getDataLength() == 0) {
+            handler.handleTyping(hdr);
+            return true;
+        }
+
+        header = hdr;
+        messageRemaining = hdr.getDataLength();
+        messageSink = handler.getMessageSink(hdr);
+        state = STATE_TEXT;
+        if (messageRemaining == 0) endMessage();
+        return true;
+    }
+
+    /**
+     * Reads message text from the given buffer, writing it to the message sink
+     * until the end of the message or a <code>&lt;BINARY&gt;</code> tag is
+     * found.
+     *
+     * @param buf the buffer from which to read
+     * @return whether the state of this reader changed
+     *
+     * @throws IOException if writing to the sink fails
+     */
+    private boolean readText(ByteBuffer buf) throws IOException {
+        int avail = (int) Math.min(buf.remaining(), messageRemaining);
+        if (avail == 0) return false;
+
+        int start = buf.position();
+        int end = start + avail;
+        int flushFrom = start;
+        for (int i = start; i < end;) {
+            byte b = buf.get(i);
+            if (toUpper(b) == BINARY_TAG[pendingLength]) {
+                if (pendingLength == 0) writeText(buf, flushFrom, i);
+                pending[pendingLength++] = b;
+                i++;
+                flushFrom = i;
+
+                if (pendingLength == BINARY_TAG.length) {
+                    pendingLength = 0;
+                    buf.position(i);
+                    messageRemaining -= i - start;
+                    state = STATE_TAG;
+                    tagLength = 0;
+                    if (messageRemaining == 0) endMessage();
+                    return true;
+                }
+            } else if (pendingLength > 0) {
+                // it wasn't a <BINARY> tag after all; look at this byte again
+                // in case it starts one
+                writePending();
+            } else {
+                i++;
+            }
+        }
+        writeText(buf, flushFrom, end);
+        buf.position(end);
+        messageRemaining -= avail;
+
+        if (messageRemaining == 0) {
+            writePending();
+            endMessage();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a tag in a message's binary section from the given buffer. An
+     * attachment's <code>&lt;DATA&gt;</code> tag begins the attachment, and a
+     * <code>&lt;/BINARY&gt;</code> tag ends the binary section; other tags
+     * and anything between tags are ignored.
+     *
+     * @param buf the buffer from which to read
+     * @return whether the state of this reader changed
+     *
+     * @throws IOException if the tag is too long or the handler fails
+     */
+    private boolean readTag(ByteBuffer buf) throws IOException {
+        int avail = (int) Math.min(buf.remaining(), messageRemaining);
+        if (avail == 0) return false;
+
+        int start = buf.position();
+        int end = start + avail;
+        for (int i = start; i < end; i++) {
+            byte b = buf.get(i);
+            if (tagLength == 0 && b != '<') continue;
+
+            if (tagLength == tag.length) {
+                throw new IOException("Direct IM binary section tag is longer "
+                        + "than " + MAX_TAG_LENGTH + " bytes");
+            }
+            tag[tagLength++] = b;
+            if (b != '>') continue;
+
+            buf.position(i + 1);
+            messageRemaining -= i + 1 - start;
+            handleTag(new String(tag, 0, tagLength, "US-ASCII"));
+            tagLength = 0;
+            if (messageRemaining == 0) {
+                if (state == STATE_DATA) {
+                    throw new IOException("Direct IM message ended before "
+                            + "the " + attachmentRemaining + " bytes of "
+                            + "attachment " + attachmentId);
+                }
+                endMessage();
+            }
+            return true;
+        }
+
+        buf.position(end);
+        messageRemaining -= avail;
+        if (messageRemaining == 0) {
+            endMessage();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Handles a complete tag read from a message's binary section.
+     *
+     * @param text the tag
+     *
+     * @throws IOException if the tag is invalid or the handler fails
+     */
+    private void handleTag(String text) throws IOException {
+        String upper = text.toUpperCase();
+        if (upper.startsWith("</BINARY")) {
+            state = STATE_TEXT;
+
+        } else if (upper.startsWith("<DATA")) {
+            String id = getAttribute(text, upper, "ID");
+            String sizeStr = getAttribute(text, upper, "SIZE");
+            long size;
+            try {
+                size = sizeStr == null ? -1 : Long.parseLong(sizeStr);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (id == null || size < 0) {
+                throw new IOException("invalid Direct IM attachment tag: "
+                        + text);
+            }
+
+            attachmentId = id;
+            attachmentRemaining = size;
+            attachmentSink = handler.getAttachmentSink(header, id, size);
+            state = STATE_DATA;
+            if (size == 0) endAttachment();
+        }
+    }
+
+    /**
+     * Reads an attachment's data from the given buffer, writing it to the
+     * attachment's sink.
+     *
+     * @param buf the buffer from which to read
+     * @return whether the state of this reader changed
+     *
+     * @throws IOException if writing to the sink fails, or if the message
+     *         ends before the attachment does
+     */
+    private boolean readData(ByteBuffer buf) throws IOException {
+        int avail = (int) Math.min(Math.min(buf.remaining(), messageRemaining),
+                attachmentRemaining);
+        if (avail == 0) return false;
+
+        int start = buf.position();
+        if (attachmentSink != null) {
+            write(attachmentSink, buf, start, start + avail);
+        }
+        buf.position(start + avail);
+        messageRemaining -= avail;
+        attachmentRemaining -= avail;
+
+        if (attachmentRemaining == 0) {
+            endAttachment();
+        } else if (messageRemaining == 0) {
+            throw new IOException("Direct IM message ended "
+                    + attachmentRemaining + " bytes before the end of "
+                    + "attachment " + attachmentId);
+        } else {
+            return false;
+        }
+        if (messageRemaining == 0) endMessage();
+        return true;
+    }
+
+    /**
+     * Finishes the current attachment, notifying the handler.
+     *
+     * @throws IOException if the handler fails
+     */
+    private void endAttachment() throws IOException {
+        WritableByteChannel sink = attachmentSink;
+        String id = attachmentId;
+        attachmentSink = null;
+        attachmentId = null;
+        state = STATE_TAG;
+        tagLength = 0;
+
+        handler.handleAttachmentDone(header, id, sink);
+    }
+
+    /**
+     * Finishes the current message, notifying the handler.
+     *
+     * @throws IOException if the handler fails
+     */
+    private void endMessage() throws IOException {
+        DirectImHeader hdr = header;
+        WritableByteChannel sink = messageSink;
+        header = null;
+        messageSink = null;
+        pendingLength = 0;
+        tagLength = 0;
+        state = STATE_HEADER;
+
+        handler.handleMessageDone(hdr, sink);
+    }
+
+    /**
+     * Writes the given range of the given buffer to the message sink, if
+     * there is one.
+     *
+     * @param buf the buffer holding the text
+     * @param start the index of the first byte to write
+     * @param end the index after the last byte to write
+     *
+     * @throws IOException if writing to the sink fails
+     */
+    private void writeText(ByteBuffer buf, int start, int end)
+            throws IOException {
+        if (messageSink != null && end > start) {
+            write(messageSink, buf, start, end);
+        }
+    }
+
+    /**
+     * Writes the bytes held back as a possible <code>&lt;BINARY&gt;</code> tag
+     * to the message sink, as they turned out to be part of the text.
+     *
+     * @throws IOException if writing to the sink fails
+     */
+    private void writePending() throws IOException {
+        if (pendingLength == 0) return;
+
+        if (messageSink != null) {
+            write(messageSink, ByteBuffer.wrap(pending), 0, pendingLength);
+        }
+        pendingLength = 0;
+    }
+
+    /**
+     * Writes the given range of the given buffer to the given channel. The
+     * buffer's position and limit are unchanged on return.
+     *
+     * @param sink the channel to which to write
+     * @param buf the buffer holding the data
+     * @param start the index of the first byte to write
+     * @param end the index after the last byte to write
+     *
+     * @throws IOException if writing to the channel fails
+     */
+    private static void write(WritableByteChannel sink, ByteBuffer buf,
+            int start, int end) throws IOException {
+        int pos = buf.position();
+        int limit = buf.limit();
+        try {
+            buf.limit(end).position(start);
+            while (buf.hasRemaining()) sink.write(buf);
+        } finally {
+            buf.limit(limit).position(pos);
+        }
+    }
+
+    /**
+     * Returns the value of the given attribute of the given tag. The value
+     * may be quoted or not.
+     *
+     * @param text the tag
+     * @param upper the tag, in upper case
+     * @param name the attribute's name, in upper case
+     * @return the attribute's value, or <code>null</code> if the tag has no
+     *         such attribute
+     */
+    private static String getAttribute(String text, String upper,
+            String name) {
+        int index = 0;
+        for (;;) {
+            index = upper.indexOf(name, index);
+            if (index == -1) return null;
+
+            // make sure this is the whole attribute name, and not the end of
+            // a longer one
+            int after = index + name.length();
+            boolean whole = index > 0
+                    && Character.isWhitespace(upper.charAt(index - 1));
+            while (after < upper.length()
+                    && Character.isWhitespace(upper.charAt(after))) {
+                after++;
+            }
+            if (whole && after < upper.length() && upper.charAt(after) == '=') {
+                index = after + 1;
+                break;
+            }
+            index = after;
+        }
+
+        while (index < text.length()
+                && Character.isWhitespace(text.charAt(index))) {
+            index++;
+        }
+        if (index == text.length()) return null;
+
+        char quote = text.charAt(index);
+        if (quote == '"' || quote == '\'') {
+            int close = text.indexOf(quote, index + 1);
+            if (close == -1) return null;
+            return text.substring(index + 1, close);
+        }
+
+        int end = index;
+        while (end < text.length() && text.charAt(end) != '>'
+                && !Character.isWhitespace(text.charAt(end))) {
+            end++;
+        }
+        return text.substring(index, end);
+    }
+
+    /**
+     * Returns the given ASCII byte in upper case.
+     *
+     * @param b an ASCII byte
+     * @return the byte in upper case
+     */
+    private static byte toUpper(byte b) {
+        return b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b;
+    }
+}
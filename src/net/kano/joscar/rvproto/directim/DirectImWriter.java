@@ -0,0 +1,260 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.directim;
+
+import net.kano.joscar.BinaryTools;
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.ImEncodedString;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes Direct IM packets to a channel. Headers and message text are
+ * assembled in a single reusable buffer, and attachments are streamed from
+ * their channels, so sending a large file does not require holding it in
+ * memory. The channel must be in blocking mode.
+ * <br>
+ * <br>
+ * The methods of this class are synchronized, so that packets written by
+ * different threads are never interleaved.
+ */
+public final class DirectImWriter {
+    /** The size of this writer's buffer. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The tag that begins a message's attachments. */
+    private static final byte[] BINARY_OPEN
+            = BinaryTools.getAsciiBytes("<BINARY>");
+    /** The tag that ends a message's attachments. */
+    private static final byte[] BINARY_CLOSE
+            = BinaryTools.getAsciiBytes("</BINARY>");
+    /** The tag that ends an attachment's data. */
+    private static final byte[] DATA_CLOSE
+            = BinaryTools.getAsciiBytes("</DATA>");
+
+    /** The channel to which packets are written. */
+    private final WritableByteChannel channel;
+    /** The buffer in which packets are assembled. */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Creates a new Direct IM writer writing to the given channel.
+     *
+     * @param channel the blocking channel to which to write
+     */
+    public DirectImWriter(WritableByteChannel channel) {
+        DefensiveTools.checkNull(channel, "channel");
+
+        this.channel = channel;
+    }
+
+    /**
+     * Sends the given header on its own, with no message data. This can be
+     * used to send the header that identifies a new connection.
+     *
+     * @param header the header to send
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void writeHeader(DirectImHeader header)
+            throws IOException {
+        DefensiveTools.checkNull(header, "header");
+
+        buffer.clear();
+        header.write(buffer);
+        flush();
+    }
+
+    /**
+     * Sends a typing notification with the given flags. <code>flags</code>
+     * should be {@link DirectImHeader#FLAG_TYPING}, {@link
+     * DirectImHeader#FLAG_TYPED}, or <code>0</code> to indicate that the user
+     * erased what they were typing.
+     *
+     * @param flags the typing state flags
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public synchronized void writeTyping(long flags) throws IOException {
+        DirectImHeader hdr = new DirectImHeader();
+        hdr.setDefaults();
+        hdr.setFlags(DirectImHeader.FLAG_TYPINGPACKET | flags);
+
+        buffer.clear();
+        hdr.write(buffer);
+        flush();
+    }
+
+    /**
+     * Sends the given message.
+     *
+     * @param message the message to send
+     * @param autoresponse whether the message is an "auto-response"
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeMessage(ImEncodedString message, boolean autoresponse)
+            throws IOException {
+        writeMessage(message, autoresponse, null);
+    }
+
+    /**
+     * Sends the given message with the given attachments. Each attachment's
+     * data are read from its channel as they are sent.
+     *
+     * @param message the message to send
+     * @param autoresponse whether the message is an "auto-response"
+     * @param attachments the attachments to send with the message, or
+     *        <code>null</code> for none
+     *
+     * @throws IOException if an I/O error occurs, or if an attachment's
+     *         channel ends before its stated size
+     */
+    public synchronized void writeMessage(ImEncodedString message,
+            boolean autoresponse, DirectImAttachment[] attachments)
+            throws IOException {
+        DefensiveTools.checkNull(message, "message");
+
+        byte[] text = message.getBytes();
+        byte[][] tags = null;
+        long length = text.length;
+        if (attachments != null && attachments.length > 0) {
+            tags = new byte[attachments.length][];
+            length += BINARY_OPEN.length + BINARY_CLOSE.length;
+            for (int i = 0; i < attachments.length; i++) {
+                DirectImAttachment att = attachments[i];
+                tags[i] = BinaryTools.getAsciiBytes("<DATA ID=\"" + att.getId() + "\" SIZE=\""
+                        + att.getSize() + "\">");
+                length += tags[i].length + att.getSize()
+                        + DATA_CLOSE.length;
+            }
+        }
+
+        DirectImHeader hdr = DirectImHeader.createMessageHeader(message,
+                autoresponse);
+        hdr.setDataLength(length);
+
+        buffer.clear();
+        hdr.write(buffer);
+        put(text);
+
+        if (tags != null) {
+            put(BINARY_OPEN);
+            for (int i = 0; i < attachments.length; i++) {
+                put(tags[i]);
+                writeData(attachments[i]);
+                put(DATA_CLOSE);
+            }
+            put(BINARY_CLOSE);
+        }
+        flush();
+    }
+
+    /**
+     * Writes the given attachment's data, after whatever is in the buffer.
+     *
+     * @param att the attachment to write
+     *
+     * @throws IOException if an I/O error occurs or the attachment's channel
+     *         ends early
+     */
+    private void writeData(DirectImAttachment att) throws IOException {
+        ReadableByteChannel data = att.getData();
+        long remaining = att.getSize();
+
+        if (data instanceof FileChannel) {
+            flush();
+            FileChannel file = (FileChannel) data;
+            long pos = file.position();
+            while (remaining > 0) {
+                long sent = file.transferTo(pos, remaining, channel);
+                if (sent <= 0 && pos >= file.size()) {
+                    throw new EOFException("attachment " + att.getId()
+                            + " ended " + remaining + " bytes early");
+                }
+                pos += sent;
+                remaining -= sent;
+            }
+            file.position(pos);
+            return;
+        }
+
+        while (remaining > 0) {
+            if (!buffer.hasRemaining()) flush();
+            int limit = buffer.limit();
+            if (buffer.remaining() > remaining) {
+                buffer.limit(buffer.position() + (int) remaining);
+            }
+            int count = data.read(buffer);
+            buffer.limit(limit);
+            if (count == -1) {
+                throw new EOFException("attachment " + att.getId() + " ended "
+                        + remaining + " bytes early");
+            }
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Appends the given bytes to the buffer, writing it out as it fills.
+     *
+     * @param data the bytes to append
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void put(byte[] data) throws IOException {
+        for (int off = 0; off < data.length;) {
+            if (!buffer.hasRemaining()) flush();
+            int count = Math.min(buffer.remaining(), data.length - off);
+            buffer.put(data, off, count);
+            off += count;
+        }
+    }
+
+    /**
+     * Writes everything in the buffer to the channel and clears the buffer.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
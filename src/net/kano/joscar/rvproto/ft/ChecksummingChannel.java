@@ -0,0 +1,100 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.ft;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A channel that updates a {@link FileTransferChecksum} with every byte read
+ * through it. Wrapping a socket channel in a <code>ChecksummingChannel</code>
+ * lets a receiver checksum file data as it arrives, even when the data is
+ * written to disk with <code>FileChannel.transferFrom</code>, instead of
+ * reading the whole file back once it has been received.
+ */
+public class ChecksummingChannel implements ReadableByteChannel {
+    /** The channel from which data is read. */
+    private final ReadableByteChannel channel;
+    /** The checksum updated with the data read. */
+    private final FileTransferChecksum checksum;
+
+    /**
+     * Creates a new checksumming channel reading from the given channel and
+     * updating the given checksum.
+     *
+     * @param channel the channel from which to read
+     * @param checksum the checksum to update with the data read
+     */
+    public ChecksummingChannel(ReadableByteChannel channel,
+            FileTransferChecksum checksum) {
+        DefensiveTools.checkNull(channel, "channel");
+        DefensiveTools.checkNull(checksum, "checksum");
+
+        this.channel = channel;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns the checksum updated by this channel.
+     *
+     * @return this channel's checksum
+     */
+    public final FileTransferChecksum getChecksum() { return checksum; }
+
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int count = channel.read(dst);
+
+        if (count > 0) {
+            ByteBuffer read = dst.duplicate();
+            read.order(dst.order());
+            read.limit(start + count);
+            read.position(start);
+            checksum.update(read);
+        }
+        return count;
+    }
+
+    public boolean isOpen() { return channel.isOpen(); }
+
+    /**
+     * Closes the underlying channel.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException { channel.close(); }
+}
@@ -37,62 +37,364 @@ package net.kano.joscar.rvproto.ft;
 
 import net.kano.joscar.DefensiveTools;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.zip.Checksum;
 
 /**
  * An implementation of the checksumming method used by AOL Instant Messenger's
  * file transfer protocol.
+ * <br>
+ * <br>
+ * The checksum is a ones'-complement difference of the data read as
+ * big-endian 16-bit words, so it depends only on the sums of the bytes at even
+ * and at odd offsets. This class keeps those two sums rather than the folded
+ * checksum itself, which has a few consequences:
+ * <ul>
+ * <li> data can be passed to the <code>update</code> methods in chunks of any
+ * size, and the result is the same as a single pass over all of it </li>
+ * <li> eight bytes are summed at a time </li>
+ * <li> checksums of consecutive pieces of data can be computed independently
+ * and {@linkplain #combine combined}, which is how {@link
+ * #computeChecksum(FileChannel, long, ForkJoinPool)} checksums a large file in
+ * parallel </li>
+ * </ul>
+ * For checksumming data as it is read from a channel, see {@link
+ * ChecksummingChannel}.
  */
 public final class FileTransferChecksum implements Checksum {
     /** The checksum of an empty set of data. */
     private static final long CHECKSUM_INIT = 0xffff0000;
 
-    /** The checksum value. */
-    private long checksum;
+    /**
+     * The modulus of the ones'-complement arithmetic the checksum algorithm
+     * performs on its 32-bit accumulator.
+     */
+    private static final long MODULUS = 0xffffffffL;
 
-    { // init
-        reset();
-    }
+    /** A mask selecting the low byte of each 16-bit lane of a long. */
+    private static final long LANE_BYTES = 0x00ff00ff00ff00ffL;
+
+    /**
+     * The number of longs whose bytes can be added into 16-bit lanes before a
+     * lane could overflow.
+     */
+    private static final int WORDS_PER_BLOCK = 256;
+
+    /**
+     * The size of the regions into which a file is divided when checksumming
+     * it. This must be even, so every region starts at an even offset.
+     */
+    private static final long REGION_SIZE = 16 << 20;
+
+    /** The sum of the bytes at even offsets. */
+    private long evenSum;
+
+    /** The sum of the bytes at odd offsets. */
+    private long oddSum;
+
+    /** The number of bytes checksummed. */
+    private long length;
 
     /**
      * Creates a new file transfer checksum computer object.
      */
     public FileTransferChecksum() { }
 
+    /**
+     * Creates a new file transfer checksum computer object whose state is
+     * restored from values returned by a previous checksum's {@link
+     * #getEvenSum}, {@link #getOddSum}, and {@link #getLength} methods. This
+     * allows a partially computed checksum to be saved and resumed later.
+     *
+     * @param evenSum the sum of the bytes at even offsets
+     * @param oddSum the sum of the bytes at odd offsets
+     * @param length the number of bytes checksummed
+     */
+    public FileTransferChecksum(long evenSum, long oddSum, long length) {
+        DefensiveTools.checkRange(evenSum, "evenSum", 0);
+        DefensiveTools.checkRange(oddSum, "oddSum", 0);
+        DefensiveTools.checkRange(length, "length", 0);
+
+        this.evenSum = evenSum;
+        this.oddSum = oddSum;
+        this.length = length;
+    }
+
     public void update(int value) {
-        update(new byte[] { (byte) value }, 0, 1);
+        if ((length & 1) == 0) evenSum += value & 0xff;
+        else oddSum += value & 0xff;
+        length++;
     }
 
     public void update(final byte[] input, final int offset, final int len) {
         DefensiveTools.checkNull(input, "input");
 
-        long check = (checksum >> 16) & 0xffffL;
+        update(ByteBuffer.wrap(input, offset, len));
+    }
+
+    /**
+     * Updates this checksum with the remaining bytes in the given buffer. Upon
+     * return, the buffer's position will be equal to its limit.
+     *
+     * @param buf the data with which to update this checksum
+     */
+    public void update(ByteBuffer buf) {
+        DefensiveTools.checkNull(buf, "buf");
 
-        for (int i = 0; i < len; i++) {
-            final long oldcheck = check;
+        int pos = buf.position();
+        final int end = buf.limit();
+        if (pos == end) return;
 
-            final int byteVal = input[offset + i] & 0xff;
+        long even = 0;
+        long odd = 0;
+        if ((length & 1) != 0) {
+            // the next byte falls on an odd offset; after it, everything is
+            // aligned as if we had started fresh
+            odd += buf.get(pos++) & 0xff;
+        }
 
-            final int val;
-            if ((i & 1) != 0) val = byteVal;
-            else val = byteVal << 8;
+        // a big-endian long holds the bytes at even offsets in the high byte
+        // of each 16-bit lane
+        final boolean swapped = buf.order() == ByteOrder.LITTLE_ENDIAN;
+        while (end - pos >= 8) {
+            final int blockEnd = pos + 8 * Math.min(WORDS_PER_BLOCK,
+                    (end - pos) / 8);
 
-            check -= val;
+            long highLanes = 0;
+            long lowLanes = 0;
+            for (; pos < blockEnd; pos += 8) {
+                final long word = buf.getLong(pos);
+                highLanes += (word >>> 8) & LANE_BYTES;
+                lowLanes += word & LANE_BYTES;
+            }
 
-            if (check > oldcheck) check--;
+            if (swapped) {
+                even += sumLanes(lowLanes);
+                odd += sumLanes(highLanes);
+            } else {
+                even += sumLanes(highLanes);
+                odd += sumLanes(lowLanes);
+            }
         }
 
-        check = ((check & 0x0000ffff) + (check >> 16));
-        check = ((check & 0x0000ffff) + (check >> 16));
+        final int aligned = pos;
+        for (; pos < end; pos++) {
+            if (((pos - aligned) & 1) == 0) even += buf.get(pos) & 0xff;
+            else odd += buf.get(pos) & 0xff;
+        }
+
+        evenSum += even;
+        oddSum += odd;
+        length += end - buf.position();
+        buf.position(end);
+    }
+
+    /**
+     * Updates this checksum with <code>len</code> bytes of the given file,
+     * starting at the given position. The file is read through memory-mapped
+     * regions.
+     *
+     * @param file the file from which to read
+     * @param position the offset of the first byte to checksum
+     * @param len the number of bytes to checksum
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void update(FileChannel file, long position, long len)
+            throws IOException {
+        DefensiveTools.checkNull(file, "file");
+        DefensiveTools.checkRange(position, "position", 0);
+        DefensiveTools.checkRange(len, "len", 0);
+
+        for (long end = position + len; position < end;) {
+            long count = Math.min(REGION_SIZE, end - position);
+            update(file.map(FileChannel.MapMode.READ_ONLY, position, count));
+            position += count;
+        }
+    }
+
+    /**
+     * Returns the sum of the four unsigned 16-bit lanes of the given long.
+     *
+     * @param lanes four 16-bit values packed into a long
+     * @return the sum of the four values
+     */
+    private static long sumLanes(long lanes) {
+        lanes = (lanes & 0x0000ffff0000ffffL)
+                + ((lanes >>> 16) & 0x0000ffff0000ffffL);
+        return (lanes & 0xffffffffL) + (lanes >>> 32);
+    }
+
+    /**
+     * Updates this checksum as if the data summarized by the given checksum
+     * had been passed to this checksum's <code>update</code> methods. This
+     * allows consecutive pieces of data to be checksummed independently (and
+     * concurrently) and then combined, in order.
+     *
+     * @param next a checksum of the data immediately following the data
+     *        summarized by this checksum
+     */
+    public void combine(FileTransferChecksum next) {
+        DefensiveTools.checkNull(next, "next");
 
-        checksum = check << 16 & 0xffffffff;
+        if ((length & 1) == 0) {
+            evenSum += next.evenSum;
+            oddSum += next.oddSum;
+        } else {
+            evenSum += next.oddSum;
+            oddSum += next.evenSum;
+        }
+        length += next.length;
     }
 
+    /**
+     * Returns the number of bytes that have been checksummed since this
+     * checksum was created or last reset.
+     *
+     * @return the number of bytes checksummed
+     */
+    public long getLength() { return length; }
+
+    /**
+     * Returns the sum of the checksummed bytes that fell on even offsets.
+     *
+     * @return the sum of the bytes at even offsets
+     *
+     * @see #FileTransferChecksum(long, long, long)
+     */
+    public long getEvenSum() { return evenSum; }
+
+    /**
+     * Returns the sum of the checksummed bytes that fell on odd offsets.
+     *
+     * @return the sum of the bytes at odd offsets
+     *
+     * @see #FileTransferChecksum(long, long, long)
+     */
+    public long getOddSum() { return oddSum; }
+
     public long getValue() {
-        return checksum;
+        // the algorithm subtracts each 16-bit word from its accumulator in
+        // ones'-complement arithmetic, so its accumulator always ends up
+        // as the initial value minus the sum of the words, modulo 2^32 - 1
+        long sum = ((evenSum % MODULUS) * 256 + oddSum) % MODULUS;
+        long check = ((CHECKSUM_INIT >> 16) & 0xffff) - sum;
+        if (check < 0) check += MODULUS;
+
+        check = ((check & 0x0000ffff) + (check >> 16));
+        check = ((check & 0x0000ffff) + (check >> 16));
+
+        return check << 16;
     }
 
     public void reset() {
-        checksum = CHECKSUM_INIT;
+        evenSum = 0;
+        oddSum = 0;
+        length = 0;
+    }
+
+    /**
+     * Computes the checksum of the first <code>len</code> bytes of the given
+     * file. The file is read through memory-mapped regions.
+     *
+     * @param file the file to checksum
+     * @param len the number of bytes to include
+     * @return the checksum of the first <code>len</code> bytes of the file
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static long computeChecksum(FileChannel file, long len)
+            throws IOException {
+        DefensiveTools.checkNull(file, "file");
+        DefensiveTools.checkRange(len, "len", 0);
+
+        FileTransferChecksum summer = new FileTransferChecksum();
+        summer.update(file, 0, len);
+        return summer.getValue();
+    }
+
+    /**
+     * Computes the checksum of the first <code>len</code> bytes of the given
+     * file, checksumming memory-mapped regions of the file in parallel on the
+     * given pool.
+     *
+     * @param file the file to checksum
+     * @param len the number of bytes to include
+     * @param pool the pool on which to checksum the file's regions
+     * @return the checksum of the first <code>len</code> bytes of the file
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static long computeChecksum(FileChannel file, long len,
+            ForkJoinPool pool) throws IOException {
+        DefensiveTools.checkNull(file, "file");
+        DefensiveTools.checkRange(len, "len", 0);
+        DefensiveTools.checkNull(pool, "pool");
+
+        try {
+            return pool.invoke(new RegionTask(file, 0, len)).getValue();
+        } catch (RuntimeException e) {
+            // the pool may have wrapped our wrapper
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof IOException) throw (IOException) t;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A fork-join task that checksums a range of a file by splitting it into
+     * regions.
+     */
+    private static final class RegionTask
+            extends RecursiveTask<FileTransferChecksum> {
+        private static final long serialVersionUID = 1L;
+
+        /** The file being checksummed. */
+        private final FileChannel file;
+        /** The offset of the first byte of this task's range. */
+        private final long start;
+        /** The length of this task's range. */
+        private final long len;
+
+        /**
+         * Creates a task checksumming the given range of the given file.
+         *
+         * @param file the file to checksum
+         * @param start the offset of the first byte to checksum
+         * @param len the number of bytes to checksum
+         */
+        RegionTask(FileChannel file, long start, long len) {
+            this.file = file;
+            this.start = start;
+            this.len = len;
+        }
+
+        protected FileTransferChecksum compute() {
+            if (len <= REGION_SIZE) {
+                try {
+                    FileTransferChecksum summer = new FileTransferChecksum();
+                    summer.update(file, start, len);
+                    return summer;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            // split on a region boundary, so every mapping is a whole region
+            long half = (len / 2 + REGION_SIZE - 1) / REGION_SIZE * REGION_SIZE;
+            RegionTask second = new RegionTask(file, start + half, len - half);
+            second.fork();
+
+            FileTransferChecksum first
+                    = new RegionTask(file, start, half).compute();
+            first.combine(second.join());
+            return first;
+        }
     }
 }
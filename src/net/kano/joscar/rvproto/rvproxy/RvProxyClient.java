@@ -0,0 +1,185 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.rvproto.rvproxy;
+
+import net.kano.joscar.DefensiveTools;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Negotiates a rendezvous connection through an AOL Proxy Server over an
+ * already-connected socket. Once negotiation completes, the proxy relays
+ * everything sent over the socket to the other user and vice versa, so the
+ * socket can be handed to a file transfer or Direct IM implementation as if
+ * it had been connected directly.
+ * <br>
+ * <br>
+ * There are two roles in a proxied connection. The user who asks the proxy
+ * for a connection {@linkplain #initSend "initiates"} it, receives an {@link
+ * RvProxyAckCmd} holding the proxy's address and a "port" value, sends those
+ * to the other user in a rendezvous request, and then {@linkplain
+ * #awaitReady waits} for the other user to join. The other user {@linkplain
+ * #initRecv joins} by connecting to the proxy and sending that "port" value.
+ * <br>
+ * <br>
+ * All of this class's methods block, and should be called with the socket in
+ * blocking mode. A socket timeout can be used to limit how long they wait.
+ * Nothing past the proxy's own packets is read from the socket, so data the
+ * other user sends immediately after the connection is ready is not lost.
+ */
+public final class RvProxyClient {
+    /** The hostname of AOL's rendezvous proxy server. */
+    public static final String DEFAULT_PROXY_HOST = "ars.oscar.aol.com";
+    /** The port on which AOL Proxy Servers listen. */
+    public static final int DEFAULT_PROXY_PORT = 5190;
+
+    /** The command factory used to read the proxy's replies. */
+    private static final RvProxyCmdFactory cmdFactory
+            = new DefaultRvProxyCmdFactory();
+
+    /** The stream from which the proxy's replies are read. */
+    private final InputStream in;
+    /** The stream to which commands are written. */
+    private final OutputStream out;
+
+    /**
+     * Creates a new proxy client that negotiates over the given socket, which
+     * must be connected to an AOL Proxy Server.
+     *
+     * @param socket a socket connected to an AOL Proxy Server
+     *
+     * @throws IOException if the socket's streams cannot be obtained
+     */
+    public RvProxyClient(Socket socket) throws IOException {
+        DefensiveTools.checkNull(socket, "socket");
+
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * Asks the proxy for a new connection to be relayed to another user. The
+     * returned acknowledgement holds the address and "port" value to send to
+     * that user; once it is sent, call {@link #awaitReady} to wait for them to
+     * join.
+     *
+     * @param sn the screenname of the user making the request (that is, the
+     *        local user)
+     * @param icbmMessageId the ICBM message ID ("cookie") of the rendezvous
+     * @return the proxy's acknowledgement
+     *
+     * @throws IOException if an I/O error occurs, or if the proxy replies with
+     *         an error or an unexpected command
+     */
+    public RvProxyAckCmd initSend(String sn, long icbmMessageId)
+            throws IOException {
+        send(new RvProxyInitSendCmd(sn, icbmMessageId));
+        return (RvProxyAckCmd) expect(RvProxyAckCmd.class);
+    }
+
+    /**
+     * Joins a connection another user asked the proxy for, blocking until the
+     * proxy reports that the connection is ready.
+     *
+     * @param sn the screenname of the user joining (that is, the local user)
+     * @param icbmMessageId the ICBM message ID ("cookie") of the rendezvous
+     * @param port the "port" value given in the other user's rendezvous
+     *        request
+     *
+     * @throws IOException if an I/O error occurs, or if the proxy replies with
+     *         an error or an unexpected command
+     */
+    public void initRecv(String sn, long icbmMessageId, int port)
+            throws IOException {
+        send(new RvProxyInitRecvCmd(sn, icbmMessageId, port));
+        expect(RvProxyReadyCmd.class);
+    }
+
+    /**
+     * Waits for the other user to join a connection requested with {@link
+     * #initSend}.
+     *
+     * @throws IOException if an I/O error occurs, or if the proxy replies with
+     *         an error or an unexpected command
+     */
+    public void awaitReady() throws IOException {
+        expect(RvProxyReadyCmd.class);
+    }
+
+    /**
+     * Sends the given command to the proxy.
+     *
+     * @param cmd the command to send
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void send(RvProxyCmd cmd) throws IOException {
+        // write the packet in one piece rather than a field at a time
+        BufferedOutputStream bout = new BufferedOutputStream(out, 64);
+        new RvProxyPacket(cmd).write(bout);
+        bout.flush();
+    }
+
+    /**
+     * Reads the proxy's next command, which must be of the given type.
+     *
+     * @param type the expected command class
+     * @return the command read
+     *
+     * @throws IOException if an I/O error occurs, or if the proxy replies with
+     *         an error or an unexpected command
+     */
+    private RvProxyCmd expect(Class type) throws IOException {
+        RvProxyPacket packet = RvProxyPacket.readPacket(in);
+        if (packet == null) {
+            throw new IOException("AOL Proxy Server closed the connection");
+        }
+
+        RvProxyCmd cmd = cmdFactory.getRvProxyCmd(packet);
+        if (cmd instanceof RvProxyErrorCmd) {
+            int code = ((RvProxyErrorCmd) cmd).getErrorCode();
+            throw new IOException("AOL Proxy Server returned error 0x"
+                    + Integer.toHexString(code));
+        }
+        if (!type.isInstance(cmd)) {
+            throw new IOException("expected " + type.getName()
+                    + " from AOL Proxy Server, got " + cmd);
+        }
+        return cmd;
+    }
+}
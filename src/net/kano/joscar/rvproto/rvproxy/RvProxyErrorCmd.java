@@ -94,7 +94,9 @@ public class RvProxyErrorCmd extends RvProxyCmd {
      */
     public final int getErrorCode() { return errorCode; }
 
-    public void writeCommandData(OutputStream out) throws IOException { }
+    public void writeCommandData(OutputStream out) throws IOException {
+        BinaryTools.writeUShort(out, errorCode);
+    }
 
     public String toString() {
         return "RvProxyErrorCmd: errorCode=" + errorCode;
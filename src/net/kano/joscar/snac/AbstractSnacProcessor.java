@@ -497,9 +497,8 @@ public abstract class AbstractSnacProcessor {
      * @return an appropriate <code>SnacCommand</code> for the given packet
      */
     private SnacCommand generateSnacCommand(SnacPacket packet) {
-        CmdType type = new CmdType(packet.getFamily(), packet.getCommand());
-
-        SnacCmdFactory factory = factories.findFactory(type);
+        SnacCmdFactory factory = factories.findFactory(packet.getFamily(),
+                packet.getCommand());
 
         if (factory == null) return null;
 
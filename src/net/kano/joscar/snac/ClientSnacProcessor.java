@@ -43,11 +43,7 @@ import net.kano.joscar.flap.FlapProcessor;
 import net.kano.joscar.flapcmd.SnacCommand;
 import net.kano.joscar.flapcmd.SnacPacket;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -166,13 +162,14 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
     private int requestTtl = REQUEST_TTL_DEFAULT;
 
     /**
-     * A map from request ID's (<code>Integer</code>s) to
-     *  <code>RequestInfo</code>s, which contain <code>SnacRequest</code>s.
+     * A map from request ID's to <code>RequestInfo</code>s, which contain
+     * <code>SnacRequest</code>s.
      */
-    private final Map requests = new HashMap();
+    private final RequestIdMap requests = new RequestIdMap();
 
-    /** A list of requests that have been sent (not just queued). */
-    private final List requestQueue = new LinkedList();
+    /** The timing wheel on which sent requests' expiry is scheduled. */
+    private final RequestTimeoutWheel timeoutWheel
+            = RequestTimeoutWheel.getSharedInstance();
 
     /** Whether or not this SNAC connection is currently paused. */
     private boolean paused = false;
@@ -375,13 +372,23 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
      * stored at all. Additionally, with a value of zero, SNAC requests'
      * listeners will <i>never</i> be called with timeout events, as all
      * requests will "time out" immediately.
+     * <br>
+     * <br>
+     * A new value only applies to requests sent after this method is called,
+     * except that setting the TTL to zero immediately times out every request
+     * that has already been sent.
      *
      * @param requestTtl the new "time to live" for SNAC requests, in seconds
      */
-    public synchronized void setRequestTtl(int requestTtl) {
+    public void setRequestTtl(int requestTtl) {
         DefensiveTools.checkRange(requestTtl, "requestTtl", 0);
 
-        this.requestTtl = requestTtl;
+        synchronized(this) {
+            this.requestTtl = requestTtl;
+        }
+
+        // listeners must be called outside of any lock
+        if (requestTtl == 0) clearAllRequests();
     }
 
     /**
@@ -434,72 +441,84 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
     }
 
     /**
-     * "Times out" all requests on the request list.
+     * Tells the given request's listeners that it timed out without ever
+     * having been sent. This is meant for requests an application held back
+     * instead of sending, for example while waiting for a connection to the
+     * service that handles them, and then had to drop. The request should not
+     * be sent after this method is called.
+     *
+     * @param request the request that was dropped
      */
-    private final void clearAllRequests() {
-        synchronized(requests) {
-            for (Iterator it = requests.values().iterator(); it.hasNext();) {
-                RequestInfo reqInfo = (RequestInfo) it.next();
-
-                timeoutRequest(reqInfo);
-            }
-
-            requests.clear();
-            requestQueue.clear();
-        }
-    }
+    public final void dropRequest(SnacRequest request) {
+        DefensiveTools.checkNull(request, "request");
 
-    /**
-     * Removes any SNAC requests who were sent long enough ago such that their
-     * lifetime has passed the {@link #requestTtl}.
-     */
-    private final void cleanRequests() {
+        FlapProcessor processor;
         int ttl;
         synchronized(this) {
+            processor = getFlapProcessor();
             ttl = requestTtl;
         }
+        SnacRequestTimeoutEvent event = new SnacRequestTimeoutEvent(
+                processor, this, request, ttl);
 
-        List timedout = new LinkedList();
-        synchronized(requests) {
-            if (requestQueue.isEmpty()) return;
-
-            if (ttl == 0) {
-                clearAllRequests();
-                return;
-            }
-
-            long time = System.currentTimeMillis();
-
-            long ttlms = ttl * 1000;
-
-            for (Iterator it = requestQueue.iterator(); it.hasNext();) {
-                RequestInfo reqInfo = (RequestInfo) it.next();
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("Snac request dropped before being sent: " + request);
+        }
 
-                long sentTime = reqInfo.getSentTime();
-                if (sentTime == -1) continue;
+        synchronized(requestEventLock) {
+            request.timedOut(event);
+        }
+    }
 
-                long diff = time - sentTime;
+    /**
+     * "Times out" all sent requests on the request list.
+     */
+    private final void clearAllRequests() {
+        Object[] infos;
+        int count = 0;
+        synchronized(requests) {
+            if (requests.isEmpty()) return;
 
-                // these are in the order in which they were sent, so once we've
-                // found one that was sent more recently than the TTL states,
-                // we've found them all. so we break.
-                if (diff < ttlms) break;
+            infos = requests.values();
+            for (int i = 0; i < infos.length; i++) {
+                RequestInfo reqInfo = (RequestInfo) infos[i];
 
-                // queue this request up to be timed out
-                timedout.add(reqInfo);
+                // requests which are still queued may be sent later, so
+                // they must stay registered
+                RequestTimeoutWheel.Timeout timeout = reqInfo.getTimeout();
+                if (timeout == null) continue;
 
-                // and remove the request from the queue and the reqid map
-                it.remove();
-                requests.remove(new Long(reqInfo.getRequest().getReqid()));
+                timeout.cancel();
+                requests.remove(reqInfo.getRequest().getReqid());
+                infos[count++] = reqInfo;
             }
         }
 
         // we time out the requests outside of the lock
-        for (Iterator it = timedout.iterator(); it.hasNext();) {
-            RequestInfo reqInfo = (RequestInfo) it.next();
+        for (int i = 0; i < count; i++) {
+            timeoutRequest((RequestInfo) infos[i]);
+        }
+    }
+
+    /**
+     * Removes the given request from the request list and times it out, if
+     * it is still registered. This is called by the timing wheel once the
+     * request's lifetime has passed the {@link #requestTtl} with which it was
+     * sent.
+     *
+     * @param reqInfo the request whose lifetime has passed
+     */
+    private final void expireRequest(RequestInfo reqInfo) {
+        synchronized(requests) {
+            long id = reqInfo.getRequest().getReqid();
+
+            // the request may have already been cleared
+            if (requests.get(id) != reqInfo) return;
 
-            timeoutRequest(reqInfo);
+            requests.remove(id);
         }
+
+        timeoutRequest(reqInfo);
     }
 
     /**
@@ -569,9 +588,14 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
 
         synchronized(requests) {
             if (ttl != 0) {
-                requestQueue.add(reqInfo);
+                final RequestInfo expiring = reqInfo;
+                reqInfo.setTimeout(timeoutWheel.schedule(new Runnable() {
+                    public void run() {
+                        expireRequest(expiring);
+                    }
+                }, ttl * 1000L));
             } else {
-                requests.remove(new Long(reqid));
+                requests.remove(reqid);
             }
         }
 
@@ -636,20 +660,16 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
     private RequestInfo registerSnacRequest(SnacRequest request) {
         synchronized(requests) {
             if (request.getReqid() != -1) {
-                return (RequestInfo) requests.get(new Long(request.getReqid()));
+                return (RequestInfo) requests.get(request.getReqid());
             }
 
             long id = reqid.next();
 
             request.setReqid(id);
 
-            Long key = new Long(id);
-
-            cleanRequests();
-
             RequestInfo reqInfo = new RequestInfo(request);
 
-            requests.put(key, reqInfo);
+            requests.put(id, reqInfo);
 
             return reqInfo;
         }
@@ -682,10 +702,9 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
 
         SnacPacket snacPacket = event.getSnacPacket();
 
-        Long key = new Long(snacPacket.getReqid());
         RequestInfo reqInfo;
         synchronized(requests) {
-            reqInfo = (RequestInfo) requests.get(key);
+            reqInfo = (RequestInfo) requests.get(snacPacket.getReqid());
         }
 
         if (reqInfo == null) return true;
@@ -737,6 +756,12 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
          */
         private long sent = -1;
 
+        /**
+         * The pending expiry of this request, or <code>null</code> if this
+         * request has not been sent or will not expire.
+         */
+        private RequestTimeoutWheel.Timeout timeout = null;
+
         /**
          * Creates a new <code>RequestInfo</code> for the given request.
          *
@@ -781,6 +806,27 @@ public class ClientSnacProcessor extends AbstractSnacProcessor {
          */
         public synchronized final long getSentTime() { return sent; }
 
+        /**
+         * Sets the pending expiry of the associated request.
+         *
+         * @param timeout the timing wheel entry which will expire this request
+         */
+        public synchronized final void setTimeout(
+                RequestTimeoutWheel.Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * Returns the pending expiry of the associated request, or
+         * <code>null</code> if the request has not been scheduled to expire.
+         *
+         * @return the timing wheel entry which will expire this request, or
+         *         <code>null</code>
+         */
+        public synchronized final RequestTimeoutWheel.Timeout getTimeout() {
+            return timeout;
+        }
+
         public String toString() {
             return "Request " + MiscTools.getClassName(request.getCommand())
                     + ": " + (sent == -1 ? "not sent"
@@ -62,6 +62,12 @@ package net.kano.joscar.snac;
  * factory list</i> specified by <code>setDefaultFactoryList</code> </li>
  * </ol>
  * For more details on how this class is used, see {@link ClientSnacProcessor}.
+ * <br>
+ * <br>
+ * The result of the above search is compiled into a table indexed by SNAC
+ * family and subtype, so finding the factory for an incoming packet takes no
+ * lock and allocates nothing. The table is rebuilt the first time it is used
+ * after a factory is registered or unregistered in either list.
  */
 public final class CmdFactoryMgr extends SnacCmdFactoryList {
     /**
@@ -69,6 +75,11 @@ public final class CmdFactoryMgr extends SnacCmdFactoryList {
      * user-registered factories match a given command type.
      */
     private SnacCmdFactoryList defaultFactories;
+    /**
+     * The compiled dispatch table, or <code>null</code> if none has been
+     * built yet.
+     */
+    private volatile FactoryDispatchTable table = null;
 
     /**
      * Creates a new command factory manager with no default factories.
@@ -86,6 +97,7 @@ public final class CmdFactoryMgr extends SnacCmdFactoryList {
     public synchronized final void setDefaultFactoryList(
             SnacCmdFactoryList list) {
         this.defaultFactories = list;
+        this.table = null;
     }
 
     /**
@@ -106,41 +118,48 @@ public final class CmdFactoryMgr extends SnacCmdFactoryList {
      * @param type the command type for which a factory must be found
      * @return an appropriate command factory for the given type
      */
-    synchronized final SnacCmdFactory findFactory(CmdType type) {
-        // see if there's a usert r factory for this command
-        SnacCmdFactory factory = getFactory(type);
-
-        if (factory != null) return factory;
-
-        // see if there's a user factory for this family
-        CmdType familyCmd = new CmdType(type.getFamily());
-        factory = getFactory(familyCmd);
-
-        if (factory != null) return factory;
-
-        if (defaultFactories != null) {
-            // see if there's a default factory for this command
-            factory = defaultFactories.getFactory(type);
-
-            if (factory != null) return factory;
+    final SnacCmdFactory findFactory(CmdType type) {
+        return findFactory(type.getFamily(), type.getCommand());
+    }
 
-            // and if there's a default factory for this family
-            factory = defaultFactories.getFactory(familyCmd);
+    /**
+     * Returns an appropriate command factory for the given SNAC family and
+     * subtype, as described {@linkplain CmdFactoryMgr above}. Unless a factory
+     * list has changed since the last call, this method takes no lock and
+     * allocates nothing.
+     *
+     * @param family the SNAC family of the command
+     * @param command the SNAC command subtype of the command
+     * @return an appropriate command factory for the given command, or
+     *         <code>null</code> if none applies
+     */
+    final SnacCmdFactory findFactory(int family, int command) {
+        FactoryDispatchTable current = table;
+
+        // defaultFactories is only read under the lock, so if the table was
+        // built for an old default list, setDefaultFactoryList will have
+        // cleared it
+        if (current == null || !current.isCurrent(this,
+                current.getDefaultList())) {
+            current = rebuildTable();
         }
 
-        if (factory != null) return factory;
-
-        // and then if there's a catchall factory set by the user
-        factory = getFactory(CmdType.CMDTYPE_ALL);
-
-        if (factory != null) return factory;
+        return current.getFactory(family, command);
+    }
 
-        if (defaultFactories != null) {
-            // and then if there's a default catchall factory
-            factory = defaultFactories.getFactory(CmdType.CMDTYPE_ALL);
+    /**
+     * Compiles a new dispatch table from the current factory lists.
+     *
+     * @return the new dispatch table
+     */
+    private synchronized FactoryDispatchTable rebuildTable() {
+        FactoryDispatchTable current = table;
+        if (current != null && current.isCurrent(this, defaultFactories)) {
+            return current;
         }
 
-        // it doesn't matter if it's null anymore, man. it just doesn't matter.
-        return factory;
+        current = new FactoryDispatchTable(this, defaultFactories);
+        table = current;
+        return current;
     }
 }
@@ -0,0 +1,257 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.snac;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An immutable table mapping SNAC families and command subtypes directly to
+ * the command factory that {@link CmdFactoryMgr} would choose for them. The
+ * table is compiled from a factory manager's user-registered and default
+ * factory lists, with each entry already resolved through every fallback
+ * level, so that a lookup is just two array accesses.
+ * <br>
+ * <br>A table records the modification counts of the lists it was built
+ * from; {@link #isCurrent} can be used to tell whether it needs to be
+ * rebuilt.
+ */
+final class FactoryDispatchTable {
+    /** An empty array of factory rows. */
+    private static final SnacCmdFactory[][] NO_ROWS = new SnacCmdFactory[0][];
+
+    /** The user-registered factory list this table was built from. */
+    private final SnacCmdFactoryList userList;
+    /** The modification count of the user list when this table was built. */
+    private final int userModCount;
+    /**
+     * The default factory list this table was built from, or
+     * <code>null</code> if there was none.
+     */
+    private final SnacCmdFactoryList defaultList;
+    /** The modification count of the default list when this table was built. */
+    private final int defaultModCount;
+
+    /**
+     * The resolved factory for each subtype of each family, indexed by family
+     * and then by subtype. A row is <code>null</code> if no factory was
+     * registered for a specific subtype of that family.
+     */
+    private final SnacCmdFactory[][] rows;
+    /**
+     * The resolved factory for each family's subtypes not covered by that
+     * family's row.
+     */
+    private final SnacCmdFactory[] familyFactories;
+    /** The resolved factory for families not covered by this table. */
+    private final SnacCmdFactory catchAll;
+
+    /**
+     * Compiles a dispatch table from the given user and default factory lists.
+     *
+     * @param userList the user-registered factory list
+     * @param defaultList the default factory list, or <code>null</code>
+     */
+    FactoryDispatchTable(SnacCmdFactoryList userList,
+            SnacCmdFactoryList defaultList) {
+        this.userList = userList;
+        this.defaultList = defaultList;
+
+        // the modification counts must be read before the maps are copied,
+        // so that a change made in between will make this table look stale
+        // rather than be missed
+        userModCount = userList.getModCount();
+        Map user = userList.getFactoryMap();
+
+        Map defaults;
+        if (defaultList == null) {
+            defaultModCount = 0;
+            defaults = Collections.EMPTY_MAP;
+        } else {
+            defaultModCount = defaultList.getModCount();
+            defaults = defaultList.getFactoryMap();
+        }
+
+        catchAll = pick(user, defaults, CmdType.CMDTYPE_ALL);
+
+        int maxFamily = Math.max(getMaxFamily(user), getMaxFamily(defaults));
+
+        if (maxFamily == -1) {
+            rows = NO_ROWS;
+            familyFactories = new SnacCmdFactory[0];
+            return;
+        }
+
+        rows = new SnacCmdFactory[maxFamily + 1][];
+        familyFactories = new SnacCmdFactory[maxFamily + 1];
+
+        for (int family = 0; family <= maxFamily; family++) {
+            CmdType familyType = new CmdType(family);
+            SnacCmdFactory userFamily = (SnacCmdFactory) user.get(familyType);
+            SnacCmdFactory defFamily
+                    = (SnacCmdFactory) defaults.get(familyType);
+
+            SnacCmdFactory familyFactory = userFamily;
+            if (familyFactory == null) familyFactory = defFamily;
+            if (familyFactory == null) familyFactory = catchAll;
+            familyFactories[family] = familyFactory;
+
+            int maxCommand = Math.max(getMaxCommand(user, family),
+                    getMaxCommand(defaults, family));
+            if (maxCommand == -1) continue;
+
+            SnacCmdFactory[] row = new SnacCmdFactory[maxCommand + 1];
+            for (int command = 0; command <= maxCommand; command++) {
+                CmdType type = new CmdType(family, command);
+
+                // this is the same order CmdFactoryMgr has always used
+                SnacCmdFactory factory = (SnacCmdFactory) user.get(type);
+                if (factory == null) factory = userFamily;
+                if (factory == null) {
+                    factory = (SnacCmdFactory) defaults.get(type);
+                }
+                if (factory == null) factory = defFamily;
+                if (factory == null) factory = catchAll;
+
+                row[command] = factory;
+            }
+            rows[family] = row;
+        }
+    }
+
+    /**
+     * Returns the factory registered for the given type in the given user
+     * factory map, or in the given default map if there is none in the user
+     * map.
+     *
+     * @param user the user factory map
+     * @param defaults the default factory map
+     * @param type the command type to look up
+     * @return the factory for the given type, or <code>null</code>
+     */
+    private static SnacCmdFactory pick(Map user, Map defaults, CmdType type) {
+        SnacCmdFactory factory = (SnacCmdFactory) user.get(type);
+        if (factory == null) factory = (SnacCmdFactory) defaults.get(type);
+        return factory;
+    }
+
+    /**
+     * Returns the highest SNAC family with a factory registered in the given
+     * map.
+     *
+     * @param factories a map from command types to factories
+     * @return the highest family in the given map, or <code>-1</code> if
+     *         there is none
+     */
+    private static int getMaxFamily(Map factories) {
+        int max = -1;
+        for (Iterator it = factories.keySet().iterator(); it.hasNext();) {
+            CmdType type = (CmdType) it.next();
+
+            max = Math.max(max, type.getFamily());
+        }
+        return max;
+    }
+
+    /**
+     * Returns the highest command subtype in the given family with a factory
+     * registered in the given map.
+     *
+     * @param factories a map from command types to factories
+     * @param family the SNAC family
+     * @return the highest subtype in the given family, or <code>-1</code> if
+     *         there is none
+     */
+    private static int getMaxCommand(Map factories, int family) {
+        int max = -1;
+        for (Iterator it = factories.keySet().iterator(); it.hasNext();) {
+            CmdType type = (CmdType) it.next();
+
+            if (type.getFamily() == family) {
+                max = Math.max(max, type.getCommand());
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the default factory list this table was built from.
+     *
+     * @return the default factory list, or <code>null</code> if there was
+     *         none
+     */
+    SnacCmdFactoryList getDefaultList() {
+        return defaultList;
+    }
+
+    /**
+     * Returns whether this table still reflects the given factory lists.
+     *
+     * @param userList the current user factory list
+     * @param defaultList the current default factory list
+     * @return whether this table was built from the given lists and neither
+     *         has changed since
+     */
+    boolean isCurrent(SnacCmdFactoryList userList,
+            SnacCmdFactoryList defaultList) {
+        if (userList != this.userList || defaultList != this.defaultList) {
+            return false;
+        }
+        if (userList.getModCount() != userModCount) return false;
+
+        return defaultList == null
+                || defaultList.getModCount() == defaultModCount;
+    }
+
+    /**
+     * Returns the factory that should be used to generate SNAC commands of
+     * the given family and subtype. This method takes no locks and allocates
+     * nothing.
+     *
+     * @param family a SNAC family
+     * @param command a SNAC command subtype
+     * @return the factory for the given command, or <code>null</code> if none
+     *         applies
+     */
+    SnacCmdFactory getFactory(int family, int command) {
+        if (family < 0 || family >= familyFactories.length) return catchAll;
+
+        SnacCmdFactory[] row = rows[family];
+        if (row != null && command >= 0 && command < row.length) {
+            return row[command];
+        }
+        return familyFactories[family];
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.snac;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table mapping primitive <code>long</code> request
+ * ID's to objects. This class exists so that request ID lookups on the
+ * incoming packet path do not need to allocate a boxed <code>Long</code> key
+ * or a <code>HashMap</code> entry for every request. Collisions are resolved
+ * by linear probing, and removals use backward-shift deletion so that no
+ * "tombstone" slots accumulate.
+ * <br>
+ * <br>
+ * Values may not be <code>null</code>; a <code>null</code> value marks an
+ * empty slot. This class is <b>not</b> thread-safe; callers must provide their
+ * own synchronization.
+ */
+final class RequestIdMap {
+    /** The default initial capacity of a request ID map. */
+    private static final int DEFAULT_CAPACITY = 64;
+
+    /** The keys in this map, indexed by slot. */
+    private long[] keys;
+    /** The values in this map, indexed by slot; <code>null</code> if empty. */
+    private Object[] values;
+    /** The number of mappings in this map. */
+    private int size = 0;
+    /** The number of mappings at which this map will grow. */
+    private int threshold;
+
+    /**
+     * Creates a new empty request ID map with a default initial capacity.
+     */
+    public RequestIdMap() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Allocates new, empty key and value tables of the given capacity.
+     *
+     * @param capacity the new table capacity, which must be a power of two
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        // keep the load factor at or below one half so probe runs stay short
+        threshold = capacity >> 1;
+    }
+
+    /**
+     * Returns the slot at which a probe for the given key should begin.
+     *
+     * @param key the key
+     * @param mask the table capacity minus one
+     * @return the initial slot for the given key
+     */
+    private static int slotFor(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the value mapped to the given key, or <code>null</code> if there
+     * is no such mapping.
+     *
+     * @param key the key to look up
+     * @return the value mapped to the given key, or <code>null</code>
+     */
+    public Object get(long key) {
+        int mask = values.length - 1;
+        for (int i = slotFor(key, mask); ; i = (i + 1) & mask) {
+            Object value = values[i];
+            if (value == null) return null;
+            if (keys[i] == key) return value;
+        }
+    }
+
+    /**
+     * Maps the given key to the given value, replacing any existing mapping
+     * for that key.
+     *
+     * @param key the key
+     * @param value the value, which may not be <code>null</code>
+     * @return the value previously mapped to the given key, or
+     *         <code>null</code> if there was none
+     */
+    public Object put(long key, Object value) {
+        if (value == null) throw new NullPointerException("value");
+
+        int mask = values.length - 1;
+        int i = slotFor(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                Object old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) rehash(values.length << 1);
+        return null;
+    }
+
+    /**
+     * Removes the mapping for the given key, if any.
+     *
+     * @param key the key whose mapping should be removed
+     * @return the value that was mapped to the given key, or <code>null</code>
+     *         if there was none
+     */
+    public Object remove(long key) {
+        int mask = values.length - 1;
+        int i = slotFor(key, mask);
+        for (; ; i = (i + 1) & mask) {
+            Object value = values[i];
+            if (value == null) return null;
+            if (keys[i] == key) break;
+        }
+        Object old = values[i];
+
+        // shift back any following entries in this probe run which would
+        // otherwise become unreachable
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = slotFor(keys[j], mask);
+            // move the entry at j into the hole unless its home slot lies
+            // cyclically within (hole, j]
+            boolean reachable = hole <= j
+                    ? hole < home && home <= j
+                    : hole < home || home <= j;
+            if (!reachable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        size--;
+
+        return old;
+    }
+
+    /**
+     * Returns the number of mappings in this map.
+     *
+     * @return the number of mappings in this map
+     */
+    public int size() { return size; }
+
+    /**
+     * Returns whether this map contains no mappings.
+     *
+     * @return whether this map is empty
+     */
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * Removes all mappings from this map.
+     */
+    public void clear() {
+        if (size == 0) return;
+        if (values.length > DEFAULT_CAPACITY) {
+            allocate(DEFAULT_CAPACITY);
+        } else {
+            Arrays.fill(values, null);
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns an array containing every value in this map, in no particular
+     * order.
+     *
+     * @return the values in this map
+     */
+    public Object[] values() {
+        Object[] result = new Object[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) result[n++] = values[i];
+        }
+        return result;
+    }
+
+    /**
+     * Moves every mapping in this map into new tables of the given capacity.
+     *
+     * @param capacity the new capacity, which must be a power of two
+     */
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            Object value = oldValues[i];
+            if (value == null) continue;
+
+            int j = slotFor(oldKeys[i], mask);
+            while (values[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = value;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.snac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel used to expire SNAC requests after their "time to
+ * live" has passed. Scheduling and cancelling a timeout are constant-time
+ * operations, and on each tick only the single wheel slot whose time has come
+ * is examined, so the cost of request expiry does not grow with the number of
+ * requests in flight.
+ * <br>
+ * <br>
+ * A single {@linkplain #getSharedInstance shared wheel} and its daemon timer
+ * thread serve every <code>ClientSnacProcessor</code>. Expired tasks are run on
+ * that timer thread with no locks held, so tasks may safely call listeners.
+ * Tasks may run up to one tick (one second for the shared wheel) late, but
+ * never early.
+ */
+final class RequestTimeoutWheel {
+    /** A logger for reporting exceptions thrown by timeout tasks. */
+    private static final Logger logger
+            = Logger.getLogger("net.kano.joscar.snac");
+
+    /**
+     * The number of milliseconds per tick of the shared wheel. Request TTL's
+     * are expressed in seconds, so there is no need for finer resolution.
+     */
+    private static final long SHARED_TICK_MS = 1000;
+
+    /**
+     * The number of slots in the shared wheel. With one-second ticks this
+     * covers slightly more than the {@linkplain
+     * ClientSnacProcessor#REQUEST_TTL_DEFAULT default request TTL} in a single
+     * revolution.
+     */
+    private static final int SHARED_WHEEL_SIZE = 1024;
+
+    /** The shared wheel, created lazily. */
+    private static RequestTimeoutWheel sharedInstance = null;
+
+    /**
+     * Returns the timing wheel shared by every SNAC processor in this VM.
+     *
+     * @return the shared timing wheel
+     */
+    public static synchronized RequestTimeoutWheel getSharedInstance() {
+        if (sharedInstance == null) {
+            sharedInstance = new RequestTimeoutWheel(SHARED_TICK_MS,
+                    SHARED_WHEEL_SIZE);
+        }
+        return sharedInstance;
+    }
+
+    /** The number of milliseconds per tick. */
+    private final long tickMs;
+    /** The wheel size minus one; the wheel size is a power of two. */
+    private final int mask;
+    /** The head of each slot's list of pending timeouts. */
+    private final Timeout[] slots;
+
+    /** The time at which tick zero began. */
+    private final long startTime;
+    /** The last tick that has been processed. */
+    private long currentTick = 0;
+
+    /** The timer driving this wheel, created when first needed. */
+    private Timer timer = null;
+
+    /**
+     * Creates a new timing wheel with the given tick length and number of
+     * slots.
+     *
+     * @param tickMs the number of milliseconds per tick
+     * @param wheelSize the number of slots, rounded up to a power of two
+     */
+    RequestTimeoutWheel(long tickMs, int wheelSize) {
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        this.slots = new Timeout[size];
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Schedules the given task to be run once, after the given delay.
+     *
+     * @param task the task to run
+     * @param delayMs the minimum number of milliseconds to wait before running
+     *        the given task
+     * @return a handle which can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        long deadline = System.currentTimeMillis() + Math.max(0, delayMs);
+        // round up so the task never runs before its deadline
+        long tick = (deadline - startTime + tickMs - 1) / tickMs;
+
+        Timeout timeout = new Timeout(this, task);
+        synchronized(this) {
+            if (tick <= currentTick) tick = currentTick + 1;
+            timeout.deadlineTick = tick;
+            link(timeout);
+
+            if (timer == null) {
+                timer = new Timer(true);
+                timer.scheduleAtFixedRate(new TimerTask() {
+                    public void run() {
+                        advance();
+                    }
+                }, tickMs, tickMs);
+            }
+        }
+        return timeout;
+    }
+
+    /**
+     * Inserts the given timeout at the head of its slot's list.
+     *
+     * @param timeout the timeout to link
+     */
+    private void link(Timeout timeout) {
+        int slot = (int) timeout.deadlineTick & mask;
+        Timeout head = slots[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) head.prev = timeout;
+        slots[slot] = timeout;
+        timeout.linked = true;
+    }
+
+    /**
+     * Removes the given timeout from its slot's list.
+     *
+     * @param timeout the timeout to unlink
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[(int) timeout.deadlineTick & mask] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.linked = false;
+    }
+
+    /**
+     * Cancels the given timeout if it has not yet expired.
+     *
+     * @param timeout the timeout to cancel
+     * @return whether the timeout was cancelled before expiring
+     */
+    private synchronized boolean cancel(Timeout timeout) {
+        if (!timeout.linked) return false;
+
+        unlink(timeout);
+        return true;
+    }
+
+    /**
+     * Advances this wheel to the current time, running any tasks whose
+     * deadlines have passed. If the timer thread has fallen behind, every
+     * missed tick is processed.
+     */
+    private void advance() {
+        List expired = null;
+        synchronized(this) {
+            long target = (System.currentTimeMillis() - startTime) / tickMs;
+            while (currentTick < target) {
+                currentTick++;
+
+                int slot = (int) currentTick & mask;
+                Timeout timeout = slots[slot];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    // entries for later revolutions share this slot
+                    if (timeout.deadlineTick <= currentTick) {
+                        unlink(timeout);
+                        if (expired == null) expired = new ArrayList();
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+
+        if (expired == null) return;
+
+        // run the tasks outside the lock
+        for (int i = 0; i < expired.size(); i++) {
+            Timeout timeout = (Timeout) expired.get(i);
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "Exception while timing out SNAC "
+                        + "request", t);
+            }
+        }
+    }
+
+    /**
+     * A handle for a task scheduled on a timing wheel.
+     */
+    static final class Timeout {
+        /** The wheel on which this timeout is scheduled. */
+        private final RequestTimeoutWheel wheel;
+        /** The task to run when this timeout expires. */
+        private final Runnable task;
+
+        /** The tick at which this timeout expires. */
+        private long deadlineTick;
+        /** The previous timeout in this timeout's slot. */
+        private Timeout prev = null;
+        /** The next timeout in this timeout's slot. */
+        private Timeout next = null;
+        /** Whether this timeout is still waiting in the wheel. */
+        private boolean linked = false;
+
+        /**
+         * Creates a new timeout for the given task on the given wheel.
+         *
+         * @param wheel the wheel on which the task is scheduled
+         * @param task the task to run
+         */
+        private Timeout(RequestTimeoutWheel wheel, Runnable task) {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * Cancels this timeout. If this timeout has already expired or been
+         * cancelled, no change takes place.
+         *
+         * @return whether this call prevented the task from running
+         */
+        public boolean cancel() {
+            return wheel.cancel(this);
+        }
+    }
+}
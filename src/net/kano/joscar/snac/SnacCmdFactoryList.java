@@ -53,6 +53,12 @@ public abstract class SnacCmdFactoryList {
      * The map of factories from <code>CmdType</code>s.
      */
     private Map factories = new HashMap();
+    /**
+     * The number of times the set of registered factories has changed. This
+     * lets compiled dispatch tables built from this list notice that they are
+     * out of date without taking a lock.
+     */
+    private volatile int modCount = 0;
 
     /**
       * Registers the given command factory for the given command type.
@@ -74,6 +80,7 @@ public abstract class SnacCmdFactoryList {
         if (!Arrays.asList(factory.getSupportedTypes()).contains(type)) return;
 
         factories.put(type, factory);
+        modCount++;
     }
 
     /**
@@ -91,6 +98,7 @@ public abstract class SnacCmdFactoryList {
         for (int i = 0; i < types.length; i++) {
             factories.put(types[i], factory);
         }
+        modCount++;
     }
 
     /**
@@ -108,7 +116,10 @@ public abstract class SnacCmdFactoryList {
 
         SnacCmdFactory other = (SnacCmdFactory) factories.get(type);
 
-        if (other == factory) factories.remove(type);
+        if (other == factory) {
+            factories.remove(type);
+            modCount++;
+        }
     }
 
     /**
@@ -124,6 +135,7 @@ public abstract class SnacCmdFactoryList {
 
         // remove each instance of this factory
         while (c.remove(factory));
+        modCount++;
     }
 
     /**
@@ -132,6 +144,7 @@ public abstract class SnacCmdFactoryList {
      */
     protected synchronized final void unregisterAll() {
         factories.clear();
+        modCount++;
     }
 
     /**
@@ -153,4 +166,24 @@ public abstract class SnacCmdFactoryList {
 
         return (SnacCmdFactory) factories.get(type);
     }
+
+    /**
+     * Returns a number that changes every time a factory is registered or
+     * unregistered in this list.
+     *
+     * @return this list's modification count
+     */
+    final int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Returns a copy of the map from <code>CmdType</code>s to the factories
+     * registered for them.
+     *
+     * @return a copy of this list's factory map
+     */
+    synchronized final Map getFactoryMap() {
+        return new HashMap(factories);
+    }
 }
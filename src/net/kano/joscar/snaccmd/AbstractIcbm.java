@@ -38,12 +38,14 @@ package net.kano.joscar.snaccmd;
 import net.kano.joscar.BinaryTools;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.LiveWritable;
 import net.kano.joscar.MiscTools;
 import net.kano.joscar.flapcmd.SnacCommand;
 import net.kano.joscar.flapcmd.SnacPacket;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Provides a base for all six "Inter-Client Basic Message" SNAC commands. These
@@ -194,6 +196,46 @@ public abstract class AbstractIcbm extends SnacCommand {
     protected abstract void writeChannelData(OutputStream out)
             throws IOException;
 
+    public long getDataLength() {
+        long len = getChannelDataLength();
+        return len < 0 ? -1 : 10 + len;
+    }
+
+    public void writeData(ByteBuffer buf) {
+        buf.putLong(messageId);
+        buf.putShort((short) channel);
+        writeChannelData(buf);
+    }
+
+    /**
+     * Returns the length of the channel-specific data for this ICBM command,
+     * or <code>-1</code> if it is not known without writing the data.
+     * Subclasses which return a length here should also override {@link
+     * #writeChannelData(ByteBuffer)}. This method returns <code>-1</code> by
+     * default.
+     *
+     * @return the length of this command's channel-specific data, or
+     *         <code>-1</code>
+     */
+    protected long getChannelDataLength() {
+        return -1;
+    }
+
+    /**
+     * Writes the channel-specific data for this ICBM command to the given
+     * buffer. The default implementation writes the data through {@link
+     * #writeChannelData(OutputStream)}.
+     *
+     * @param buf the buffer to write to
+     */
+    protected void writeChannelData(ByteBuffer buf) {
+        BinaryTools.write(buf, new LiveWritable() {
+            public void write(OutputStream out) throws IOException {
+                writeChannelData(out);
+            }
+        });
+    }
+
     public String toString() {
         return MiscTools.getClassName(this) + ": channel=" + this.channel
                 + ", messageId=" + this.getIcbmMessageId();
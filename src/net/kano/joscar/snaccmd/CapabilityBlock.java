@@ -69,7 +69,7 @@ public final class CapabilityBlock implements Writable {
      * chat rooms.
      */
     public static final CapabilityBlock BLOCK_CHAT =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x74, (byte) 0x8f, 0x24, 0x20, 0x62, (byte) 0x87, 0x11,
                 (byte) 0xd1, (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54,
                 0x00, 0x00});
@@ -79,7 +79,7 @@ public final class CapabilityBlock implements Writable {
      * voice chat invitations.
      */
     public static final CapabilityBlock BLOCK_VOICE =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x41, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -87,7 +87,7 @@ public final class CapabilityBlock implements Writable {
      * A capability block used to indicate that a client can be sent files.
      */
     public static final CapabilityBlock BLOCK_FILE_SEND =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x43, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -96,7 +96,7 @@ public final class CapabilityBlock implements Writable {
      * IM invitation.
      */
     public static final CapabilityBlock BLOCK_DIRECTIM =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x45, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -107,7 +107,7 @@ public final class CapabilityBlock implements Writable {
      * service}.
      */
     public static final CapabilityBlock BLOCK_ICON =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x46, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -116,7 +116,7 @@ public final class CapabilityBlock implements Writable {
      * to list files he or she is sharing.
      */
     public static final CapabilityBlock BLOCK_FILE_GET =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x48, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -126,7 +126,7 @@ public final class CapabilityBlock implements Writable {
      * treated as if they are the same block by WinAIM and other clients.
      */
     public static final CapabilityBlock BLOCK_GAMES =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x4a, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
     /**
@@ -135,7 +135,7 @@ public final class CapabilityBlock implements Writable {
      * treated as if they are the same block by WinAIM and other clients.
      */
     public static final CapabilityBlock BLOCK_GAMES2 =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x4a, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 0x22, (byte) 0x82, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -144,7 +144,7 @@ public final class CapabilityBlock implements Writable {
      * copy of another user's buddy list.
      */
     public static final CapabilityBlock BLOCK_SENDBUDDYLIST =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x4b, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -153,7 +153,7 @@ public final class CapabilityBlock implements Writable {
      * "Trillian encryption."
      */
     public static final CapabilityBlock BLOCK_TRILLIANCRYPT =
-            new CapabilityBlock(new byte[]{
+            known(new byte[] {
                 (byte) 0xf2, (byte) 0xe7, (byte) 0xc7, (byte) 0xf4,
                 (byte) 0xfe, (byte) 0xad, 0x4d, (byte) 0xfb,
                 (byte) 0xb2, 0x35, 0x36, 0x79, (byte) 0x8b,
@@ -163,7 +163,7 @@ public final class CapabilityBlock implements Writable {
      * A capability block that indicates that a client can chat with ICQ users.
      */
     public static final CapabilityBlock BLOCK_ICQCOMPATIBLE =
-            new CapabilityBlock(new byte[] {
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x4d, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -172,7 +172,7 @@ public final class CapabilityBlock implements Writable {
      * like MS Hearts, NetMeeting, and Quake II with other buddies.
      */
     public static final CapabilityBlock BLOCK_ADDINS =
-            new CapabilityBlock(new byte[] {
+            known(new byte[] {
                 0x09, 0x46, 0x13, 0x47, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82,0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -180,7 +180,7 @@ public final class CapabilityBlock implements Writable {
      * A capability block whose purpose is unknown at the time of this writing.
      */
     public static final CapabilityBlock BLOCK_SOMETHING =
-            new CapabilityBlock(new byte[] {
+            known(new byte[] {
                 0x09, 0x46, 0x01, (byte) 0xff, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -191,7 +191,7 @@ public final class CapabilityBlock implements Writable {
      * short capability blocks.
      */
     public static final CapabilityBlock BLOCK_SHORTCAPS =
-            new CapabilityBlock(new byte[] {
+            known(new byte[] {
                 0x09, 0x46, 0x00, 0x00, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -202,7 +202,7 @@ public final class CapabilityBlock implements Writable {
      * be displayed next to one's screenname in the official AIM clients.
      */
     public static final CapabilityBlock BLOCK_ENCRYPTION =
-            new CapabilityBlock(new byte[] {
+            known(new byte[] {
                 0x09, 0x46, 0x00, 0x01, 0x4c, 0x7f, 0x11, (byte) 0xd1,
                 (byte) 0x82, 0x22, 0x44, 0x45, 0x53, 0x54, 0x00, 0x00});
 
@@ -225,7 +225,10 @@ public final class CapabilityBlock implements Writable {
     }
 
     /**
-     * Extracts a list of capability blocks from the given data block.
+     * Extracts a list of capability blocks from the given data block. The
+     * returned blocks are {@linkplain #getInstance(ByteBlock, int) canonical
+     * instances} wherever possible, so known capabilities such as {@link
+     * #BLOCK_CHAT} are returned as the constants themselves.
      *
      * @param block the data block containing zero or more capability blocks
      * @return a list of capability blocks contained in the given data block
@@ -234,25 +237,259 @@ public final class CapabilityBlock implements Writable {
         CapabilityBlock[] blocks = new CapabilityBlock[block.getLength()/16];
 
         for (int i = 0; i < blocks.length; i++) {
-            blocks[i] = new CapabilityBlock(block.subBlock(0, 16));
-
-            block = block.subBlock(16);
+            blocks[i] = getInstance(block, i*16);
         }
 
         return blocks;
     }
 
+    /**
+     * Returns the canonical capability block for the first sixteen bytes of
+     * the given block. This is equivalent to calling {@link
+     * #getInstance(ByteBlock, int) getInstance(block, 0)}.
+     *
+     * @param block the block containing the capability's sixteen bytes
+     * @return the canonical capability block for the given data
+     *
+     * @throws IllegalArgumentException if the given block contains fewer than
+     *         sixteen bytes
+     */
+    public static CapabilityBlock getInstance(ByteBlock block)
+            throws IllegalArgumentException {
+        return getInstance(block, 0);
+    }
+
+    /**
+     * Returns the canonical capability block for the sixteen bytes starting at
+     * the given offset into the given block. The constants in this class and
+     * any capability passed to {@link #intern} are always returned as the same
+     * instance, so they may be compared with <code>==</code>. Other
+     * capabilities are interned as they are seen until {@linkplain
+     * #MAX_WIRE_INTERNED a fixed number} of them have been, after which a new
+     * (equal, but not identical) instance is returned for each call.
+     * <br>
+     * <br>
+     * Note that no bytes are copied unless a new capability block must be
+     * created.
+     *
+     * @param block the block containing the capability's sixteen bytes
+     * @param offset the offset into the given block at which the capability
+     *        block starts
+     * @return the canonical capability block for the given data
+     *
+     * @throws IllegalArgumentException if the given block contains fewer than
+     *         sixteen bytes after the given offset
+     */
+    public static CapabilityBlock getInstance(ByteBlock block, int offset)
+            throws IllegalArgumentException {
+        DefensiveTools.checkNull(block, "block");
+        DefensiveTools.checkRange(offset, "offset", 0);
+
+        if (block.getLength() - offset < 16) {
+            throw new IllegalArgumentException("invalid capability block: "
+                    + "length must be 16 (is " + (block.getLength() - offset)
+                    + ")");
+        }
+
+        long high = block.getLong(offset);
+        long low = block.getLong(offset + 8);
+
+        CapabilityBlock cap = InternTable.find(high, low);
+        if (cap != null) return cap;
+
+        return InternTable.add(new CapabilityBlock(block.subBlock(offset, 16)),
+                false);
+    }
+
+    /**
+     * Returns the canonical instance of the given capability block, making the
+     * given block canonical if no equal block has been interned yet. Unlike
+     * blocks read by {@link #getInstance(ByteBlock, int) getInstance}, blocks
+     * passed to this method are always interned; this is intended for
+     * capabilities that are registered once and looked up often, like the
+     * capabilities of {@link net.kano.joscar.rv.RvCommandFactory}s.
+     *
+     * @param cap the capability block to intern
+     * @return the canonical capability block equal to the given block
+     */
+    public static CapabilityBlock intern(CapabilityBlock cap) {
+        DefensiveTools.checkNull(cap, "cap");
+
+        if (cap.canonical) return cap;
+
+        CapabilityBlock found = InternTable.find(cap.high, cap.low);
+        if (found != null) return found;
+
+        return InternTable.add(cap, true);
+    }
+
+    /**
+     * Returns the canonical instance of the given capability block, or the
+     * given block itself if no equal block has been interned. Unlike {@link
+     * #intern}, this method never adds to the intern table.
+     *
+     * @param cap the capability block whose canonical instance should be
+     *        returned
+     * @return the canonical instance of the given block, or the given block
+     */
+    public static CapabilityBlock canonicalize(CapabilityBlock cap) {
+        DefensiveTools.checkNull(cap, "cap");
+
+        if (cap.canonical) return cap;
+
+        CapabilityBlock found = InternTable.find(cap.high, cap.low);
+        return found == null ? cap : found;
+    }
+
+    /**
+     * Creates and interns one of the capability block constants above.
+     *
+     * @param block the sixteen bytes of the capability block
+     * @return the new canonical capability block
+     */
+    private static CapabilityBlock known(byte[] block) {
+        return InternTable.add(new CapabilityBlock(block), true);
+    }
+
+    /**
+     * The maximum number of capability blocks that will be interned by {@link
+     * #getInstance(ByteBlock, int) getInstance}. Since any client may
+     * advertise any capability it likes, this keeps the table from growing
+     * without bound; constants and blocks passed to {@link #intern} do not
+     * count against it.
+     */
+    public static final int MAX_WIRE_INTERNED = 1024;
+
+    /**
+     * A table of canonical capability blocks, keyed by the two 64-bit halves
+     * of each block. Lookups probe an open-addressed array without locking;
+     * insertions and resizes are synchronized and publish a new array through
+     * a volatile field, so a lookup that misses because of a concurrent
+     * insertion is simply repeated under the lock.
+     */
+    private static final class InternTable {
+        /** The table of canonical blocks, whose length is a power of two. */
+        private static volatile CapabilityBlock[] slots
+                = new CapabilityBlock[64];
+        /** The number of blocks in the table. */
+        private static int size = 0;
+        /**
+         * The number of blocks in the table which were added by {@link
+         * CapabilityBlock#getInstance(ByteBlock, int) getInstance}.
+         */
+        private static int wireSize = 0;
+
+        private InternTable() { }
+
+        /**
+         * Returns the slot index at which probing for the given capability
+         * should start.
+         *
+         * @param high the first eight bytes of the capability
+         * @param low the last eight bytes of the capability
+         * @param mask the table's length, minus one
+         * @return the first slot to probe
+         */
+        private static int indexFor(long high, long low, int mask) {
+            long h = (high * 0x9e3779b97f4a7c15L) ^ low;
+            h ^= h >>> 29;
+            h *= 0xbf58476d1ce4e5b9L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        /**
+         * Returns the interned capability with the given halves, or
+         * <code>null</code> if none is interned.
+         *
+         * @param high the first eight bytes of the capability
+         * @param low the last eight bytes of the capability
+         * @return the matching canonical capability block, or
+         *         <code>null</code>
+         */
+        public static CapabilityBlock find(long high, long low) {
+            CapabilityBlock[] table = slots;
+            int mask = table.length - 1;
+            for (int i = indexFor(high, low, mask);; i = (i + 1) & mask) {
+                CapabilityBlock cap = table[i];
+                if (cap == null) return null;
+                if (cap.high == high && cap.low == low) return cap;
+            }
+        }
+
+        /**
+         * Adds the given block to the table, unless an equal block was added
+         * concurrently, in which case that block is returned. If
+         * <code>always</code> is <code>false</code> and the table already
+         * holds {@link #MAX_WIRE_INTERNED} wire blocks, the given block is
+         * returned without being interned.
+         *
+         * @param cap the capability block to add
+         * @param always whether the block should be interned even if the
+         *        table's wire block limit has been reached
+         * @return the canonical block equal to the given block, or the given
+         *         block if it could not be interned
+         */
+        public static synchronized CapabilityBlock add(CapabilityBlock cap,
+                boolean always) {
+            CapabilityBlock existing = find(cap.high, cap.low);
+            if (existing != null) return existing;
+
+            if (!always) {
+                if (wireSize >= MAX_WIRE_INTERNED) return cap;
+                wireSize++;
+            }
+
+            CapabilityBlock[] table = slots;
+            if ((size + 1) * 2 > table.length) {
+                table = new CapabilityBlock[slots.length * 2];
+                CapabilityBlock[] old = slots;
+                for (int i = 0; i < old.length; i++) {
+                    if (old[i] != null) insert(table, old[i]);
+                }
+            }
+            cap.canonical = true;
+            insert(table, cap);
+            size++;
+            slots = table;
+
+            return cap;
+        }
+
+        /**
+         * Stores the given block in the first free slot of the given table.
+         *
+         * @param table the table in which to store the block
+         * @param cap the block to store
+         */
+        private static void insert(CapabilityBlock[] table,
+                CapabilityBlock cap) {
+            int mask = table.length - 1;
+            int i = indexFor(cap.high, cap.low, mask);
+            while (table[i] != null) i = (i + 1) & mask;
+            table[i] = cap;
+        }
+    }
+
     /**
      * The unique block of bytes that comprises this capability block.
      */
     private final ByteBlock block;
 
+    /** The first eight bytes of this capability block. */
+    private final long high;
+
+    /** The last eight bytes of this capability block. */
+    private final long low;
+
     /**
      * A relatively unique hash code for this block. Cached because I presume
      * capability blocks will be hash keys rather frequently.
      */
     private final int hashCode;
 
+    /** Whether this block is the canonical instance of its capability. */
+    private boolean canonical = false;
+
     /**
      * Creates a capability block from the given sixteen-byte block.
      * @param block the block from which the capability block should be
@@ -263,7 +500,9 @@ public final class CapabilityBlock implements Writable {
     }
 
     /**
-     * Creates a new capability block from the given sixteen-byte block.
+     * Creates a new capability block from the given sixteen-byte block. Note
+     * that {@link #getInstance(ByteBlock)} should normally be used instead, as
+     * it returns the canonical instance of known capabilities.
      *
      * @param block the sixteen-byte block that comprises the capability block
      *        to be created
@@ -282,14 +521,32 @@ public final class CapabilityBlock implements Writable {
         // packet whose backing array should be thrown away
         this.block = ByteBlock.wrap(block.subBlock(0, 16).toByteArray());
 
+        high = block.getLong(0);
+        low = block.getLong(8);
+
         // and compute a hash code by doing stuff to the bytes. I really have
         // no idea if this is a good hash code, but hey, it doesn't matter too
         // much.
-        long longCode = BinaryTools.getLong(block, 0)
-                ^ BinaryTools.getLong(block, 8);
+        long longCode = high ^ low;
         hashCode = (int) ((longCode >> 16) ^ (longCode & 0xff));
     }
 
+    /**
+     * Returns the first eight bytes of this capability block as a
+     * <code>long</code>.
+     *
+     * @return the first half of this capability block
+     */
+    final long getHighBits() { return high; }
+
+    /**
+     * Returns the last eight bytes of this capability block as a
+     * <code>long</code>.
+     *
+     * @return the second half of this capability block
+     */
+    final long getLowBits() { return low; }
+
     /**
      * Returns the sixteen-byte block that identifies this capability block.
      *
@@ -316,11 +573,16 @@ public final class CapabilityBlock implements Writable {
      *         the given block
      */
     public boolean equals(Object other) {
-        if (!(other instanceof CapabilityBlock)) return false;
         if (this == other) return true;
+        if (!(other instanceof CapabilityBlock)) return false;
+
+        CapabilityBlock cap = (CapabilityBlock) other;
+
+        // two canonical blocks are only equal if they're the same object
+        if (canonical && cap.canonical) return false;
 
         // return true only if the bytes are equal
-        return block.equals(((CapabilityBlock) other).block);
+        return high == cap.high && low == cap.low;
     }
 
     public int hashCode() { return hashCode; }
@@ -137,110 +137,36 @@ public class FullUserInfo implements LiveWritable {
 
         int tlvCount = BinaryTools.getUShort(block, 0);
         block = block.subBlock(2);
-        TlvChain chain = TlvTools.readChain(block, tlvCount);
-
-        // read the TLV's we know about
-        Tlv userFlagTlv = chain.getLastTlv(TYPE_USER_FLAG);
-        Tlv accountCreationTlv = chain.getLastTlv(TYPE_ACCT_CREATED);
-        Tlv onSinceTlv = chain.getLastTlv(TYPE_ON_SINCE);
-        Tlv idleTimeTlv = chain.getLastTlv(TYPE_IDLE_MINS);
-        Tlv memberSinceTlv = chain.getLastTlv(TYPE_MEMBER_SINCE);
-        Tlv capTlv = chain.getLastTlv(TYPE_CAPS);
-        Tlv sessionLengthAIM = chain.getLastTlv(TYPE_SESS_LEN_AIM);
-        Tlv sessionLengthAOL = chain.getLastTlv(TYPE_SESS_LEN_AOL);
-        Tlv extraInfoTlv = chain.getLastTlv(TYPE_EXTRA_INFO);
-        Tlv certHashTlv = chain.getLastTlv(TYPE_CERT_HASH);
-        Tlv shortCapTlv = chain.getLastTlv(TYPE_SHORT_CAPS);
-
-        MutableTlvChain extras = TlvTools.getMutableCopy(chain);
-        extras.removeTlvs(new int[] {
-            TYPE_USER_FLAG, TYPE_ACCT_CREATED, TYPE_ON_SINCE, TYPE_IDLE_MINS,
-            TYPE_MEMBER_SINCE, TYPE_CAPS, TYPE_SESS_LEN_AIM, TYPE_SESS_LEN_AOL,
-            TYPE_EXTRA_INFO, TYPE_CERT_HASH, TYPE_SHORT_CAPS
-        });
-
-        Boolean away = null;
-        int flags = -1;
-        // check for the user flag TLV
-        if (userFlagTlv != null) {
-            // read the flags from the TLV
-            flags = userFlagTlv.getDataAsUShort();
-            away = Boolean.valueOf((flags & MASK_AWAY) != 0);
-        }
-
-        Date accountCreated = null;
-        if (accountCreationTlv != null) {
-            // the time is a long as seconds since the unix epoch, and the Date
-            // constructor takes milliseconds, so we multiply it by 1000.
-            accountCreated = new Date(accountCreationTlv.getDataAsUInt()
-                    * 1000);
-        }
-
-        Date memberSince = null;
-        if (memberSinceTlv != null) {
-            memberSince = new Date(memberSinceTlv.getDataAsUInt() * 1000);
-        }
-
-        long sessLengthAIM = -1;
-        if (sessionLengthAIM != null) {
-            // once again convert seconds to milliseconds and subtract from the
-            // current time
-            sessLengthAIM = sessionLengthAIM.getDataAsUInt() * 1000;
-        }
-
-        long sessLengthAOL = -1;
-        if (sessionLengthAOL != null) {
-            sessLengthAOL = sessionLengthAOL.getDataAsUInt() * 1000;
-        }
-
-        Date onSince = null;
-        if (onSinceTlv != null) {
-            // the "on since" is an absolute time, so just set the date to that
-            onSince = new Date(onSinceTlv.getDataAsUInt() * 1000);
-        }
-
-        // the idle time is sent to us in minutes. yay.
-        int idleMins = -1;
-        if (idleTimeTlv != null) {
-            idleMins = idleTimeTlv.getDataAsUShort();
-        }
-
-        // the capabilities!!!
-        CapabilityBlock[] capabilityBlocks = null;
-        if (capTlv != null) {
-            // and create a new CapabilityBlock from each one.
-            capabilityBlocks = CapabilityBlock.getCapabilityBlocks(
-                    capTlv.getData());
-        }
-
-        ExtraInfoBlock[] extraInfos = null;
-        if (extraInfoTlv != null) {
-            ByteBlock extraBlocks = extraInfoTlv.getData();
-            extraInfos = ExtraInfoBlock.readExtraInfoBlocks(extraBlocks);
-        }
-
-        ByteBlock certHash = null;
-        if (certHashTlv != null) {
-            certHash = certHashTlv.getData();
-        }
-
-        ShortCapabilityBlock[] shortCaps = null;
-        if (shortCapTlv != null) {
-            ByteBlock shortCapData = shortCapTlv.getData();
-            shortCaps = ShortCapabilityBlock.readShortCaps(shortCapData);
-        }
+        ImmutableTlvChain chain = TlvTools.readChain(block, tlvCount);
 
         block = block.subBlock(chain.getTotalSize());
 
         // and store this for use by fun things.
         int totalSize = block.getOffset() - start;
 
-        ImmutableTlvChain extrasImmutable = TlvTools.getImmutableCopy(extras);
+        // everything but the screenname, warning level and user flags is
+        // decoded from the TLV chain when it's first asked for
+        return new FullUserInfo(sn, warningLevel, chain, totalSize);
+    }
 
-        return new FullUserInfo(sn, warningLevel, flags, accountCreated,
-                memberSince, sessLengthAIM, sessLengthAOL, onSince, idleMins,
-                capabilityBlocks, away, extraInfos, certHash, shortCaps,
-                extrasImmutable, totalSize);
+    /**
+     * Returns whether the given TLV type is one that is decoded into a field
+     * of <code>FullUserInfo</code> rather than kept as an extra TLV.
+     *
+     * @param type a TLV type
+     * @return whether the given TLV type is read into a field of a user info
+     *         object
+     */
+    private static boolean isKnownType(int type) {
+        switch (type) {
+            case TYPE_USER_FLAG: case TYPE_ACCT_CREATED: case TYPE_ON_SINCE:
+            case TYPE_IDLE_MINS: case TYPE_MEMBER_SINCE: case TYPE_CAPS:
+            case TYPE_SESS_LEN_AIM: case TYPE_SESS_LEN_AOL:
+            case TYPE_EXTRA_INFO: case TYPE_CERT_HASH: case TYPE_SHORT_CAPS:
+                return true;
+            default:
+                return false;
+        }
     }
 
     /**
@@ -323,43 +249,43 @@ public class FullUserInfo implements LiveWritable {
      * The date at which this user created his or her account, or
      * <code>null</code> if this field was not sent.
      */
-    private final Date accountCreated;
+    private Date accountCreated;
 
     /**
      * Another date at which this user created his or her account, or
      * <code>null</code> if this field was not sent.
      */
-    private final Date memberSince;
+    private Date memberSince;
 
     /**
      * How long this AIM user has been online during this session, or
      * <code>null</code> if this field was not sent.
      */
-    private final long sessionLengthAIM;
+    private long sessionLengthAIM;
 
     /**
      * How long this AOL user has been online during this session, or
      * <code>null</code> if this field was not sent.
      */
-    private final long sessionLengthAOL;
+    private long sessionLengthAOL;
 
     /**
      * The date at which this user signed on, or <code>null</code> if this field
      * was not sent.
      */
-    private final Date onSince;
+    private Date onSince;
 
     /**
      * The number of minutes this user has been idle, or <code>-1</code> if this
      * field was not sent.
      */
-    private final int idleMins;
+    private int idleMins;
 
     /**
      * The capability blocks advertised by this user, or <code>null</code> if
      * this field was not sent.
      */
-    private final CapabilityBlock[] capabilityBlocks;
+    private CapabilityBlock[] capabilityBlocks;
 
     /**
      * Whether this user is away or not; <code>null</code> if this field is not
@@ -371,16 +297,25 @@ public class FullUserInfo implements LiveWritable {
      * A set of extra information blocks advertised by this user, or
      * <code>null</code> if this field was not sent.
      */
-    private final ExtraInfoBlock[] extraInfos;
+    private ExtraInfoBlock[] extraInfos;
 
     /** An MD5 hash of the user's certificate information. */
-    private final ByteBlock certInfoHash;
+    private ByteBlock certInfoHash;
 
     /** A list of "short capability blocks." */
-    private final ShortCapabilityBlock[] shortCaps;
+    private ShortCapabilityBlock[] shortCaps;
 
     /** A set of extra TLV's that were not explicitly parsed into fields. */
-    private final ImmutableTlvChain extraTlvs;
+    private ImmutableTlvChain extraTlvs;
+
+    /**
+     * The TLV chain this user info block was read from, if the fields above
+     * have not been decoded from it yet; <code>null</code> otherwise.
+     */
+    private ImmutableTlvChain rawTlvs = null;
+
+    /** Whether the fields above have been decoded (or were given directly). */
+    private volatile boolean decoded;
 
     /**
      * Creates a user info block containing only the given screenname.
@@ -404,6 +339,35 @@ public class FullUserInfo implements LiveWritable {
                 null, null, null, null, totalSize);
     }
 
+    /**
+     * Creates a user info block whose fields will be decoded from the given
+     * TLV chain when they are first requested. The user flags are read right
+     * away, since they can be read from the chain without creating any
+     * objects.
+     *
+     * @param sn the screenname of this user info block
+     * @param warningLevel the warning level of the given user
+     * @param tlvs the TLV chain read from the user info block
+     * @param totalSize the total size of this block, as read from a data block
+     */
+    private FullUserInfo(String sn, int warningLevel, ImmutableTlvChain tlvs,
+            int totalSize) {
+        this.sn = sn;
+        this.warningLevel = warningLevel;
+        this.totalSize = totalSize;
+        this.rawTlvs = tlvs;
+
+        if (tlvs.hasTlv(TYPE_USER_FLAG)) {
+            flags = tlvs.getUShort(TYPE_USER_FLAG);
+            away = Boolean.valueOf((flags & MASK_AWAY) != 0);
+        } else {
+            flags = -1;
+            away = null;
+        }
+
+        this.decoded = false;
+    }
+
     /**
      * Creates a new user info block with the given properties. Note that any
      * of these values except for <code>sn</code> can be <code>null</code> or
@@ -546,6 +510,125 @@ public class FullUserInfo implements LiveWritable {
         this.shortCaps = shortCaps;
         this.extraTlvs = extraTlvs;
         this.totalSize = totalSize;
+        this.decoded = true;
+    }
+
+    /**
+     * Decodes the fields of this user info block from the TLV chain it was
+     * read from, if that hasn't been done yet.
+     */
+    private void ensureDecoded() {
+        if (!decoded) decode();
+    }
+
+    /**
+     * Decodes every field of this user info block (other than those set by
+     * the constructor) from the TLV chain it was read from.
+     */
+    private synchronized void decode() {
+        if (decoded) return;
+
+        ImmutableTlvChain chain = rawTlvs;
+
+        // read the TLV's we know about
+        Tlv accountCreationTlv = chain.getLastTlv(TYPE_ACCT_CREATED);
+        Tlv onSinceTlv = chain.getLastTlv(TYPE_ON_SINCE);
+        Tlv idleTimeTlv = chain.getLastTlv(TYPE_IDLE_MINS);
+        Tlv memberSinceTlv = chain.getLastTlv(TYPE_MEMBER_SINCE);
+        Tlv capTlv = chain.getLastTlv(TYPE_CAPS);
+        Tlv sessionLengthAIM = chain.getLastTlv(TYPE_SESS_LEN_AIM);
+        Tlv sessionLengthAOL = chain.getLastTlv(TYPE_SESS_LEN_AOL);
+        Tlv extraInfoTlv = chain.getLastTlv(TYPE_EXTRA_INFO);
+        Tlv certHashTlv = chain.getLastTlv(TYPE_CERT_HASH);
+        Tlv shortCapTlv = chain.getLastTlv(TYPE_SHORT_CAPS);
+
+        // collect the TLV's we don't know about straight from the chain,
+        // rather than copying it and removing the rest
+        Tlv[] allTlvs = chain.getTlvs();
+        Tlv[] extras = new Tlv[allTlvs.length];
+        int extraCount = 0;
+        for (int i = 0; i < allTlvs.length; i++) {
+            if (!isKnownType(allTlvs[i].getType())) {
+                extras[extraCount++] = allTlvs[i];
+            }
+        }
+
+        Date accountCreated = null;
+        if (accountCreationTlv != null) {
+            // the time is a long as seconds since the unix epoch, and the Date
+            // constructor takes milliseconds, so we multiply it by 1000.
+            accountCreated = new Date(accountCreationTlv.getDataAsUInt()
+                    * 1000);
+        }
+
+        Date memberSince = null;
+        if (memberSinceTlv != null) {
+            memberSince = new Date(memberSinceTlv.getDataAsUInt() * 1000);
+        }
+
+        long sessLengthAIM = -1;
+        if (sessionLengthAIM != null) {
+            // once again convert seconds to milliseconds and subtract from the
+            // current time
+            sessLengthAIM = sessionLengthAIM.getDataAsUInt() * 1000;
+        }
+
+        long sessLengthAOL = -1;
+        if (sessionLengthAOL != null) {
+            sessLengthAOL = sessionLengthAOL.getDataAsUInt() * 1000;
+        }
+
+        Date onSince = null;
+        if (onSinceTlv != null) {
+            // the "on since" is an absolute time, so just set the date to that
+            onSince = new Date(onSinceTlv.getDataAsUInt() * 1000);
+        }
+
+        // the idle time is sent to us in minutes. yay.
+        int idleMins = -1;
+        if (idleTimeTlv != null) {
+            idleMins = idleTimeTlv.getDataAsUShort();
+        }
+
+        // the capabilities!!!
+        CapabilityBlock[] capabilityBlocks = null;
+        if (capTlv != null) {
+            // and create a new CapabilityBlock from each one.
+            capabilityBlocks = CapabilityBlock.getCapabilityBlocks(
+                    capTlv.getData());
+        }
+
+        ExtraInfoBlock[] extraInfos = null;
+        if (extraInfoTlv != null) {
+            ByteBlock extraBlocks = extraInfoTlv.getData();
+            extraInfos = ExtraInfoBlock.readExtraInfoBlocks(extraBlocks);
+        }
+
+        ByteBlock certHash = null;
+        if (certHashTlv != null) {
+            certHash = certHashTlv.getData();
+        }
+
+        ShortCapabilityBlock[] shortCaps = null;
+        if (shortCapTlv != null) {
+            ByteBlock shortCapData = shortCapTlv.getData();
+            shortCaps = ShortCapabilityBlock.readShortCaps(shortCapData);
+        }
+
+        this.accountCreated = accountCreated;
+        this.memberSince = memberSince;
+        this.sessionLengthAIM = sessLengthAIM;
+        this.sessionLengthAOL = sessLengthAOL;
+        this.onSince = onSince;
+        this.idleMins = idleMins;
+        this.capabilityBlocks = capabilityBlocks;
+        this.extraInfos = extraInfos;
+        this.certInfoHash = certHash;
+        this.shortCaps = shortCaps;
+        this.extraTlvs = TlvTools.createChain(extras, 0, extraCount);
+
+        rawTlvs = null;
+        decoded = true;
     }
 
     /**
@@ -598,6 +681,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return the date at which this user's account was created
      */
     public final Date getAccountCreated() {
+        ensureDecoded();
+
         return accountCreated;
     }
 
@@ -609,6 +694,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return the date since which this user has been a member of AIM
      */
     public final Date getMemberSince() {
+        ensureDecoded();
+
         return memberSince;
     }
 
@@ -620,6 +707,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return this user's "session length," if this user is on AIM and not AOL
      */
     public final long getSessionLengthAIM() {
+        ensureDecoded();
+
         return sessionLengthAIM;
     }
 
@@ -631,6 +720,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return this user's "session length," if this user is on AOL
      */
     public final long getSessionLengthAOL() {
+        ensureDecoded();
+
         return sessionLengthAOL;
     }
 
@@ -642,6 +733,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return the date at which this user logged in
      */
     public final Date getOnSince() {
+        ensureDecoded();
+
         return onSince;
     }
 
@@ -652,6 +745,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return the number of minutes this user has spent idle
      */
     public final int getIdleMins() {
+        ensureDecoded();
+
         return idleMins;
     }
 
@@ -664,6 +759,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return this user's advertised "capability blocks"
      */
     public final CapabilityBlock[] getCapabilityBlocks() {
+        ensureDecoded();
+
         return (capabilityBlocks == null ? null : capabilityBlocks.clone());
     }
 
@@ -685,6 +782,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return a list of advertised extra information blocks
      */
     public final ExtraInfoBlock[] getExtraInfoBlocks() {
+        ensureDecoded();
+
         return extraInfos == null ? null : extraInfos.clone();
     }
 
@@ -695,7 +794,10 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      *
      * @return an MD5 hash of the user's certificate information block
      */
-    public final ByteBlock getCertInfoHash() { return certInfoHash; }
+    public final ByteBlock getCertInfoHash() {
+        ensureDecoded();
+        return certInfoHash;
+    }
 
     /**
      * Returns the list of "short capability blocks" contained in this user info
@@ -704,6 +806,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return the list of short capability blocks for the associated user
      */
     public ShortCapabilityBlock[] getShortCapabilityBlocks() {
+        ensureDecoded();
+
         return (shortCaps == null)
                 ? null
                 : shortCaps.clone();
@@ -718,7 +822,10 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
      * @return a list of TLV's present in the received user info block that were
      *         not processed into fields of this object
      */
-    public final ImmutableTlvChain getExtraTlvs() { return extraTlvs; }
+    public final ImmutableTlvChain getExtraTlvs() {
+        ensureDecoded();
+        return extraTlvs;
+    }
 
     /**
      * Returns the total number of bytes that were read to generate this user
@@ -731,6 +838,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
     public final int getTotalSize() { return totalSize; }
 
     public void write(OutputStream out) throws IOException {
+        ensureDecoded();
+
         OscarTools.writeScreenname(out, sn);
 
         if (warningLevel == -1) return;
@@ -804,6 +913,8 @@ if ((userInfo.getFlags() & FullUserInfo.MASK_WIRELESS) != 0) {
 
 	@Override
     public String toString() {
+        ensureDecoded();
+
         return "UserInfo for " + sn + 
                 (warningLevel != 0 ? (warningLevel/10) + "%"  : "") +
                 ", flags=" + flags +
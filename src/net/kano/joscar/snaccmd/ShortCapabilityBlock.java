@@ -42,8 +42,6 @@ import net.kano.joscar.Writable;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
  * Short capability blocks are means of storing a capability block in two bytes
@@ -76,14 +74,65 @@ public class ShortCapabilityBlock implements Writable {
     public static ShortCapabilityBlock[] readShortCaps(ByteBlock block) {
         DefensiveTools.checkNull(block, "block");
 
-        List caps = new LinkedList();
+        ShortCapabilityBlock[] caps
+                = new ShortCapabilityBlock[block.getLength() / 2];
 
-        for (int i = 0; i < block.getLength(); i += 2) {
-            caps.add(new ShortCapabilityBlock(block.subBlock(i, 2)));
+        for (int i = 0; i < caps.length; i++) {
+            caps[i] = getInstance(BinaryTools.getUShort(block, i * 2));
         }
 
-        return (ShortCapabilityBlock[])
-                caps.toArray(new ShortCapabilityBlock[0]);
+        return caps;
+    }
+
+    /**
+     * Returns the canonical short capability block with the given two-byte
+     * value. Each of the 65536 possible short capability blocks has a single
+     * canonical instance, created the first time it is requested, so blocks
+     * returned by this method may be compared with <code>==</code>.
+     *
+     * @param code the short capability block's two bytes, as an unsigned
+     *        short
+     * @return the canonical short capability block with the given value
+     *
+     * @throws IllegalArgumentException if the given value is not an unsigned
+     *         short
+     */
+    public static ShortCapabilityBlock getInstance(int code)
+            throws IllegalArgumentException {
+        DefensiveTools.checkRange(code, "code", 0, 0xffff);
+
+        ShortCapabilityBlock[] row = INSTANCES[code >> 8];
+        if (row != null) {
+            ShortCapabilityBlock cap = row[code & 0xff];
+            if (cap != null) return cap;
+        }
+
+        return createInstance(code);
+    }
+
+    /**
+     * Creates and stores the canonical short capability block with the given
+     * value, unless another thread has done so already.
+     *
+     * @param code the short capability block's two bytes, as an unsigned
+     *        short
+     * @return the canonical short capability block with the given value
+     */
+    private static synchronized ShortCapabilityBlock createInstance(int code) {
+        ShortCapabilityBlock[] row = INSTANCES[code >> 8];
+        if (row == null) {
+            row = new ShortCapabilityBlock[256];
+            INSTANCES[code >> 8] = row;
+        }
+
+        ShortCapabilityBlock cap = row[code & 0xff];
+        if (cap == null) {
+            cap = new ShortCapabilityBlock(ByteBlock.wrap(
+                    BinaryTools.getUShort(code)));
+            row[code & 0xff] = cap;
+        }
+
+        return cap;
     }
 
     /**
@@ -98,9 +147,8 @@ public class ShortCapabilityBlock implements Writable {
     public static boolean couldBeShortBlock(CapabilityBlock cap) {
         DefensiveTools.checkNull(cap, "cap");
 
-        ByteBlock block = cap.getBlock();
-        return block.subBlock(0, 2).equals(BYTEBLOCK_DEFAULT.subBlock(0, 2))
-                && block.subBlock(4).equals(BYTEBLOCK_DEFAULT.subBlock(4));
+        return (cap.getHighBits() & TEMPLATE_MASK) == TEMPLATE_HIGH
+                && cap.getLowBits() == TEMPLATE_LOW;
     }
 
     /**
@@ -123,7 +171,7 @@ public class ShortCapabilityBlock implements Writable {
                     + "' cannot be converted to a short capability block");
         }
 
-        return new ShortCapabilityBlock(cap.getBlock().subBlock(2, 2));
+        return getInstance((int) (cap.getHighBits() >>> 32) & 0xffff);
     }
 
     /**
@@ -139,10 +187,34 @@ public class ShortCapabilityBlock implements Writable {
      */
     private static final ByteBlock BYTEBLOCK_DEFAULT
             = ByteBlock.wrap(BLOCK_DEFAULT);
+    /** The first eight bytes of the template, without the varying bytes. */
+    private static final long TEMPLATE_HIGH
+            = BinaryTools.getLong(BYTEBLOCK_DEFAULT, 0);
+    /** The last eight bytes of the template. */
+    private static final long TEMPLATE_LOW
+            = BinaryTools.getLong(BYTEBLOCK_DEFAULT, 8);
+    /** A mask that clears the two bytes that vary between short blocks. */
+    private static final long TEMPLATE_MASK = 0xffff0000ffffffffL;
+
+    /**
+     * The canonical short capability blocks, indexed by their first byte and
+     * then by their second. Rows are created as they are needed.
+     */
+    private static final ShortCapabilityBlock[][] INSTANCES
+            = new ShortCapabilityBlock[256][];
 
     /** The two bytes of short capability block data. */
     private final ByteBlock data;
 
+    /** The two bytes of data, as an unsigned short. */
+    private final int code;
+
+    /**
+     * The long capability block this short block represents, created when it
+     * is first needed.
+     */
+    private CapabilityBlock longBlock = null;
+
     /**
      * Creates a new short capability block object with the given two-byte block
      * of data.
@@ -164,6 +236,7 @@ public class ShortCapabilityBlock implements Writable {
         }
 
         this.data = data;
+        this.code = BinaryTools.getUShort(data, 0);
     }
 
     /**
@@ -181,10 +254,16 @@ public class ShortCapabilityBlock implements Writable {
      *         capability block
      */
     public final CapabilityBlock toCapabilityBlock() {
-        byte[] block = (byte[]) BLOCK_DEFAULT.clone();
-        System.arraycopy(data.toByteArray(), 0, block, 2, 2);
+        CapabilityBlock cap = longBlock;
+        if (cap == null) {
+            byte[] block = (byte[]) BLOCK_DEFAULT.clone();
+            data.copyTo(block, 2);
 
-        return new CapabilityBlock(ByteBlock.wrap(block));
+            cap = CapabilityBlock.getInstance(ByteBlock.wrap(block));
+            longBlock = cap;
+        }
+
+        return cap;
     }
 
     public long getWritableLength() { return 2; }
@@ -205,13 +284,11 @@ public class ShortCapabilityBlock implements Writable {
         if (!(obj instanceof ShortCapabilityBlock)) return false;
         if (this == obj) return true;
 
-        ShortCapabilityBlock scb = (ShortCapabilityBlock) obj;
-
-        return scb.data.equals(data);
+        return ((ShortCapabilityBlock) obj).code == code;
     }
 
     public int hashCode() {
-        return BinaryTools.getUShort(data, 0);
+        return code;
     }
 
     public String toString() {
@@ -0,0 +1,97 @@
+/*
+ *  Copyright (c) 2002-2003, The Joust Project
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  - Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *  - Neither the name of the Joust Project nor the names of its
+ *    contributors may be used to endorse or promote products derived
+ *    from this software without specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ *  POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+
+package net.kano.joscar.snaccmd.buddy;
+
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.flapcmd.SnacCommand;
+import net.kano.joscar.snac.SnacPacketEvent;
+import net.kano.joscar.snac.SnacPacketListener;
+import net.kano.joscar.snaccmd.FullUserInfo;
+
+/**
+ * A SNAC packet listener that passes buddy status and buddy signoff commands
+ * on to a {@link BuddyPresenceListener}. Only the screenname and user flags of
+ * each buddy status update are read; the rest of the user information block
+ * is never decoded unless something else asks for it. This makes it suitable
+ * for handling the flood of status updates sent when a large buddy list comes
+ * online.
+ * <br>
+ * <br>
+ * To use, add an instance to a SNAC processor:
+ * <pre>
+snacProcessor.addPacketListener(new BuddyPresenceDispatcher(listener));
+ * </pre>
+ */
+public class BuddyPresenceDispatcher implements SnacPacketListener {
+    /** The listener to which presence events are passed. */
+    private final BuddyPresenceListener listener;
+
+    /**
+     * Creates a new dispatcher that passes presence events to the given
+     * listener.
+     *
+     * @param listener the listener to notify of presence events
+     */
+    public BuddyPresenceDispatcher(BuddyPresenceListener listener) {
+        DefensiveTools.checkNull(listener, "listener");
+
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the listener to which this dispatcher passes presence events.
+     *
+     * @return this dispatcher's presence listener
+     */
+    public final BuddyPresenceListener getListener() { return listener; }
+
+    public void handleSnacPacket(SnacPacketEvent e) {
+        SnacCommand cmd = e.getSnacCommand();
+
+        if (cmd instanceof BuddyStatusCmd) {
+            FullUserInfo info = ((BuddyStatusCmd) cmd).getUserInfo();
+            if (info == null) return;
+
+            Boolean away = info.getAwayStatus();
+            listener.buddyOnline(info.getScreenname(),
+                    away != null && away.booleanValue());
+
+        } else if (cmd instanceof BuddyOfflineCmd) {
+            String sn = ((BuddyOfflineCmd) cmd).getScreenname();
+            if (sn == null) return;
+
+            listener.buddyOffline(sn);
+        }
+    }
+}
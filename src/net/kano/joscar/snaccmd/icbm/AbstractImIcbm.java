@@ -49,6 +49,9 @@ import net.kano.joscar.tlv.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A base class for the two IM-based ICBM commands in this family. These
@@ -92,6 +95,12 @@ public abstract class AbstractImIcbm extends AbstractIcbm {
     /** A list of AIM Expressions information blocks. */
     private ExtraInfoBlock[] expressionInfoBlocks;
 
+    /**
+     * The TLV's written by {@link #writeImTlvs}, created when this command is
+     * first written.
+     */
+    private Tlv[] imTlvs = null;
+
     /**
      * Generates an IM ICBM from the given incoming SNAC packet and with the
      * given SNAC command subtype.
@@ -249,6 +258,44 @@ public abstract class AbstractImIcbm extends AbstractIcbm {
      * @throws IOException if an I/O error occurs
      */
     final void writeImTlvs(OutputStream out) throws IOException {
+        Tlv[] tlvs = getImTlvs();
+        for (int i = 0; i < tlvs.length; i++) tlvs[i].write(out);
+    }
+
+    /**
+     * Writes the IM fields of this ICBM to the given buffer, as a set of
+     * TLV's.
+     *
+     * @param buf the buffer to which to write
+     */
+    final void writeImTlvs(ByteBuffer buf) {
+        Tlv[] tlvs = getImTlvs();
+        for (int i = 0; i < tlvs.length; i++) tlvs[i].write(buf);
+    }
+
+    /**
+     * Returns the total length of the TLV's written by {@link #writeImTlvs}.
+     *
+     * @return the length of this ICBM's IM fields
+     */
+    final long getImTlvsLength() {
+        Tlv[] tlvs = getImTlvs();
+        long len = 0;
+        for (int i = 0; i < tlvs.length; i++) len += tlvs[i].getWritableLength();
+        return len;
+    }
+
+    /**
+     * Returns the TLV's containing this ICBM's IM fields, creating them if
+     * they have not been created yet. The message is only encoded once, no
+     * matter how many times this command is written or measured.
+     *
+     * @return the TLV's containing this ICBM's IM fields
+     */
+    private synchronized Tlv[] getImTlvs() {
+        if (imTlvs != null) return imTlvs;
+
+        List tlvs = new ArrayList(5);
         if (message != null) {
             MutableTlvChain chain = TlvTools.createMutableChain();
             ByteBlock messageData;
@@ -264,18 +311,20 @@ public abstract class AbstractImIcbm extends AbstractIcbm {
                 chain.addTlv(encCodeTlv);
 
             } else {
-                ByteArrayOutputStream msgout = new ByteArrayOutputStream();
-
                 ImEncodedString encInfo
                         = ImEncodedString.encodeString(message.getMessage());
 
                 ImEncodingParams encoding = encInfo.getEncoding();
+                byte[] bytes = encInfo.getBytes();
 
-                BinaryTools.writeUShort(msgout, encoding.getCharsetCode());
-                BinaryTools.writeUShort(msgout, encoding.getCharsetSubcode());
-                msgout.write(encInfo.getBytes());
+                // the message part is the charset, the subcharset and then
+                // the encoded message
+                ByteBuffer msgbuf = ByteBuffer.allocate(4 + bytes.length);
+                msgbuf.putShort((short) encoding.getCharsetCode());
+                msgbuf.putShort((short) encoding.getCharsetSubcode());
+                msgbuf.put(bytes);
 
-                messageData = ByteBlock.wrap(msgout.toByteArray());
+                messageData = ByteBlock.wrap(msgbuf.array());
             }
 
             Tlv featuresTlv = new Tlv(TYPE_FEATURES, FEATURES_DEFAULT);
@@ -283,23 +332,28 @@ public abstract class AbstractImIcbm extends AbstractIcbm {
 
             chain.addTlv(featuresTlv);
             chain.addTlv(msgPartTlv);
-            new Tlv(TYPE_MESSAGE, ByteBlock.createByteBlock(chain)).write(out);
+            tlvs.add(new Tlv(TYPE_MESSAGE, chain));
         }
 
-        if (autoResponse) new Tlv(TYPE_AUTO).write(out);
+        if (autoResponse) tlvs.add(new Tlv(TYPE_AUTO));
 
         if (iconInfo != null) {
             ByteArrayOutputStream bout = new ByteArrayOutputStream(20);
-            iconInfo.writeToImTlv(bout);
+            try {
+                iconInfo.writeToImTlv(bout);
+            } catch (IOException impossible) { }
 
             ByteBlock iconInfoBlock = ByteBlock.wrap(bout.toByteArray());
-            new Tlv(TYPE_ICONINFO, iconInfoBlock).write(out);
+            tlvs.add(new Tlv(TYPE_ICONINFO, iconInfoBlock));
         }
-        if (wantsIcon) new Tlv(TYPE_ICON_REQ).write(out);
+        if (wantsIcon) tlvs.add(new Tlv(TYPE_ICON_REQ));
 
         if (expressionInfoBlocks != null) {
             ByteBlock blocks = ByteBlock.createByteBlock(expressionInfoBlocks);
-            new Tlv(TYPE_EXPRESSION_INFO, blocks).write(out);
+            tlvs.add(new Tlv(TYPE_EXPRESSION_INFO, blocks));
         }
+
+        imTlvs = (Tlv[]) tlvs.toArray(new Tlv[tlvs.size()]);
+        return imTlvs;
     }
 }
@@ -109,8 +109,7 @@ public abstract class AbstractRvIcbm extends AbstractIcbm {
             rvSessionId = BinaryTools.getLong(rvBlock, 2);
 
             if (rvBlock.getLength() >= 26) {
-                ByteBlock capBlock = rvBlock.subBlock(10, 16);
-                cap = new CapabilityBlock(capBlock);
+                cap = CapabilityBlock.getInstance(rvBlock, 10);
 
                 rvData = rvBlock.subBlock(26);
             } else {
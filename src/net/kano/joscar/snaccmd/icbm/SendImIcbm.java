@@ -35,6 +35,7 @@
 
 package net.kano.joscar.snaccmd.icbm;
 
+import net.kano.joscar.BinaryTools;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
 import net.kano.joscar.OscarTools;
@@ -47,6 +48,7 @@ import net.kano.joscar.tlv.TlvTools;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A SNAC command used to send an instant message to another user.
@@ -66,6 +68,11 @@ public class SendImIcbm extends AbstractImIcbm {
     private final String sn;
     /** Whether or not an acknowledgement packet was requested. */
     private final boolean ackRequested;
+    /**
+     * The recipient's screenname in ASCII, created when this command is first
+     * written.
+     */
+    private byte[] snBytes = null;
 
     /**
      * Generates an IM send command from the given incoming SNAC packet.
@@ -188,5 +195,33 @@ public class SendImIcbm extends AbstractImIcbm {
         if (ackRequested) new Tlv(TYPE_ACK).write(out);
     }
 
+    protected long getChannelDataLength() {
+        return 1 + getScreennameBytes().length + getImTlvsLength()
+                + (ackRequested ? 4 : 0);
+    }
+
+    protected void writeChannelData(ByteBuffer buf) {
+        byte[] snBytes = getScreennameBytes();
+        buf.put((byte) snBytes.length);
+        buf.put(snBytes);
+        writeImTlvs(buf);
+        if (ackRequested) {
+            // an empty TLV
+            buf.putShort((short) TYPE_ACK);
+            buf.putShort((short) 0);
+        }
+    }
+
+    /**
+     * Returns the recipient's screenname as ASCII bytes, as it is written to
+     * the channel data.
+     *
+     * @return the recipient's screenname as an array of ASCII bytes
+     */
+    private synchronized byte[] getScreennameBytes() {
+        if (snBytes == null) snBytes = BinaryTools.getAsciiBytes(sn);
+        return snBytes;
+    }
+
 
 }
@@ -44,6 +44,7 @@ import net.kano.joscar.ssiitem.SsiItemObj;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -130,6 +131,20 @@ public abstract class ItemsCmd extends SsiCommand {
         }
     }
 
+    public long getDataLength() {
+        long len = 0;
+        for (int i = 0; i < items.length; i++) {
+            len += items[i].getWritableLength();
+        }
+        return len;
+    }
+
+    public void writeData(ByteBuffer buf) {
+        for (int i = 0; i < items.length; i++) {
+            items[i].write(buf);
+        }
+    }
+
     public String toString() {
         return MiscTools.getClassName(this) + ": " + items.length + " items: "
                 + Arrays.asList(items);
@@ -36,13 +36,14 @@
 package net.kano.joscar.snaccmd.ssi;
 
 import net.kano.joscar.BinaryTools;
+import net.kano.joscar.BufferWritable;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
-import net.kano.joscar.LiveWritable;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A data structure used to store various types of "items" on the server. These
@@ -53,7 +54,7 @@ import java.io.Serializable;
  *
  * @see net.kano.joscar.ssiitem
  */
-public class SsiItem implements LiveWritable, Serializable {
+public class SsiItem implements BufferWritable, Serializable {
     /**
      * An SSI item type for a buddy.
      *
@@ -147,6 +148,8 @@ public class SsiItem implements LiveWritable, Serializable {
     private final ByteBlock data;
     /** The total size of this object, as read from an incoming data block. */
     private transient final int totalSize;
+    /** This item's name in ASCII, created when this item is first written. */
+    private transient byte[] nameBytes = null;
 
     /**
      * Creates a new SSI item with the given properties.
@@ -261,8 +264,38 @@ public class SsiItem implements LiveWritable, Serializable {
         return totalSize;
     }
 
+    /**
+     * Returns this item's name as ASCII bytes, as it is written.
+     *
+     * @return this item's name as an array of ASCII bytes
+     */
+    private synchronized byte[] getNameBytes() {
+        if (nameBytes == null) nameBytes = BinaryTools.getAsciiBytes(name);
+        return nameBytes;
+    }
+
+    public long getWritableLength() {
+        return 10 + getNameBytes().length
+                + (data == null ? 0 : data.getLength());
+    }
+
+    public void write(ByteBuffer buf) {
+        byte[] namebytes = getNameBytes();
+        buf.putShort((short) namebytes.length);
+        buf.put(namebytes);
+
+        buf.putShort((short) parentid);
+        buf.putShort((short) id);
+        buf.putShort((short) type);
+
+        // here we are nice and let data be null
+        int len = data == null ? 0 : data.getLength();
+        buf.putShort((short) len);
+        if (data != null) data.write(buf);
+    }
+
     public void write(OutputStream out) throws IOException {
-        byte[] namebytes = BinaryTools.getAsciiBytes(name);
+        byte[] namebytes = getNameBytes();
         BinaryTools.writeUShort(out, namebytes.length);
         out.write(namebytes);
 
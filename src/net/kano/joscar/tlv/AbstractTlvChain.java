@@ -35,12 +35,14 @@
 
 package net.kano.joscar.tlv;
 
+import net.kano.joscar.BufferWritable;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
 import net.kano.joscar.OscarTools;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -51,7 +53,7 @@ import java.util.*;
  * TLV's as well as a map from TLV type to TLV's in the chain with that type.
  * See {@link #getTlvList} and {@link #getTlvMap} for details.
  */
-public abstract class AbstractTlvChain implements TlvChain {
+public abstract class AbstractTlvChain implements TlvChain, BufferWritable {
 
     /** The total size of this chain, as read from an incoming stream. */
     private int totalSize;
@@ -253,6 +255,13 @@ public abstract class AbstractTlvChain implements TlvChain {
         }
     }
 
+    public void write(ByteBuffer buf) {
+        for (Iterator it = getTlvList().iterator(); it.hasNext();) {
+            Tlv tlv = (Tlv) it.next();
+            tlv.write(buf);
+        }
+    }
+
     /**
      * Returns a list of all of the TLV's in this chain.
      *
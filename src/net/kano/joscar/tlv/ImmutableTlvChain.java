@@ -35,22 +35,71 @@
 
 package net.kano.joscar.tlv;
 
+import net.kano.joscar.BinaryTools;
 import net.kano.joscar.ByteBlock;
+import net.kano.joscar.DefensiveTools;
+import net.kano.joscar.OscarTools;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * An immutable TLV chain, a TLV chain that cannot be modified after its
- * creation. 
+ * creation.
+ * <br>
+ * <br>A chain read from a block of binary data is parsed lazily: the first
+ * query scans the TLV headers into a compact <code>int</code> array of
+ * (type, offset, length) entries, and <code>Tlv</code> objects are only
+ * created for the TLV's actually requested. The {@link #getUShort},
+ * {@link #getUInt}, {@link #getString(int)} and {@link #hasTlv} methods read
+ * straight from the underlying block without creating any <code>Tlv</code>
+ * objects.
  */
 public final class ImmutableTlvChain extends AbstractTlvChain {
-    /** A list of the TLV's in this chain, in order. */
-    private final List tlvList = new LinkedList();
+    /** The number of <code>int</code>s in each entry of the index. */
+    private static final int ENTRY_SIZE = 3;
+    /** The index of a TLV's type code within an entry of the index. */
+    private static final int ENTRY_TYPE = 0;
+    /** The index of a TLV's data offset within an entry of the index. */
+    private static final int ENTRY_OFFSET = 1;
+    /** The index of a TLV's data length within an entry of the index. */
+    private static final int ENTRY_LENGTH = 2;
+
+    /**
+     * The block from which this chain's TLV's are read, or <code>null</code>
+     * if this chain was created from a list of <code>Tlv</code> objects.
+     */
+    private final ByteBlock block;
+    /**
+     * The maximum number of TLV's to read from the block, or <code>-1</code>
+     * to read all of them.
+     */
+    private final int maxTlvs;
+    /**
+     * Whether this chain was read directly from an incoming block of data,
+     * and thus has a meaningful total size.
+     */
+    private final boolean read;
+
     /**
-     * A map from TLV type codes to <code>List</code>s of the TLV's in this
-     * chain with that type.
+     * A list of (type, data offset, data length) entries, one per TLV in this
+     * chain. This is <code>null</code> until the block has been scanned.
      */
-    private final Map tlvMap = new HashMap();
+    private volatile int[] index = null;
+    /** The number of TLV's in this chain; valid once the index is set. */
+    private int count = 0;
+    /** The number of bytes read from the block; valid once the index is set. */
+    private int readSize = -1;
+
+    /**
+     * The TLV objects in this chain, created as they are requested. Entries
+     * are <code>null</code> until the corresponding TLV is first requested.
+     */
+    private Tlv[] tlvs = null;
+    /** An unmodifiable list of every TLV in this chain, in order. */
+    private List tlvList = null;
 
     /**
      * Creates a new immutable TLV chain with the given number of TLV's starting
@@ -61,10 +110,11 @@ public final class ImmutableTlvChain extends AbstractTlvChain {
      * @param len the number of TLV's to include in this chain
      */
     ImmutableTlvChain(Tlv[] tlvs, int offset, int len) {
-        List list = Arrays.asList(tlvs).subList(offset, offset + len);
-        for (Iterator it = list.iterator(); it.hasNext();) {
-            addTlvImpl((Tlv) it.next());
-        }
+        this.block = null;
+        this.maxTlvs = -1;
+        this.read = false;
+
+        initFromTlvs(tlvs, offset, len);
     }
 
     /**
@@ -79,7 +129,12 @@ public final class ImmutableTlvChain extends AbstractTlvChain {
      *        read all possible TLV's in the given block
      */
     ImmutableTlvChain(ByteBlock block, int maxTlvs) {
-        initFromBlock(block, maxTlvs);
+        DefensiveTools.checkNull(block, "block");
+        DefensiveTools.checkRange(maxTlvs, "maxTlvs", -1);
+
+        this.block = block;
+        this.maxTlvs = maxTlvs;
+        this.read = true;
     }
 
     /**
@@ -89,10 +144,321 @@ public final class ImmutableTlvChain extends AbstractTlvChain {
      * @param other a TLV chain to copy
      */
     ImmutableTlvChain(TlvChain other) {
-        copy(other);
+        DefensiveTools.checkNull(other, "other");
+
+        ImmutableTlvChain lazy = null;
+        if (other instanceof ImmutableTlvChain) {
+            lazy = (ImmutableTlvChain) other;
+            if (lazy.block == null) lazy = null;
+        }
+
+        this.read = false;
+        if (lazy != null) {
+            // the other chain is immutable too, so we can share its data and
+            // any index it's already built
+            this.block = lazy.block;
+            this.maxTlvs = lazy.maxTlvs;
+
+            int[] otherIndex = lazy.index;
+            if (otherIndex != null) {
+                count = lazy.count;
+                readSize = lazy.readSize;
+                index = otherIndex;
+            }
+        } else {
+            this.block = null;
+            this.maxTlvs = -1;
+
+            Tlv[] otherTlvs = other.getTlvs();
+            initFromTlvs(otherTlvs, 0, otherTlvs.length);
+        }
+    }
+
+    /**
+     * Builds this chain's index from the given number of TLV's starting at
+     * the given offset of the given array.
+     *
+     * @param tlvs the list of TLV's
+     * @param offset the index of the first TLV that this chain should contain
+     * @param len the number of TLV's to include in this chain
+     */
+    private synchronized void initFromTlvs(Tlv[] tlvs, int offset, int len) {
+        int[] entries = new int[len * ENTRY_SIZE];
+        Tlv[] objs = new Tlv[len];
+        for (int i = 0; i < len; i++) {
+            Tlv tlv = tlvs[offset + i];
+            DefensiveTools.checkNull(tlv, "tlvs[] elements");
+
+            objs[i] = tlv;
+            int base = i * ENTRY_SIZE;
+            entries[base + ENTRY_TYPE] = tlv.getType();
+            entries[base + ENTRY_OFFSET] = -1;
+            entries[base + ENTRY_LENGTH] = -1;
+        }
+
+        this.tlvs = objs;
+        count = len;
+        index = entries;
+    }
+
+    /**
+     * Returns this chain's index, scanning the underlying block if that has
+     * not been done yet.
+     *
+     * @return this chain's index of (type, data offset, data length) entries
+     */
+    private int[] getIndex() {
+        int[] entries = index;
+        if (entries == null) entries = scanBlock();
+        return entries;
+    }
+
+    /**
+     * Scans the headers of the TLV's in this chain's block, building the
+     * index. No <code>Tlv</code> objects are created.
+     *
+     * @return this chain's index
+     */
+    private synchronized int[] scanBlock() {
+        if (index != null) return index;
+
+        final int len = block.getLength();
+        int[] entries = new int[ENTRY_SIZE * 8];
+        int num = 0;
+        int pos = 0;
+        while ((maxTlvs == -1 || num < maxTlvs) && len - pos >= 4) {
+            int dataLen = block.getUShort(pos + 2);
+            if (dataLen > len - pos - 4) break;
+
+            int base = num * ENTRY_SIZE;
+            if (base + ENTRY_SIZE > entries.length) {
+                int[] bigger = new int[entries.length * 2];
+                System.arraycopy(entries, 0, bigger, 0, base);
+                entries = bigger;
+            }
+            entries[base + ENTRY_TYPE] = block.getUShort(pos);
+            entries[base + ENTRY_OFFSET] = pos + 4;
+            entries[base + ENTRY_LENGTH] = dataLen;
+
+            num++;
+            pos += 4 + dataLen;
+        }
+
+        count = num;
+        readSize = pos;
+        index = entries;
+
+        return entries;
+    }
+
+    /**
+     * Returns the position in this chain of the first or last TLV of the
+     * given type.
+     *
+     * @param type the TLV type to look for
+     * @param last whether to find the last TLV of the given type rather than
+     *        the first
+     * @return the position of the matching TLV in this chain, or
+     *         <code>-1</code> if there is no TLV of the given type
+     */
+    private int find(int type, boolean last) {
+        DefensiveTools.checkRange(type, "type", 0);
+
+        int[] entries = getIndex();
+        int num = count;
+        int found = -1;
+        for (int i = 0, base = ENTRY_TYPE; i < num; i++, base += ENTRY_SIZE) {
+            if (entries[base] == type) {
+                if (!last) return i;
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the TLV at the given position in this chain, creating it if
+     * necessary.
+     *
+     * @param pos the position of the TLV in this chain
+     * @return the TLV at the given position
+     */
+    private synchronized Tlv getTlv(int pos) {
+        if (tlvs == null) tlvs = new Tlv[count];
+
+        Tlv tlv = tlvs[pos];
+        if (tlv == null) {
+            int base = pos * ENTRY_SIZE;
+            int offset = index[base + ENTRY_OFFSET];
+            int length = index[base + ENTRY_LENGTH];
+            tlv = new Tlv(block.subBlock(offset - 4, length + 4));
+            tlvs[pos] = tlv;
+        }
+        return tlv;
+    }
+
+    /**
+     * Returns the data block of the TLV at the given position, without
+     * creating a <code>Tlv</code> object if this chain was read from a block.
+     *
+     * @param pos the position of the TLV in this chain
+     * @return the data block of the TLV at the given position
+     */
+    private ByteBlock getData(int pos) {
+        if (block == null) return getTlv(pos).getData();
+
+        int base = pos * ENTRY_SIZE;
+        int[] entries = index;
+        return block.subBlock(entries[base + ENTRY_OFFSET],
+                entries[base + ENTRY_LENGTH]);
+    }
+
+    public boolean hasTlv(int type) {
+        return find(type, false) != -1;
+    }
+
+    public Tlv[] getTlvs() {
+        getIndex();
+        Tlv[] all = new Tlv[count];
+        for (int i = 0; i < all.length; i++) all[i] = getTlv(i);
+        return all;
+    }
+
+    public Iterator iterator() {
+        return getTlvList().iterator();
+    }
+
+    public int getTlvCount() {
+        getIndex();
+        return count;
+    }
+
+    public Tlv getFirstTlv(int type) {
+        int pos = find(type, false);
+        return pos == -1 ? null : getTlv(pos);
+    }
+
+    public Tlv getLastTlv(int type) {
+        int pos = find(type, true);
+        return pos == -1 ? null : getTlv(pos);
     }
 
-    protected final List getTlvList() { return tlvList; }
+    public Tlv[] getTlvs(int type) {
+        DefensiveTools.checkRange(type, "type", 0);
+
+        int[] entries = getIndex();
+        int num = count;
+        int matches = 0;
+        for (int i = 0; i < num; i++) {
+            if (entries[i * ENTRY_SIZE + ENTRY_TYPE] == type) matches++;
+        }
+
+        Tlv[] result = new Tlv[matches];
+        for (int i = 0, j = 0; j < matches; i++) {
+            if (entries[i * ENTRY_SIZE + ENTRY_TYPE] == type) {
+                result[j++] = getTlv(i);
+            }
+        }
+        return result;
+    }
+
+    public String getString(int type) {
+        int pos = find(type, true);
+        return pos == -1 ? null : BinaryTools.getAsciiString(getData(pos));
+    }
+
+    public String getString(int type, String charset) {
+        DefensiveTools.checkNull(charset, "charset");
+
+        int pos = find(type, true);
+        return pos == -1 ? null : OscarTools.getString(getData(pos), charset);
+    }
 
-    protected final Map getTlvMap() { return tlvMap; }
+    public int getUShort(int type) {
+        int pos = find(type, true);
+        if (pos == -1) return -1;
+        if (block == null) return getTlv(pos).getDataAsUShort();
+
+        int base = pos * ENTRY_SIZE;
+        if (index[base + ENTRY_LENGTH] < 2) return -1;
+        return block.getUShort(index[base + ENTRY_OFFSET]);
+    }
+
+    public long getUInt(int type) {
+        int pos = find(type, false);
+        if (pos == -1) return -1;
+        if (block == null) return getTlv(pos).getDataAsUInt();
+
+        int base = pos * ENTRY_SIZE;
+        if (index[base + ENTRY_LENGTH] < 4) return -1;
+        return block.getUInt(index[base + ENTRY_OFFSET]);
+    }
+
+    public int getTotalSize() {
+        if (!read) return -1;
+
+        getIndex();
+        return readSize;
+    }
+
+    public long getWritableLength() {
+        if (block == null) return super.getWritableLength();
+
+        // the TLV's in a block are laid out back to back, so their total
+        // length is just the number of bytes scanned
+        getIndex();
+        return readSize;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        if (block == null) {
+            super.write(out);
+        } else {
+            getIndex();
+            block.subBlock(0, readSize).write(out);
+        }
+    }
+
+    public void write(ByteBuffer buf) {
+        if (block == null) {
+            super.write(buf);
+        } else {
+            getIndex();
+            block.subBlock(0, readSize).write(buf);
+        }
+    }
+
+    protected synchronized final List getTlvList() {
+        if (tlvList == null) {
+            tlvList = Collections.unmodifiableList(Arrays.asList(getTlvs()));
+        }
+        return tlvList;
+    }
+
+    /**
+     * Returns a newly built map from TLV types to lists of the TLV's in this
+     * chain with that type. This chain does not keep such a map itself, so
+     * this is only used when another chain is made as a copy of this one.
+     *
+     * @return a map from TLV type to a list of TLV's of that type
+     */
+    protected final Map getTlvMap() {
+        Map map = new HashMap();
+        for (Iterator it = getTlvList().iterator(); it.hasNext();) {
+            Tlv tlv = (Tlv) it.next();
+
+            Integer type = Integer.valueOf(tlv.getType());
+            List siblings = (List) map.get(type);
+            if (siblings == null) {
+                siblings = createSiblingList();
+                map.put(type, siblings);
+            }
+            siblings.add(tlv);
+        }
+        return map;
+    }
+
+    protected void addTlvImpl(Tlv tlv) {
+        throw new UnsupportedOperationException("this chain is immutable");
+    }
 }
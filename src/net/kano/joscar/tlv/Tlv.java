@@ -36,6 +36,7 @@
 package net.kano.joscar.tlv;
 
 import net.kano.joscar.BinaryTools;
+import net.kano.joscar.BufferWritable;
 import net.kano.joscar.ByteBlock;
 import net.kano.joscar.DefensiveTools;
 import net.kano.joscar.LiveWritable;
@@ -56,7 +57,7 @@ import java.nio.charset.CharsetDecoder;
  * a "value" whose binary length is less than 65536 bytes. This class is
  * immutable.
  */
-public final class Tlv implements Writable {
+public final class Tlv implements BufferWritable {
     /** This TLV's type. */
     private final int type;
     /** This TLV's value. */
@@ -65,6 +66,13 @@ public final class Tlv implements Writable {
     private final int totalSize;
     /** An object used to write the TLV data to a stream. */
     private final Writable writer;
+    /**
+     * The total length of this TLV when written, or <code>-1</code> if it has
+     * not been computed yet. This is an <code>int</code> so that it is always
+     * read and written whole; two threads racing to compute it just store the
+     * same value twice.
+     */
+    private int writableLength = -1;
 
     /**
      * Returns a new TLV of the given type containing the given string encoded
@@ -265,16 +273,36 @@ public final class Tlv implements Writable {
         return totalSize;
     }
 
+    /**
+     * Returns the length of this TLV when written. The length is computed the
+     * first time this is called and remembered from then on, which assumes
+     * that the data writer given to the constructor always writes the same
+     * number of bytes once it has been handed to this TLV.
+     *
+     * @return the number of bytes this TLV writes
+     */
     public long getWritableLength() {
-        return 4 + data.getLength();
+        int len = writableLength;
+        if (len != -1) return len;
+
+        long computed = 4 + writer.getWritableLength();
+        // a value too long for a TLV isn't worth remembering
+        if (computed <= Integer.MAX_VALUE) writableLength = (int) computed;
+        return computed;
     }
 
     public void write(OutputStream out) throws IOException {
         BinaryTools.writeUShort(out, type);
-        BinaryTools.writeUShort(out, (int) writer.getWritableLength());
+        BinaryTools.writeUShort(out, (int) getWritableLength() - 4);
         writer.write(out);
     }
 
+    public void write(ByteBuffer buf) {
+        buf.putShort((short) type);
+        buf.putShort((short) (getWritableLength() - 4));
+        BinaryTools.write(buf, writer);
+    }
+
     public String toString() {
         StringBuffer buffer = new StringBuffer();
         buffer.append("TLV: type=0x");